@@ -0,0 +1,40 @@
+package com.lbt.telegram_learning_bot.bot;
+
+import static com.lbt.telegram_learning_bot.util.Constants.*;
+
+/**
+ * Бот, от имени которого обрабатывается текущий апдейт. Выставляется диспетчером на время обработки
+ * и переносится в фоновые задачи через wrap(); вне обработки — основной бот.
+ */
+public final class BotContext {
+
+    private static final ThreadLocal<String> CURRENT = new ThreadLocal<>();
+
+    private BotContext() {
+    }
+
+    public static String currentBotId() {
+        String botId = CURRENT.get();
+        return botId != null ? botId : DEFAULT_BOT_ID;
+    }
+
+    public static void runAs(String botId, Runnable action) {
+        String previous = CURRENT.get();
+        CURRENT.set(botId);
+        try {
+            action.run();
+        } finally {
+            if (previous != null) {
+                CURRENT.set(previous);
+            } else {
+                CURRENT.remove();
+            }
+        }
+    }
+
+    // Задача для другого потока выполнится от имени того же бота, что и вызывающий код
+    public static Runnable wrap(Runnable action) {
+        String botId = currentBotId();
+        return () -> runAs(botId, action);
+    }
+}
@@ -0,0 +1,17 @@
+package com.lbt.telegram_learning_bot.bot;
+
+import com.pengrad.telegrambot.TelegramBot;
+
+import java.util.Set;
+
+import static com.lbt.telegram_learning_bot.util.Constants.*;
+
+/**
+ * Один из ботов процесса: свой токен и свой набор администраторов.
+ */
+public record BotInstance(String id, TelegramBot telegramBot, Set<Long> adminIds) {
+
+    public boolean isDefault() {
+        return DEFAULT_BOT_ID.equals(id);
+    }
+}
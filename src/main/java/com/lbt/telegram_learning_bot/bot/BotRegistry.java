@@ -0,0 +1,89 @@
+package com.lbt.telegram_learning_bot.bot;
+
+import com.lbt.telegram_learning_bot.config.TelegramBotsProperties;
+import com.lbt.telegram_learning_bot.repository.AdminUserRepository;
+import com.pengrad.telegrambot.TelegramBot;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static com.lbt.telegram_learning_bot.util.Constants.*;
+
+/**
+ * Все боты, обслуживаемые процессом. Репозитории, кэши контента и пулы общие,
+ * а токен, очередь исходящих и администраторы — у каждого бота свои.
+ */
+@Slf4j
+@Component
+public class BotRegistry {
+
+    private final Map<String, BotInstance> bots = new LinkedHashMap<>();
+    private final AdminUserRepository adminUserRepository;
+
+    public BotRegistry(@Value("${telegram.bot.token}") String token,
+                       TelegramBotsProperties properties,
+                       AdminUserRepository adminUserRepository) {
+        this.adminUserRepository = adminUserRepository;
+        register(DEFAULT_BOT_ID, token, Set.of());
+        for (TelegramBotsProperties.Bot bot : properties.bots()) {
+            register(bot.id(), bot.token(), bot.adminIds());
+        }
+        log.info("Configured bots: {}", bots.keySet());
+    }
+
+    private void register(String id, String token, Set<Long> adminIds) {
+        if (id == null || !id.matches("[a-z0-9_-]{1,32}")) {
+            throw new IllegalStateException("Invalid bot id: " + id);
+        }
+        if (token == null || token.isBlank()) {
+            throw new IllegalStateException("Token is not set for bot " + id);
+        }
+        if (bots.containsKey(id)) {
+            throw new IllegalStateException("Duplicate bot id: " + id);
+        }
+        bots.put(id, new BotInstance(id, new TelegramBot(token), Set.copyOf(adminIds)));
+    }
+
+    public BotInstance current() {
+        String botId = BotContext.currentBotId();
+        BotInstance bot = bots.get(botId);
+        if (bot == null) {
+            throw new IllegalStateException("Unknown bot: " + botId);
+        }
+        return bot;
+    }
+
+    public TelegramBot currentBot() {
+        return current().telegramBot();
+    }
+
+    public Optional<BotInstance> find(String botId) {
+        return Optional.ofNullable(bots.get(botId));
+    }
+
+    public Collection<BotInstance> all() {
+        return Collections.unmodifiableCollection(bots.values());
+    }
+
+    // Администраторы основного бота хранятся в admin_user, остальных — в конфигурации
+    public boolean isAdmin(Long userId) {
+        BotInstance bot = current();
+        if (bot.adminIds().contains(userId)) {
+            return true;
+        }
+        return bot.isDefault() && adminUserRepository.existsByUserId(userId);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        bots.values().forEach(bot -> bot.telegramBot().shutdown());
+    }
+}
@@ -0,0 +1,174 @@
+package com.lbt.telegram_learning_bot.bot;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.lbt.telegram_learning_bot.util.Constants.*;
+
+/**
+ * Компактная версионированная упаковка callback_data (лимит Telegram — 64 байта).
+ * Формат v1: "~1" + короткий код действия + аргументы через '.', числа — в base36,
+ * например "~1tp.2s.1.k.0". Курсоры навигации (id родителя, номер страницы) едут в самой кнопке,
+ * поэтому листание списков не читает и не пишет сессию.
+ * Кнопки старого формата "action:arg1:arg2" по-прежнему разбираются.
+ */
+public final class CallbackCodec {
+
+    public static final int MAX_CALLBACK_BYTES = 64;
+
+    private static final char MARKER = '~';
+    private static final char VERSION = '1';
+    private static final char SEPARATOR = '.';
+    private static final int RADIX = 36;
+
+    private static final Map<String, String> CODES = new HashMap<>();
+    private static final Map<String, String> ACTIONS = new HashMap<>();
+
+    static {
+        register(CALLBACK_MAIN_MENU, "m");
+        register(CALLBACK_MY_COURSES, "mc");
+        register(CALLBACK_ALL_COURSES, "ac");
+        register(CALLBACK_SEARCH_COURSES, "sc");
+        register(CALLBACK_COURSES_PAGE, "cp");
+        register(CALLBACK_SECTIONS_PAGE, "sp");
+        register(CALLBACK_TOPICS_PAGE, "tp");
+        register(CALLBACK_SELECT_COURSE, "c");
+        register(CALLBACK_SELECT_SECTION, "s");
+        register(CALLBACK_SELECT_TOPIC, "t");
+        register(CALLBACK_BACK_TO_COURSES, "bc");
+        register(CALLBACK_BACK_TO_SECTIONS, "bs");
+        register(CALLBACK_BACK_TO_TOPICS, "bt");
+        register(CALLBACK_NEXT_BLOCK, "nb");
+        register(CALLBACK_PREV_BLOCK, "pb");
+        register(CALLBACK_NEXT_QUESTION, "nq");
+        register(CALLBACK_PREV_QUESTION, "pq");
+        register(CALLBACK_ANSWER, "a");
+        register(CALLBACK_BACK_TO_BLOCK_TEXT, "bb");
+        register(CALLBACK_TEST_TOPIC, "tt");
+        register(CALLBACK_TEST_SECTION, "ts");
+        register(CALLBACK_TEST_COURSE, "tc");
+        register(CALLBACK_CREATE_COURSE, "cc");
+        register(CALLBACK_EDIT_COURSE, "ec");
+        register(CALLBACK_DELETE_COURSE, "dc");
+        register(CALLBACK_SELECT_COURSE_FOR_EDIT, "ce");
+        register(CALLBACK_SELECT_COURSE_FOR_DELETE, "cd");
+        register(CALLBACK_EDIT_COURSE_ACTION, "ea");
+        register(CALLBACK_SELECT_SECTION_FOR_EDIT, "se");
+        register(CALLBACK_EDIT_SECTION_ACTION, "sa");
+        register(CALLBACK_SELECT_TOPIC_FOR_EDIT, "te");
+        register(CALLBACK_CONFIRM_DELETE_COURSE, "xd");
+        register(CALLBACK_RETRY, "r");
+        register(CALLBACK_STATISTICS, "st");
+        register(CALLBACK_EXPORT_PDF, "pdf");
+        register(CALLBACK_MY_MISTAKES, "mm");
+        register(CALLBACK_BACK, "b");
+        register(CALLBACK_ADMIN_COURSES_PAGE, "acp");
+        register(CALLBACK_ADMIN_SECTIONS_PAGE, "asp");
+        register(CALLBACK_ADMIN_TOPICS_PAGE, "atp");
+        register(CALLBACK_ADMIN_BACK_TO_SECTIONS, "abs");
+        register(CALLBACK_ADMIN_BACK_TO_TOPICS, "abt");
+    }
+
+    private CallbackCodec() {
+    }
+
+    private static void register(String action, String code) {
+        CODES.put(action, code);
+        ACTIONS.put(code, action);
+    }
+
+    /**
+     * Упаковывает действие и аргументы. Числовые аргументы (Long/Integer) пишутся в base36,
+     * строковые — как есть (не должны содержать '.').
+     */
+    public static String encode(String action, Object... args) {
+        StringBuilder sb = new StringBuilder(16)
+                .append(MARKER).append(VERSION)
+                .append(CODES.getOrDefault(action, action));
+        for (Object arg : args) {
+            sb.append(SEPARATOR);
+            if (arg instanceof Long l) {
+                sb.append(Long.toString(l, RADIX));
+            } else if (arg instanceof Integer i) {
+                sb.append(Integer.toString(i, RADIX));
+            } else {
+                String s = String.valueOf(arg);
+                if (s.indexOf(SEPARATOR) >= 0) {
+                    throw new IllegalArgumentException("Callback argument contains separator: " + s);
+                }
+                sb.append(s);
+            }
+        }
+        String data = sb.toString();
+        if (data.getBytes(StandardCharsets.UTF_8).length > MAX_CALLBACK_BYTES) {
+            throw new IllegalArgumentException("Callback data exceeds " + MAX_CALLBACK_BYTES + " bytes: " + data);
+        }
+        return data;
+    }
+
+    public static CallbackData decode(String data) {
+        if (data.length() >= 2 && data.charAt(0) == MARKER) {
+            if (data.charAt(1) != VERSION) {
+                // Неизвестная версия: действие не распознаётся, диспетчер залогирует его как неизвестное
+                return new CallbackData(data, List.of(), RADIX);
+            }
+            List<String> tokens = split(data.substring(2));
+            String action = ACTIONS.getOrDefault(tokens.get(0), tokens.get(0));
+            return new CallbackData(action, tokens.subList(1, tokens.size()), RADIX);
+        }
+        // Старый формат: "action:arg1:arg2", числа десятичные
+        String[] parts = data.split(":", 3);
+        return new CallbackData(parts[0], Arrays.asList(parts).subList(1, parts.length), 10);
+    }
+
+    private static List<String> split(String body) {
+        List<String> tokens = new ArrayList<>(4);
+        int start = 0;
+        int idx;
+        while ((idx = body.indexOf(SEPARATOR, start)) >= 0) {
+            tokens.add(body.substring(start, idx));
+            start = idx + 1;
+        }
+        tokens.add(body.substring(start));
+        return tokens;
+    }
+
+    /**
+     * Разобранный callback: имя действия (константа CALLBACK_*) и аргументы.
+     */
+    public record CallbackData(String action, List<String> args, int radix) {
+
+        public int argCount() {
+            return args.size();
+        }
+
+        public boolean hasArg(int index) {
+            return index < args.size() && !args.get(index).isEmpty();
+        }
+
+        public String arg(int index) {
+            return args.get(index);
+        }
+
+        public Long longArg(int index) {
+            return Long.parseLong(args.get(index), radix);
+        }
+
+        public int intArg(int index) {
+            return Integer.parseInt(args.get(index), radix);
+        }
+
+        // Необязательный числовой аргумент: null, если кнопка старая и его не несёт
+        public Integer optionalIntArg(int index) {
+            return hasArg(index) ? intArg(index) : null;
+        }
+
+        public Long optionalLongArg(int index) {
+            return hasArg(index) ? longArg(index) : null;
+        }
+    }
+}
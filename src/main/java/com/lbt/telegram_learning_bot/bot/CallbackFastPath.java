@@ -0,0 +1,118 @@
+package com.lbt.telegram_learning_bot.bot;
+
+import com.pengrad.telegrambot.Callback;
+import com.pengrad.telegrambot.model.CallbackQuery;
+import com.pengrad.telegrambot.model.Update;
+import com.pengrad.telegrambot.request.AnswerCallbackQuery;
+import com.pengrad.telegrambot.response.BaseResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.lbt.telegram_learning_bot.util.Constants.*;
+
+/**
+ * Быстрая обработка callback-кнопок: немедленный ответ на callback (убирает «часики» у клиента)
+ * и отбрасывание устаревших или перекрытых нажатий до того, как они дойдут до обработчиков.
+ */
+@Slf4j
+@Component
+public class CallbackFastPath {
+
+    // Переходы на абсолютную страницу: более позднее нажатие на том же сообщении полностью перекрывает раннее
+    private static final Set<String> COLLAPSIBLE_ACTIONS = Set.of(
+            CALLBACK_COURSES_PAGE,
+            CALLBACK_SECTIONS_PAGE,
+            CALLBACK_TOPICS_PAGE,
+            CALLBACK_ADMIN_COURSES_PAGE,
+            CALLBACK_ADMIN_SECTIONS_PAGE,
+            CALLBACK_ADMIN_TOPICS_PAGE
+    );
+
+    private final BotRegistry botRegistry;
+    private final long maxAgeNanos;
+    private final Counter staleCounter;
+    private final Counter supersededCounter;
+
+    public CallbackFastPath(BotRegistry botRegistry,
+                            MeterRegistry meterRegistry,
+                            @Value("${bot.callback.max-age-ms:10000}") long maxAgeMs) {
+        this.botRegistry = botRegistry;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMs);
+        this.staleCounter = Counter.builder("bot.callbacks.shed")
+                .tag("reason", "stale")
+                .register(meterRegistry);
+        this.supersededCounter = Counter.builder("bot.callbacks.shed")
+                .tag("reason", "superseded")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Решает, нужно ли отбросить апдейт, не вызывая обработчик.
+     * pending — апдейты того же пользователя, стоящие в очереди после текущего.
+     */
+    public boolean shouldDrop(Update update, long receivedAtNanos, Iterable<Update> pending) {
+        CallbackQuery callback = update.callbackQuery();
+        if (callback == null || callback.data() == null) {
+            return false;
+        }
+        if (System.nanoTime() - receivedAtNanos > maxAgeNanos) {
+            // Ответить на такой callback Telegram уже не даст — просто отбрасываем
+            staleCounter.increment();
+            log.debug("Dropping stale callback {} from user {}", callback.data(), callback.from().id());
+            return true;
+        }
+        if (isSuperseded(callback, pending)) {
+            supersededCounter.increment();
+            acknowledge(callback);
+            log.debug("Dropping superseded callback {} from user {}", callback.data(), callback.from().id());
+            return true;
+        }
+        return false;
+    }
+
+    // Асинхронный пустой ответ на callback: клиент перестаёт показывать индикатор загрузки
+    public void acknowledge(CallbackQuery callback) {
+        botRegistry.currentBot().execute(new AnswerCallbackQuery(callback.id()), new Callback<AnswerCallbackQuery, BaseResponse>() {
+            @Override
+            public void onResponse(AnswerCallbackQuery request, BaseResponse response) {
+                if (!response.isOk()) {
+                    log.debug("Callback answer rejected: {}", response.description());
+                }
+            }
+
+            @Override
+            public void onFailure(AnswerCallbackQuery request, IOException e) {
+                log.warn("Failed to answer callback query", e);
+            }
+        });
+    }
+
+    private boolean isSuperseded(CallbackQuery callback, Iterable<Update> pending) {
+        String action = actionOf(callback.data());
+        if (!COLLAPSIBLE_ACTIONS.contains(action) || callback.message() == null) {
+            return false;
+        }
+        Integer messageId = callback.message().messageId();
+        for (Update later : pending) {
+            CallbackQuery next = later.callbackQuery();
+            if (next != null && next.data() != null && next.message() != null
+                    && Objects.equals(messageId, next.message().messageId())
+                    && action.equals(actionOf(next.data()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String actionOf(String data) {
+        return CallbackCodec.decode(data).action();
+    }
+}
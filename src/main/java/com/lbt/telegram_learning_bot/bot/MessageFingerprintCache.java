@@ -0,0 +1,159 @@
+package com.lbt.telegram_learning_bot.bot;
+
+import com.pengrad.telegrambot.model.request.InlineKeyboardButton;
+import com.pengrad.telegrambot.model.request.InlineKeyboardMarkup;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Отпечатки последнего отправленного состояния (текст + клавиатура) для тройки (бот, чат, сообщение).
+ * Если новая правка совпадает с тем, что уже отправлено, запрос EditMessageText не отправляется —
+ * Telegram всё равно ответил бы «message is not modified».
+ * <p>
+ * Отпечаток записывается в момент отправки правки (правки одного чата уходят по порядку),
+ * а при ошибке откатывается, только если за ним не отправили другую правку.
+ * <p>
+ * Отпечатки сгруппированы по чатам: когда аренда пользователя возвращается к узлу (UserLeaseService),
+ * его чат забывается целиком — пока аренда была у другого узла, тот мог править те же сообщения.
+ */
+@Component
+public class MessageFingerprintCache {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    // Правятся в основном последние сообщения чата, старые вытесняются
+    private static final int MESSAGES_PER_CHAT = 32;
+
+    private final Map<ChatKey, Map<Integer, Long>> fingerprints;
+    private int entries;
+    private final Counter hitCounter;
+    private final Counter missCounter;
+
+    public MessageFingerprintCache(MeterRegistry meterRegistry,
+                                   @Value("${bot.edit-cache.max-size:50000}") int maxSize) {
+        // LRU по доступу: вытесняем давно не трогавшиеся чаты, пока сообщений больше maxSize
+        this.fingerprints = new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ChatKey, Map<Integer, Long>> eldest) {
+                if (entries <= maxSize) return false;
+                entries -= eldest.getValue().size();
+                return true;
+            }
+        };
+        this.hitCounter = Counter.builder("bot.edit_cache").tag("result", "hit").register(meterRegistry);
+        this.missCounter = Counter.builder("bot.edit_cache").tag("result", "miss").register(meterRegistry);
+        Gauge.builder("bot.edit_cache.size", this, MessageFingerprintCache::size).register(meterRegistry);
+    }
+
+    /**
+     * true — сообщение уже показывает ровно этот текст и клавиатуру, правку можно пропустить.
+     */
+    public boolean isUnchanged(String botId, Long chatId, Integer messageId, long fingerprint) {
+        Long current;
+        synchronized (fingerprints) {
+            Map<Integer, Long> chat = fingerprints.get(new ChatKey(botId, chatId));
+            current = chat != null ? chat.get(messageId) : null;
+        }
+        boolean hit = current != null && current == fingerprint;
+        (hit ? hitCounter : missCounter).increment();
+        return hit;
+    }
+
+    public void remember(String botId, Long chatId, Integer messageId, long fingerprint) {
+        synchronized (fingerprints) {
+            Map<Integer, Long> chat = fingerprints.get(new ChatKey(botId, chatId));
+            if (chat == null) {
+                chat = new LinkedHashMap<>(8, 0.75f, true);
+                chat.put(messageId, fingerprint);
+                entries++;
+                // put внешней карты — после подсчёта, иначе вытеснение не увидит новую запись
+                fingerprints.put(new ChatKey(botId, chatId), chat);
+                return;
+            }
+            if (chat.put(messageId, fingerprint) == null) {
+                entries++;
+                if (chat.size() > MESSAGES_PER_CHAT) {
+                    Integer eldest = chat.keySet().iterator().next();
+                    chat.remove(eldest);
+                    entries--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Правка с этим отпечатком не дошла: забываем его, если он всё ещё последний отправленный.
+     */
+    public void rollback(String botId, Long chatId, Integer messageId, long fingerprint) {
+        synchronized (fingerprints) {
+            Map<Integer, Long> chat = fingerprints.get(new ChatKey(botId, chatId));
+            if (chat != null && chat.remove(messageId, fingerprint)) {
+                entries--;
+            }
+        }
+    }
+
+    public void evict(String botId, Long chatId, Integer messageId) {
+        synchronized (fingerprints) {
+            Map<Integer, Long> chat = fingerprints.get(new ChatKey(botId, chatId));
+            if (chat != null && chat.remove(messageId) != null) {
+                entries--;
+            }
+        }
+    }
+
+    /**
+     * Забывает все отпечатки чата: его сообщения могли измениться без ведома этого узла.
+     */
+    public void evictChat(String botId, Long chatId) {
+        synchronized (fingerprints) {
+            Map<Integer, Long> chat = fingerprints.remove(new ChatKey(botId, chatId));
+            if (chat != null) {
+                entries -= chat.size();
+            }
+        }
+    }
+
+    // 64-битный FNV-1a по тексту и всем значимым полям кнопок
+    public long fingerprint(String text, InlineKeyboardMarkup keyboard) {
+        long hash = mix(FNV_OFFSET, text);
+        if (keyboard != null) {
+            for (InlineKeyboardButton[] row : keyboard.inlineKeyboard()) {
+                hash = mix(hash, "\u0001");
+                for (InlineKeyboardButton button : row) {
+                    hash = mix(hash, "\u0002");
+                    hash = mix(hash, button.text());
+                    hash = mix(hash, button.callbackData());
+                    hash = mix(hash, button.url());
+                }
+            }
+        }
+        return hash;
+    }
+
+    private long mix(long hash, String value) {
+        if (value == null) {
+            return (hash ^ 0xff) * FNV_PRIME;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return (hash ^ 0xfe) * FNV_PRIME;
+    }
+
+    private int size() {
+        synchronized (fingerprints) {
+            return entries;
+        }
+    }
+
+    // id сообщений у разных ботов в одном чате пересекаются
+    private record ChatKey(String botId, Long chatId) {
+    }
+}
@@ -0,0 +1,376 @@
+package com.lbt.telegram_learning_bot.bot;
+
+import com.pengrad.telegrambot.Callback;
+import com.pengrad.telegrambot.request.BaseRequest;
+import com.pengrad.telegrambot.request.SendDocument;
+import com.pengrad.telegrambot.request.SendMediaGroup;
+import com.pengrad.telegrambot.request.SendMessage;
+import com.pengrad.telegrambot.response.BaseResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Исходящие запросы к Telegram через асинхронный execute(request, callback).
+ * Запросы одного чата уходят строго по очереди (следующий — после ответа на предыдущий),
+ * отправка ограничена ведром токенов бота и ведром каждого чата, а ответ 429 откладывает
+ * очередь чата на retry_after секунд. Лимиты Telegram действуют на токен, поэтому у каждого
+ * бота свои очереди и своё общее ведро; бот берётся из BotContext в момент submit.
+ * Всё состояние очередей меняется только в потоке-насосе, поэтому блокировки не нужны.
+ * <p>
+ * Очередь ограничена: сверх max-queued запрос сразу завершается RejectedExecutionException.
+ * При остановке неотправленные и неотвеченные запросы тоже завершаются ошибкой — никто не ждёт их вечно.
+ */
+@Slf4j
+@Component
+public class OutboundScheduler {
+
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final long LANE_IDLE_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final BotRegistry botRegistry;
+    private final ScheduledExecutorService pump = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "telegram-outbound");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<LaneKey, ChatLane> lanes = new HashMap<>();
+    // Чаты, у которых есть что отправить и нет запроса в полёте; порядок обхода — по кругу
+    private final Set<ChatLane> ready = new LinkedHashSet<>();
+    // Запросы, отданные клиенту Telegram и ещё не получившие ответа
+    private final Set<Job<?, ?>> sending = new HashSet<>();
+    private final Map<String, TokenBucket> botBuckets = new HashMap<>();
+    private final double globalPerSecond;
+    private final double chatRatePerSecond;
+    private final double chatBurst;
+    private final int maxRetries;
+    private final int maxQueued;
+    private volatile boolean stopped;
+    private ScheduledFuture<?> wakeUp;
+    private long wakeUpAt = Long.MIN_VALUE;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final MeterRegistry meterRegistry;
+    private final Counter retryCounter;
+    private final Counter rejectedCounter;
+
+    public OutboundScheduler(BotRegistry botRegistry,
+                             MeterRegistry meterRegistry,
+                             @Value("${bot.outbound.global-per-second:30}") double globalPerSecond,
+                             @Value("${bot.outbound.chat-per-second:1}") double chatRatePerSecond,
+                             @Value("${bot.outbound.chat-burst:3}") double chatBurst,
+                             @Value("${bot.outbound.max-retries:3}") int maxRetries,
+                             @Value("${bot.outbound.max-queued:10000}") int maxQueued) {
+        this.botRegistry = botRegistry;
+        this.meterRegistry = meterRegistry;
+        this.globalPerSecond = globalPerSecond;
+        this.chatRatePerSecond = chatRatePerSecond;
+        this.chatBurst = chatBurst;
+        this.maxRetries = maxRetries;
+        this.maxQueued = maxQueued;
+
+        Gauge.builder("bot.outbound.queued", queued, AtomicInteger::get).register(meterRegistry);
+        Gauge.builder("bot.outbound.in_flight", inFlight, AtomicInteger::get).register(meterRegistry);
+        this.retryCounter = Counter.builder("bot.outbound.retries").register(meterRegistry);
+        this.rejectedCounter = Counter.builder("bot.outbound.rejected").register(meterRegistry);
+
+        pump.scheduleWithFixedDelay(this::evictIdleLanes, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Ставит запрос в очередь чата. Future завершается ответом Telegram (в том числе неуспешным)
+     * или исключением при сетевой ошибке, переполнении очереди (RejectedExecutionException) и остановке.
+     */
+    public <T extends BaseRequest<T, R>, R extends BaseResponse> CompletableFuture<R> submit(Long chatId, T request) {
+        BotInstance bot = botRegistry.current();
+        Job<T, R> job = new Job<>(request, new CompletableFuture<>(), System.nanoTime());
+        if (stopped) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Outbound scheduler is stopped"));
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejectedCounter.increment();
+            log.warn("Outbound queue is full ({}), {} to chat {} rejected", maxQueued, request.getMethod(), chatId);
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Outbound queue is full"));
+        }
+        execute(() -> {
+            if (stopped) {
+                fail(job);
+                return;
+            }
+            ChatLane lane = lanes.computeIfAbsent(new LaneKey(bot.id(), chatId), key -> new ChatLane(key, bot,
+                    new TokenBucket(chatRatePerSecond, chatBurst, System.nanoTime()),
+                    botBuckets.computeIfAbsent(bot.id(),
+                            id -> new TokenBucket(globalPerSecond, globalPerSecond, System.nanoTime()))));
+            lane.queue.addLast(job);
+            if (!lane.busy) {
+                ready.add(lane);
+            }
+            drain();
+        }, () -> fail(job));
+        return job.result;
+    }
+
+    // Насос уже остановлен — задача не выполнится, вместо неё вызывается onRejected
+    private void execute(Runnable task, Runnable onRejected) {
+        try {
+            pump.execute(task);
+        } catch (RejectedExecutionException e) {
+            onRejected.run();
+        }
+    }
+
+    private void fail(Job<?, ?> job) {
+        queued.decrementAndGet();
+        job.result.completeExceptionally(new RejectedExecutionException("Outbound scheduler is stopped"));
+    }
+
+    // Выполняется только в потоке-насосе
+    private void drain() {
+        if (stopped) {
+            return;
+        }
+        long now = System.nanoTime();
+        long nextWake = Long.MAX_VALUE;
+        Iterator<ChatLane> it = ready.iterator();
+        while (it.hasNext()) {
+            ChatLane lane = it.next();
+            if (lane.busy || lane.queue.isEmpty()) {
+                it.remove();
+                continue;
+            }
+            if (lane.notBefore > now) {
+                nextWake = Math.min(nextWake, lane.notBefore);
+                continue;
+            }
+            Job<?, ?> job = lane.queue.peekFirst();
+            boolean countsForChat = createsMessage(job.request);
+            if (countsForChat && !lane.bucket.hasToken(now)) {
+                nextWake = Math.min(nextWake, now + lane.bucket.nanosUntilToken());
+                continue;
+            }
+            // Ведро бота пусто — ждут все его чаты, но чаты других ботов продолжают отправку
+            if (!lane.botBucket.hasToken(now)) {
+                nextWake = Math.min(nextWake, now + lane.botBucket.nanosUntilToken());
+                continue;
+            }
+            lane.botBucket.take();
+            if (countsForChat) {
+                lane.bucket.take();
+            }
+            lane.queue.pollFirst();
+            lane.busy = true;
+            lane.lastActivity = now;
+            it.remove();
+            send(lane, job);
+        }
+        scheduleWakeUp(nextWake, now);
+    }
+
+    private <T extends BaseRequest<T, R>, R extends BaseResponse> void send(ChatLane lane, Job<T, R> job) {
+        queued.decrementAndGet();
+        inFlight.incrementAndGet();
+        sending.add(job);
+        // После остановки future запроса уже завершён ошибкой, поздний ответ просто отбрасывается
+        lane.bot.telegramBot().execute(job.request, new Callback<T, R>() {
+            @Override
+            public void onResponse(T request, R response) {
+                execute(() -> complete(lane, job, response, null), () -> { });
+            }
+
+            @Override
+            public void onFailure(T request, IOException e) {
+                execute(() -> complete(lane, job, null, e), () -> { });
+            }
+        });
+    }
+
+    private <T extends BaseRequest<T, R>, R extends BaseResponse> void complete(ChatLane lane, Job<T, R> job,
+                                                                               R response, IOException error) {
+        if (!sending.remove(job)) {
+            return;
+        }
+        inFlight.decrementAndGet();
+        lane.busy = false;
+        Integer retryAfter = response != null && response.errorCode() == TOO_MANY_REQUESTS
+                && response.parameters() != null ? response.parameters().retryAfter() : null;
+
+        if (retryAfter != null && job.attempts < maxRetries) {
+            job.attempts++;
+            retryCounter.increment();
+            log.warn("Telegram flood limit for chat {} of bot {}, retrying {} in {} s",
+                    lane.key.chatId(), lane.key.botId(), job.request.getMethod(), retryAfter);
+            lane.notBefore = System.nanoTime() + TimeUnit.SECONDS.toNanos(retryAfter);
+            lane.queue.addFirst(job);
+            queued.incrementAndGet();
+        } else {
+            Timer.builder("bot.outbound.latency")
+                    .tag("method", job.request.getMethod())
+                    .tag("bot", lane.key.botId())
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - job.submittedAt, TimeUnit.NANOSECONDS);
+            if (error != null) {
+                job.result.completeExceptionally(error);
+            } else {
+                job.result.complete(response);
+            }
+        }
+        if (!lane.queue.isEmpty()) {
+            ready.add(lane);
+        }
+        drain();
+    }
+
+    private void scheduleWakeUp(long nextWake, long now) {
+        // Уже запланированное более раннее пробуждение покрывает и это
+        if (nextWake == Long.MAX_VALUE || (wakeUpAt > now && wakeUpAt <= nextWake)) {
+            return;
+        }
+        if (wakeUp != null && wakeUpAt > now) {
+            wakeUp.cancel(false);
+        }
+        wakeUpAt = nextWake;
+        wakeUp = pump.schedule(this::drain, Math.max(0, nextWake - now), TimeUnit.NANOSECONDS);
+    }
+
+    private void evictIdleLanes() {
+        long now = System.nanoTime();
+        lanes.values().removeIf(lane -> !lane.busy && lane.queue.isEmpty()
+                && now - lane.lastActivity > LANE_IDLE_NANOS);
+    }
+
+    // Лимит «на чат» у Telegram касается новых сообщений; правки и удаления ограничиваем только общим ведром
+    private boolean createsMessage(BaseRequest<?, ?> request) {
+        return request instanceof SendMessage || request instanceof SendMediaGroup || request instanceof SendDocument;
+    }
+
+    /**
+     * Даёт очередям до 5 секунд дойти до конца, затем завершает все оставшиеся запросы ошибкой:
+     * ожидание 429 может быть дольше остановки, а ждущие их future не должны висеть.
+     */
+    @PreDestroy
+    public void shutdown() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        try {
+            while ((queued.get() > 0 || inFlight.get() > 0) && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            pump.submit(this::failPending).get(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException | RejectedExecutionException e) {
+            log.warn("Failed to stop outbound queues cleanly", e);
+        }
+        stopped = true;
+        // Задачи, не успевшие выполниться, завершают свои запросы ошибкой (stopped уже выставлен)
+        pump.shutdownNow().forEach(Runnable::run);
+    }
+
+    // Выполняется только в потоке-насосе
+    private void failPending() {
+        stopped = true;
+        int dropped = sending.size();
+        inFlight.addAndGet(-sending.size());
+        sending.forEach(job -> job.result.completeExceptionally(
+                new RejectedExecutionException("Outbound scheduler is stopped")));
+        sending.clear();
+        for (ChatLane lane : lanes.values()) {
+            dropped += lane.queue.size();
+            lane.queue.forEach(this::fail);
+            lane.queue.clear();
+        }
+        lanes.clear();
+        ready.clear();
+        if (dropped > 0) {
+            log.warn("Outbound scheduler stopped, {} requests failed without a response", dropped);
+        }
+    }
+
+    private static final class Job<T extends BaseRequest<T, R>, R extends BaseResponse> {
+        private final T request;
+        private final CompletableFuture<R> result;
+        private final long submittedAt;
+        private int attempts;
+
+        private Job(T request, CompletableFuture<R> result, long submittedAt) {
+            this.request = request;
+            this.result = result;
+            this.submittedAt = submittedAt;
+        }
+    }
+
+    private record LaneKey(String botId, Long chatId) {
+    }
+
+    private static final class ChatLane {
+        private final LaneKey key;
+        private final BotInstance bot;
+        private final TokenBucket bucket;
+        private final TokenBucket botBucket;
+        private final Deque<Job<?, ?>> queue = new ArrayDeque<>();
+        private boolean busy;
+        private long notBefore = Long.MIN_VALUE;
+        private long lastActivity = System.nanoTime();
+
+        private ChatLane(LaneKey key, BotInstance bot, TokenBucket bucket, TokenBucket botBucket) {
+            this.key = key;
+            this.bot = bot;
+            this.bucket = bucket;
+            this.botBucket = botBucket;
+        }
+    }
+
+    private static final class TokenBucket {
+        private final double ratePerNano;
+        private final double capacity;
+        private double tokens;
+        private long refilledAt;
+
+        private TokenBucket(double ratePerSecond, double capacity, long now) {
+            this.ratePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.refilledAt = now;
+        }
+
+        private boolean hasToken(long now) {
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * ratePerNano);
+            refilledAt = now;
+            return tokens >= 1;
+        }
+
+        private void take() {
+            tokens -= 1;
+        }
+
+        private long nanosUntilToken() {
+            return (long) Math.ceil((1 - tokens) / ratePerNano);
+        }
+    }
+}
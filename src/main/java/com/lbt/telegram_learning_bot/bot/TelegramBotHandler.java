@@ -5,11 +5,11 @@ import com.lbt.telegram_learning_bot.bot.handler.BaseHandler;
 import com.lbt.telegram_learning_bot.bot.handler.CourseNavigationHandler;
 import com.lbt.telegram_learning_bot.bot.handler.TestHandler;
 import com.lbt.telegram_learning_bot.repository.AdminUserRepository;
+import com.lbt.telegram_learning_bot.service.HeavyJobExecutor;
 import com.lbt.telegram_learning_bot.service.NavigationService;
 import com.lbt.telegram_learning_bot.service.PdfExportService;
 import com.lbt.telegram_learning_bot.service.RateLimiterService;
 import com.lbt.telegram_learning_bot.service.UserSessionService;
-import com.pengrad.telegrambot.TelegramBot;
 import com.pengrad.telegrambot.model.CallbackQuery;
 import com.pengrad.telegrambot.model.Message;
 import com.pengrad.telegrambot.model.Update;
@@ -20,6 +20,7 @@ import com.pengrad.telegrambot.request.GetChat;
 import com.pengrad.telegrambot.request.SendDocument;
 import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
@@ -36,7 +37,6 @@ public class TelegramBotHandler extends BaseHandler {
     private final AdminUserRepository adminUserRepository;
     private final PdfExportService pdfExportService;
     private final NavigationService navigationService; // если не унаследовано
-    private final TelegramBot telegramBot;
     private final UserSessionService sessionService;
     private final CourseNavigationHandler courseNavHandler;
     private final TestHandler testHandler;
@@ -44,13 +44,15 @@ public class TelegramBotHandler extends BaseHandler {
     @Value("${message.max-length:2000}")
     private int maxMessageLength;
     private final RateLimiterService rateLimiterService;
+    private final HeavyJobExecutor heavyJobExecutor;
+    private final CallbackFastPath callbackFastPath;
 
     @PostConstruct
     public void init() {
         log.info("TelegramBotHandler (dispatcher) initialized");
     }
 
-    public TelegramBotHandler(TelegramBot telegramBot,
+    public TelegramBotHandler(BotRegistry botRegistry,
                               UserSessionService sessionService,
                               NavigationService navigationService,
                               AdminUserRepository adminUserRepository,
@@ -58,9 +60,14 @@ public class TelegramBotHandler extends BaseHandler {
                               CourseNavigationHandler courseNavHandler,
                               RateLimiterService rateLimiterService,
                               TestHandler testHandler,
-                              AdminHandler adminHandler) {
-        super(telegramBot, sessionService, navigationService, adminUserRepository);
-        this.telegramBot = telegramBot;
+                              AdminHandler adminHandler,
+                              HeavyJobExecutor heavyJobExecutor,
+                              CallbackFastPath callbackFastPath,
+                              OutboundScheduler outboundScheduler,
+                              MessageFingerprintCache fingerprintCache,
+                              ObjectProvider<UpdateDispatcher> dispatcher) {
+        super(botRegistry, sessionService, navigationService, adminUserRepository, outboundScheduler, fingerprintCache,
+                dispatcher);
         this.sessionService = sessionService;
         this.navigationService = navigationService;
         this.adminUserRepository = adminUserRepository;
@@ -69,6 +76,8 @@ public class TelegramBotHandler extends BaseHandler {
         this.testHandler = testHandler;
         this.adminHandler = adminHandler;
         this.rateLimiterService = rateLimiterService;
+        this.heavyJobExecutor = heavyJobExecutor;
+        this.callbackFastPath = callbackFastPath;
     }
 
     private boolean isAdminState(BotState state) {
@@ -92,8 +101,17 @@ public class TelegramBotHandler extends BaseHandler {
     private void handleMessage(Message message) {
         Long userId = message.from().id();
 
-        // Rate limiting проверка
-        if (!rateLimiterService.isAllowed(userId)) {
+        // Rate limiting проверка: импорт и загрузка изображений стоят дороже обычного сообщения
+        // (альбом фото — один раз за альбом)
+        boolean allowed;
+        if (message.document() != null) {
+            allowed = rateLimiterService.isAllowed(userId, HeavyJobExecutor.JobType.COURSE_IMPORT);
+        } else if (message.photo() != null && message.photo().length > 0) {
+            allowed = rateLimiterService.isAllowedPhoto(userId, message.mediaGroupId());
+        } else {
+            allowed = rateLimiterService.isAllowed(userId);
+        }
+        if (!allowed) {
             sendMessage(userId, TOO_MANY_REQUEST);
             return;
         }
@@ -142,10 +160,16 @@ public class TelegramBotHandler extends BaseHandler {
 
     private void handleCallback(CallbackQuery callbackQuery) {
         Long userId = callbackQuery.from().id();
+        String data = callbackQuery.data();
+        CallbackCodec.CallbackData callback = CallbackCodec.decode(data);
+        String action = callback.action();
 
-        if (!rateLimiterService.isAllowed(userId)) {
+        boolean allowed = CALLBACK_EXPORT_PDF.equals(action)
+                ? rateLimiterService.isAllowed(userId, HeavyJobExecutor.JobType.PDF_EXPORT)
+                : rateLimiterService.isAllowed(userId);
+        if (!allowed) {
             try {
-                telegramBot.execute(new AnswerCallbackQuery(callbackQuery.id())
+                telegramBot().execute(new AnswerCallbackQuery(callbackQuery.id())
                         .text(TOO_MANY_REQUEST)
                         .showAlert(true));
             } catch (Exception e) {
@@ -153,14 +177,13 @@ public class TelegramBotHandler extends BaseHandler {
             }
             return;
         }
-        String data = callbackQuery.data();
+        // Отвечаем сразу, не дожидаясь обработки и отрисовки
+        callbackFastPath.acknowledge(callbackQuery);
+
         Integer messageId = callbackQuery.message().messageId();
 
         log.debug("Callback from user {}: {}", userId, data);
 
-        String[] parts = data.split(":", 3);
-        String action = parts[0];
-
         switch (action) {
             // навигация
             case CALLBACK_MY_COURSES:
@@ -173,22 +196,23 @@ public class TelegramBotHandler extends BaseHandler {
                 courseNavHandler.promptSearch(userId, messageId);
                 break;
             case CALLBACK_COURSES_PAGE:
-                courseNavHandler.handleCoursesPage(userId, messageId, parts[1], Integer.parseInt(parts[2]));
+                courseNavHandler.handleCoursesPage(userId, messageId, callback.arg(0), callback.intArg(1));
                 break;
             case CALLBACK_SELECT_COURSE:
-                courseNavHandler.handleSelectCourse(userId, messageId, Long.parseLong(parts[1]));
+                courseNavHandler.handleSelectCourse(userId, messageId, callback.longArg(0));
                 break;
             case CALLBACK_SELECT_SECTION:
-                courseNavHandler.handleSelectSection(userId, messageId, Long.parseLong(parts[1]));
+                courseNavHandler.handleSelectSection(userId, messageId, callback.longArg(0), callback.optionalIntArg(1));
                 break;
             case CALLBACK_SELECT_TOPIC:
-                courseNavHandler.handleSelectTopic(userId, messageId, Long.parseLong(parts[1]));
+                courseNavHandler.handleSelectTopic(userId, messageId, callback.longArg(0), callback.optionalIntArg(1));
                 break;
             case CALLBACK_SECTIONS_PAGE:
-                courseNavHandler.handleSectionsPage(userId, messageId, Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+                courseNavHandler.handleSectionsPage(userId, messageId, callback.longArg(0), callback.intArg(1));
                 break;
             case CALLBACK_TOPICS_PAGE:
-                courseNavHandler.handleTopicsPage(userId, messageId, Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+                courseNavHandler.handleTopicsPage(userId, messageId, callback.longArg(0), callback.intArg(1),
+                        callback.optionalLongArg(2), callback.optionalIntArg(3));
                 break;
             case CALLBACK_BACK_TO_COURSES:
                 BotState state = sessionService.getCurrentState(userId);
@@ -199,7 +223,8 @@ public class TelegramBotHandler extends BaseHandler {
                 }
                 break;
             case CALLBACK_BACK_TO_SECTIONS:
-                courseNavHandler.handleBackToSections(userId, messageId);
+                courseNavHandler.handleBackToSections(userId, messageId,
+                        callback.optionalLongArg(0), callback.optionalIntArg(1));
                 break;
             case CALLBACK_BACK_TO_TOPICS:
                 courseNavHandler.handleBackToTopics(userId, messageId);
@@ -217,7 +242,7 @@ public class TelegramBotHandler extends BaseHandler {
                 testHandler.handlePrevQuestion(userId, messageId);
                 break;
             case CALLBACK_ANSWER:
-                testHandler.handleAnswer(userId, messageId, Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+                testHandler.handleAnswer(userId, messageId, callback.longArg(0), callback.longArg(1));
                 break;
             case CALLBACK_BACK_TO_BLOCK_TEXT:
                 testHandler.handleBackToBlockText(userId, messageId);
@@ -225,13 +250,13 @@ public class TelegramBotHandler extends BaseHandler {
 
             // тесты
             case CALLBACK_TEST_TOPIC:
-                testHandler.handleTestTopic(userId, messageId, Long.parseLong(parts[1]));
+                testHandler.handleTestTopic(userId, messageId, callback.longArg(0), callback.optionalIntArg(1));
                 break;
             case CALLBACK_TEST_SECTION:
-                testHandler.handleTestSection(userId, messageId, Long.parseLong(parts[1]));
+                testHandler.handleTestSection(userId, messageId, callback.longArg(0), callback.optionalIntArg(1));
                 break;
             case CALLBACK_TEST_COURSE:
-                testHandler.handleTestCourse(userId, messageId, Long.parseLong(parts[1]));
+                testHandler.handleTestCourse(userId, messageId, callback.longArg(0));
                 break;
 
             // администрирование
@@ -249,46 +274,46 @@ public class TelegramBotHandler extends BaseHandler {
                 break;
             case CALLBACK_SELECT_COURSE_FOR_EDIT:
                 if (!isAdmin(userId)) return;
-                adminHandler.handleSelectCourseForEdit(userId, messageId, Long.parseLong(parts[1]));
+                adminHandler.handleSelectCourseForEdit(userId, messageId, callback.longArg(0));
                 break;
             case CALLBACK_SELECT_COURSE_FOR_DELETE:
                 if (!isAdmin(userId)) return;
-                adminHandler.handleSelectCourseForDelete(userId, messageId, Long.parseLong(parts[1]));
+                adminHandler.handleSelectCourseForDelete(userId, messageId, callback.longArg(0));
                 break;
             case CALLBACK_EDIT_COURSE_ACTION:
                 if (!isAdmin(userId)) return;
-                adminHandler.handleEditCourseAction(userId, messageId, parts[1]);
+                adminHandler.handleEditCourseAction(userId, messageId, callback.arg(0));
                 break;
             case CALLBACK_SELECT_SECTION_FOR_EDIT:
                 if (!isAdmin(userId)) return;
-                adminHandler.handleSelectSectionForEdit(userId, messageId, Long.parseLong(parts[1]));
+                adminHandler.handleSelectSectionForEdit(userId, messageId, callback.longArg(0));
                 break;
             case CALLBACK_EDIT_SECTION_ACTION:
                 if (!isAdmin(userId)) return;
-                adminHandler.handleEditSectionAction(userId, messageId, parts[1]);
+                adminHandler.handleEditSectionAction(userId, messageId, callback.arg(0));
                 break;
             case CALLBACK_SELECT_TOPIC_FOR_EDIT:
                 if (!isAdmin(userId)) return;
-                adminHandler.handleSelectTopicForEdit(userId, messageId, Long.parseLong(parts[1]));
+                adminHandler.handleSelectTopicForEdit(userId, messageId, callback.longArg(0));
                 break;
             case CALLBACK_CONFIRM_DELETE_COURSE:
                 if (!isAdmin(userId)) return;
-                adminHandler.handleConfirmDeleteCourse(userId, messageId, Long.parseLong(parts[1]));
+                adminHandler.handleConfirmDeleteCourse(userId, messageId, callback.longArg(0));
                 break;
             case CALLBACK_RETRY:
                 adminHandler.handleRetry(userId, messageId);
                 break;
             case CALLBACK_ADMIN_COURSES_PAGE:
                 if (!isAdmin(userId)) return;
-                adminHandler.handleAdminCoursesPage(userId, messageId, parts[1], Integer.parseInt(parts[2]));
+                adminHandler.handleAdminCoursesPage(userId, messageId, callback.arg(0), callback.intArg(1));
                 break;
             case CALLBACK_ADMIN_SECTIONS_PAGE:
                 if (!isAdmin(userId)) return;
-                adminHandler.handleAdminSectionsPage(userId, messageId, Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+                adminHandler.handleAdminSectionsPage(userId, messageId, callback.longArg(0), callback.intArg(1));
                 break;
             case CALLBACK_ADMIN_TOPICS_PAGE:
                 if (!isAdmin(userId)) return;
-                adminHandler.handleAdminTopicsPage(userId, messageId, Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+                adminHandler.handleAdminTopicsPage(userId, messageId, callback.longArg(0), callback.intArg(1));
                 break;
             case CALLBACK_ADMIN_BACK_TO_SECTIONS:
                 if (!isAdmin(userId)) return;
@@ -296,9 +321,9 @@ public class TelegramBotHandler extends BaseHandler {
                 break;
             case CALLBACK_ADMIN_BACK_TO_TOPICS:
                 if (!isAdmin(userId)) return;
-                if (parts.length >= 3) {
-                    Long sectionId = Long.parseLong(parts[1]);
-                    int page = Integer.parseInt(parts[2]);
+                if (callback.argCount() >= 2) {
+                    Long sectionId = callback.longArg(0);
+                    int page = callback.intArg(1);
                     adminHandler.handleBackToTopicsFromEdit(userId, messageId, sectionId, page);
                 } else {
                     adminHandler.handleBackToTopicsFromEdit(userId, messageId);
@@ -308,7 +333,7 @@ public class TelegramBotHandler extends BaseHandler {
 
             // статистика и ошибки
             case CALLBACK_STATISTICS:
-                if (parts.length > 1 && CALLBACK_BACK.equals(parts[1])) {
+                if (callback.argCount() > 0 && CALLBACK_BACK.equals(callback.arg(0))) {
                     deleteMessage(userId, messageId);
                     showStatistics(userId, null);
                 } else {
@@ -388,47 +413,58 @@ public class TelegramBotHandler extends BaseHandler {
     }
 
     private void handleExportPdf(Long userId, Integer messageId) {
-        Integer progressMsgId = sendProgressMessage(userId);
-        try {
-            UserContext context = sessionService.getCurrentContext(userId);
-            String userName = context.getUserName();
-            if (userName == null) {
-                try {
-                    var chat = telegramBot.execute(new GetChat(userId)).chat();
-                    userName = chat.firstName();
-                    if (userName == null) userName = DEFAULT_USER_NAME;
-                    context.setUserName(userName);
-                    sessionService.updateSessionContext(userId, context);
-                } catch (Exception ex) {
-                    userName = DEFAULT_USER_NAME;
-                }
+        String knownName = sessionService.getCurrentContext(userId).getUserName();
+        runHeavyJob(heavyJobExecutor, HeavyJobExecutor.JobType.PDF_EXPORT, userId,
+                () -> exportPdf(userId, knownName),
+                export -> sendPdf(userId, messageId, knownName, export),
+                e -> {
+                    log.error("Error generating PDF", e);
+                    sendMessage(userId, MSG_PDF_ERROR, createBackToMainKeyboard());
+                });
+    }
+
+    private record PdfExport(String userName, byte[] pdf) {
+    }
+
+    // Выполняется в пуле тяжёлых задач: сессию не трогает
+    private PdfExport exportPdf(Long userId, String knownName) throws Exception {
+        String userName = knownName;
+        if (userName == null) {
+            try {
+                var chat = telegramBot().execute(new GetChat(userId)).chat();
+                userName = chat.firstName();
+                if (userName == null) userName = DEFAULT_USER_NAME;
+            } catch (Exception ex) {
+                userName = DEFAULT_USER_NAME;
             }
-            log.info("Export PDF: userName = {}", userName);
+        }
+        log.info("Export PDF: userName = {}", userName);
+        return new PdfExport(userName, pdfExportService.generateStatisticsPdf(userId, userName));
+    }
 
-            byte[] pdfBytes = pdfExportService.generateStatisticsPdf(userId, userName);
+    private void sendPdf(Long userId, Integer messageId, String knownName, PdfExport export) {
+        if (knownName == null && !DEFAULT_USER_NAME.equals(export.userName())) {
+            UserContext context = sessionService.getCurrentContext(userId);
+            context.setUserName(export.userName());
+            sessionService.updateSessionContext(userId, context);
+        }
 
-            String fileName = String.format("Статистика обучения %s на %s.pdf",
-                    userName,
-                    LocalDateTime.now().format(DateTimeFormatter.ofPattern("dd.MM.yyyy HH-mm")));
+        String fileName = String.format("Статистика обучения %s на %s.pdf",
+                export.userName(),
+                LocalDateTime.now().format(DateTimeFormatter.ofPattern("dd.MM.yyyy HH-mm")));
 
-            InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup(
-                    new InlineKeyboardButton(BUTTON_BACK).callbackData(CALLBACK_STATISTICS_BACK)
-            );
+        InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup(
+                new InlineKeyboardButton(BUTTON_BACK).callbackData(CALLBACK_STATISTICS_BACK)
+        );
 
-            SendDocument request = new SendDocument(userId, pdfBytes)
-                    .fileName(fileName)
-                    .caption(STATS_PDF_CAPTION)
-                    .replyMarkup(keyboard);
-            telegramBot.execute(request);
+        SendDocument request = new SendDocument(userId, export.pdf())
+                .fileName(fileName)
+                .caption(STATS_PDF_CAPTION)
+                .replyMarkup(keyboard);
+        outboundScheduler.submit(userId, request);
 
-            if (messageId != null) {
-                deleteMessage(userId, messageId);
-            }
-            if (progressMsgId != null) deleteMessage(userId, progressMsgId);
-        } catch (Exception e) {
-            log.error("Error generating PDF", e);
-            if (progressMsgId != null) deleteMessage(userId, progressMsgId);
-            sendMessage(userId, MSG_PDF_ERROR, createBackToMainKeyboard());
+        if (messageId != null) {
+            deleteMessage(userId, messageId);
         }
     }
 }
\ No newline at end of file
@@ -1,36 +1,70 @@
 package com.lbt.telegram_learning_bot.bot;
 
-import com.pengrad.telegrambot.TelegramBot;
+import com.lbt.telegram_learning_bot.service.UpdateInboxService;
 import com.pengrad.telegrambot.UpdatesListener;
 import com.pengrad.telegrambot.model.Update;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 import static com.lbt.telegram_learning_bot.util.Constants.*;
 
 @Slf4j
 @Component
+@ConditionalOnProperty(name = "telegram.bot.mode", havingValue = "polling", matchIfMissing = true)
 @RequiredArgsConstructor
 public class TelegramBotPoller {
 
-    private final TelegramBot bot;          // внедряем готовый бин из конфигурации
-    private final TelegramBotHandler handler;
+    private final BotRegistry botRegistry;
+    private final UpdateDispatcher dispatcher;
+    private final UpdateInboxService inboxService;
 
+    // У каждого бота свой поток long polling
     @PostConstruct
     public void init() {
-        bot.setUpdatesListener(updates -> {
-            for (Update update : updates) {
-                handler.handle(update);
-            }
+        for (BotInstance bot : botRegistry.all()) {
+            // Сначала добираем то, что осталось необработанным с прошлого запуска
+            inboxService.loadPending(bot.id()).forEach(update -> dispatcher.dispatch(bot.id(), update));
+
+            bot.telegramBot().setUpdatesListener(updates -> processBatch(bot.id(), updates), Throwable::printStackTrace);
+            log.info("Telegram bot polling started for bot {}", bot.id());
+        }
+    }
+
+    // Offset подтверждается только после того, как вся пачка записана в журнал, обработана
+    // и отмечена в нём обработанной (отметки пачки пишет flush одним запросом на бота)
+    private int processBatch(String botId, List<Update> updates) {
+        try {
+            List<Update> pending = inboxService.append(botId, updates);
+            CompletableFuture<?>[] handled = pending.stream()
+                    .map(update -> dispatcher.dispatch(botId, update))
+                    .toArray(CompletableFuture[]::new);
+            CompletableFuture.allOf(handled).join();
+            inboxService.flush();
             return UpdatesListener.CONFIRMED_UPDATES_ALL;
-        }, Throwable::printStackTrace);
-        log.info("Telegram bot polling started");
+        } catch (Exception e) {
+            log.error("Failed to process updates batch of bot {}, it will be redelivered", botId, e);
+            pauseBeforeRetry();
+            return UpdatesListener.CONFIRMED_UPDATES_NONE;
+        }
+    }
+
+    private void pauseBeforeRetry() {
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @PreDestroy
     public void destroy() {
-        bot.removeGetUpdatesListener();
+        botRegistry.all().forEach(bot -> bot.telegramBot().removeGetUpdatesListener());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,134 @@
+package com.lbt.telegram_learning_bot.bot;
+
+import com.lbt.telegram_learning_bot.service.UpdateInboxService;
+import com.pengrad.telegrambot.BotUtils;
+import com.pengrad.telegrambot.model.Update;
+import com.pengrad.telegrambot.request.SetWebhook;
+import com.pengrad.telegrambot.response.BaseResponse;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+
+import static com.lbt.telegram_learning_bot.util.Constants.*;
+
+/**
+ * Приём апдейтов через вебхук (telegram.bot.mode=webhook) вместо long polling.
+ * Основной бот слушает telegram.bot.webhook.path, остальные — path/{botId}.
+ * Telegram повторяет доставку при любом ответе кроме 2xx, поэтому при переполнении
+ * очереди отвечаем 429, а при остановке приложения — 503.
+ */
+@Slf4j
+@RestController
+@ConditionalOnProperty(name = "telegram.bot.mode", havingValue = "webhook")
+public class TelegramWebhookController {
+
+    private static final String SECRET_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+
+    private final BotRegistry botRegistry;
+    private final UpdateDispatcher dispatcher;
+    private final UpdateInboxService inboxService;
+    private final byte[] secret;
+    private final String publicUrl;
+    private final int maxConnections;
+
+    public TelegramWebhookController(BotRegistry botRegistry,
+                                     UpdateDispatcher dispatcher,
+                                     UpdateInboxService inboxService,
+                                     @Value("${telegram.bot.webhook.secret}") String secret,
+                                     @Value("${telegram.bot.webhook.url:}") String publicUrl,
+                                     @Value("${telegram.bot.webhook.max-connections:40}") int maxConnections) {
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalStateException("telegram.bot.webhook.secret must be set in webhook mode");
+        }
+        this.botRegistry = botRegistry;
+        this.dispatcher = dispatcher;
+        this.inboxService = inboxService;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.publicUrl = publicUrl;
+        this.maxConnections = maxConnections;
+    }
+
+    @PostConstruct
+    public void register() {
+        // Апдейты, принятые (200) до падения, Telegram повторно не пришлёт — добираем из журнала
+        for (BotInstance bot : botRegistry.all()) {
+            inboxService.loadPending(bot.id()).forEach(update -> dispatcher.dispatch(bot.id(), update));
+        }
+
+        // Без URL считаем, что вебхук зарегистрирован снаружи (например, при нескольких инстансах за балансировщиком)
+        if (publicUrl.isBlank()) {
+            log.info("Telegram webhook mode enabled, registration skipped (telegram.bot.webhook.url is empty)");
+            return;
+        }
+        for (BotInstance bot : botRegistry.all()) {
+            String url = bot.isDefault() ? publicUrl : publicUrl + "/" + bot.id();
+            BaseResponse response = bot.telegramBot().execute(new SetWebhook()
+                    .url(url)
+                    .secretToken(new String(secret, StandardCharsets.UTF_8))
+                    .maxConnections(maxConnections));
+            if (!response.isOk()) {
+                throw new IllegalStateException("Failed to register webhook for bot " + bot.id() + ": " + response.description());
+            }
+            log.info("Telegram webhook for bot {} registered at {}", bot.id(), url);
+        }
+    }
+
+    @PostMapping("${telegram.bot.webhook.path:/telegram/webhook}")
+    public ResponseEntity<Void> receive(@RequestHeader(value = SECRET_HEADER, required = false) String token,
+                                        @RequestBody String body) {
+        return receiveForBot(DEFAULT_BOT_ID, token, body);
+    }
+
+    @PostMapping("${telegram.bot.webhook.path:/telegram/webhook}/{botId}")
+    public ResponseEntity<Void> receiveForBot(@PathVariable String botId,
+                                              @RequestHeader(value = SECRET_HEADER, required = false) String token,
+                                              @RequestBody String body) {
+        if (token == null || !MessageDigest.isEqual(secret, token.getBytes(StandardCharsets.UTF_8))) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+        if (botRegistry.find(botId).isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+
+        Update update;
+        try {
+            update = BotUtils.parseUpdate(body);
+        } catch (Exception e) {
+            // Повторная доставка битого JSON не поможет — подтверждаем и пишем в лог
+            log.warn("Unparseable webhook update: {}", e.getMessage());
+            return ResponseEntity.ok().build();
+        }
+
+        // Журнал пишется до ответа 200; повторная доставка апдейта, который уже обработан
+        // или обрабатывается (захвачен этим или другим узлом), просто подтверждается
+        if (inboxService.append(botId, List.of(update)).isEmpty()) {
+            return ResponseEntity.ok().build();
+        }
+
+        UpdateDispatcher.DispatchResult result = dispatcher.tryDispatch(botId, update);
+        if (result != UpdateDispatcher.DispatchResult.ACCEPTED) {
+            // Апдейт не взят в работу — отпускаем захват, чтобы его обработала повторная доставка
+            inboxService.release(botId, update);
+        }
+        return switch (result) {
+            case ACCEPTED -> ResponseEntity.ok().build();
+            case QUEUE_FULL -> ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, "1")
+                    .build();
+            case SHUTTING_DOWN -> ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        };
+    }
+}
@@ -0,0 +1,416 @@
+package com.lbt.telegram_learning_bot.bot;
+
+import com.lbt.telegram_learning_bot.service.AnswerEventWriter;
+import com.lbt.telegram_learning_bot.service.UpdateInboxService;
+import com.lbt.telegram_learning_bot.service.UserLeaseService;
+import com.lbt.telegram_learning_bot.service.UserSessionService;
+import com.pengrad.telegrambot.model.Update;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Раздаёт апдейты на виртуальные потоки, сохраняя порядок внутри одного пользователя:
+ * у каждой пары (бот, userId) свой почтовый ящик, который в любой момент разбирает не более одного потока.
+ * Обработчик выполняется в BotContext бота, от которого пришёл апдейт.
+ * В режиме нескольких узлов обработка идёт под арендой пользователя (UserLeaseService).
+ * <p>
+ * Результат тяжёлой задачи возвращается в тот же ящик синтетическим событием (defer/resume):
+ * сессию и прогресс он меняет под теми же гарантиями, что и обычный апдейт, а исходный апдейт
+ * отмечается в журнале обработанным только после этого события.
+ * <p>
+ * Ответы Telegram обработчик не ждёт (onReply): их применение тоже ставится в ящик и выполняется
+ * раньше следующего апдейта пользователя, который ждёт эти ответы не дольше reply-timeout-ms.
+ */
+@Slf4j
+@Component
+public class UpdateDispatcher {
+
+    private final TelegramBotHandler handler;
+    private final UpdateInboxService inboxService;
+    private final CallbackFastPath callbackFastPath;
+    private final UserSessionService sessionService;
+    private final UserLeaseService leaseService;
+    private final AnswerEventWriter answerEventWriter;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<MailboxKey, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    // Общий лимит апдейтов в обработке и в очередях (по всем пользователям)
+    private final Semaphore inFlight;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    // Апдейт, который обрабатывает текущий поток ящика
+    private final ThreadLocal<Handling> current = new ThreadLocal<>();
+    // Проверка accepting и постановка в очередь идут под чтением, остановка — под записью:
+    // после shutdown() ни один апдейт не попадёт в ящик и не займёт слот навсегда
+    private final ReadWriteLock acceptLock = new ReentrantReadWriteLock();
+    private boolean accepting = true;
+    private final long replyTimeoutMs;
+
+    public UpdateDispatcher(TelegramBotHandler handler,
+                            UpdateInboxService inboxService,
+                            CallbackFastPath callbackFastPath,
+                            UserSessionService sessionService,
+                            UserLeaseService leaseService,
+                            AnswerEventWriter answerEventWriter,
+                            MeterRegistry meterRegistry,
+                            @Value("${bot.dispatcher.max-in-flight:256}") int maxInFlight,
+                            @Value("${bot.dispatcher.reply-timeout-ms:10000}") long replyTimeoutMs) {
+        this.handler = handler;
+        this.inboxService = inboxService;
+        this.callbackFastPath = callbackFastPath;
+        this.sessionService = sessionService;
+        this.leaseService = leaseService;
+        this.answerEventWriter = answerEventWriter;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.replyTimeoutMs = replyTimeoutMs;
+
+        Gauge.builder("bot.dispatcher.queued", queued, AtomicInteger::get)
+                .description("Апдейты, ожидающие обработки в почтовых ящиках")
+                .register(meterRegistry);
+        Gauge.builder("bot.dispatcher.running", running, AtomicInteger::get)
+                .description("Апдейты в обработке")
+                .register(meterRegistry);
+        Gauge.builder("bot.dispatcher.mailboxes", mailboxes, Map::size)
+                .description("Пользователи с непустым почтовым ящиком")
+                .register(meterRegistry);
+        Gauge.builder("bot.dispatcher.available", inFlight, Semaphore::availablePermits)
+                .description("Свободные слоты общего лимита")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Ставит апдейт в очередь его пользователя. Если общий лимит исчерпан,
+     * блокирует вызывающий поток (поток long polling) до освобождения слота.
+     * Возвращённый future завершается, когда апдейт обработан (успешно или нет).
+     */
+    public CompletableFuture<Void> dispatch(String botId, Update update) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+        acceptLock.readLock().lock();
+        try {
+            if (!accepting) {
+                inFlight.release();
+                return CompletableFuture.failedFuture(new IllegalStateException("Dispatcher is shutting down"));
+            }
+            return enqueue(botId, update);
+        } finally {
+            acceptLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Неблокирующий вариант для вебхука: вместо ожидания сразу сообщает, принят ли апдейт.
+     */
+    public DispatchResult tryDispatch(String botId, Update update) {
+        acceptLock.readLock().lock();
+        try {
+            if (!accepting) {
+                return DispatchResult.SHUTTING_DOWN;
+            }
+            if (!inFlight.tryAcquire()) {
+                return DispatchResult.QUEUE_FULL;
+            }
+            enqueue(botId, update);
+            return DispatchResult.ACCEPTED;
+        } finally {
+            acceptLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Откладывает отметку текущего апдейта в журнале до resume(): вызывается обработчиком,
+     * который передал работу в другой поток. Вне потока ящика бросает IllegalStateException.
+     */
+    public Continuation defer() {
+        Handling handling = current.get();
+        if (handling == null) {
+            throw new IllegalStateException("defer() outside of update handling");
+        }
+        handling.deferred = true;
+        return new Continuation(handling.mailboxKey.botId(), handling.mailboxKey.userId(), handling.update);
+    }
+
+    /**
+     * Выполняет task в ящике пользователя отложенного апдейта (под арендой и в единице работы сессии),
+     * после чего отмечает сам апдейт в журнале. Общий лимит не занимает: задача уже выполнена,
+     * осталось применить результат.
+     */
+    public void resume(Continuation continuation, Runnable task) {
+        acceptLock.readLock().lock();
+        try {
+            if (!accepting) {
+                // Апдейт остался в журнале необработанным — его доберёт следующий запуск
+                log.warn("Dispatcher is shutting down, result of update {} for user {} dropped",
+                        continuation.update() != null ? continuation.update().updateId() : null, continuation.userId());
+                return;
+            }
+            enqueue(new MailboxKey(continuation.botId(), continuation.userId()),
+                    new Envelope(continuation.update(), task, System.nanoTime(), new CompletableFuture<>()));
+        } finally {
+            acceptLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Применяет ответ Telegram на запрос текущего апдейта в ящике пользователя (под арендой и в единице
+     * работы сессии), не занимая поток обработчика на время запроса. Ответы применяются в порядке прихода
+     * и до следующего апдейта пользователя. При ошибке запроса apply не вызывается.
+     * Вне обработки апдейта ответ ждётся и применяется сразу.
+     */
+    public <R> void onReply(CompletableFuture<R> reply, Consumer<R> apply) {
+        Handling handling = current.get();
+        if (handling == null) {
+            apply.accept(reply.join());
+            return;
+        }
+        MailboxKey mailboxKey = handling.mailboxKey;
+        CompletableFuture<Void> applied = new CompletableFuture<>();
+        handling.mailbox.replies.add(applied);
+        reply.whenComplete((response, error) -> {
+            try {
+                if (error != null) {
+                    log.warn("Telegram request for user {} of bot {} failed: {}",
+                            mailboxKey.userId(), mailboxKey.botId(), error.toString());
+                    return;
+                }
+                acceptLock.readLock().lock();
+                try {
+                    if (!accepting) {
+                        log.warn("Dispatcher is shutting down, Telegram reply for user {} dropped", mailboxKey.userId());
+                        return;
+                    }
+                    enqueueReply(mailboxKey, applied,
+                            new Envelope(null, () -> apply.accept(response), System.nanoTime(), new CompletableFuture<>()));
+                } finally {
+                    acceptLock.readLock().unlock();
+                }
+            } finally {
+                mailboxes.computeIfPresent(mailboxKey, (key, box) -> {
+                    box.replies.remove(applied);
+                    return box;
+                });
+                applied.complete(null);
+            }
+        });
+    }
+
+    private CompletableFuture<Void> enqueue(String botId, Update update) {
+        return enqueue(new MailboxKey(botId, extractUserId(update)),
+                new Envelope(update, null, System.nanoTime(), new CompletableFuture<>()));
+    }
+
+    private CompletableFuture<Void> enqueue(MailboxKey mailboxKey, Envelope envelope) {
+        // compute атомарен для ключа: добавление не пересекается с удалением пустого ящика в drain
+        Mailbox mailbox = mailboxes.compute(mailboxKey, (key, existing) -> {
+            Mailbox box = existing != null ? existing : new Mailbox();
+            box.queue.add(envelope);
+            return box;
+        });
+        queued.incrementAndGet();
+        schedule(mailboxKey, mailbox);
+        return envelope.completion();
+    }
+
+    // Применение ответа встаёт в отдельную очередь ящика: её разбор идёт раньше обычной
+    private void enqueueReply(MailboxKey mailboxKey, CompletableFuture<Void> applied, Envelope envelope) {
+        Mailbox mailbox = mailboxes.compute(mailboxKey, (key, existing) -> {
+            Mailbox box = existing != null ? existing : new Mailbox();
+            box.replyTasks.add(envelope);
+            box.replies.remove(applied);
+            return box;
+        });
+        queued.incrementAndGet();
+        schedule(mailboxKey, mailbox);
+    }
+
+    private void schedule(MailboxKey mailboxKey, Mailbox mailbox) {
+        if (mailbox.scheduled.compareAndSet(false, true)) {
+            executor.execute(() -> drain(mailboxKey, mailbox));
+        }
+    }
+
+    private void drain(MailboxKey mailboxKey, Mailbox mailbox) {
+        while (true) {
+            Envelope envelope;
+            while ((envelope = next(mailbox)) != null) {
+                queued.decrementAndGet();
+                running.incrementAndGet();
+                Update update = envelope.update();
+                Runnable task = envelope.task();
+                long receivedAtNanos = envelope.receivedAtNanos();
+                Handling handling = new Handling(mailboxKey, mailbox, update);
+                current.set(handling);
+                boolean success = false;
+                try {
+                    BotContext.runAs(mailboxKey.botId(), () -> {
+                        if (task != null
+                                || !callbackFastPath.shouldDrop(update, receivedAtNanos, pendingUpdates(mailbox))) {
+                            // Сессия читается один раз на апдейт и записывается одним запросом в конце
+                            leaseService.runWithLease(mailboxKey.botId(), mailboxKey.userId(), () -> {
+                                // Ответы предыдущих апдейтов пользователя пишутся асинхронно — дожидаемся их
+                                answerEventWriter.awaitUser(mailboxKey.userId());
+                                try {
+                                    sessionService.runInUnitOfWork(mailboxKey.userId(),
+                                            task != null ? task : () -> handler.handle(update));
+                                } finally {
+                                    // Ответы этого апдейта записаны до отметки в журнале и до отдачи аренды:
+                                    // иначе другой узел прочтёт прогресс без них, а повтор апдейта их задвоит
+                                    answerEventWriter.awaitUser(mailboxKey.userId());
+                                }
+                            });
+                        }
+                    });
+                    success = true;
+                } catch (Exception e) {
+                    log.error("Error handling update {} of bot {} for user {}",
+                            update != null ? update.updateId() : null, mailboxKey.botId(), mailboxKey.userId(), e);
+                } finally {
+                    current.remove();
+                    running.decrementAndGet();
+                    if (task == null) inFlight.release();
+                    // Отложенный апдейт отметит событие с результатом его задачи
+                    if (update != null && (!handling.deferred || !success)) {
+                        inboxService.markHandled(mailboxKey.botId(), update, success);
+                    }
+                    envelope.completion().complete(null);
+                }
+            }
+            mailbox.scheduled.set(false);
+            // Апдейт мог прийти между poll() и сбросом флага — тогда забираем его сами
+            if (mailbox.isEmpty() || !mailbox.scheduled.compareAndSet(false, true)) {
+                break;
+            }
+        }
+        // Ящик с неполученными ответами не удаляется: следующий апдейт должен их дождаться
+        mailboxes.computeIfPresent(mailboxKey, (key, box) ->
+                box == mailbox && box.isEmpty() && box.replies.isEmpty() && !box.scheduled.get() ? null : box);
+    }
+
+    private Envelope next(Mailbox mailbox) {
+        Envelope reply = mailbox.replyTasks.poll();
+        if (reply != null) {
+            return reply;
+        }
+        Envelope head = mailbox.queue.peek();
+        if (head == null || head.task() != null || mailbox.replies.isEmpty()) {
+            return mailbox.queue.poll();
+        }
+        // Апдейт пользователя ждёт ответов на запросы предыдущего: экран и контекст должны быть уже обновлены
+        try {
+            CompletableFuture.allOf(mailbox.replies.toArray(CompletableFuture[]::new))
+                    .get(replyTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("No Telegram reply in {} ms, continuing without it", replyTimeoutMs);
+            mailbox.replies.clear();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mailbox.replies.clear();
+        } catch (ExecutionException e) {
+            // applied завершается только успешно
+        }
+        reply = mailbox.replyTasks.poll();
+        return reply != null ? reply : mailbox.queue.poll();
+    }
+
+    private Iterable<Update> pendingUpdates(Mailbox mailbox) {
+        return () -> mailbox.queue.stream().filter(e -> e.task() == null).map(Envelope::update).iterator();
+    }
+
+    private Long extractUserId(Update update) {
+        if (update.message() != null && update.message().from() != null) {
+            return update.message().from().id();
+        }
+        if (update.callbackQuery() != null && update.callbackQuery().from() != null) {
+            return update.callbackQuery().from().id();
+        }
+        return 0L;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        acceptLock.writeLock().lock();
+        try {
+            accepting = false;
+        } finally {
+            acceptLock.writeLock().unlock();
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("Dispatcher did not finish in time, {} updates left in queues", queued.get());
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+
+    public enum DispatchResult {
+        ACCEPTED,
+        QUEUE_FULL,
+        SHUTTING_DOWN
+    }
+
+    private record MailboxKey(String botId, Long userId) {
+    }
+
+    /**
+     * Отложенный апдейт: куда вернуть результат его задачи и что отметить в журнале.
+     */
+    public record Continuation(String botId, Long userId, Update update) {
+    }
+
+    // task != null — синтетическое событие с результатом задачи или ответа Telegram; update — отложенный апдейт
+    private record Envelope(Update update, Runnable task, long receivedAtNanos, CompletableFuture<Void> completion) {
+    }
+
+    private static class Handling {
+        private final MailboxKey mailboxKey;
+        private final Mailbox mailbox;
+        private final Update update;
+        private boolean deferred;
+
+        private Handling(MailboxKey mailboxKey, Mailbox mailbox, Update update) {
+            this.mailboxKey = mailboxKey;
+            this.mailbox = mailbox;
+            this.update = update;
+        }
+    }
+
+    private static class Mailbox {
+        private final Queue<Envelope> queue = new ConcurrentLinkedQueue<>();
+        // Применение пришедших ответов Telegram и ответы, которых ещё ждём
+        private final Queue<Envelope> replyTasks = new ConcurrentLinkedQueue<>();
+        private final Queue<CompletableFuture<Void>> replies = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private boolean isEmpty() {
+            return queue.isEmpty() && replyTasks.isEmpty();
+        }
+    }
+}
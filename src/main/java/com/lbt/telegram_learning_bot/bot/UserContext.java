@@ -40,4 +40,25 @@ public class UserContext {
     private Integer adminSectionsPage = 0;   // текущая страница списка разделов при редактировании
     private Integer adminTopicsPage = 0;     // текущая страница списка тем при редактировании
     private Integer previousCoursesPage = 0; // страница списка курсов, откуда пришли в тест
+
+    // Позиция внутри темы или теста. Сжатый после долгого простоя контекст (SessionSweeper) её не хранит,
+    // а кнопки старых сообщений по-прежнему ведут сюда
+    public boolean hasBlockPosition() {
+        return currentBlockIndex >= 0 && currentBlockIndex < currentTopicBlockIds.size();
+    }
+
+    public boolean hasTestPosition() {
+        return currentTestQuestionIndex >= 0 && currentTestQuestionIndex < testQuestionIds.size();
+    }
+
+    public boolean hasPosition() {
+        return testMode ? hasTestPosition() : hasBlockPosition();
+    }
+
+    // Текущий вопрос: в тесте — по списку теста, в учебном режиме — по вопросам текущего блока
+    public boolean hasQuestionPosition() {
+        if (testMode) return hasTestPosition();
+        return hasBlockPosition() && currentBlockQuestionIndex >= 0
+                && currentBlockQuestionIndex < currentBlockQuestionIds.size();
+    }
 }
\ No newline at end of file
@@ -1,8 +1,13 @@
 package com.lbt.telegram_learning_bot.bot.handler;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lbt.telegram_learning_bot.bot.BotRegistry;
 import com.lbt.telegram_learning_bot.bot.BotState;
+import com.lbt.telegram_learning_bot.bot.CallbackCodec;
+import com.lbt.telegram_learning_bot.bot.MessageFingerprintCache;
+import com.lbt.telegram_learning_bot.bot.OutboundScheduler;
 import com.lbt.telegram_learning_bot.bot.PendingImage;
+import com.lbt.telegram_learning_bot.bot.UpdateDispatcher;
 import com.lbt.telegram_learning_bot.bot.UserContext;
 import com.lbt.telegram_learning_bot.dto.CourseNameDescDto;
 import com.lbt.telegram_learning_bot.dto.SectionNameDescDto;
@@ -10,15 +15,18 @@ import com.lbt.telegram_learning_bot.dto.TopicImportDto;
 import com.lbt.telegram_learning_bot.entity.*;
 import com.lbt.telegram_learning_bot.exception.InvalidJsonException;
 import com.lbt.telegram_learning_bot.repository.*;
+import com.lbt.telegram_learning_bot.service.ContentChangeBus;
+import com.lbt.telegram_learning_bot.service.ContentChangeEvent;
 import com.lbt.telegram_learning_bot.service.CourseImportService;
+import com.lbt.telegram_learning_bot.service.HeavyJobExecutor;
 import com.lbt.telegram_learning_bot.service.NavigationService;
 import com.lbt.telegram_learning_bot.service.UserSessionService;
-import com.pengrad.telegrambot.TelegramBot;
 import com.pengrad.telegrambot.model.Message;
 import com.pengrad.telegrambot.model.request.InlineKeyboardButton;
 import com.pengrad.telegrambot.model.request.InlineKeyboardMarkup;
 import com.pengrad.telegrambot.request.GetFile;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Component;
 
 import java.io.ByteArrayInputStream;
@@ -47,10 +55,14 @@ public class AdminHandler extends BaseHandler {
     private final QuestionImageRepository questionImageRepository;
     private final AdminUserRepository adminUserRepository;
     private final UserProgressRepository userProgressRepository;
+    private final UserTopicProgressRepository userTopicProgressRepository;
+    private final UserAnswerStatsRepository userAnswerStatsRepository;
     private final ObjectMapper objectMapper;
     private final KeyboardBuilder keyboardBuilder;
+    private final HeavyJobExecutor heavyJobExecutor;
+    private final ContentChangeBus contentChangeBus;
 
-    public AdminHandler(TelegramBot telegramBot,
+    public AdminHandler(BotRegistry botRegistry,
                         UserSessionService sessionService,
                         NavigationService navigationService,
                         CourseImportService courseImportService,
@@ -65,8 +77,16 @@ public class AdminHandler extends BaseHandler {
                         QuestionImageRepository questionImageRepository,
                         AdminUserRepository adminUserRepository,
                         UserProgressRepository userProgressRepository,
-                        ObjectMapper objectMapper) {
-        super(telegramBot, sessionService, navigationService, adminUserRepository);
+                        UserTopicProgressRepository userTopicProgressRepository,
+                        UserAnswerStatsRepository userAnswerStatsRepository,
+                        ObjectMapper objectMapper,
+                        HeavyJobExecutor heavyJobExecutor,
+                        ContentChangeBus contentChangeBus,
+                        OutboundScheduler outboundScheduler,
+                        MessageFingerprintCache fingerprintCache,
+                        ObjectProvider<UpdateDispatcher> dispatcher) {
+        super(botRegistry, sessionService, navigationService, adminUserRepository, outboundScheduler, fingerprintCache,
+                dispatcher);
         this.courseImportService = courseImportService;
         this.courseRepository = courseRepository;
         this.sectionRepository = sectionRepository;
@@ -78,8 +98,12 @@ public class AdminHandler extends BaseHandler {
         this.questionImageRepository = questionImageRepository;
         this.adminUserRepository = adminUserRepository;
         this.userProgressRepository = userProgressRepository;
+        this.userTopicProgressRepository = userTopicProgressRepository;
+        this.userAnswerStatsRepository = userAnswerStatsRepository;
         this.objectMapper = objectMapper;
         this.keyboardBuilder=keyboardBuilder;
+        this.heavyJobExecutor = heavyJobExecutor;
+        this.contentChangeBus = contentChangeBus;
     }
 
     // ================== Публичные методы для диспетчера ==================
@@ -227,8 +251,8 @@ public class AdminHandler extends BaseHandler {
         String text = MSG_WHAT_TO_CHANGE;
         InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup(
                 new InlineKeyboardButton[]{
-                        new InlineKeyboardButton(BUTTON_NAME_DESC).callbackData("edit_course_action:name_desc"),
-                        new InlineKeyboardButton(BUTTON_SECTIONS).callbackData("edit_course_action:sections")
+                        new InlineKeyboardButton(BUTTON_NAME_DESC).callbackData(CallbackCodec.encode(CALLBACK_EDIT_COURSE_ACTION, ACTION_NAME_DESC)),
+                        new InlineKeyboardButton(BUTTON_SECTIONS).callbackData(CallbackCodec.encode(CALLBACK_EDIT_COURSE_ACTION, ACTION_SECTIONS))
                 }
         );
         keyboard.addRow(new InlineKeyboardButton(BUTTON_BACK).callbackData(CALLBACK_EDIT_COURSE));
@@ -239,7 +263,7 @@ public class AdminHandler extends BaseHandler {
     private void handleSelectCourseForDeleteInternal(Long userId, Integer messageId, Long courseId) {
         String text = MSG_CONFIRM_DELETE_COURSE;
         InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup(
-                new InlineKeyboardButton(BUTTON_YES_DELETE).callbackData("confirm_delete_course:" + courseId),
+                new InlineKeyboardButton(BUTTON_YES_DELETE).callbackData(CallbackCodec.encode(CALLBACK_CONFIRM_DELETE_COURSE, courseId)),
                 new InlineKeyboardButton(BUTTON_NO).callbackData(CALLBACK_EDIT_COURSE)
         );
         editMessage(userId, messageId, text, keyboard);
@@ -270,8 +294,8 @@ public class AdminHandler extends BaseHandler {
         String text = "Что хотите изменить в разделе?";
         InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup(
                 new InlineKeyboardButton[]{
-                        new InlineKeyboardButton(BUTTON_NAME_DESC).callbackData("edit_section_action:name_desc"),
-                        new InlineKeyboardButton(BUTTON_TOPICS).callbackData("edit_section_action:topics")
+                        new InlineKeyboardButton(BUTTON_NAME_DESC).callbackData(CallbackCodec.encode(CALLBACK_EDIT_SECTION_ACTION, ACTION_NAME_DESC)),
+                        new InlineKeyboardButton(BUTTON_TOPICS).callbackData(CallbackCodec.encode(CALLBACK_EDIT_SECTION_ACTION, ACTION_TOPICS))
                 }
         );
         keyboard.addRow(new InlineKeyboardButton(BUTTON_BACK).callbackData(CALLBACK_ADMIN_BACK_TO_SECTIONS));
@@ -315,7 +339,11 @@ public class AdminHandler extends BaseHandler {
     private void handleConfirmDeleteCourseInternal(Long userId, Integer messageId, Long courseId) {
         try {
             userProgressRepository.deleteByCourseId(courseId);
+            userAnswerStatsRepository.deleteByCourseId(courseId);
+            // Сводки ссылаются на темы без внешнего ключа — удаляем, пока темы курса ещё на месте
+            userTopicProgressRepository.deleteByCourseId(courseId);
             courseRepository.deleteById(courseId);
+            contentChangeBus.publish(ContentChangeEvent.Scope.COURSE, courseId);
             editMessage(userId, messageId, MSG_COURSE_DELETED, createBackToMainKeyboard());
         } catch (Exception e) {
             log.error("Error deleting course", e);
@@ -325,37 +353,45 @@ public class AdminHandler extends BaseHandler {
     }
 
     private void handleCourseJson(Long userId, Message message) {
-        Integer progressMessageId = sendProgressMessage(userId);
-        try {
-            var document = message.document();
-            String fileId = document.fileId();
-            var file = telegramBot.execute(new GetFile(fileId)).file();
-            byte[] fileContent = telegramBot.getFileContent(file);
-            InputStream inputStream = new ByteArrayInputStream(fileContent);
+        runHeavyJob(heavyJobExecutor, HeavyJobExecutor.JobType.COURSE_IMPORT, userId,
+                () -> importCourseFromJson(message),
+                imported -> applyCourseImport(userId, imported),
+                e -> {
+                    if (e instanceof InvalidJsonException) {
+                        log.warn("JSON validation error: {}", e.getMessage());
+                        sendMessage(userId, e.getMessage(), createRetryOrCancelKeyboard());
+                    } else {
+                        log.error("Error importing course from JSON", e);
+                        sendMessage(userId, MSG_JSON_PARSE_ERROR, createRetryOrCancelKeyboard());
+                    }
+                });
+    }
 
-            Course course = courseImportService.importCourse(inputStream);
+    private record CourseImport(Course course, List<PendingImage> pendingImages) {
+    }
 
-            List<PendingImage> pending = courseImportService.collectCourseImages(course.getId());
-            if (!pending.isEmpty()) {
-                UserContext context = sessionService.getCurrentContext(userId);
-                context.setPendingImages(pending);
-                context.setCurrentImageIndex(0);
-                sessionService.updateSession(userId, BotState.AWAITING_IMAGE, context);
-                requestNextImage(userId, null);
-            } else {
-                sendMessage(userId, "Успешно. Курс \"" + course.getTitle() + "\" добавлен. Изображения не требуются.", createBackToMainKeyboard());
-                sessionService.updateSessionState(userId, BotState.MAIN_MENU);
-            }
-        } catch (InvalidJsonException e) {
-            log.warn("JSON validation error: {}", e.getMessage());
-            sendMessage(userId, e.getMessage(), createRetryOrCancelKeyboard());
-        } catch (Exception e) {
-            log.error("Error importing course from JSON", e);
-            sendMessage(userId, MSG_JSON_PARSE_ERROR, createRetryOrCancelKeyboard());
-        } finally {
-            if (progressMessageId != null) {
-                deleteMessage(userId, progressMessageId);
-            }
+    // Выполняется в пуле тяжёлых задач: сессию не трогает
+    private CourseImport importCourseFromJson(Message message) throws Exception {
+        var document = message.document();
+        String fileId = document.fileId();
+        var file = telegramBot().execute(new GetFile(fileId)).file();
+        byte[] fileContent = telegramBot().getFileContent(file);
+        InputStream inputStream = new ByteArrayInputStream(fileContent);
+
+        Course course = courseImportService.importCourse(inputStream);
+        return new CourseImport(course, courseImportService.collectCourseImages(course.getId()));
+    }
+
+    private void applyCourseImport(Long userId, CourseImport imported) {
+        if (!imported.pendingImages().isEmpty()) {
+            UserContext context = sessionService.getCurrentContext(userId);
+            context.setPendingImages(imported.pendingImages());
+            context.setCurrentImageIndex(0);
+            sessionService.updateSession(userId, BotState.AWAITING_IMAGE, context);
+            requestNextImage(userId, null);
+        } else {
+            sendMessage(userId, "Успешно. Курс \"" + imported.course().getTitle() + "\" добавлен. Изображения не требуются.", createBackToMainKeyboard());
+            sessionService.updateSessionState(userId, BotState.MAIN_MENU);
         }
     }
 
@@ -363,8 +399,8 @@ public class AdminHandler extends BaseHandler {
         var document = message.document();
         String fileId = document.fileId();
         try {
-            var file = telegramBot.execute(new GetFile(fileId)).file();
-            byte[] fileContent = telegramBot.getFileContent(file);
+            var file = telegramBot().execute(new GetFile(fileId)).file();
+            byte[] fileContent = telegramBot().getFileContent(file);
             InputStream inputStream = new ByteArrayInputStream(fileContent);
 
             CourseNameDescDto dto = objectMapper.readValue(inputStream, CourseNameDescDto.class);
@@ -400,8 +436,8 @@ public class AdminHandler extends BaseHandler {
         var document = message.document();
         String fileId = document.fileId();
         try {
-            var file = telegramBot.execute(new GetFile(fileId)).file();
-            byte[] fileContent = telegramBot.getFileContent(file);
+            var file = telegramBot().execute(new GetFile(fileId)).file();
+            byte[] fileContent = telegramBot().getFileContent(file);
             InputStream inputStream = new ByteArrayInputStream(fileContent);
 
             SectionNameDescDto dto = objectMapper.readValue(inputStream, SectionNameDescDto.class);
@@ -444,34 +480,37 @@ public class AdminHandler extends BaseHandler {
     }
 
     private void handleTopicJsonInternal(Long userId, Message message) {
-        Integer progressMessageId = sendProgressMessage(userId);
-        try {
-            var document = message.document();
-            String fileId = document.fileId();
-            var file = telegramBot.execute(new GetFile(fileId)).file();
-            byte[] fileContent = telegramBot.getFileContent(file);
-            InputStream inputStream = new ByteArrayInputStream(fileContent);
-
-            TopicImportDto dto = objectMapper.readValue(inputStream, TopicImportDto.class);
-            UserContext context = sessionService.getCurrentContext(userId);
-            Long topicId = context.getEditingTopicId();
-            Topic existingTopic = topicRepository.findById(topicId)
-                    .orElseThrow(() -> new RuntimeException("Topic not found"));
-
-            Topic updatedTopic = courseImportService.importTopic(dto, existingTopic);
+        Long topicId = sessionService.getCurrentContext(userId).getEditingTopicId();
+        runHeavyJob(heavyJobExecutor, HeavyJobExecutor.JobType.COURSE_IMPORT, userId,
+                () -> importTopicFromJson(message, topicId),
+                updatedTopicId -> {
+                    sendMessage(userId, MSG_TOPIC_UPDATED);
+                    startImageUploadSequence(userId, null, updatedTopicId);
+                },
+                e -> {
+                    if (e instanceof InvalidJsonException) {
+                        log.warn("Topic JSON validation error: {}", e.getMessage());
+                        sendJsonErrorWithBackToTopics(userId, e.getMessage());
+                    } else {
+                        log.error("Error importing topic from JSON", e);
+                        sendJsonErrorWithBackToTopics(userId, MSG_JSON_PARSE_ERROR);
+                    }
+                });
+    }
+
+    // Выполняется в пуле тяжёлых задач: сессию не трогает
+    private Long importTopicFromJson(Message message, Long topicId) throws Exception {
+        var document = message.document();
+        String fileId = document.fileId();
+        var file = telegramBot().execute(new GetFile(fileId)).file();
+        byte[] fileContent = telegramBot().getFileContent(file);
+        InputStream inputStream = new ByteArrayInputStream(fileContent);
 
-            sendMessage(userId, MSG_TOPIC_UPDATED);
-            startImageUploadSequence(userId, null, updatedTopic.getId());
+        TopicImportDto dto = objectMapper.readValue(inputStream, TopicImportDto.class);
+        Topic existingTopic = topicRepository.findById(topicId)
+                .orElseThrow(() -> new RuntimeException("Topic not found"));
 
-        } catch (InvalidJsonException e) {
-            log.warn("Topic JSON validation error: {}", e.getMessage());
-            if (progressMessageId != null) deleteMessage(userId, progressMessageId);
-            sendJsonErrorWithBackToTopics(userId, e.getMessage());
-        } catch (Exception e) {
-            log.error("Error importing topic from JSON", e);
-            if (progressMessageId != null) deleteMessage(userId, progressMessageId);
-            sendJsonErrorWithBackToTopics(userId, MSG_JSON_PARSE_ERROR);
-        }
+        return courseImportService.importTopic(dto, existingTopic).getId();
     }
 
     private void handleImageUploadInternal(Long userId, Message message) {
@@ -479,41 +518,51 @@ public class AdminHandler extends BaseHandler {
             sendMessage(userId, MSG_PLEASE_SEND_PHOTO, createRetryOrCancelKeyboard());
             return;
         }
-        var photo = message.photo()[message.photo().length - 1];
-        String fileId = photo.fileId();
-
         UserContext context = sessionService.getCurrentContext(userId);
         Long entityId = context.getTargetEntityId();
         String entityType = context.getTargetEntityType();
+        runHeavyJob(heavyJobExecutor, HeavyJobExecutor.JobType.IMAGE_UPLOAD, userId,
+                () -> saveUploadedImage(message, entityId, entityType),
+                saved -> {
+                    UserContext current = sessionService.getCurrentContext(userId);
+                    current.setCurrentImageIndex(current.getCurrentImageIndex() + 1);
+                    sessionService.updateSessionContext(userId, current);
+                    requestNextImage(userId, message.messageId());
+                },
+                e -> {
+                    log.error("Error saving image", e);
+                    sendMessage(userId, MSG_SAVE_IMAGE_ERROR, createRetryOrCancelKeyboard());
+                });
+    }
+
+    // Выполняется в пуле тяжёлых задач: сессию не трогает
+    private Void saveUploadedImage(Message message, Long entityId, String entityType) throws Exception {
+        var photo = message.photo()[message.photo().length - 1];
+        String fileId = photo.fileId();
 
-        try {
-            var file = telegramBot.execute(new GetFile(fileId)).file();
-            byte[] fileContent = telegramBot.getFileContent(file);
-            InputStream inputStream = new ByteArrayInputStream(fileContent);
-
-            String fileName = System.currentTimeMillis() + "_" + fileId + ".jpg";
-            Path targetPath = Paths.get("uploads", fileName);
-            Files.createDirectories(targetPath.getParent());
-            Files.copy(inputStream, targetPath, StandardCopyOption.REPLACE_EXISTING);
-
-            if (ENTITY_BLOCK.equals(entityType)) {
-                BlockImage blockImage = blockImageRepository.findById(entityId).orElseThrow();
-                blockImage.setFilePath(targetPath.toAbsolutePath().toString());
-                blockImageRepository.save(blockImage);
-            } else if (ENTITY_QUESTION.equals(entityType)) {
-                QuestionImage questionImage = questionImageRepository.findById(entityId).orElseThrow();
-                questionImage.setFilePath(targetPath.toAbsolutePath().toString());
-                questionImageRepository.save(questionImage);
-            }
-
-            context.setCurrentImageIndex(context.getCurrentImageIndex() + 1);
-            sessionService.updateSessionContext(userId, context);
-            requestNextImage(userId, message.messageId());
-
-        } catch (Exception e) {
-            log.error("Error saving image", e);
-            sendMessage(userId, MSG_SAVE_IMAGE_ERROR, createRetryOrCancelKeyboard());
+        var file = telegramBot().execute(new GetFile(fileId)).file();
+        byte[] fileContent = telegramBot().getFileContent(file);
+        InputStream inputStream = new ByteArrayInputStream(fileContent);
+
+        String fileName = System.currentTimeMillis() + "_" + fileId + ".jpg";
+        Path targetPath = Paths.get("uploads", fileName);
+        Files.createDirectories(targetPath.getParent());
+        Files.copy(inputStream, targetPath, StandardCopyOption.REPLACE_EXISTING);
+
+        if (ENTITY_BLOCK.equals(entityType)) {
+            BlockImage blockImage = blockImageRepository.findById(entityId).orElseThrow();
+            blockImage.setFilePath(targetPath.toAbsolutePath().toString());
+            blockImageRepository.save(blockImage);
+        } else if (ENTITY_QUESTION.equals(entityType)) {
+            QuestionImage questionImage = questionImageRepository.findById(entityId).orElseThrow();
+            questionImage.setFilePath(targetPath.toAbsolutePath().toString());
+            questionImageRepository.save(questionImage);
         }
+        // file_id загруженного фото годится только этому боту; file_id других ботов указывают на прежний файл
+        navigationService.replaceImageFileId(entityType, entityId, fileId);
+        // Курс изображения в контексте загрузки неизвестен
+        contentChangeBus.publish(ContentChangeEvent.Scope.IMAGES, null);
+        return null;
     }
 
     private void startImageUploadSequence(Long userId, Integer messageId, Long topicId) {
@@ -643,7 +692,7 @@ public class AdminHandler extends BaseHandler {
         }
     }
     public boolean isAdmin(Long userId) {
-        return adminUserRepository.existsByUserId(userId);
+        return botRegistry.isAdmin(userId);
     }
 
     public void handleAdminCoursesPage(Long userId, Integer messageId, String source, int page) {
@@ -680,7 +729,7 @@ public class AdminHandler extends BaseHandler {
             return;
         }
 
-        String backCallback = CALLBACK_ADMIN_BACK_TO_TOPICS + ":" + sectionId + ":" + page;
+        String backCallback = CallbackCodec.encode(CALLBACK_ADMIN_BACK_TO_TOPICS, sectionId, page != null ? page : 0);
         InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup(
                 new InlineKeyboardButton[]{new InlineKeyboardButton(BUTTON_RETRY).callbackData(CALLBACK_RETRY)},
                 new InlineKeyboardButton[]{new InlineKeyboardButton(BUTTON_CANCEL).callbackData(backCallback)}
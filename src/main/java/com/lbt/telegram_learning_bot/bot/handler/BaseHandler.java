@@ -1,13 +1,21 @@
 package com.lbt.telegram_learning_bot.bot.handler;
 
+import com.lbt.telegram_learning_bot.bot.BotContext;
+import com.lbt.telegram_learning_bot.bot.BotRegistry;
+import com.lbt.telegram_learning_bot.bot.BotState;
+import com.lbt.telegram_learning_bot.bot.MessageFingerprintCache;
+import com.lbt.telegram_learning_bot.bot.OutboundScheduler;
+import com.lbt.telegram_learning_bot.bot.UpdateDispatcher;
 import com.lbt.telegram_learning_bot.bot.UserContext;
 import com.lbt.telegram_learning_bot.entity.BlockImage;
 import com.lbt.telegram_learning_bot.entity.QuestionImage;
 import com.lbt.telegram_learning_bot.repository.AdminUserRepository;
+import com.lbt.telegram_learning_bot.service.HeavyJobExecutor;
 import com.lbt.telegram_learning_bot.service.NavigationService;
 import com.lbt.telegram_learning_bot.service.UserSessionService;
 import com.pengrad.telegrambot.TelegramBot;
 import com.pengrad.telegrambot.model.Message;
+import com.pengrad.telegrambot.model.PhotoSize;
 import com.pengrad.telegrambot.model.request.InlineKeyboardButton;
 import com.pengrad.telegrambot.model.request.InlineKeyboardMarkup;
 import com.pengrad.telegrambot.model.request.InputMedia;
@@ -16,8 +24,10 @@ import com.pengrad.telegrambot.request.DeleteMessage;
 import com.pengrad.telegrambot.request.EditMessageText;
 import com.pengrad.telegrambot.request.SendMediaGroup;
 import com.pengrad.telegrambot.request.SendMessage;
-import com.pengrad.telegrambot.response.SendResponse;
+import com.pengrad.telegrambot.response.BaseResponse;
+import com.pengrad.telegrambot.response.MessagesResponse;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
 
 import java.io.File;
 import java.time.Instant;
@@ -27,28 +37,46 @@ import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import static com.lbt.telegram_learning_bot.util.Constants.*;
 
 @Slf4j
 public abstract class BaseHandler {
-    protected final TelegramBot telegramBot;
+    protected final BotRegistry botRegistry;
     protected final UserSessionService sessionService;
     protected final NavigationService navigationService;
     protected final AdminUserRepository adminUserRepository;
+    protected final OutboundScheduler outboundScheduler;
+    protected final MessageFingerprintCache fingerprintCache;
+    // Диспетчер сам зависит от обработчиков — берём его лениво
+    protected final ObjectProvider<UpdateDispatcher> dispatcher;
 
-    public BaseHandler(TelegramBot telegramBot,
+    public BaseHandler(BotRegistry botRegistry,
                        UserSessionService sessionService,
                        NavigationService navigationService,
-                       AdminUserRepository adminUserRepository) {
-        this.telegramBot = telegramBot;
+                       AdminUserRepository adminUserRepository,
+                       OutboundScheduler outboundScheduler,
+                       MessageFingerprintCache fingerprintCache,
+                       ObjectProvider<UpdateDispatcher> dispatcher) {
+        this.botRegistry = botRegistry;
         this.sessionService = sessionService;
         this.navigationService = navigationService;
         this.adminUserRepository = adminUserRepository;
+        this.outboundScheduler = outboundScheduler;
+        this.fingerprintCache = fingerprintCache;
+        this.dispatcher = dispatcher;
     }
 
     protected void sendMainMenu(Long userId, Integer messageId) {
-        String text = MSG_MAIN_MENU;
+        sendMainMenu(userId, messageId, MSG_MAIN_MENU);
+    }
+
+    protected void sendMainMenu(Long userId, Integer messageId, String text) {
         InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup(
                 new InlineKeyboardButton[]{
                         new InlineKeyboardButton(BUTTON_MY_COURSES).callbackData(CALLBACK_MY_COURSES),
@@ -76,10 +104,23 @@ public abstract class BaseHandler {
         }
     }
 
+    // Кнопка старого сообщения ведёт в тему или тест, позиции в которых после сжатия сессии уже нет
+    protected void showSessionExpired(Long userId, Integer messageId) {
+        sessionService.updateSessionState(userId, BotState.MAIN_MENU);
+        sendMainMenu(userId, messageId, MSG_SESSION_EXPIRED);
+    }
+
+    // Клиент бота, от которого пришёл текущий апдейт
+    protected TelegramBot telegramBot() {
+        return botRegistry.currentBot();
+    }
+
     protected boolean isAdmin(Long userId) {
-        return adminUserRepository.existsByUserId(userId);
+        return botRegistry.isAdmin(userId);
     }
     // ================== Отправка и редактирование сообщений ==================
+    // Все запросы идут через OutboundScheduler. Обработчик ответа не ждёт: id новых сообщений
+    // записываются в контекст применением ответа в ящике пользователя (UpdateDispatcher.onReply)
     protected void sendMessage(Long userId, String text) {
         sendMessage(userId, text, null);
     }
@@ -93,19 +134,31 @@ public abstract class BaseHandler {
             }
             SendMessage request = new SendMessage(userId, text).replyMarkup(keyboard);
             request.parseMode(com.pengrad.telegrambot.model.request.ParseMode.Markdown);
-            SendResponse response = telegramBot.execute(request);
-            if (!response.isOk()) {
-                log.error("Failed to send message to user {}: {}", userId, response.description());
-            } else {
-                context.setLastInteractiveMessageId(response.message().messageId());
-                sessionService.updateSessionContext(userId, context);
-            }
+            String botId = BotContext.currentBotId();
+            long fingerprint = fingerprintCache.fingerprint(text, keyboard);
+            dispatcher.getObject().onReply(outboundScheduler.submit(userId, request), response -> {
+                if (!response.isOk()) {
+                    log.error("Failed to send message to user {}: {}", userId, response.description());
+                    return;
+                }
+                Integer newId = response.message().messageId();
+                fingerprintCache.remember(botId, userId, newId, fingerprint);
+                UserContext current = sessionService.getCurrentContext(userId);
+                // Интерактивное сообщение, отправленное после prevId тем же апдейтом, заменяется новым
+                Integer sentBefore = current.getLastInteractiveMessageId();
+                if (sentBefore != null && !sentBefore.equals(prevId)) {
+                    deleteMessage(userId, sentBefore);
+                }
+                current.setLastInteractiveMessageId(newId);
+                sessionService.updateSessionContext(userId, current);
+            });
         } else {
             SendMessage request = new SendMessage(userId, text).parseMode(com.pengrad.telegrambot.model.request.ParseMode.Markdown);
-            var response = telegramBot.execute(request);
-            if (!response.isOk()) {
-                log.error("Failed to send message to user {}: {}", userId, response.description());
-            }
+            outboundScheduler.submit(userId, request).thenAccept(response -> {
+                if (!response.isOk()) {
+                    log.error("Failed to send message to user {}: {}", userId, response.description());
+                }
+            });
         }
     }
 
@@ -114,30 +167,61 @@ public abstract class BaseHandler {
     }
 
     protected void editMessage(Long userId, Integer messageId, String text, InlineKeyboardMarkup keyboard) {
+        String botId = BotContext.currentBotId();
+        long fingerprint = fingerprintCache.fingerprint(text, keyboard);
+        if (fingerprintCache.isUnchanged(botId, userId, messageId, fingerprint)) {
+            // Экран уже показан (или отправлен) в точности таким — не тратим запрос к Telegram
+            return;
+        }
+        // Отпечаток пишется до отправки: правки чата уходят по порядку, и следующая сравнивается
+        // с последней отправленной, а не с той, чей ответ пришёл последним (A→B→A не пропустит второе A)
+        fingerprintCache.remember(botId, userId, messageId, fingerprint);
         EditMessageText request = new EditMessageText(userId, messageId, text);
         request.parseMode(com.pengrad.telegrambot.model.request.ParseMode.Markdown);
         if (keyboard != null) {
             request.replyMarkup(keyboard);
         }
-        var response = telegramBot.execute(request);
-        if (!response.isOk()) {
-            log.error("Failed to edit message for user {}: {}", userId, response.description());
-        } else {
-            if (keyboard == null) {
-                UserContext context = sessionService.getCurrentContext(userId);
+        CompletableFuture<Boolean> shown = outboundScheduler.submit(userId, request).handle((response, error) -> {
+            boolean confirmed = confirmEdit(botId, userId, messageId, fingerprint, response, error);
+            if (!confirmed) {
+                log.error("Failed to edit message for user {}: {}", userId,
+                        error != null ? error.getMessage() : response.description());
+            }
+            return confirmed;
+        });
+        if (keyboard != null) {
+            return;
+        }
+        // Без клавиатуры сообщение перестаёт быть интерактивным — контекст меняем только после успешной правки
+        dispatcher.getObject().onReply(shown, confirmed -> {
+            UserContext context = sessionService.getCurrentContext(userId);
+            if (confirmed && messageId.equals(context.getLastInteractiveMessageId())) {
                 context.setLastInteractiveMessageId(null);
                 sessionService.updateSessionContext(userId, context);
             }
+        });
+    }
+
+    // «message is not modified» тоже означает, что на экране нужное состояние; иначе отпечаток откатывается
+    private boolean confirmEdit(String botId, Long userId, Integer messageId, long fingerprint,
+                                BaseResponse response, Throwable error) {
+        boolean shown = error == null && (response.isOk()
+                || (response.description() != null && response.description().contains("message is not modified")));
+        if (!shown) {
+            fingerprintCache.rollback(botId, userId, messageId, fingerprint);
         }
+        return shown;
     }
 
     protected void deleteMessage(Long userId, Integer messageId) {
         if (messageId == null) return;
+        fingerprintCache.evict(BotContext.currentBotId(), userId, messageId);
         DeleteMessage request = new DeleteMessage(userId, messageId);
-        var response = telegramBot.execute(request);
-        if (!response.isOk()) {
-            log.debug("Failed to delete message {} for user {}: {}", messageId, userId, response.description());
-        }
+        outboundScheduler.submit(userId, request).thenAccept(response -> {
+            if (!response.isOk()) {
+                log.debug("Failed to delete message {} for user {}: {}", messageId, userId, response.description());
+            }
+        });
     }
 
     protected void sendMediaGroup(Long userId, List<?> images) {
@@ -154,39 +238,80 @@ public abstract class BaseHandler {
             return;
         }
 
-        List<InputMedia> media = new ArrayList<>();
+        List<Object> sendable = new ArrayList<>();
         for (Object img : images) {
             String filePath = null;
-            String description = null;
             if (img instanceof BlockImage) {
                 filePath = ((BlockImage) img).getFilePath();
-                description = ((BlockImage) img).getDescription();
             } else if (img instanceof QuestionImage) {
                 filePath = ((QuestionImage) img).getFilePath();
-                description = ((QuestionImage) img).getDescription();
-            } else {
-                continue;
             }
             if (filePath == null || filePath.isEmpty()) continue;
-            InputMediaPhoto photo = new InputMediaPhoto(new File(filePath));
+            sendable.add(img);
+        }
+        if (sendable.isEmpty()) return;
+
+        boolean usedFileIds = sendable.stream().anyMatch(img -> navigationService.imageFileId(img) != null);
+        UpdateDispatcher updates = dispatcher.getObject();
+        updates.onReply(outboundScheduler.submit(userId, buildMediaGroup(userId, sendable, true)), response -> {
+            if (usedFileIds && isRejectedFileId(response)) {
+                // file_id отверг сам Telegram — забываем их и загружаем файлы заново, новые id запишутся при ответе.
+                // 429, сетевые и прочие ошибки file_id не касаются: повторная загрузка только добавила бы нагрузки
+                log.warn("Cached file_id rejected for user {}: {}, re-uploading images", userId, response.description());
+                navigationService.forgetImageFileIds(sendable);
+                updates.onReply(outboundScheduler.submit(userId, buildMediaGroup(userId, sendable, false)),
+                        uploaded -> applyMediaGroup(userId, sendable, uploaded));
+                return;
+            }
+            applyMediaGroup(userId, sendable, response);
+        });
+    }
+
+    private void applyMediaGroup(Long userId, List<Object> sendable, MessagesResponse response) {
+        if (!response.isOk()) {
+            log.error("Failed to send media group to user {}: {}", userId, response.description());
+            return;
+        }
+        List<Message> messages = Arrays.asList(response.messages());
+        UserContext context = sessionService.getCurrentContext(userId);
+        // Группа, отправленная раньше тем же апдейтом, заменяется новой — как при отправке с ожиданием
+        if (context.getLastMediaMessageIds() != null) {
+            for (Integer msgId : context.getLastMediaMessageIds()) {
+                deleteMessage(userId, msgId);
+            }
+        }
+        context.setLastMediaMessageIds(messages.stream().map(Message::messageId).toList());
+        sessionService.updateSessionContext(userId, context);
+        navigationService.rememberImageFileIds(sendable, messages.stream().map(this::largestPhotoFileId).toList());
+    }
+
+    private SendMediaGroup buildMediaGroup(Long userId, List<Object> images, boolean useFileIds) {
+        InputMedia<?>[] media = new InputMedia<?>[images.size()];
+        for (int i = 0; i < images.size(); i++) {
+            Object img = images.get(i);
+            String fileId = useFileIds ? navigationService.imageFileId(img) : null;
+            String filePath = img instanceof BlockImage ? ((BlockImage) img).getFilePath() : ((QuestionImage) img).getFilePath();
+            String description = img instanceof BlockImage ? ((BlockImage) img).getDescription() : ((QuestionImage) img).getDescription();
+            InputMediaPhoto photo = fileId != null ? new InputMediaPhoto(fileId) : new InputMediaPhoto(new File(filePath));
             if (description != null && !description.isEmpty()) {
                 photo.caption(description);
             }
-            media.add(photo);
-        }
-        if (media.isEmpty()) return;
-
-        SendMediaGroup request = new SendMediaGroup(userId, media.toArray(new InputMedia[0]));
-        var response = telegramBot.execute(request);
-        if (response.isOk()) {
-            Message[] messagesArray = response.messages();
-            List<Message> messages = Arrays.asList(messagesArray);
-            List<Integer> newIds = messages.stream().map(Message::messageId).toList();
-            context.setLastMediaMessageIds(newIds);
-            sessionService.updateSessionContext(userId, context);
-        } else {
-            log.error("Failed to send media group to user {}: {}", userId, response.description());
+            media[i] = photo;
         }
+        return new SendMediaGroup(userId, media);
+    }
+
+    // 400 с описанием про идентификатор файла: file_id недействителен для этого бота или устарел
+    private boolean isRejectedFileId(BaseResponse response) {
+        if (response.isOk() || response.errorCode() != 400 || response.description() == null) return false;
+        String description = response.description().toLowerCase();
+        return description.contains("file identifier") || description.contains("file_id")
+                || description.contains("file reference") || description.contains("wrong file");
+    }
+
+    private String largestPhotoFileId(Message message) {
+        PhotoSize[] sizes = message.photo();
+        return sizes == null || sizes.length == 0 ? null : sizes[sizes.length - 1].fileId();
     }
 
     protected void clearMediaMessages(Long userId) {
@@ -200,13 +325,82 @@ public abstract class BaseHandler {
         }
     }
 
-    protected Integer sendProgressMessage(Long userId) {
+    // id сообщения о прогрессе или null, если отправить не удалось
+    protected CompletableFuture<Integer> sendProgressMessage(Long userId) {
         SendMessage request = new SendMessage(userId, MSG_PROGRESS);
-        SendResponse response = telegramBot.execute(request);
-        if (response.isOk()) {
-            return response.message().messageId();
+        return outboundScheduler.submit(userId, request)
+                .handle((response, error) -> error == null && response.isOk() ? response.message().messageId() : null);
+    }
+
+    // Действие с сообщением о прогрессе, когда придёт его id. Ответ приходит в потоке OutboundScheduler,
+    // поэтому действие выполняется от имени текущего бота; сессию оно не трогает
+    private CompletableFuture<Integer> withProgressMessage(CompletableFuture<Integer> progressMessage,
+                                                           Consumer<Integer> action) {
+        String botId = BotContext.currentBotId();
+        return progressMessage.thenApply(messageId -> {
+            if (messageId != null) {
+                BotContext.runAs(botId, () -> action.accept(messageId));
+            }
+            return messageId;
+        });
+    }
+
+    // Меняет текст сообщения о прогрессе, не трогая lastInteractiveMessageId в контексте
+    protected void updateProgressMessage(Long userId, Integer messageId, int queuePosition) {
+        fingerprintCache.evict(BotContext.currentBotId(), userId, messageId);
+        outboundScheduler.submit(userId, new EditMessageText(userId, messageId,
+                String.format(FORMAT_PROGRESS_QUEUED, queuePosition)));
+    }
+
+    /**
+     * Запускает тяжёлую операцию в отдельном пуле. Пользователь видит сообщение о прогрессе
+     * (с позицией в очереди, если задача не стартовала сразу), которое удаляется по завершении.
+     * <p>
+     * job выполняется вне ящика пользователя и не должен трогать сессию: всё нужное из контекста
+     * читается до вызова. Результат (onResult) или ошибка (onError) применяются уже в ящике пользователя,
+     * под арендой и в единице работы сессии; апдейт отмечается обработанным после этого.
+     */
+    protected <T> void runHeavyJob(HeavyJobExecutor heavyJobExecutor,
+                                   HeavyJobExecutor.JobType type, Long userId, Callable<T> job,
+                                   Consumer<T> onResult, Consumer<Exception> onError) {
+        CompletableFuture<Integer> progressMessage = sendProgressMessage(userId);
+        AtomicReference<T> result = new AtomicReference<>();
+        HeavyJobExecutor.Submission submission = heavyJobExecutor.submit(type, userId, () -> {
+            try {
+                result.set(job.call());
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+        if (!submission.isAccepted()) {
+            withProgressMessage(progressMessage, messageId -> deleteMessage(userId, messageId));
+            sendMessage(userId, submission.status() == HeavyJobExecutor.Status.USER_LIMIT
+                    ? MSG_JOB_ALREADY_RUNNING : MSG_JOB_QUEUE_FULL);
+            return;
         }
-        return null;
+        if (submission.queuePosition() > 0) {
+            progressMessage = withProgressMessage(progressMessage,
+                    messageId -> updateProgressMessage(userId, messageId, submission.queuePosition()));
+        }
+        // Удаление встаёт в цепочку после правки с позицией в очереди, чтобы не опередить её
+        CompletableFuture<Integer> shownProgress = progressMessage;
+        UpdateDispatcher updates = dispatcher.getObject();
+        UpdateDispatcher.Continuation continuation = updates.defer();
+        submission.completion().whenComplete((ignored, error) -> updates.resume(continuation, () -> {
+            withProgressMessage(shownProgress, messageId -> deleteMessage(userId, messageId));
+            if (error == null) {
+                onResult.accept(result.get());
+                return;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof Exception e) {
+                onError.accept(e);
+            } else {
+                sendMessage(userId, MSG_JOB_FAILED);
+            }
+        }));
     }
 
     // ================== Вспомогательные клавиатуры ==================
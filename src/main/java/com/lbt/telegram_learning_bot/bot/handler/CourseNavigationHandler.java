@@ -1,15 +1,19 @@
 package com.lbt.telegram_learning_bot.bot.handler;
 
+import com.lbt.telegram_learning_bot.bot.BotRegistry;
 import com.lbt.telegram_learning_bot.bot.BotState;
+import com.lbt.telegram_learning_bot.bot.MessageFingerprintCache;
+import com.lbt.telegram_learning_bot.bot.OutboundScheduler;
+import com.lbt.telegram_learning_bot.bot.UpdateDispatcher;
 import com.lbt.telegram_learning_bot.bot.UserContext;
 import com.lbt.telegram_learning_bot.entity.*;
 import com.lbt.telegram_learning_bot.repository.*;
 import com.lbt.telegram_learning_bot.service.NavigationService;
 import com.lbt.telegram_learning_bot.service.UserSessionService;
-import com.pengrad.telegrambot.TelegramBot;
 import com.pengrad.telegrambot.model.request.InlineKeyboardButton;
 import com.pengrad.telegrambot.model.request.InlineKeyboardMarkup;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Component;
 
 import java.time.Instant;
@@ -22,12 +26,16 @@ import static com.lbt.telegram_learning_bot.util.Constants.*;
 public class CourseNavigationHandler extends BaseHandler {
     private final KeyboardBuilder keyboardBuilder;
 
-    public CourseNavigationHandler(TelegramBot telegramBot,
+    public CourseNavigationHandler(BotRegistry botRegistry,
                                    UserSessionService sessionService,
                                    NavigationService navigationService,
                                    AdminUserRepository adminUserRepository, // добавить
-                                   KeyboardBuilder keyboardBuilder) {
-        super(telegramBot, sessionService, navigationService, adminUserRepository);
+                                   KeyboardBuilder keyboardBuilder,
+                                   OutboundScheduler outboundScheduler,
+                                   MessageFingerprintCache fingerprintCache,
+                                   ObjectProvider<UpdateDispatcher> dispatcher) {
+        super(botRegistry, sessionService, navigationService, adminUserRepository, outboundScheduler, fingerprintCache,
+                dispatcher);
         this.keyboardBuilder = keyboardBuilder;
     }
 
@@ -77,26 +85,27 @@ public class CourseNavigationHandler extends BaseHandler {
         showCourseSections(userId, messageId, courseId, 0);
     }
 
-    public void handleSelectSection(Long userId, Integer messageId, Long sectionId) {
+    // fromPage — страница списка, на которой нажали кнопку (null у кнопок старого формата)
+    public void handleSelectSection(Long userId, Integer messageId, Long sectionId, Integer fromPage) {
         clearMediaMessages(userId);
         UserContext context = sessionService.getCurrentContext(userId);
 
         // Запоминаем, с какой страницы пришли
-        context.setPreviousSectionPage(context.getCurrentPage());
+        context.setPreviousSectionPage(fromPage != null ? fromPage : context.getCurrentPage());
 
         context.setCurrentSectionId(sectionId);
         context.setCurrentPage(0); // для раздела
         context.setPreviousMenuState(sessionService.getCurrentState(userId).name());
         sessionService.updateSession(userId, BotState.SECTION_TOPICS, context);
-        showSectionTopics(userId, messageId, sectionId, 0);
+        showSectionTopics(userId, messageId, sectionId, 0, context.getCurrentCourseId(), context.getPreviousSectionPage());
     }
 
-    public void handleSelectTopic(Long userId, Integer messageId, Long topicId) {
+    public void handleSelectTopic(Long userId, Integer messageId, Long topicId, Integer fromPage) {
         clearMediaMessages(userId);
         UserContext context = sessionService.getCurrentContext(userId);
 
         // Запоминаем, с какой страницы пришли
-        context.setPreviousTopicPage(context.getCurrentPage());
+        context.setPreviousTopicPage(fromPage != null ? fromPage : context.getCurrentPage());
 
         List<Block> blocks = navigationService.getTopicBlocksWithQuestions(topicId);
         if (blocks.isEmpty()) {
@@ -131,22 +140,28 @@ public class CourseNavigationHandler extends BaseHandler {
         showBlockContent(userId, messageId, firstBlockId);
     }
 
+    // Страница едет в кнопках выбора, поэтому листание сессию не трогает
     public void handleSectionsPage(Long userId, Integer messageId, Long courseId, int page) {
-        UserContext context = sessionService.getCurrentContext(userId);
-        context.setCurrentPage(page);                       // <-- сохраняем текущую страницу
-        sessionService.updateSessionContext(userId, context);
         showCourseSections(userId, messageId, courseId, page);
     }
 
-    public void handleTopicsPage(Long userId, Integer messageId, Long sectionId, int page) {
-        UserContext context = sessionService.getCurrentContext(userId);
-        context.setCurrentPage(page);                       // <-- сохраняем текущую страницу
-        sessionService.updateSessionContext(userId, context);
-        showSectionTopics(userId, messageId, sectionId, page);
+    // courseId/sectionsPage — курсор возврата к разделам; у кнопок старого формата их нет, берём из сессии
+    public void handleTopicsPage(Long userId, Integer messageId, Long sectionId, int page,
+                                 Long courseId, Integer sectionsPage) {
+        if (courseId == null) {
+            UserContext context = sessionService.getCurrentContext(userId);
+            courseId = context.getCurrentCourseId();
+            sectionsPage = context.getPreviousSectionPage();
+        }
+        showSectionTopics(userId, messageId, sectionId, page, courseId, sectionsPage != null ? sectionsPage : 0);
     }
 
     public void handleNextBlock(Long userId, Integer messageId) {
         UserContext context = sessionService.getCurrentContext(userId);
+        if (!context.hasBlockPosition()) {
+            showSessionExpired(userId, messageId);
+            return;
+        }
         int currentIdx = context.getCurrentBlockIndex();
         List<Long> blockIds = context.getCurrentTopicBlockIds();
 
@@ -183,6 +198,10 @@ public class CourseNavigationHandler extends BaseHandler {
 
     public void handlePrevBlock(Long userId, Integer messageId) {
         UserContext context = sessionService.getCurrentContext(userId);
+        if (!context.hasBlockPosition()) {
+            showSessionExpired(userId, messageId);
+            return;
+        }
         int currentIdx = context.getCurrentBlockIndex();
 
         if (currentIdx > 0) {
@@ -250,12 +269,20 @@ public class CourseNavigationHandler extends BaseHandler {
         }
     }
     public void handleBackToSections(Long userId, Integer messageId) {
+        handleBackToSections(userId, messageId, null, null);
+    }
+
+    // courseId/page из кнопки; если их нет — из сессии
+    public void handleBackToSections(Long userId, Integer messageId, Long courseId, Integer page) {
         clearMediaMessages(userId);
-        UserContext context = sessionService.getCurrentContext(userId);
+        if (courseId == null) {
+            UserContext context = sessionService.getCurrentContext(userId);
+            courseId = context.getCurrentCourseId();
+            page = context.getPreviousSectionPage();
+        }
 
-        if (context.getCurrentCourseId() != null) {
-            int page = context.getPreviousSectionPage() != null ? context.getPreviousSectionPage() : 0;
-            showCourseSections(userId, messageId, context.getCurrentCourseId(), page);
+        if (courseId != null) {
+            showCourseSections(userId, messageId, courseId, page != null ? page : 0);
             sessionService.updateSessionState(userId, BotState.COURSE_SECTIONS);
         } else {
             sendMainMenu(userId, messageId);
@@ -268,7 +295,9 @@ public class CourseNavigationHandler extends BaseHandler {
 
         if (context.getCurrentSectionId() != null) {
             int page = context.getPreviousTopicPage() != null ? context.getPreviousTopicPage() : 0;
-            showSectionTopics(userId, messageId, context.getCurrentSectionId(), page);
+            int sectionsPage = context.getPreviousSectionPage() != null ? context.getPreviousSectionPage() : 0;
+            showSectionTopics(userId, messageId, context.getCurrentSectionId(), page,
+                    context.getCurrentCourseId(), sectionsPage);
             sessionService.updateSessionState(userId, BotState.SECTION_TOPICS);
         } else {
             sendMainMenu(userId, messageId);
@@ -343,7 +372,8 @@ public class CourseNavigationHandler extends BaseHandler {
         }
     }
 
-    private void showSectionTopics(Long userId, Integer messageId, Long sectionId, int page) {
+    private void showSectionTopics(Long userId, Integer messageId, Long sectionId, int page,
+                                   Long courseId, int sectionsPage) {
         var result = navigationService.getTopicsPage(sectionId, page);
         String sectionTitle = navigationService.getSectionTitle(sectionId);
         String sectionDescription = navigationService.getSectionDescription(sectionId);
@@ -354,19 +384,19 @@ public class CourseNavigationHandler extends BaseHandler {
         if (messageId != null && page == 0) {
             String text = String.format(FORMAT_TOPICS_HEADER,
                     sectionTitle, sectionDescription, lastAccessedStr, page + 1, result.getTotalPages(), result.getTotalItems());
-            InlineKeyboardMarkup keyboard = keyboardBuilder.buildTopicsKeyboard(result, userId, sectionId, true, CALLBACK_SELECT_TOPIC);
+            InlineKeyboardMarkup keyboard = keyboardBuilder.buildTopicsKeyboard(result, userId, sectionId, courseId, sectionsPage, true, CALLBACK_SELECT_TOPIC);
             editMessage(userId, messageId, text, keyboard);
             navigationService.updateSectionLastAccessed(userId, sectionId);
         } else if (messageId != null) {
             String text = String.format(FORMAT_TOPICS_HEADER2,
                     sectionTitle, page + 1, result.getTotalPages(), result.getTotalItems(), lastAccessedStr);
-            InlineKeyboardMarkup keyboard = keyboardBuilder.buildTopicsKeyboard(result, userId, sectionId, true, CALLBACK_SELECT_TOPIC);
+            InlineKeyboardMarkup keyboard = keyboardBuilder.buildTopicsKeyboard(result, userId, sectionId, courseId, sectionsPage, true, CALLBACK_SELECT_TOPIC);
             editMessage(userId, messageId, text, keyboard);
         } else {
             sendMessage(userId, String.format(FORMAT_SECTION_HEADER, sectionTitle, sectionDescription, lastAccessedStr));
             String text = String.format("📌 **Темы** раздела «%s» (страница %d из %d) – всего %d тем.\nВыберите тему.",
                     sectionTitle, page + 1, result.getTotalPages(), result.getTotalItems());
-            InlineKeyboardMarkup keyboard = keyboardBuilder.buildTopicsKeyboard(result, userId, sectionId, true, CALLBACK_SELECT_TOPIC);
+            InlineKeyboardMarkup keyboard = keyboardBuilder.buildTopicsKeyboard(result, userId, sectionId, courseId, sectionsPage, true, CALLBACK_SELECT_TOPIC);
             sendMessage(userId, text, keyboard);
             if (page == 0) {
                 navigationService.updateSectionLastAccessed(userId, sectionId);
@@ -1,8 +1,10 @@
 package com.lbt.telegram_learning_bot.bot.handler;
 
+import com.lbt.telegram_learning_bot.bot.CallbackCodec;
 import com.lbt.telegram_learning_bot.bot.UserContext;
 import com.lbt.telegram_learning_bot.entity.*;
 import com.lbt.telegram_learning_bot.service.NavigationService;
+import com.lbt.telegram_learning_bot.service.PageStatusService;
 import com.lbt.telegram_learning_bot.service.PaginationResult;
 import com.pengrad.telegrambot.model.request.InlineKeyboardButton;
 import com.pengrad.telegrambot.model.request.InlineKeyboardMarkup;
@@ -10,9 +12,12 @@ import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import static com.lbt.telegram_learning_bot.util.Constants.*;
 
@@ -21,6 +26,8 @@ import static com.lbt.telegram_learning_bot.util.Constants.*;
 public class KeyboardBuilder {
 
     private final NavigationService navigationService;
+    private final KeyboardSkeletonCache skeletonCache;
+    private final PageStatusService pageStatusService;
 
     // ========== Пользовательские клавиатуры ==========
 
@@ -30,91 +37,63 @@ public class KeyboardBuilder {
         Map<Long, String> courseStatuses = navigationService.getCourseStatusesForUser(userId, courseIds);
         Map<Long, String> courseTestStatuses = withTest ? navigationService.getCourseTestStatusesForUser(userId, courseIds) : Collections.emptyMap();
 
-        List<InlineKeyboardButton[]> rows = new ArrayList<>();
-        for (Course course : result.getItems()) {
-            String courseEmoji = courseStatuses.getOrDefault(course.getId(), EMOJI_NOT_STARTED);
-            String title = courseEmoji + " " + course.getTitle();
-
-            if (SOURCE_MY_COURSES.equals(source)) {
-                String timeStr = navigationService.getLastAccessedTime(userId, course.getId());
-                if (!timeStr.isEmpty()) {
-                    title += " (" + timeStr + ")";
-                }
-            }
-
-            if (withTest) {
-                String testEmoji = courseTestStatuses.getOrDefault(course.getId(), EMOJI_NOT_STARTED);
-                String testButtonText = testEmoji + " Тест";
-                rows.add(new InlineKeyboardButton[]{
-                        new InlineKeyboardButton(title).callbackData(selectAction + ":" + course.getId()),
-                        new InlineKeyboardButton(testButtonText).callbackData("test_course:" + course.getId())
-                });
-            } else {
-                rows.add(new InlineKeyboardButton[]{
-                        new InlineKeyboardButton(title).callbackData(selectAction + ":" + course.getId())
-                });
-            }
-        }
-
-        addPaginationButtons(rows, result, CALLBACK_COURSES_PAGE, source);
-        rows.add(new InlineKeyboardButton[]{new InlineKeyboardButton(BUTTON_MAIN_MENU).callbackData(CALLBACK_MAIN_MENU)});
-
-        return new InlineKeyboardMarkup(rows.toArray(new InlineKeyboardButton[0][]));
+        KeyboardSkeletonCache.Skeleton skeleton = skeleton("courses", result, Course::getId, Course::getTitle,
+                selectAction, withTest ? CALLBACK_TEST_COURSE : null, false,
+                rows -> {
+                    addPaginationButtons(rows, result, CALLBACK_COURSES_PAGE, source);
+                    rows.add(new InlineKeyboardButton[]{new InlineKeyboardButton(BUTTON_MAIN_MENU).callbackData(CALLBACK_MAIN_MENU)});
+                }, source);
+
+        return render(skeleton, courseIds,
+                id -> courseStatuses.getOrDefault(id, EMOJI_NOT_STARTED),
+                id -> courseTestStatuses.getOrDefault(id, EMOJI_NOT_STARTED),
+                // Время последнего захода своё у каждого пользователя — такие кнопки не кэшируются
+                SOURCE_MY_COURSES.equals(source) ? id -> navigationService.getLastAccessedTime(userId, id) : null);
     }
 
     public InlineKeyboardMarkup buildSectionsKeyboard(PaginationResult<Section> result, Long userId,
                                                       Long courseId, boolean withTest, String selectAction) {
-        List<InlineKeyboardButton[]> rows = new ArrayList<>();
-        for (Section section : result.getItems()) {
-            String sectionEmoji = navigationService.getSectionStatusEmoji(userId, section.getId());
-            String title = sectionEmoji + " " + section.getTitle();
-            if (withTest) {
-                String testEmoji = navigationService.getSectionTestStatus(userId, section.getId());
-                String testButtonText = testEmoji + " Тест";
-                rows.add(new InlineKeyboardButton[]{
-                        new InlineKeyboardButton(title).callbackData(selectAction + ":" + section.getId()),
-                        new InlineKeyboardButton(testButtonText).callbackData("test_section:" + section.getId())
-                });
-            } else {
-                rows.add(new InlineKeyboardButton[]{
-                        new InlineKeyboardButton(title).callbackData(selectAction + ":" + section.getId())
-                });
-            }
-        }
-
-        addPaginationButtons(rows, result, CALLBACK_SECTIONS_PAGE, courseId.toString());
-        rows.add(new InlineKeyboardButton[]{new InlineKeyboardButton(BUTTON_MAIN_MENU).callbackData(CALLBACK_BACK_TO_COURSES)});
-
-        return new InlineKeyboardMarkup(rows.toArray(new InlineKeyboardButton[0][]));
+        // Номер страницы едет в кнопке выбора — по нему строится возврат к этому же списку
+        KeyboardSkeletonCache.Skeleton skeleton = skeleton("sections", result, Section::getId, Section::getTitle,
+                selectAction, withTest ? CALLBACK_TEST_SECTION : null, true,
+                rows -> {
+                    addPaginationButtons(rows, result, CALLBACK_SECTIONS_PAGE, courseId);
+                    rows.add(new InlineKeyboardButton[]{new InlineKeyboardButton(BUTTON_MAIN_MENU).callbackData(CALLBACK_BACK_TO_COURSES)});
+                }, courseId);
+
+        // Все статусы страницы считаются заранее, а не запросами на каждую строку
+        List<Long> sectionIds = result.getItems().stream().map(Section::getId).toList();
+        PageStatusService.Statuses statuses = pageStatusService.sectionStatuses(userId, sectionIds);
+        return render(skeleton, sectionIds, statuses::learningStatus, statuses::testStatus, null);
     }
 
+    /**
+     * courseId и sectionsPage — курсор списка разделов, куда ведёт кнопка «назад»;
+     * courseId = null — возврат по данным из сессии.
+     */
     public InlineKeyboardMarkup buildTopicsKeyboard(PaginationResult<Topic> result, Long userId,
-                                                    Long sectionId, boolean withTest, String selectAction) {
-        List<InlineKeyboardButton[]> rows = new ArrayList<>();
-        for (Topic topic : result.getItems()) {
-            String topicEmoji = navigationService.getTopicStatusEmoji(userId, topic.getId());
-            String title = topicEmoji + " " + topic.getTitle();
-            if (withTest) {
-                String testEmoji = navigationService.getTopicTestStatus(userId, topic.getId());
-                String testButtonText = testEmoji + " Тест";
-                rows.add(new InlineKeyboardButton[]{
-                        new InlineKeyboardButton(title).callbackData(selectAction + ":" + topic.getId()),
-                        new InlineKeyboardButton(testButtonText).callbackData("test_topic:" + topic.getId())
-                });
-            } else {
-                rows.add(new InlineKeyboardButton[]{
-                        new InlineKeyboardButton(title).callbackData(selectAction + ":" + topic.getId())
-                });
-            }
-        }
-
-        addPaginationButtons(rows, result, CALLBACK_TOPICS_PAGE, sectionId.toString());
-        rows.add(new InlineKeyboardButton[]{new InlineKeyboardButton(BUTTON_MAIN_MENU).callbackData(CALLBACK_BACK_TO_SECTIONS)});
-
-        return new InlineKeyboardMarkup(rows.toArray(new InlineKeyboardButton[0][]));
+                                                    Long sectionId, Long courseId, int sectionsPage,
+                                                    boolean withTest, String selectAction) {
+        KeyboardSkeletonCache.Skeleton skeleton = skeleton("topics", result, Topic::getId, Topic::getTitle,
+                selectAction, withTest ? CALLBACK_TEST_TOPIC : null, true,
+                rows -> {
+                    if (courseId != null) {
+                        addPaginationButtons(rows, result, CALLBACK_TOPICS_PAGE, sectionId, courseId, sectionsPage);
+                        rows.add(new InlineKeyboardButton[]{new InlineKeyboardButton(BUTTON_MAIN_MENU)
+                                .callbackData(CallbackCodec.encode(CALLBACK_BACK_TO_SECTIONS, courseId, sectionsPage))});
+                    } else {
+                        addPaginationButtons(rows, result, CALLBACK_TOPICS_PAGE, sectionId);
+                        rows.add(new InlineKeyboardButton[]{new InlineKeyboardButton(BUTTON_MAIN_MENU).callbackData(CALLBACK_BACK_TO_SECTIONS)});
+                    }
+                }, sectionId, courseId, sectionsPage);
+
+        PageStatusService.Statuses statuses = pageStatusService.topicStatuses(userId, result.getItems(), withTest);
+        return render(skeleton, result.getItems().stream().map(Topic::getId).toList(),
+                statuses::learningStatus, statuses::testStatus, null);
     }
 
     public InlineKeyboardMarkup buildBlockNavigationKeyboard(UserContext context) {
+        if (!context.hasBlockPosition()) return null;
         Long currentBlockId = context.getCurrentTopicBlockIds().get(context.getCurrentBlockIndex());
         Block block = navigationService.getBlock(currentBlockId).orElse(null);
         if (block == null) return null;
@@ -152,7 +131,7 @@ public class KeyboardBuilder {
         List<InlineKeyboardButton[]> rows = new ArrayList<>();
         for (Course course : result.getItems()) {
             rows.add(new InlineKeyboardButton[]{
-                    new InlineKeyboardButton(course.getTitle()).callbackData(selectAction + ":" + course.getId())
+                    new InlineKeyboardButton(course.getTitle()).callbackData(CallbackCodec.encode(selectAction, course.getId()))
             });
         }
 
@@ -169,10 +148,10 @@ public class KeyboardBuilder {
         List<InlineKeyboardButton[]> rows = new ArrayList<>();
         for (Section section : result.getItems()) {
             rows.add(new InlineKeyboardButton[]{
-                    new InlineKeyboardButton(section.getTitle()).callbackData(selectAction + ":" + section.getId())
+                    new InlineKeyboardButton(section.getTitle()).callbackData(CallbackCodec.encode(selectAction, section.getId()))
             });
         }
-        addPaginationButtons(rows, result, CALLBACK_ADMIN_SECTIONS_PAGE, courseId.toString());
+        addPaginationButtons(rows, result, CALLBACK_ADMIN_SECTIONS_PAGE, courseId);
         rows.add(new InlineKeyboardButton[]{new InlineKeyboardButton(BUTTON_MAIN_MENU).callbackData(backCallback)});
         return new InlineKeyboardMarkup(rows.toArray(new InlineKeyboardButton[0][]));
     }
@@ -184,29 +163,96 @@ public class KeyboardBuilder {
         List<InlineKeyboardButton[]> rows = new ArrayList<>();
         for (Topic topic : result.getItems()) {
             rows.add(new InlineKeyboardButton[]{
-                    new InlineKeyboardButton(topic.getTitle()).callbackData(selectAction + ":" + topic.getId())
+                    new InlineKeyboardButton(topic.getTitle()).callbackData(CallbackCodec.encode(selectAction, topic.getId()))
             });
         }
-        addPaginationButtons(rows, result, CALLBACK_ADMIN_TOPICS_PAGE, sectionId.toString());
+        addPaginationButtons(rows, result, CALLBACK_ADMIN_TOPICS_PAGE, sectionId);
         rows.add(new InlineKeyboardButton[]{new InlineKeyboardButton(BUTTON_MAIN_MENU).callbackData(backCallback)});
         return new InlineKeyboardMarkup(rows.toArray(new InlineKeyboardButton[0][]));
     }
 
     // ========== Вспомогательные методы ==========
 
+    /**
+     * Скелет списка из кэша или новый. pageInCallback — номер страницы едет в кнопках выбора и теста;
+     * footer дописывает кнопки листания и возврата, cursor — аргументы, от которых они зависят.
+     */
+    private <T> KeyboardSkeletonCache.Skeleton skeleton(String list, PaginationResult<T> result,
+                                                        Function<T, Long> idOf, Function<T, String> titleOf,
+                                                        String selectAction, String testAction, boolean pageInCallback,
+                                                        Consumer<List<InlineKeyboardButton[]>> footer, Object... cursor) {
+        int page = result.getCurrentPage();
+        List<Long> ids = result.getItems().stream().map(idOf).toList();
+        List<String> titles = result.getItems().stream().map(titleOf).toList();
+        List<Object> keyCursor = new ArrayList<>(Arrays.asList(cursor));
+        keyCursor.add(page);
+        keyCursor.add(result.isHasPrevious());
+        keyCursor.add(result.isHasNext());
+        KeyboardSkeletonCache.Key key = new KeyboardSkeletonCache.Key(list, selectAction, testAction, keyCursor, ids);
+        KeyboardSkeletonCache.Skeleton skeleton = skeletonCache.get(key, titles);
+        if (skeleton != null) {
+            return skeleton;
+        }
+
+        List<KeyboardSkeletonCache.Item> items = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            Long id = ids.get(i);
+            String selectCallback = pageInCallback ? CallbackCodec.encode(selectAction, id, page) : CallbackCodec.encode(selectAction, id);
+            String testCallback = testAction == null ? null
+                    : pageInCallback ? CallbackCodec.encode(testAction, id, page) : CallbackCodec.encode(testAction, id);
+            items.add(new KeyboardSkeletonCache.Item(titles.get(i), selectCallback, testCallback));
+        }
+        List<InlineKeyboardButton[]> footerRows = new ArrayList<>();
+        footer.accept(footerRows);
+        skeleton = new KeyboardSkeletonCache.Skeleton(items, footerRows.toArray(new InlineKeyboardButton[0][]));
+        skeletonCache.put(key, skeleton);
+        return skeleton;
+    }
+
+    // Подставляет в скелет статусы пользователя; suffix != null — пояснение к названию в скобках
+    private InlineKeyboardMarkup render(KeyboardSkeletonCache.Skeleton skeleton, List<Long> ids,
+                                        Function<Long, String> status, Function<Long, String> testStatus,
+                                        Function<Long, String> suffix) {
+        List<KeyboardSkeletonCache.Item> items = skeleton.items();
+        InlineKeyboardButton[][] rows = new InlineKeyboardButton[items.size() + skeleton.footer().length][];
+        for (int i = 0; i < items.size(); i++) {
+            KeyboardSkeletonCache.Item item = items.get(i);
+            Long id = ids.get(i);
+            String emoji = status.apply(id);
+            String extra = suffix != null ? suffix.apply(id) : "";
+            InlineKeyboardButton titleButton = extra.isEmpty()
+                    ? item.titleButton(emoji)
+                    : new InlineKeyboardButton(emoji + " " + item.title() + " (" + extra + ")").callbackData(item.selectCallback());
+            rows[i] = item.testCallback() == null
+                    ? new InlineKeyboardButton[]{titleButton}
+                    : new InlineKeyboardButton[]{titleButton, item.testButton(testStatus.apply(id))};
+        }
+        System.arraycopy(skeleton.footer(), 0, rows, items.size(), skeleton.footer().length);
+        return new InlineKeyboardMarkup(rows);
+    }
+
+    // Аргументы кнопки листания: owner, номер страницы, затем extra (курсор для возврата)
     private <T> void addPaginationButtons(List<InlineKeyboardButton[]> rows, PaginationResult<T> result,
-                                          String callbackPrefix, String callbackDataSuffix) {
+                                          String action, Object owner, Object... extra) {
         List<InlineKeyboardButton> navButtons = new ArrayList<>();
         if (result.isHasPrevious()) {
             navButtons.add(new InlineKeyboardButton(BUTTON_PREV)
-                    .callbackData(callbackPrefix + ":" + callbackDataSuffix + ":" + (result.getCurrentPage() - 1)));
+                    .callbackData(pageCallback(action, owner, result.getCurrentPage() - 1, extra)));
         }
         if (result.isHasNext()) {
             navButtons.add(new InlineKeyboardButton(BUTTON_NEXT_PAGE)
-                    .callbackData(callbackPrefix + ":" + callbackDataSuffix + ":" + (result.getCurrentPage() + 1)));
+                    .callbackData(pageCallback(action, owner, result.getCurrentPage() + 1, extra)));
         }
         if (!navButtons.isEmpty()) {
             rows.add(navButtons.toArray(new InlineKeyboardButton[0]));
         }
     }
+
+    private String pageCallback(String action, Object owner, int page, Object... extra) {
+        Object[] args = new Object[extra.length + 2];
+        args[0] = owner;
+        args[1] = page;
+        System.arraycopy(extra, 0, args, 2, extra.length);
+        return CallbackCodec.encode(action, args);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,112 @@
+package com.lbt.telegram_learning_bot.bot.handler;
+
+import com.lbt.telegram_learning_bot.service.ContentCacheListener;
+import com.lbt.telegram_learning_bot.service.ContentChangeEvent;
+import com.pengrad.telegrambot.model.request.InlineKeyboardButton;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Заготовки («скелеты») пользовательских списков курсов, разделов и тем: названия, callback-данные,
+ * кнопки листания и возврата. При отрисовке в скелет подставляются только эмодзи статусов пользователя,
+ * а кнопки с одинаковым эмодзи строятся один раз и переиспользуются.
+ * <p>
+ * Ключ — вид списка, страница с курсором и id элементов. Названия сверяются при каждом попадании,
+ * а при изменении контента кэш очищается целиком.
+ */
+@Component
+public class KeyboardSkeletonCache implements ContentCacheListener {
+
+    private final Map<Key, Skeleton> skeletons;
+    private final Counter hitCounter;
+    private final Counter missCounter;
+
+    public KeyboardSkeletonCache(MeterRegistry meterRegistry,
+                                 @Value("${bot.keyboard-cache.max-size:5000}") int maxSize) {
+        this.skeletons = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Skeleton> eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.hitCounter = Counter.builder("bot.keyboard_cache").tag("result", "hit").register(meterRegistry);
+        this.missCounter = Counter.builder("bot.keyboard_cache").tag("result", "miss").register(meterRegistry);
+        Gauge.builder("bot.keyboard_cache.size", this, KeyboardSkeletonCache::size).register(meterRegistry);
+    }
+
+    // null — скелета нет или названия элементов уже другие
+    public Skeleton get(Key key, List<String> titles) {
+        Skeleton skeleton;
+        synchronized (skeletons) {
+            skeleton = skeletons.get(key);
+        }
+        boolean hit = skeleton != null && skeleton.matches(titles);
+        (hit ? hitCounter : missCounter).increment();
+        return hit ? skeleton : null;
+    }
+
+    public void put(Key key, Skeleton skeleton) {
+        synchronized (skeletons) {
+            skeletons.put(key, skeleton);
+        }
+    }
+
+    @Override
+    public void onContentChanged(ContentChangeEvent event) {
+        synchronized (skeletons) {
+            skeletons.clear();
+        }
+    }
+
+    private int size() {
+        synchronized (skeletons) {
+            return skeletons.size();
+        }
+    }
+
+    /**
+     * cursor — всё, от чего зависят callback-данные и нижние кнопки (страница, соседние страницы, курсор возврата).
+     */
+    public record Key(String list, String selectAction, String testAction, List<Object> cursor, List<Long> ids) {
+    }
+
+    public record Skeleton(List<Item> items, InlineKeyboardButton[][] footer) {
+
+        private boolean matches(List<String> titles) {
+            if (titles.size() != items.size()) return false;
+            for (int i = 0; i < titles.size(); i++) {
+                if (!items.get(i).title().equals(titles.get(i))) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Элемент списка. testCallback == null — список без кнопок теста.
+     * Кнопки по эмодзи: статусов всего несколько, поэтому готовых кнопок на элемент немного.
+     */
+    public record Item(String title, String selectCallback, String testCallback,
+                       Map<String, InlineKeyboardButton> titleButtons,
+                       Map<String, InlineKeyboardButton> testButtons) {
+
+        public Item(String title, String selectCallback, String testCallback) {
+            this(title, selectCallback, testCallback, new ConcurrentHashMap<>(4), new ConcurrentHashMap<>(4));
+        }
+
+        public InlineKeyboardButton titleButton(String emoji) {
+            return titleButtons.computeIfAbsent(emoji, e -> new InlineKeyboardButton(e + " " + title).callbackData(selectCallback));
+        }
+
+        public InlineKeyboardButton testButton(String emoji) {
+            return testButtons.computeIfAbsent(emoji, e -> new InlineKeyboardButton(e + " Тест").callbackData(testCallback));
+        }
+    }
+}
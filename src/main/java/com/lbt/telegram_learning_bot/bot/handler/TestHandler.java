@@ -1,15 +1,20 @@
 package com.lbt.telegram_learning_bot.bot.handler;
 
+import com.lbt.telegram_learning_bot.bot.BotRegistry;
 import com.lbt.telegram_learning_bot.bot.BotState;
+import com.lbt.telegram_learning_bot.bot.CallbackCodec;
+import com.lbt.telegram_learning_bot.bot.MessageFingerprintCache;
+import com.lbt.telegram_learning_bot.bot.OutboundScheduler;
+import com.lbt.telegram_learning_bot.bot.UpdateDispatcher;
 import com.lbt.telegram_learning_bot.bot.UserContext;
 import com.lbt.telegram_learning_bot.entity.*;
 import com.lbt.telegram_learning_bot.repository.*;
 import com.lbt.telegram_learning_bot.service.NavigationService;
 import com.lbt.telegram_learning_bot.service.UserSessionService;
-import com.pengrad.telegrambot.TelegramBot;
 import com.pengrad.telegrambot.model.request.InlineKeyboardButton;
 import com.pengrad.telegrambot.model.request.InlineKeyboardMarkup;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
@@ -29,7 +34,7 @@ public class TestHandler extends BaseHandler {
     private final UserTestResultRepository userTestResultRepository;
     private final CourseNavigationHandler courseNavHandler;
 
-    public TestHandler(TelegramBot telegramBot,
+    public TestHandler(BotRegistry botRegistry,
                        UserSessionService sessionService,
                        NavigationService navigationService,
                        QuestionRepository questionRepository,
@@ -38,8 +43,12 @@ public class TestHandler extends BaseHandler {
                        UserProgressRepository userProgressRepository,
                        UserMistakeRepository userMistakeRepository,
                        UserTestResultRepository userTestResultRepository,
-                       CourseNavigationHandler courseNavHandler) { // добавить
-        super(telegramBot, sessionService, navigationService, adminUserRepository);
+                       CourseNavigationHandler courseNavHandler, // добавить
+                       OutboundScheduler outboundScheduler,
+                       MessageFingerprintCache fingerprintCache,
+                       ObjectProvider<UpdateDispatcher> dispatcher) {
+        super(botRegistry, sessionService, navigationService, adminUserRepository, outboundScheduler, fingerprintCache,
+                dispatcher);
         this.questionRepository = questionRepository;
         this.answerOptionRepository = answerOptionRepository;
         this.userProgressRepository = userProgressRepository;
@@ -48,9 +57,10 @@ public class TestHandler extends BaseHandler {
         this.courseNavHandler = courseNavHandler; // добавить
     }
     // ================== Публичные методы для диспетчера ==================
-    public void handleTestTopic(Long userId, Integer messageId, Long topicId) {
+    // fromPage — страница списка, где нажали «Тест» (null у кнопок старого формата)
+    public void handleTestTopic(Long userId, Integer messageId, Long topicId, Integer fromPage) {
         UserContext context = sessionService.getCurrentContext(userId);
-        context.setPreviousTopicPage(context.getCurrentPage()); // <-- сохраняем страницу тем
+        context.setPreviousTopicPage(fromPage != null ? fromPage : context.getCurrentPage()); // <-- сохраняем страницу тем
         sessionService.updateSessionContext(userId, context);
         List<Question> questions = navigationService.getAllQuestionsForTopic(topicId);
         if (questions.isEmpty()) {
@@ -76,9 +86,9 @@ public class TestHandler extends BaseHandler {
                 .ifPresent(question -> showTestQuestion(userId, messageId, question));
     }
 
-    public void handleTestSection(Long userId, Integer messageId, Long sectionId) {
+    public void handleTestSection(Long userId, Integer messageId, Long sectionId, Integer fromPage) {
         UserContext context = sessionService.getCurrentContext(userId);
-        context.setPreviousSectionPage(context.getCurrentPage()); // <-- сохраняем страницу разделов
+        context.setPreviousSectionPage(fromPage != null ? fromPage : context.getCurrentPage()); // <-- сохраняем страницу разделов
         sessionService.updateSessionContext(userId, context);
         List<Question> questions = navigationService.getRandomQuestionsForSection(sectionId, 2);
         if (questions.isEmpty()) {
@@ -158,13 +168,13 @@ public class TestHandler extends BaseHandler {
     }
     private void updateAfterAnswer(Long userId, Long questionId, boolean correct, UserContext context) {
         boolean isLearning = !context.isTestMode();
-        navigationService.saveAnswerProgress(userId, questionId, correct, isLearning);
+        // Время изучения учитывается только в учебном режиме
+        Long studyTopicId = isLearning ? context.getCurrentTopicId() : null;
+        navigationService.submitAnswer(userId, questionId, correct, isLearning, studyTopicId);
 
         if (correct) {
-            navigationService.clearMistake(userId, questionId);
             context.setCorrectAnswers(context.getCorrectAnswers() + 1);
         } else {
-            navigationService.recordMistake(userId, questionId);
             context.setWrongAnswers(context.getWrongAnswers() + 1);
         }
         sessionService.updateSessionContext(userId, context);
@@ -183,6 +193,10 @@ public class TestHandler extends BaseHandler {
     }
     public void handleAnswer(Long userId, Integer messageId, Long questionId, Long answerOptionId) {
         UserContext context = sessionService.getCurrentContext(userId);
+        if (!context.hasQuestionPosition()) {
+            showSessionExpired(userId, messageId);
+            return;
+        }
 
         AnswerOption selected = processAnswerSelection(questionId, answerOptionId);
         if (selected == null) {
@@ -216,10 +230,6 @@ public class TestHandler extends BaseHandler {
             InlineKeyboardMarkup keyboard = buildResultKeyboard(context, isLast);
             sendOrEditResult(userId, messageId, resultText, keyboard);
         }
-
-        if (context.getCurrentTopicId() != null && !context.isTestMode()) {
-            navigationService.recordStudyAction(userId, context.getCurrentTopicId());
-        }
     }
 
     private String buildResultText(UserContext context, boolean correct, boolean isLast) {
@@ -367,6 +377,10 @@ public class TestHandler extends BaseHandler {
 
     public void handleNextQuestion(Long userId, Integer messageId) {
         UserContext context = sessionService.getCurrentContext(userId);
+        if (!context.hasPosition()) {
+            showSessionExpired(userId, messageId);
+            return;
+        }
         if (context.isTestMode()) {
             List<Long> questionIds = context.getTestQuestionIds();
             int currentIdx = context.getCurrentTestQuestionIndex();
@@ -411,6 +425,10 @@ public class TestHandler extends BaseHandler {
 
     public void handlePrevQuestion(Long userId, Integer messageId) {
         UserContext context = sessionService.getCurrentContext(userId);
+        if (!context.hasPosition()) {
+            showSessionExpired(userId, messageId);
+            return;
+        }
         if (context.isTestMode()) {
             List<Long> questionIds = context.getTestQuestionIds();
             int currentIdx = context.getCurrentTestQuestionIndex();
@@ -455,6 +473,10 @@ public class TestHandler extends BaseHandler {
 
     public void handleBackToBlockText(Long userId, Integer messageId) {
         UserContext context = sessionService.getCurrentContext(userId);
+        if (!context.hasBlockPosition()) {
+            showSessionExpired(userId, messageId);
+            return;
+        }
         Long currentBlockId = context.getCurrentTopicBlockIds().get(context.getCurrentBlockIndex());
         context.setCurrentBlockQuestionIndex(-1);
         sessionService.updateSessionContext(userId, context);
@@ -503,7 +525,7 @@ public class TestHandler extends BaseHandler {
         List<InlineKeyboardButton[]> rows = new ArrayList<>();
         for (AnswerOption opt : options) {
             rows.add(new InlineKeyboardButton[]{
-                    new InlineKeyboardButton(opt.getText()).callbackData("answer:" + questionId + ":" + opt.getId())
+                    new InlineKeyboardButton(opt.getText()).callbackData(CallbackCodec.encode(CALLBACK_ANSWER, questionId, opt.getId()))
             });
         }
         rows.add(new InlineKeyboardButton[]{new InlineKeyboardButton(BUTTON_BACK).callbackData(backCallbackData)});
@@ -0,0 +1,95 @@
+package com.lbt.telegram_learning_bot.config;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManagerFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Первичные ключи, которые ddl-auto=update не меняет. user_session и update_inbox стали составными
+ * (с bot_id), и upsert'ы ON CONFLICT (bot_id, ...) на старой базе с ключом по одному столбцу падают.
+ * <p>
+ * При запуске (после того как Hibernate обновил схему) ключи сверяются с ожидаемыми; старый ключ
+ * заменяется на новый, если bot.schema.migrate-keys=true (по умолчанию), иначе запуск останавливается
+ * с текстом нужного ALTER TABLE. Проверяется только PostgreSQL.
+ */
+@Slf4j
+@Component
+public class SchemaKeyMigration {
+
+    private static final Map<String, List<String>> EXPECTED_KEYS = Map.of(
+            "user_session", List.of("bot_id", "user_id"),
+            "update_inbox", List.of("bot_id", "update_id"));
+
+    private static final String PRIMARY_KEY_SQL =
+            "SELECT c.conname, a.attname FROM pg_constraint c " +
+            "JOIN pg_attribute a ON a.attrelid = c.conrelid AND a.attnum = ANY(c.conkey) " +
+            "WHERE c.conrelid = to_regclass(?) AND c.contype = 'p'";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final boolean migrate;
+
+    // EntityManagerFactory — чтобы проверка шла после обновления схемы Hibernate'ом
+    public SchemaKeyMigration(JdbcTemplate jdbcTemplate,
+                              TransactionTemplate transactionTemplate,
+                              EntityManagerFactory entityManagerFactory,
+                              @Value("${bot.schema.migrate-keys:true}") boolean migrate) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.migrate = migrate;
+    }
+
+    @PostConstruct
+    public void checkKeys() {
+        String database = jdbcTemplate.execute((ConnectionCallback<String>) connection ->
+                connection.getMetaData().getDatabaseProductName());
+        if (!"PostgreSQL".equals(database)) {
+            log.debug("Primary key check skipped for {}", database);
+            return;
+        }
+        EXPECTED_KEYS.forEach(this::checkKey);
+    }
+
+    private void checkKey(String table, List<String> expected) {
+        Set<String> columns = new HashSet<>();
+        String[] constraint = new String[1];
+        jdbcTemplate.query(PRIMARY_KEY_SQL, rs -> {
+            constraint[0] = rs.getString("conname");
+            columns.add(rs.getString("attname"));
+        }, table);
+        if (constraint[0] == null || columns.equals(new HashSet<>(expected))) {
+            // Таблицы нет (её создаст Hibernate) или ключ уже нужный
+            return;
+        }
+
+        String alter = "ALTER TABLE " + table + " DROP CONSTRAINT " + constraint[0]
+                + ", ADD PRIMARY KEY (" + String.join(", ", expected) + ")";
+        if (!migrate) {
+            throw new IllegalStateException("Table " + table + " has primary key " + columns + ", expected " + expected
+                    + ". Run: " + alter + " (or set bot.schema.migrate-keys=true)");
+        }
+        log.warn("Migrating primary key of {} from {} to {}", table, columns, expected);
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                jdbcTemplate.execute(alter);
+                if (table.equals("update_inbox")) {
+                    // Индекс прежней схемы заменён idx_update_inbox_bot_pending
+                    jdbcTemplate.execute("DROP INDEX IF EXISTS idx_update_inbox_pending");
+                }
+            });
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("Cannot migrate primary key of " + table + " to " + expected
+                    + ", run manually: " + alter, e);
+        }
+    }
+}
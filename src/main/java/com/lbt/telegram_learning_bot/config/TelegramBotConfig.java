@@ -1,25 +1,17 @@
 package com.lbt.telegram_learning_bot.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.pengrad.telegrambot.TelegramBot;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import static com.lbt.telegram_learning_bot.util.Constants.*;
 
+// Экземпляры TelegramBot создаёт BotRegistry — по одному на каждый настроенный токен
 @Configuration
+@EnableConfigurationProperties(TelegramBotsProperties.class)
 public class TelegramBotConfig {
 
-    @Value("${telegram.bot.token}")
-    private String token;
-
-    @Bean
-    public TelegramBot telegramBot() {
-        return new TelegramBot(token);
-    }
-
     @Bean
     public ObjectMapper objectMapper() {
         return new ObjectMapper();
     }
-}
\ No newline at end of file
+}
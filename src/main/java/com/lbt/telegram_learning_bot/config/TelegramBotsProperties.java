@@ -0,0 +1,24 @@
+package com.lbt.telegram_learning_bot.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Дополнительные боты, работающие в том же процессе (telegram.bots[N].id / token / admin-ids).
+ * Основной бот по-прежнему задаётся через telegram.bot.token.
+ */
+@ConfigurationProperties(prefix = "telegram")
+public record TelegramBotsProperties(List<Bot> bots) {
+
+    public TelegramBotsProperties {
+        bots = bots != null ? bots : List.of();
+    }
+
+    public record Bot(String id, String token, Set<Long> adminIds) {
+        public Bot {
+            adminIds = adminIds != null ? adminIds : Set.of();
+        }
+    }
+}
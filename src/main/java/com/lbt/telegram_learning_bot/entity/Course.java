@@ -28,6 +28,10 @@ public class Course {
     @Column(columnDefinition = "TEXT")
     private String description;
 
+    // Число вопросов (денормализовано): ведёт CourseImportService, сверяет QuestionCountVerifier
+    @Column(name = "question_count", columnDefinition = "integer default 0")
+    private int questionCount;
+
     @CreationTimestamp
     @Column(name = "created_at", updatable = false)
     private Instant createdAt;
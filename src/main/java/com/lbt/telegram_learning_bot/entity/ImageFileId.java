@@ -0,0 +1,28 @@
+package com.lbt.telegram_learning_bot.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+// file_id картинки, выданный Telegram конкретному боту: у другого бота тот же file_id недействителен.
+// image_type — block/question (ENTITY_BLOCK/ENTITY_QUESTION), image_id без внешнего ключа:
+// строки удалённых картинок ни на что не влияют
+@Data
+@Entity
+@Table(name = "image_file_id")
+@IdClass(ImageFileIdKey.class)
+public class ImageFileId {
+    @Id
+    @Column(name = "bot_id", length = 32)
+    private String botId;
+
+    @Id
+    @Column(name = "image_type", length = 20)
+    private String imageType;
+
+    @Id
+    @Column(name = "image_id")
+    private Long imageId;
+
+    @Column(name = "file_id", nullable = false, length = 255)
+    private String fileId;
+}
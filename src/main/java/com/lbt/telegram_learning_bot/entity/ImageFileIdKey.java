@@ -0,0 +1,19 @@
+package com.lbt.telegram_learning_bot.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+// Ключ file_id картинки: бот, тип картинки и её id
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ImageFileIdKey implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String botId;
+    private String imageType;
+    private Long imageId;
+}
@@ -0,0 +1,24 @@
+package com.lbt.telegram_learning_bot.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.Instant;
+
+// Общая для всех узлов корзина токенов пользователя (режим rate.limit.cluster.enabled).
+// Читается и пишется пачками через JdbcTemplate, см. ClusterRateLimiter
+@Data
+@Entity
+@Table(name = "rate_limit_bucket")
+public class RateLimitBucket {
+    @Id
+    @Column(name = "user_id")
+    private Long userId;
+
+    // Остаток в микротокенах на момент refilled_at
+    @Column(nullable = false)
+    private long tokens;
+
+    @Column(name = "refilled_at", nullable = false)
+    private Instant refilledAt;
+}
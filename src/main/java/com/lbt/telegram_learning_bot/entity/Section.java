@@ -35,6 +35,10 @@ public class Section {
     @Column(name = "order_index", nullable = false)
     private Integer orderIndex;
 
+    // Число вопросов (денормализовано): ведёт CourseImportService, сверяет QuestionCountVerifier
+    @Column(name = "question_count", columnDefinition = "integer default 0")
+    private int questionCount;
+
     @CreationTimestamp
     @Column(name = "created_at", updatable = false)
     private Instant createdAt;
@@ -0,0 +1,46 @@
+package com.lbt.telegram_learning_bot.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
+
+import java.time.Instant;
+
+// Журнал входящих апдейтов: строка появляется до обработки, захватывается узлом-обработчиком
+// (claimed_by/claimed_at) и помечается после обработки
+@Data
+@Entity
+@Table(name = "update_inbox", indexes = {
+        @Index(name = "idx_update_inbox_bot_pending", columnList = "processed_at, bot_id, update_id")
+})
+@IdClass(UpdateInboxId.class)
+public class UpdateInbox {
+    @Id
+    @Column(name = "bot_id", length = 32, columnDefinition = "varchar(32) default 'main'")
+    private String botId;
+
+    @Id
+    @Column(name = "update_id")
+    private Long updateId;
+
+    @JdbcTypeCode(SqlTypes.JSON)
+    @Column(columnDefinition = "jsonb", nullable = false)
+    private String payload;
+
+    @Column(name = "received_at", nullable = false)
+    private Instant receivedAt;
+
+    @Column(name = "processed_at")
+    private Instant processedAt;
+
+    @Column(nullable = false)
+    private int attempts;
+
+    // Узел, обрабатывающий апдейт (ClusterNode.id); null — свободен
+    @Column(name = "claimed_by", length = 64)
+    private String claimedBy;
+
+    @Column(name = "claimed_at")
+    private Instant claimedAt;
+}
@@ -0,0 +1,18 @@
+package com.lbt.telegram_learning_bot.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+// update_id уникален только в пределах одного бота
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UpdateInboxId implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String botId;
+    private Long updateId;
+}
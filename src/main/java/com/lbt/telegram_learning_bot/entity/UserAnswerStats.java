@@ -0,0 +1,40 @@
+package com.lbt.telegram_learning_bot.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+// Свёрнутая история ответов на вопрос: счётчики ответов, удалённых из user_progress компактором
+// (AnswerLogCompactor). Последний ответ остаётся в user_progress, здесь — только более старые.
+// Агрегатная статистика складывает журнал и эти счётчики.
+// question_id и course_id без внешних ключей: строки чистятся явно вместе с прогрессом
+@Data
+@Entity
+@Table(name = "user_answer_stats", indexes = {
+        @Index(name = "idx_user_answer_stats_user_course", columnList = "user_id, course_id")
+})
+@IdClass(UserAnswerStatsId.class)
+public class UserAnswerStats {
+    @Id
+    @Column(name = "user_id")
+    private Long userId;
+
+    @Id
+    @Column(name = "question_id")
+    private Long questionId;
+
+    @Id
+    @Column(length = 20)
+    private String mode;
+
+    @Column(name = "course_id", nullable = false)
+    private Long courseId;
+
+    @Column(nullable = false)
+    private int answers;
+
+    @Column(name = "correct_answers", nullable = false)
+    private int correctAnswers;
+
+    @Column(name = "wrong_answers", nullable = false)
+    private int wrongAnswers;
+}
@@ -0,0 +1,33 @@
+package com.lbt.telegram_learning_bot.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.Instant;
+
+// Аренда пользователя узлом: апдейты пользователя обрабатывает только владелец (режим cluster.enabled)
+@Data
+@Entity
+@Table(name = "user_lease", indexes = {
+        @Index(name = "idx_user_lease_owner", columnList = "owner")
+})
+@IdClass(UserSessionId.class)
+public class UserLease {
+    @Id
+    @Column(name = "bot_id", length = 32)
+    private String botId;
+
+    @Id
+    @Column(name = "user_id")
+    private Long userId;
+
+    @Column(nullable = false, length = 64)
+    private String owner;
+
+    // Номер конкретной аренды: освобождение не удалит аренду, взятую заново тем же узлом
+    @Column(nullable = false)
+    private long token;
+
+    @Column(name = "expires_at", nullable = false)
+    private Instant expiresAt;
+}
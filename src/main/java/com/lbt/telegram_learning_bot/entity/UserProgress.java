@@ -9,7 +9,10 @@ import lombok.Setter;
 import java.time.Instant;
 
 @Entity
-@Table(name = "user_progress")
+// Индекс под поиск последнего ответа на вопрос (AnswerEventWriter, статусы, пересборка сводок)
+@Table(name = "user_progress", indexes = {
+        @Index(name = "idx_user_progress_user_question", columnList = "user_id, question_id, mode, completed_at")
+})
 @Getter
 @Setter
 @NoArgsConstructor
@@ -10,7 +10,12 @@ import java.time.Instant;
 @Data
 @Entity
 @Table(name = "user_session")
+@IdClass(UserSessionId.class)
 public class UserSession {
+    @Id
+    @Column(name = "bot_id", length = 32, columnDefinition = "varchar(32) default 'main'")
+    private String botId;
+
     @Id
     private Long userId;
 
@@ -21,6 +26,14 @@ public class UserSession {
     @Column(columnDefinition = "jsonb")
     private String context;
 
+    // Контекст в двоичном формате (session.context.codec=binary); тогда context = null
+    @Column(name = "context_bin")
+    private byte[] contextBin;
+
     @Column(name = "updated_at")
     private Instant updatedAt;
+
+    // Контекст сжат до минимальной формы SessionSweeper'ом; сбрасывается при любой записи сессии
+    @Column(nullable = false, columnDefinition = "boolean default false")
+    private boolean compacted;
 }
\ No newline at end of file
@@ -0,0 +1,18 @@
+package com.lbt.telegram_learning_bot.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+// Составной ключ сессии: один и тот же пользователь в разных ботах имеет разные сессии
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserSessionId implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String botId;
+    private Long userId;
+}
@@ -0,0 +1,38 @@
+package com.lbt.telegram_learning_bot.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+
+import java.time.Instant;
+
+// Сводка ответов пользователя по теме: сколько вопросов отвечено и на сколько последний ответ верный.
+// Ведётся upsert'ом при каждом ответе (AnswerEventWriter), сверяется TopicProgressRebuilder.
+// topic_id без внешнего ключа: тема пересоздаётся при импорте, сводка чистится явно
+@Data
+@Entity
+@Table(name = "user_topic_progress")
+@IdClass(UserTopicProgressId.class)
+public class UserTopicProgress {
+    @Id
+    @Column(name = "user_id")
+    private Long userId;
+
+    @Id
+    @Column(name = "topic_id")
+    private Long topicId;
+
+    @Id
+    @Column(length = 20)
+    private String mode;
+
+    // Вопросы темы, на которые есть хотя бы один ответ
+    @Column(nullable = false)
+    private int answered;
+
+    // Вопросы, последний ответ на которые верный
+    @Column(nullable = false)
+    private int correct;
+
+    @Column(name = "last_answer_at")
+    private Instant lastAnswerAt;
+}
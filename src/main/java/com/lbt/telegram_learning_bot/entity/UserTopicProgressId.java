@@ -0,0 +1,19 @@
+package com.lbt.telegram_learning_bot.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+// Ключ сводки прогресса: пользователь, тема и режим (learning/test)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserTopicProgressId implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private Long userId;
+    private Long topicId;
+    private String mode;
+}
@@ -4,6 +4,7 @@ import com.lbt.telegram_learning_bot.entity.Course;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
@@ -18,17 +19,22 @@ import static com.lbt.telegram_learning_bot.util.Constants.*;
 public interface CourseRepository extends JpaRepository<Course, Long> {
     // Можно добавить методы поиска по названию, если нужно
     Page<Course> findByTitleContainingIgnoreCase(String title, Pageable pageable);
-    @Query("SELECT c.id, COUNT(q) FROM Course c JOIN c.sections s JOIN s.topics t JOIN t.blocks b JOIN b.questions q WHERE c.id IN :courseIds GROUP BY c.id")
+    // Количество вопросов хранится в course.question_count, агрегировать не нужно
+    @Query("SELECT c.id, c.questionCount FROM Course c WHERE c.id IN :courseIds")
     List<Object[]> countQuestionsByCourseIdsRaw(@Param("courseIds") List<Long> courseIds);
 
     default Map<Long, Long> countQuestionsByCourseIds(List<Long> courseIds) {
         return countQuestionsByCourseIdsRaw(courseIds).stream()
-                .collect(Collectors.toMap(arr -> (Long) arr[0], arr -> (Long) arr[1]));
+                .collect(Collectors.toMap(arr -> (Long) arr[0], arr -> ((Number) arr[1]).longValue()));
     }
     // Общее количество вопросов в курсе
-    @Query("SELECT COUNT(q) FROM Course c JOIN c.sections s JOIN s.topics t JOIN t.blocks b JOIN b.questions q WHERE c.id = :courseId")
+    @Query("SELECT COALESCE(SUM(c.questionCount), 0) FROM Course c WHERE c.id = :courseId")
     long countQuestionsByCourseId(@Param("courseId") Long courseId);
 
+    @Modifying
+    @Query("UPDATE Course c SET c.questionCount = c.questionCount + :delta WHERE c.id = :id")
+    int addQuestionCount(@Param("id") Long id, @Param("delta") int delta);
+
     @Query(value = """
             SELECT * FROM course 
             WHERE to_tsvector('russian', coalesce(title, '') || ' ' || coalesce(description, '')) 
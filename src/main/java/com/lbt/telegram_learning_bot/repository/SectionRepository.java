@@ -4,6 +4,9 @@ import com.lbt.telegram_learning_bot.entity.Section;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import java.util.List;
 
@@ -11,4 +14,8 @@ import java.util.List;
 public interface SectionRepository extends JpaRepository<Section, Long> {
     List<Section> findByCourseIdOrderByOrderIndexAsc(Long courseId);
     Page<Section> findByCourseId(Long courseId, Pageable pageable);
+
+    @Modifying
+    @Query("UPDATE Section s SET s.questionCount = s.questionCount + :delta WHERE s.id = :id")
+    int addQuestionCount(@Param("id") Long id, @Param("delta") int delta);
 }
\ No newline at end of file
@@ -5,10 +5,14 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
+import java.util.Collection;
 import java.util.List;
 
 @Repository
 public interface TopicRepository extends JpaRepository<Topic, Long> {
     List<Topic> findBySectionIdOrderByOrderIndexAsc(Long sectionId);
+
+    // Темы нескольких разделов разом — для статусов страницы разделов
+    List<Topic> findBySectionIdIn(Collection<Long> sectionIds);
     Page<Topic> findBySectionId(Long sectionId, Pageable pageable);
 }
\ No newline at end of file
@@ -0,0 +1,33 @@
+package com.lbt.telegram_learning_bot.repository;
+
+import com.lbt.telegram_learning_bot.entity.UpdateInbox;
+import com.lbt.telegram_learning_bot.entity.UpdateInboxId;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface UpdateInboxRepository extends JpaRepository<UpdateInbox, UpdateInboxId> {
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE UpdateInbox u SET u.processedAt = :now WHERE u.botId = :botId AND u.updateId IN :ids")
+    int markProcessed(@Param("botId") String botId, @Param("ids") Collection<Long> ids, @Param("now") Instant now);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE UpdateInbox u SET u.attempts = u.attempts + 1, u.claimedBy = NULL, u.claimedAt = NULL WHERE u.botId = :botId AND u.updateId IN :ids")
+    int incrementAttempts(@Param("botId") String botId, @Param("ids") Collection<Long> ids);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM UpdateInbox u WHERE u.processedAt < :before")
+    int deleteProcessedBefore(@Param("before") Instant before);
+}
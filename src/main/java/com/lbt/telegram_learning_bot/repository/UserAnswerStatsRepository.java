@@ -0,0 +1,34 @@
+package com.lbt.telegram_learning_bot.repository;
+
+import com.lbt.telegram_learning_bot.entity.UserAnswerStats;
+import com.lbt.telegram_learning_bot.entity.UserAnswerStatsId;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+@Repository
+public interface UserAnswerStatsRepository extends JpaRepository<UserAnswerStats, UserAnswerStatsId> {
+
+    // Свёрнутые ответы по курсам: id курса, всего ответов, неправильных
+    @Query("SELECT s.courseId, SUM(s.answers), SUM(s.wrongAnswers) FROM UserAnswerStats s WHERE s.userId = :userId GROUP BY s.courseId")
+    List<Object[]> sumAnswersByUser(@Param("userId") Long userId);
+
+    // Свёрнутые правильные ответы учебного режима по списку курсов
+    @Query("SELECT s.courseId, SUM(s.correctAnswers) FROM UserAnswerStats s WHERE s.userId = :userId AND s.mode = 'learning' AND s.courseId IN :courseIds GROUP BY s.courseId")
+    List<Object[]> sumCorrectLearningAnswersByUserAndCourses(@Param("userId") Long userId, @Param("courseIds") List<Long> courseIds);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM UserAnswerStats s WHERE s.courseId = :courseId")
+    void deleteByCourseId(@Param("courseId") Long courseId);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM UserAnswerStats s WHERE s.questionId = :questionId")
+    void deleteByQuestionId(@Param("questionId") Long questionId);
+}
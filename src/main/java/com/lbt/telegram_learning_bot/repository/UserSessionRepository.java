@@ -1,10 +1,11 @@
 package com.lbt.telegram_learning_bot.repository;
 
 import com.lbt.telegram_learning_bot.entity.UserSession;
+import com.lbt.telegram_learning_bot.entity.UserSessionId;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
 @Repository
-public interface UserSessionRepository extends JpaRepository<UserSession, Long> {
-    // Long — это тип userId
+public interface UserSessionRepository extends JpaRepository<UserSession, UserSessionId> {
+    // Ключ — пара (botId, userId)
 }
\ No newline at end of file
@@ -14,6 +14,7 @@ import static com.lbt.telegram_learning_bot.util.Constants.*;
 public interface UserStudyTimeRepository extends JpaRepository<UserStudyTime, Long> {
     Optional<UserStudyTime> findByUserIdAndTopicId(Long userId, Long topicId);
     List<UserStudyTime> findByUserIdAndTopicIdIn(Long userId, List<Long> topicIds);
+    List<UserStudyTime> findByUserId(Long userId);
     @Query("SELECT SUM(ust.totalSeconds) FROM UserStudyTime ust WHERE ust.userId = :userId")
     Long sumTotalSecondsByUserId(@Param("userId") Long userId);
 }
\ No newline at end of file
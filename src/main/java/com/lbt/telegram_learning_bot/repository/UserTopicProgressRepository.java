@@ -0,0 +1,31 @@
+package com.lbt.telegram_learning_bot.repository;
+
+import com.lbt.telegram_learning_bot.entity.UserTopicProgress;
+import com.lbt.telegram_learning_bot.entity.UserTopicProgressId;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface UserTopicProgressRepository extends JpaRepository<UserTopicProgress, UserTopicProgressId> {
+
+    List<UserTopicProgress> findByUserIdAndModeAndTopicIdIn(Long userId, String mode, Collection<Long> topicIds);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM UserTopicProgress p WHERE p.topicId = :topicId")
+    void deleteByTopicId(@Param("topicId") Long topicId);
+
+    @Modifying
+    @Transactional
+    @Query(value = "DELETE FROM user_topic_progress WHERE topic_id IN " +
+            "(SELECT t.id FROM topic t JOIN section s ON s.id = t.section_id WHERE s.course_id = :courseId)",
+            nativeQuery = true)
+    void deleteByCourseId(@Param("courseId") Long courseId);
+}
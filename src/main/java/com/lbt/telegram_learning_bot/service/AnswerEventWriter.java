@@ -0,0 +1,375 @@
+package com.lbt.telegram_learning_bot.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.lbt.telegram_learning_bot.util.Constants.*;
+
+/**
+ * Запись ответов на вопросы. Обработчик ответа кладёт событие в ограниченную очередь и сразу идёт дальше,
+ * а поток «answer-writer» забирает всё накопившееся и пишет пачкой в одной транзакции:
+ * журнал user_progress, сводки user_topic_progress, ошибки user_mistake (upsert/удаление)
+ * и отметку последнего захода в курс. Время изучения ведёт StudyTimeTracker.
+ * При небольшой нагрузке пачка — одно событие, под нагрузкой пачки растут сами (group commit).
+ * <p>
+ * Порядок событий сохраняется: пишет один поток, а пачки и синхронные записи идут под общим замком.
+ * UpdateDispatcher ждёт записи событий пользователя (awaitUser) после обработки апдейта — до отметки
+ * в журнале апдейтов и до отдачи аренды — и ещё раз перед следующим, так что свои ответы пользователь видит сразу.
+ * Переполненная очередь и выключенный async пишут событие синхронно в потоке обработчика;
+ * при остановке очередь дописывается до конца.
+ * <p>
+ * id журнала остаются IDENTITY: строки вставляются JDBC-пачкой без возврата ключей, Hibernate здесь не участвует.
+ */
+@Slf4j
+@Service
+public class AnswerEventWriter {
+
+    // Ответ пользователя на вопрос в режиме mode (learning/test)
+    public record AnswerEvent(Long userId, Long questionId, String mode, boolean correct, Instant at) {
+    }
+
+    private static final String RESOLVE_SQL = """
+            SELECT q.id, b.topic_id, s.course_id FROM question q
+            JOIN block b ON b.id = q.block_id
+            JOIN topic t ON t.id = b.topic_id
+            JOIN section s ON s.id = t.section_id
+            WHERE q.id = ANY(?)
+            """;
+
+    // Последний ответ на вопрос до пачки — сводка темы сдвигается на разницу с ним
+    private static final String PREVIOUS_SQL = """
+            SELECT DISTINCT ON (p.user_id, p.question_id, p.mode) p.user_id, p.question_id, p.mode, p.answer_result
+            FROM unnest(?::bigint[], ?::bigint[], ?::varchar[]) AS k(user_id, question_id, mode)
+            JOIN user_progress p ON p.user_id = k.user_id AND p.question_id = k.question_id AND p.mode = k.mode
+            ORDER BY p.user_id, p.question_id, p.mode, p.completed_at DESC
+            """;
+
+    private static final String INSERT_ANSWER_SQL =
+            "INSERT INTO user_progress (user_id, course_id, question_id, is_passed, mode, answer_result, completed_at) " +
+            "VALUES (?, ?, ?, true, ?, ?, ?)";
+
+    private static final String ROLLUP_SQL = """
+            INSERT INTO user_topic_progress (user_id, topic_id, mode, answered, correct, last_answer_at)
+            VALUES (?, ?, ?, ?, ?, ?)
+            ON CONFLICT (user_id, topic_id, mode) DO UPDATE SET
+                answered = user_topic_progress.answered + EXCLUDED.answered,
+                correct = user_topic_progress.correct + EXCLUDED.correct,
+                last_answer_at = GREATEST(user_topic_progress.last_answer_at, EXCLUDED.last_answer_at)
+            """;
+
+    private static final String UPSERT_MISTAKE_SQL =
+            "INSERT INTO user_mistake (user_id, question_id, last_mistake_at) VALUES (?, ?, ?) " +
+            "ON CONFLICT (user_id, question_id) DO UPDATE SET last_mistake_at = EXCLUDED.last_mistake_at";
+
+    private static final String DELETE_MISTAKE_SQL = "DELETE FROM user_mistake WHERE user_id = ? AND question_id = ?";
+
+    // Строка последнего захода в курс (без блока и вопроса); та же, что выбирает updateCourseLastAccessed
+    private static final String TOUCH_COURSE_SQL = """
+            UPDATE user_progress SET last_accessed_at = ?
+            WHERE id = (SELECT id FROM user_progress
+                        WHERE user_id = ? AND course_id = ? AND block_id IS NULL AND question_id IS NULL
+                        ORDER BY last_accessed_at DESC LIMIT 1)
+            """;
+
+    private static final String INSERT_COURSE_ACCESS_SQL =
+            "INSERT INTO user_progress (user_id, course_id, is_passed, mode, last_accessed_at) VALUES (?, ?, false, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final CourseCatalogService courseCatalog;
+    private final boolean async;
+    private final int batchSize;
+    private final long offerTimeoutMs;
+    private final long awaitTimeoutMs;
+    private final BlockingQueue<AnswerEvent> queue;
+    // Пачки и синхронные записи не перемешиваются
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Незаписанные события каждого пользователя
+    private final Map<Long, Integer> pendingByUser = new ConcurrentHashMap<>();
+    private final Counter written;
+    private final Counter failed;
+    private final Counter synchronous;
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    public AnswerEventWriter(JdbcTemplate jdbcTemplate,
+                             PlatformTransactionManager transactionManager,
+                             CourseCatalogService courseCatalog,
+                             MeterRegistry meterRegistry,
+                             @Value("${answers.writer.async:true}") boolean async,
+                             @Value("${answers.writer.queue-capacity:10000}") int queueCapacity,
+                             @Value("${answers.writer.batch-size:500}") int batchSize,
+                             @Value("${answers.writer.offer-timeout-ms:100}") long offerTimeoutMs,
+                             @Value("${answers.writer.await-timeout-ms:2000}") long awaitTimeoutMs) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.courseCatalog = courseCatalog;
+        this.async = async;
+        this.batchSize = batchSize;
+        this.offerTimeoutMs = offerTimeoutMs;
+        this.awaitTimeoutMs = awaitTimeoutMs;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.written = Counter.builder("answers.writer.written").register(meterRegistry);
+        this.failed = Counter.builder("answers.writer.failed").register(meterRegistry);
+        this.synchronous = Counter.builder("answers.writer.synchronous").register(meterRegistry);
+        Gauge.builder("answers.writer.queued", queue, BlockingQueue::size).register(meterRegistry);
+        this.writerThread = new Thread(this::writeLoop, "answer-writer");
+        this.writerThread.setDaemon(true);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (async) {
+            writerThread.start();
+        }
+    }
+
+    public void submit(AnswerEvent event) {
+        pendingByUser.merge(event.userId(), 1, Integer::sum);
+        try {
+            if (async && running && queue.offer(event, offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronous.increment();
+        write(List.of(event));
+    }
+
+    /**
+     * Ждёт записи уже отправленных событий пользователя (не дольше answers.writer.await-timeout-ms).
+     */
+    public void awaitUser(Long userId) {
+        if (!pendingByUser.containsKey(userId)) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + awaitTimeoutMs;
+        synchronized (pendingByUser) {
+            while (pendingByUser.containsKey(userId)) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    log.warn("Answers of user {} are still not written after {} ms", userId, awaitTimeoutMs);
+                    return;
+                }
+                try {
+                    pendingByUser.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // Поток заканчивает текущую пачку и выходит не позже чем через секунду ожидания очереди
+        running = false;
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Что осталось в очереди (поток не успел или упал) — дописываем здесь
+        List<AnswerEvent> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        if (!rest.isEmpty()) {
+            log.info("Writing {} queued answers on shutdown", rest.size());
+            for (int from = 0; from < rest.size(); from += batchSize) {
+                write(rest.subList(from, Math.min(from + batchSize, rest.size())));
+            }
+        }
+    }
+
+    private void writeLoop() {
+        List<AnswerEvent> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                AnswerEvent first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                write(batch);
+            } catch (InterruptedException e) {
+                // остаток допишет shutdown()
+                return;
+            } catch (RuntimeException e) {
+                log.error("Answer writer failed", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<AnswerEvent> events) {
+        writeLock.lock();
+        try {
+            persistOrRetry(events);
+        } finally {
+            writeLock.unlock();
+            release(events);
+        }
+    }
+
+    private void persistOrRetry(List<AnswerEvent> events) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> persist(events));
+            written.increment(events.size());
+        } catch (RuntimeException e) {
+            if (events.size() == 1) {
+                failed.increment();
+                log.error("Failed to write answer {}", events.get(0), e);
+                return;
+            }
+            // Одно испорченное событие не должно терять всю пачку
+            log.warn("Failed to write {} answers as a batch, retrying one by one", events.size(), e);
+            for (AnswerEvent event : events) {
+                persistOrRetry(List.of(event));
+            }
+        }
+    }
+
+    private void release(List<AnswerEvent> events) {
+        for (AnswerEvent event : events) {
+            pendingByUser.computeIfPresent(event.userId(), (userId, count) -> count > 1 ? count - 1 : null);
+        }
+        synchronized (pendingByUser) {
+            pendingByUser.notifyAll();
+        }
+    }
+
+    private void persist(List<AnswerEvent> events) {
+        Map<Long, long[]> paths = resolve(events);
+        Map<AnswerKey, Boolean> latest = previousAnswers(events, paths);
+
+        List<Object[]> answers = new ArrayList<>();
+        Map<RollupKey, int[]> rollups = new LinkedHashMap<>();
+        Map<RollupKey, Instant> rollupTimes = new HashMap<>();
+        Map<List<Long>, AnswerEvent> mistakes = new LinkedHashMap<>();
+        Map<List<Long>, Instant> courseAccess = new LinkedHashMap<>();
+
+        for (AnswerEvent event : events) {
+            long[] path = paths.get(event.questionId());
+            if (path == null) {
+                // Вопрос удалён, пока событие ждало записи
+                continue;
+            }
+            Timestamp at = Timestamp.from(event.at());
+            answers.add(new Object[]{event.userId(), path[1], event.questionId(), event.mode(), event.correct(), at});
+
+            // События пачки идут по порядку: «предыдущий» ответ может быть из этой же пачки
+            AnswerKey answerKey = new AnswerKey(event.userId(), event.questionId(), event.mode());
+            Boolean previous = latest.get(answerKey);
+            latest.put(answerKey, event.correct());
+            RollupKey rollupKey = new RollupKey(event.userId(), path[0], event.mode());
+            int[] delta = rollups.computeIfAbsent(rollupKey, key -> new int[2]);
+            delta[0] += previous == null ? 1 : 0;
+            delta[1] += (event.correct() ? 1 : 0) - (Boolean.TRUE.equals(previous) ? 1 : 0);
+            rollupTimes.merge(rollupKey, event.at(), (a, b) -> a.isAfter(b) ? a : b);
+
+            // Важен только последний ответ на вопрос: верный снимает ошибку, неверный ставит
+            mistakes.put(List.of(event.userId(), event.questionId()), event);
+            courseAccess.put(List.of(event.userId(), path[1]), event.at());
+        }
+
+        jdbcTemplate.batchUpdate(INSERT_ANSWER_SQL, answers);
+
+        List<Object[]> rollupArgs = new ArrayList<>();
+        rollups.forEach((key, delta) -> rollupArgs.add(new Object[]{key.userId(), key.topicId(), key.mode(),
+                delta[0], delta[1], Timestamp.from(rollupTimes.get(key))}));
+        jdbcTemplate.batchUpdate(ROLLUP_SQL, rollupArgs);
+
+        List<Object[]> upserts = new ArrayList<>();
+        List<Object[]> deletes = new ArrayList<>();
+        for (AnswerEvent event : mistakes.values()) {
+            if (event.correct()) deletes.add(new Object[]{event.userId(), event.questionId()});
+            else upserts.add(new Object[]{event.userId(), event.questionId(), Timestamp.from(event.at())});
+        }
+        jdbcTemplate.batchUpdate(DELETE_MISTAKE_SQL, deletes);
+        jdbcTemplate.batchUpdate(UPSERT_MISTAKE_SQL, upserts);
+
+        touchCourses(courseAccess);
+    }
+
+    // questionId -> {topicId, courseId}: из снимка контента, недостающие — одним запросом
+    private Map<Long, long[]> resolve(List<AnswerEvent> events) {
+        Map<Long, long[]> paths = new HashMap<>();
+        Set<Long> missing = new HashSet<>();
+        CourseCatalog catalog = courseCatalog.current();
+        for (AnswerEvent event : events) {
+            long[] path = catalog != null ? catalog.questionTopicAndCourse(event.questionId()) : null;
+            if (path != null) paths.put(event.questionId(), path);
+            else missing.add(event.questionId());
+        }
+        if (!missing.isEmpty()) {
+            jdbcTemplate.query(RESOLVE_SQL,
+                    ps -> ps.setArray(1, ps.getConnection().createArrayOf("bigint", missing.toArray())),
+                    rs -> {
+                        paths.put(rs.getLong(1), new long[]{rs.getLong(2), rs.getLong(3)});
+                    });
+        }
+        return paths;
+    }
+
+    private Map<AnswerKey, Boolean> previousAnswers(List<AnswerEvent> events, Map<Long, long[]> paths) {
+        Set<AnswerKey> keys = new LinkedHashSet<>();
+        for (AnswerEvent event : events) {
+            if (paths.containsKey(event.questionId())) {
+                keys.add(new AnswerKey(event.userId(), event.questionId(), event.mode()));
+            }
+        }
+        Map<AnswerKey, Boolean> previous = new HashMap<>();
+        if (keys.isEmpty()) return previous;
+        jdbcTemplate.query(PREVIOUS_SQL, ps -> {
+            ps.setArray(1, ps.getConnection().createArrayOf("bigint", keys.stream().map(AnswerKey::userId).toArray()));
+            ps.setArray(2, ps.getConnection().createArrayOf("bigint", keys.stream().map(AnswerKey::questionId).toArray()));
+            ps.setArray(3, ps.getConnection().createArrayOf("varchar", keys.stream().map(AnswerKey::mode).toArray()));
+        }, rs -> {
+            // answer_result = null считается отсутствием ответа, как и раньше
+            boolean result = rs.getBoolean(4);
+            if (!rs.wasNull()) {
+                previous.put(new AnswerKey(rs.getLong(1), rs.getLong(2), rs.getString(3)), result);
+            }
+        });
+        return previous;
+    }
+
+    private void touchCourses(Map<List<Long>, Instant> courseAccess) {
+        List<Object[]> touches = new ArrayList<>();
+        courseAccess.forEach((key, at) -> touches.add(new Object[]{Timestamp.from(at), key.get(0), key.get(1)}));
+        int[] updated = jdbcTemplate.batchUpdate(TOUCH_COURSE_SQL, touches);
+        List<Object[]> inserts = new ArrayList<>();
+        for (int i = 0; i < updated.length; i++) {
+            if (updated[i] == 0) {
+                Object[] touch = touches.get(i);
+                inserts.add(new Object[]{touch[1], touch[2], MODE_LEARNING, touch[0]});
+            }
+        }
+        jdbcTemplate.batchUpdate(INSERT_COURSE_ACCESS_SQL, inserts);
+    }
+
+    private record AnswerKey(Long userId, Long questionId, String mode) {
+    }
+
+    private record RollupKey(Long userId, Long topicId, String mode) {
+    }
+}
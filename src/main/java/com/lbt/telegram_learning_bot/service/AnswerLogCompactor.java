@@ -0,0 +1,104 @@
+package com.lbt.telegram_learning_bot.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Сворачивает историю ответов в user_progress. Ответ старше окна хранения, на который у пользователя есть
+ * более новый ответ в том же режиме, удаляется из журнала и прибавляется к счётчикам user_answer_stats.
+ * Последний ответ на каждый вопрос остаётся в журнале — по нему считаются статусы, сводки тем и
+ * «отвеченные вопросы»; агрегатная статистика складывает журнал и счётчики.
+ * <p>
+ * Журнал проходится пачками по id (keyset), каждая пачка — отдельная короткая транзакция из одного запроса.
+ * Живые ответы только добавляют строки, а компактор удаляет лишь строки, которые уже ничем не меняются,
+ * так что запись ответов он не блокирует.
+ */
+@Slf4j
+@Service
+public class AnswerLogCompactor {
+
+    // Параметры: id после, id до (включительно), размер пачки, граница окна хранения
+    private static final String FOLD_BATCH_SQL = """
+            WITH batch AS (
+                SELECT id FROM user_progress WHERE id > ? AND id <= ? ORDER BY id LIMIT ?
+            ), folded AS (
+                DELETE FROM user_progress up USING batch
+                WHERE up.id = batch.id
+                  AND up.question_id IS NOT NULL
+                  AND up.completed_at < ?
+                  AND EXISTS (SELECT 1 FROM user_progress n
+                              WHERE n.user_id = up.user_id AND n.question_id = up.question_id
+                                AND n.mode = up.mode AND n.completed_at > up.completed_at)
+                RETURNING up.user_id, up.question_id, up.mode, up.course_id, up.answer_result
+            ), merged AS (
+                INSERT INTO user_answer_stats (user_id, question_id, mode, course_id, answers, correct_answers, wrong_answers)
+                SELECT user_id, question_id, mode, MAX(course_id), COUNT(*),
+                       COUNT(*) FILTER (WHERE answer_result), COUNT(*) FILTER (WHERE NOT answer_result)
+                FROM folded GROUP BY user_id, question_id, mode
+                ON CONFLICT (user_id, question_id, mode) DO UPDATE SET
+                    answers = user_answer_stats.answers + EXCLUDED.answers,
+                    correct_answers = user_answer_stats.correct_answers + EXCLUDED.correct_answers,
+                    wrong_answers = user_answer_stats.wrong_answers + EXCLUDED.wrong_answers
+            )
+            SELECT (SELECT MAX(id) FROM batch) AS last_id, (SELECT COUNT(*) FROM folded) AS folded
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Counter foldedCounter;
+    private final Duration retention;
+    private final int batchSize;
+    private final long pauseMs;
+
+    public AnswerLogCompactor(JdbcTemplate jdbcTemplate,
+                              MeterRegistry meterRegistry,
+                              @Value("${progress.compaction.retention-days:30}") int retentionDays,
+                              @Value("${progress.compaction.batch-size:5000}") int batchSize,
+                              @Value("${progress.compaction.pause-ms:50}") long pauseMs) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.foldedCounter = Counter.builder("progress.compaction.folded").register(meterRegistry);
+        this.retention = Duration.ofDays(retentionDays);
+        this.batchSize = batchSize;
+        this.pauseMs = pauseMs;
+    }
+
+    @Scheduled(fixedDelayString = "${progress.compaction.interval-ms:3600000}")
+    public void compact() {
+        try {
+            long started = System.currentTimeMillis();
+            Timestamp cutoff = Timestamp.from(Instant.now().minus(retention));
+            // Строки, добавленные после начала прогона, заведомо моложе окна хранения
+            Long maxId = jdbcTemplate.queryForObject("SELECT MAX(id) FROM user_progress", Long.class);
+            if (maxId == null) return;
+
+            long lastId = 0;
+            long folded = 0;
+            while (lastId < maxId) {
+                long[] result = jdbcTemplate.queryForObject(FOLD_BATCH_SQL,
+                        (rs, i) -> new long[]{rs.getLong("last_id"), rs.getLong("folded")},
+                        lastId, maxId, batchSize, cutoff);
+                if (result == null || result[0] == 0) break; // пачка пуста: до maxId строк не осталось
+                lastId = result[0];
+                folded += result[1];
+                foldedCounter.increment(result[1]);
+                if (pauseMs > 0) Thread.sleep(pauseMs);
+            }
+            if (folded > 0) {
+                log.info("Answer log compacted in {} ms: {} rows folded into user_answer_stats",
+                        System.currentTimeMillis() - started, folded);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.error("Answer log compaction failed", e);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package com.lbt.telegram_learning_bot.service;
+
+import com.lbt.telegram_learning_bot.bot.PendingImage;
+import com.lbt.telegram_learning_bot.bot.UserContext;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Компактный двоичный формат UserContext.
+ * <pre>
+ * [версия: 1 байт][битовая маска присутствия: varint][значения присутствующих полей по порядку]
+ * </pre>
+ * Числа — zigzag varint, строки — длина + UTF-8, списки id — количество, первое значение и дельты.
+ * Отсутствующее поле (бит не выставлен) читается как null / 0 / false / пустой список.
+ * <p>
+ * Правила эволюции схемы:
+ * <ul>
+ *     <li>новые поля добавляются только в конец FIELDS — старые записи их просто не содержат;</li>
+ *     <li>поля не переставляются и не удаляются: ненужное поле перестаёт записываться, его слот остаётся;</li>
+ *     <li>смена типа поля — новый слот в конце, а не изменение старого;</li>
+ *     <li>данные после последнего известного поля игнорируются, поэтому старый код читает записи нового;</li>
+ *     <li>VERSION меняется только при несовместимой смене раскладки (например, когда полей станет больше 64).</li>
+ * </ul>
+ */
+@Component
+public class BinaryUserContextCodec implements UserContextCodec {
+
+    public static final String NAME = "binary";
+
+    private static final byte VERSION = 1;
+
+    private static final List<Field> FIELDS = List.of(
+            longField(UserContext::getCurrentCourseId, UserContext::setCurrentCourseId),
+            longField(UserContext::getCurrentSectionId, UserContext::setCurrentSectionId),
+            longField(UserContext::getCurrentTopicId, UserContext::setCurrentTopicId),
+            longField(UserContext::getCurrentBlockId, UserContext::setCurrentBlockId),
+            integerField(UserContext::getCurrentPage, UserContext::setCurrentPage),
+            stringField(UserContext::getPreviousMenuState, UserContext::setPreviousMenuState),
+            stringField(UserContext::getSearchQuery, UserContext::setSearchQuery),
+            booleanField(UserContext::isTestMode, UserContext::setTestMode),
+            longListField(UserContext::getTestQuestionIds, UserContext::setTestQuestionIds),
+            intField(UserContext::getCurrentTestQuestionIndex, UserContext::setCurrentTestQuestionIndex),
+            longField(UserContext::getEditingCourseId, UserContext::setEditingCourseId),
+            longField(UserContext::getEditingSectionId, UserContext::setEditingSectionId),
+            longField(UserContext::getEditingTopicId, UserContext::setEditingTopicId),
+            pendingImagesField(),
+            stringField(UserContext::getTestType, UserContext::setTestType),
+            stringListField(UserContext::getPendingImageDescriptions, UserContext::setPendingImageDescriptions),
+            intField(UserContext::getCurrentImageIndex, UserContext::setCurrentImageIndex),
+            longField(UserContext::getTargetEntityId, UserContext::setTargetEntityId),
+            stringField(UserContext::getTargetEntityType, UserContext::setTargetEntityType),
+            longListField(UserContext::getCurrentTopicBlockIds, UserContext::setCurrentTopicBlockIds),
+            intField(UserContext::getCurrentBlockIndex, UserContext::setCurrentBlockIndex),
+            intField(UserContext::getCurrentBlockQuestionIndex, UserContext::setCurrentBlockQuestionIndex),
+            intField(UserContext::getCorrectAnswers, UserContext::setCorrectAnswers),
+            intField(UserContext::getWrongAnswers, UserContext::setWrongAnswers),
+            longListField(UserContext::getCurrentBlockQuestionIds, UserContext::setCurrentBlockQuestionIds),
+            stringField(UserContext::getCoursesListSource, UserContext::setCoursesListSource),
+            integerField(UserContext::getLastInteractiveMessageId, UserContext::setLastInteractiveMessageId),
+            stringField(UserContext::getUserName, UserContext::setUserName),
+            integerListField(UserContext::getLastMediaMessageIds, UserContext::setLastMediaMessageIds),
+            integerField(UserContext::getPreviousSectionPage, UserContext::setPreviousSectionPage),
+            integerField(UserContext::getPreviousTopicPage, UserContext::setPreviousTopicPage),
+            integerField(UserContext::getAdminSectionsPage, UserContext::setAdminSectionsPage),
+            integerField(UserContext::getAdminTopicsPage, UserContext::setAdminTopicsPage),
+            integerField(UserContext::getPreviousCoursesPage, UserContext::setPreviousCoursesPage)
+            // новые поля — только сюда, в конец
+    );
+
+    static {
+        if (FIELDS.size() > Long.SIZE) {
+            throw new IllegalStateException("Presence bitmap holds at most 64 fields, bump VERSION");
+        }
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(UserContext context) {
+        long presence = 0;
+        for (int i = 0; i < FIELDS.size(); i++) {
+            if (FIELDS.get(i).isPresent(context)) {
+                presence |= 1L << i;
+            }
+        }
+        Output out = new Output();
+        out.write(VERSION);
+        out.writeVarLong(presence);
+        for (int i = 0; i < FIELDS.size(); i++) {
+            if ((presence & (1L << i)) != 0) {
+                FIELDS.get(i).write(context, out);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public UserContext decode(byte[] data) {
+        Input in = new Input(data);
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported user context version: " + version);
+        }
+        long presence = in.readVarLong();
+        UserContext context = new UserContext();
+        for (int i = 0; i < FIELDS.size(); i++) {
+            Field field = FIELDS.get(i);
+            if ((presence & (1L << i)) != 0) {
+                field.read(context, in);
+            } else {
+                field.clear(context);
+            }
+        }
+        // Биты полей, о которых этот код не знает, и их данные игнорируются
+        return context;
+    }
+
+    // ================== Описание полей ==================
+
+    private interface Field {
+        boolean isPresent(UserContext context);
+
+        void write(UserContext context, Output out);
+
+        void read(UserContext context, Input in);
+
+        void clear(UserContext context);
+    }
+
+    private static Field longField(Function<UserContext, Long> getter, BiConsumer<UserContext, Long> setter) {
+        return new Field() {
+            public boolean isPresent(UserContext c) { return getter.apply(c) != null; }
+            public void write(UserContext c, Output out) { out.writeZigZag(getter.apply(c)); }
+            public void read(UserContext c, Input in) { setter.accept(c, in.readZigZag()); }
+            public void clear(UserContext c) { setter.accept(c, null); }
+        };
+    }
+
+    private static Field integerField(Function<UserContext, Integer> getter, BiConsumer<UserContext, Integer> setter) {
+        return new Field() {
+            public boolean isPresent(UserContext c) { return getter.apply(c) != null; }
+            public void write(UserContext c, Output out) { out.writeZigZag(getter.apply(c)); }
+            public void read(UserContext c, Input in) { setter.accept(c, (int) in.readZigZag()); }
+            public void clear(UserContext c) { setter.accept(c, null); }
+        };
+    }
+
+    private static Field intField(ToIntFunction<UserContext> getter, ObjIntConsumer<UserContext> setter) {
+        return new Field() {
+            public boolean isPresent(UserContext c) { return getter.applyAsInt(c) != 0; }
+            public void write(UserContext c, Output out) { out.writeZigZag(getter.applyAsInt(c)); }
+            public void read(UserContext c, Input in) { setter.accept(c, (int) in.readZigZag()); }
+            public void clear(UserContext c) { setter.accept(c, 0); }
+        };
+    }
+
+    // Значение true кодируется самим битом присутствия
+    private static Field booleanField(Function<UserContext, Boolean> getter, BiConsumer<UserContext, Boolean> setter) {
+        return new Field() {
+            public boolean isPresent(UserContext c) { return getter.apply(c); }
+            public void write(UserContext c, Output out) { }
+            public void read(UserContext c, Input in) { setter.accept(c, true); }
+            public void clear(UserContext c) { setter.accept(c, false); }
+        };
+    }
+
+    private static Field stringField(Function<UserContext, String> getter, BiConsumer<UserContext, String> setter) {
+        return new Field() {
+            public boolean isPresent(UserContext c) { return getter.apply(c) != null; }
+            public void write(UserContext c, Output out) { out.writeString(getter.apply(c)); }
+            public void read(UserContext c, Input in) { setter.accept(c, in.readString()); }
+            public void clear(UserContext c) { setter.accept(c, null); }
+        };
+    }
+
+    private static Field longListField(Function<UserContext, List<Long>> getter, BiConsumer<UserContext, List<Long>> setter) {
+        return new Field() {
+            public boolean isPresent(UserContext c) { return getter.apply(c) != null && !getter.apply(c).isEmpty(); }
+
+            public void write(UserContext c, Output out) {
+                List<Long> values = getter.apply(c);
+                out.writeVarLong(values.size());
+                long previous = 0;
+                for (Long value : values) {
+                    out.writeZigZag(value - previous);
+                    previous = value;
+                }
+            }
+
+            public void read(UserContext c, Input in) {
+                int size = in.readSize();
+                List<Long> values = new ArrayList<>(size);
+                long previous = 0;
+                for (int i = 0; i < size; i++) {
+                    previous += in.readZigZag();
+                    values.add(previous);
+                }
+                setter.accept(c, values);
+            }
+
+            public void clear(UserContext c) { setter.accept(c, new ArrayList<>()); }
+        };
+    }
+
+    private static Field integerListField(Function<UserContext, List<Integer>> getter, BiConsumer<UserContext, List<Integer>> setter) {
+        return new Field() {
+            public boolean isPresent(UserContext c) { return getter.apply(c) != null && !getter.apply(c).isEmpty(); }
+
+            public void write(UserContext c, Output out) {
+                List<Integer> values = getter.apply(c);
+                out.writeVarLong(values.size());
+                long previous = 0;
+                for (Integer value : values) {
+                    out.writeZigZag(value - previous);
+                    previous = value;
+                }
+            }
+
+            public void read(UserContext c, Input in) {
+                int size = in.readSize();
+                List<Integer> values = new ArrayList<>(size);
+                long previous = 0;
+                for (int i = 0; i < size; i++) {
+                    previous += in.readZigZag();
+                    values.add((int) previous);
+                }
+                setter.accept(c, values);
+            }
+
+            public void clear(UserContext c) { setter.accept(c, new ArrayList<>()); }
+        };
+    }
+
+    private static Field stringListField(Function<UserContext, List<String>> getter, BiConsumer<UserContext, List<String>> setter) {
+        return new Field() {
+            public boolean isPresent(UserContext c) { return getter.apply(c) != null && !getter.apply(c).isEmpty(); }
+
+            public void write(UserContext c, Output out) {
+                List<String> values = getter.apply(c);
+                out.writeVarLong(values.size());
+                values.forEach(out::writeNullableString);
+            }
+
+            public void read(UserContext c, Input in) {
+                int size = in.readSize();
+                List<String> values = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    values.add(in.readNullableString());
+                }
+                setter.accept(c, values);
+            }
+
+            public void clear(UserContext c) { setter.accept(c, new ArrayList<>()); }
+        };
+    }
+
+    private static Field pendingImagesField() {
+        return new Field() {
+            public boolean isPresent(UserContext c) { return c.getPendingImages() != null && !c.getPendingImages().isEmpty(); }
+
+            public void write(UserContext c, Output out) {
+                out.writeVarLong(c.getPendingImages().size());
+                for (PendingImage image : c.getPendingImages()) {
+                    out.writeNullableString(image.getEntityType());
+                    // id со сдвигом на 1: 0 означает null
+                    out.writeZigZag(image.getEntityId() != null ? image.getEntityId() + 1 : 0);
+                    out.writeNullableString(image.getDescription());
+                }
+            }
+
+            public void read(UserContext c, Input in) {
+                int size = in.readSize();
+                List<PendingImage> images = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    String entityType = in.readNullableString();
+                    long entityId = in.readZigZag();
+                    String description = in.readNullableString();
+                    images.add(new PendingImage(entityType, entityId != 0 ? entityId - 1 : null, description));
+                }
+                c.setPendingImages(images);
+            }
+
+            public void clear(UserContext c) { c.setPendingImages(new ArrayList<>()); }
+        };
+    }
+
+    // ================== Низкоуровневая запись и чтение ==================
+
+    private static final class Output extends ByteArrayOutputStream {
+
+        private Output() {
+            super(64);
+        }
+
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        private void writeZigZag(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        private void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        // Длина со сдвигом на 1: 0 означает null
+        private void writeNullableString(String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length + 1L);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static final class Input {
+        private final byte[] data;
+        private int position;
+
+        private Input(byte[] data) {
+            this.data = data;
+        }
+
+        private int readByte() {
+            if (position >= data.length) {
+                throw new IllegalArgumentException("Truncated user context");
+            }
+            return data[position++];
+        }
+
+        private long readVarLong() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint in user context");
+        }
+
+        private long readZigZag() {
+            long raw = readVarLong();
+            return (raw >>> 1) ^ -(raw & 1);
+        }
+
+        private int readSize() {
+            long size = readVarLong();
+            if (size < 0 || size > data.length - position) {
+                throw new IllegalArgumentException("Malformed list size in user context: " + size);
+            }
+            return (int) size;
+        }
+
+        private String readString() {
+            int length = readSize();
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        private String readNullableString() {
+            long length = readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            if (length - 1 > data.length - position) {
+                throw new IllegalArgumentException("Malformed string length in user context: " + length);
+            }
+            String value = new String(data, position, (int) (length - 1), StandardCharsets.UTF_8);
+            position += (int) (length - 1);
+            return value;
+        }
+    }
+}
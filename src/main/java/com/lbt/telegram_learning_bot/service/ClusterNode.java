@@ -0,0 +1,37 @@
+package com.lbt.telegram_learning_bot.service;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.util.UUID;
+
+/**
+ * Узел в режиме нескольких экземпляров (cluster.enabled): флаг режима и идентификатор узла
+ * для аренд пользователей и событий об изменении контента.
+ */
+@Getter
+@Component
+public class ClusterNode {
+
+    private final boolean enabled;
+    private final String id;
+
+    public ClusterNode(@Value("${cluster.enabled:false}") boolean enabled,
+                       @Value("${cluster.node-id:}") String nodeId) {
+        this.enabled = enabled;
+        this.id = nodeId.isBlank() ? defaultNodeId() : nodeId;
+    }
+
+    // Имя хоста и случайный суффикс: перезапущенный узел получает новый id
+    private static String defaultNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            host = "node";
+        }
+        return host + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+}
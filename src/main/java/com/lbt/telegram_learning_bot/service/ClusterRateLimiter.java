@@ -0,0 +1,210 @@
+package com.lbt.telegram_learning_bot.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Общий для нескольких узлов лимит запросов (rate.limit.cluster.enabled=true).
+ * Корзина пользователя лежит в rate_limit_bucket; узел арендует из неё порции токенов (chunk)
+ * и тратит их локально, так что обычный запрос в БД не ходит. Когда аренда заканчивается, пользователь
+ * ставится в очередь, и фоновая синхронизация одним запросом продлевает аренды всех пользователей из очереди.
+ * <p>
+ * Пока продление в пути, узел может отпустить пользователю до credit токенов в долг — долг списывается
+ * с ближайшей аренды. Поэтому превышение лимита по кластеру не больше credit × число узлов.
+ * Запрос дороже порции (PDF, импорт) запоминается в аренде, и следующее продление запрашивает не chunk,
+ * а его стоимость: иначе chunk + credit могли бы так и не покрыть её. Стоимость не больше ёмкости корзины
+ * (проверяется при запуске в RateLimiterService), поэтому такая аренда всегда достижима.
+ * <p>
+ * Неизрасходованные аренды простаивающих пользователей возвращаются в общую корзину.
+ * Если БД недоступна, RateLimiterService временно переходит на локальный лимит.
+ */
+@Slf4j
+@Service
+public class ClusterRateLimiter {
+
+    private static final long MICRO = 1_000_000L;
+
+    private static final String CREATE_SQL =
+            "INSERT INTO rate_limit_bucket (user_id, tokens, refilled_at) " +
+            "SELECT u, ?, now() FROM unnest(?::bigint[]) AS u " +
+            "ON CONFLICT (user_id) DO NOTHING";
+
+    // Пополнение, возврат и выдача аренды для всей пачки за один запрос; строки блокируются по порядку id
+    private static final String LEASE_SQL =
+            "WITH req AS (SELECT * FROM unnest(?::bigint[], ?::bigint[], ?::bigint[]) AS r(user_id, returned, wanted)), " +
+            "cur AS (SELECT b.user_id, r.wanted, " +
+            "LEAST(?, b.tokens + r.returned + (EXTRACT(EPOCH FROM (now() - b.refilled_at)) * ?)::bigint) AS available " +
+            "FROM rate_limit_bucket b JOIN req r ON r.user_id = b.user_id ORDER BY b.user_id FOR UPDATE OF b) " +
+            "UPDATE rate_limit_bucket b SET tokens = cur.available - LEAST(cur.wanted, GREATEST(cur.available, 0)), " +
+            "refilled_at = now() FROM cur WHERE b.user_id = cur.user_id " +
+            "RETURNING b.user_id, LEAST(cur.wanted, GREATEST(cur.available, 0)) AS granted";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final boolean enabled;
+    private final long capacity;
+    private final long microPerSecond;
+    private final long chunk;
+    private final long credit;
+    private final long idleMs;
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+    private final Queue<Long> refillQueue = new ConcurrentLinkedQueue<>();
+    private final Counter syncs;
+    private final Counter syncFailures;
+    private volatile boolean degraded;
+
+    public ClusterRateLimiter(JdbcTemplate jdbcTemplate,
+                              MeterRegistry meterRegistry,
+                              @Value("${rate.limit.cluster.enabled:false}") boolean enabled,
+                              @Value("${rate.limit.max-requests-per-minute:30}") int maxRequestsPerMinute,
+                              @Value("${rate.limit.burst:${rate.limit.max-requests-per-minute:30}}") int burst,
+                              @Value("${rate.limit.cluster.chunk:5}") int chunk,
+                              @Value("${rate.limit.cluster.credit:2}") int credit,
+                              @Value("${rate.limit.cluster.idle-seconds:120}") int idleSeconds) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.enabled = enabled;
+        this.capacity = burst * MICRO;
+        this.microPerSecond = maxRequestsPerMinute * MICRO / 60;
+        this.chunk = Math.min(chunk, burst) * MICRO;
+        this.credit = credit * MICRO;
+        this.idleMs = idleSeconds * 1000L;
+        this.syncs = Counter.builder("rate.limit.cluster.syncs").register(meterRegistry);
+        this.syncFailures = Counter.builder("rate.limit.cluster.sync.failures").register(meterRegistry);
+    }
+
+    // false — режим выключен или БД недоступна: решает локальный лимит
+    public boolean isActive() {
+        return enabled && !degraded;
+    }
+
+    public boolean tryAcquire(long userId, long cost) {
+        Lease lease = leases.computeIfAbsent(userId, id -> new Lease());
+        lease.lastUsed = System.currentTimeMillis();
+        while (true) {
+            long balance = lease.balance.get();
+            long left = balance - cost;
+            if (left < -credit) {
+                // Следующее продление должно покрыть и этот запрос
+                lease.pendingCost.accumulateAndGet(cost, Math::max);
+                requestRefill(userId, lease);
+                return false;
+            }
+            if (lease.balance.compareAndSet(balance, left)) {
+                if (left < chunk / 2) {
+                    requestRefill(userId, lease);
+                }
+                return true;
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${rate.limit.cluster.sync-interval-ms:200}")
+    public void sync() {
+        if (!enabled) {
+            return;
+        }
+        // user_id -> {returned, wanted}; один пользователь — одна строка в пачке
+        Map<Long, long[]> batch = new LinkedHashMap<>();
+        List<Lease> refilled = new ArrayList<>();
+        Long userId;
+        while ((userId = refillQueue.poll()) != null) {
+            Lease lease = leases.get(userId);
+            if (lease == null) {
+                continue;
+            }
+            refilled.add(lease);
+            // Порция или ожидающий дорогой запрос, но не больше ёмкости корзины
+            // (повторная неудачная попытка запомнит запрос снова)
+            long target = Math.min(capacity, Math.max(chunk, lease.pendingCost.getAndSet(0)));
+            long wanted = target - lease.balance.get();
+            if (wanted > 0) {
+                batch.put(userId, new long[]{0, wanted});
+            }
+        }
+        long idleBefore = System.currentTimeMillis() - idleMs;
+        leases.forEach((id, lease) -> {
+            if (lease.lastUsed < idleBefore && leases.remove(id, lease)) {
+                // Остаток (или долг) аренды возвращается в общую корзину
+                batch.put(id, new long[]{lease.balance.getAndSet(0), 0});
+            }
+        });
+        try {
+            if (!batch.isEmpty()) {
+                lease(batch);
+                syncs.increment();
+            }
+            if (degraded) {
+                log.info("Cluster rate limiter is back in sync");
+                degraded = false;
+            }
+        } catch (RuntimeException e) {
+            syncFailures.increment();
+            if (!degraded) {
+                log.warn("Cluster rate limiter sync failed, falling back to local limits", e);
+                degraded = true;
+            }
+        } finally {
+            refilled.forEach(lease -> lease.refillQueued.set(false));
+        }
+    }
+
+    private void lease(Map<Long, long[]> batch) {
+        Long[] ids = batch.keySet().toArray(Long[]::new);
+        Long[] returned = new Long[ids.length];
+        Long[] wanted = new Long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            returned[i] = batch.get(ids[i])[0];
+            wanted[i] = batch.get(ids[i])[1];
+        }
+        jdbcTemplate.update(con -> {
+            PreparedStatement ps = con.prepareStatement(CREATE_SQL);
+            ps.setLong(1, capacity);
+            ps.setArray(2, con.createArrayOf("bigint", ids));
+            return ps;
+        });
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(LEASE_SQL);
+            ps.setArray(1, con.createArrayOf("bigint", ids));
+            ps.setArray(2, con.createArrayOf("bigint", returned));
+            ps.setArray(3, con.createArrayOf("bigint", wanted));
+            ps.setLong(4, capacity);
+            ps.setLong(5, microPerSecond);
+            return ps;
+        }, rs -> {
+            Lease lease = leases.get(rs.getLong("user_id"));
+            if (lease != null) {
+                lease.balance.addAndGet(rs.getLong("granted"));
+            }
+        });
+    }
+
+    private void requestRefill(long userId, Lease lease) {
+        if (lease.refillQueued.compareAndSet(false, true)) {
+            refillQueue.add(userId);
+        }
+    }
+
+    // Арендованный узлом остаток пользователя в микротокенах; отрицательный — долг
+    private static final class Lease {
+        private final AtomicLong balance = new AtomicLong();
+        private final AtomicBoolean refillQueued = new AtomicBoolean();
+        // Стоимость самого дорогого отклонённого запроса, ждущего продления; 0 — нет
+        private final AtomicLong pendingCost = new AtomicLong();
+        private volatile long lastUsed;
+    }
+}
@@ -0,0 +1,10 @@
+package com.lbt.telegram_learning_bot.service;
+
+/**
+ * Кэш учебного контента, который нужно сбрасывать при изменениях (на этом и на других узлах).
+ * Вызывается после коммита изменения; при Scope.ALL сбрасывается всё.
+ */
+public interface ContentCacheListener {
+
+    void onContentChanged(ContentChangeEvent event);
+}
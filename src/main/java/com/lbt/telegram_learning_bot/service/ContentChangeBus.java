@@ -0,0 +1,230 @@
+package com.lbt.telegram_learning_bot.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Шина событий об изменении контента (курсы, разделы, темы, блоки, изображения).
+ * Пишущий код вызывает publish(); после коммита событие получают все ContentCacheListener этого узла,
+ * а в режиме нескольких узлов — и остальные узлы через NOTIFY в канал content_changes.
+ * <p>
+ * NOTIFY отправляется в той же транзакции, что и изменение, поэтому доходит только после коммита.
+ * Каждое событие несёт id узла и его порядковый номер. Пропуск номера (потерянное или откатившееся
+ * событие) и переподключение слушателя приводят к полному сбросу кэшей — лишний сброс дешевле
+ * устаревшего контента.
+ */
+@Slf4j
+@Service
+public class ContentChangeBus {
+
+    private static final String CHANNEL = "content_changes";
+    private static final int POLL_TIMEOUT_MS = 5_000;
+    private static final long MAX_BACKOFF_MS = 30_000;
+
+    private final ObjectProvider<ContentCacheListener> listeners;
+    private final JdbcTemplate jdbcTemplate;
+    private final ClusterNode clusterNode;
+    private final String url;
+    private final String username;
+    private final String password;
+    private final AtomicLong sequence = new AtomicLong();
+    // Последний полученный номер события каждого узла; читается и пишется только потоком слушателя
+    private final Map<String, Long> lastSequences = new HashMap<>();
+    private final Counter published;
+    private final Counter received;
+    private final Counter fullFlushes;
+    private volatile boolean running;
+    private volatile Connection listenConnection;
+    private Thread listenerThread;
+
+    public ContentChangeBus(ObjectProvider<ContentCacheListener> listeners,
+                            JdbcTemplate jdbcTemplate,
+                            ClusterNode clusterNode,
+                            MeterRegistry meterRegistry,
+                            @Value("${spring.datasource.url}") String url,
+                            @Value("${spring.datasource.username}") String username,
+                            @Value("${spring.datasource.password}") String password) {
+        this.listeners = listeners;
+        this.jdbcTemplate = jdbcTemplate;
+        this.clusterNode = clusterNode;
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.published = Counter.builder("content.changes.published").register(meterRegistry);
+        this.received = Counter.builder("content.changes.received").register(meterRegistry);
+        this.fullFlushes = Counter.builder("content.changes.full-flushes").register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!clusterNode.isEnabled()) {
+            return;
+        }
+        running = true;
+        listenerThread = new Thread(this::listenLoop, "content-change-listener");
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (listenerThread != null) {
+            listenerThread.interrupt();
+            closeQuietly(listenConnection);
+        }
+    }
+
+    /**
+     * Сообщает об изменении контента курса (courseId == null — курс неизвестен).
+     * Внутри транзакции слушатели вызываются после коммита, при откате событие пропадает.
+     */
+    public void publish(ContentChangeEvent.Scope scope, Long courseId) {
+        ContentChangeEvent event = new ContentChangeEvent(scope, courseId);
+        if (clusterNode.isEnabled()) {
+            notifyNodes(event);
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    deliver(event);
+                }
+            });
+        } else {
+            deliver(event);
+        }
+    }
+
+    private void notifyNodes(ContentChangeEvent event) {
+        // Номер берётся до отправки: если NOTIFY не уйдёт, другие узлы увидят пропуск и сбросят всё
+        long seq = sequence.incrementAndGet();
+        String payload = clusterNode.getId() + ":" + seq + ":" + event.scope() + ":"
+                + (event.courseId() != null ? event.courseId() : "");
+        try {
+            jdbcTemplate.query("SELECT pg_notify(?, ?)", rs -> null, CHANNEL, payload);
+            published.increment();
+        } catch (RuntimeException e) {
+            log.error("Failed to publish content change {}", payload, e);
+        }
+    }
+
+    private void deliver(ContentChangeEvent event) {
+        listeners.orderedStream().forEach(listener -> {
+            try {
+                listener.onContentChanged(event);
+            } catch (RuntimeException e) {
+                log.error("Content cache listener {} failed on {}", listener.getClass().getSimpleName(), event, e);
+            }
+        });
+    }
+
+    private void fullFlush(String reason) {
+        log.info("Flushing content caches: {}", reason);
+        fullFlushes.increment();
+        deliver(ContentChangeEvent.all());
+    }
+
+    private void listenLoop() {
+        long backoff = 1_000;
+        boolean connectedBefore = false;
+        while (running) {
+            try (Connection connection = DriverManager.getConnection(url, username, password)) {
+                listenConnection = connection;
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + CHANNEL);
+                }
+                if (connectedBefore) {
+                    // Пока соединения не было, события могли пройти мимо
+                    fullFlush("listener reconnected");
+                }
+                connectedBefore = true;
+                backoff = 1_000;
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                while (running) {
+                    PGNotification[] notifications = pgConnection.getNotifications(POLL_TIMEOUT_MS);
+                    if (notifications != null && notifications.length > 0) {
+                        for (PGNotification notification : notifications) {
+                            onNotification(notification.getParameter());
+                        }
+                    } else {
+                        // Тишина: проверяем, что соединение живо, иначе обрыв заметим только по таймауту TCP
+                        try (Statement statement = connection.createStatement()) {
+                            statement.execute("SELECT 1");
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                if (!running) {
+                    return;
+                }
+                log.warn("Content change listener disconnected, retrying in {} ms", backoff, e);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            } finally {
+                listenConnection = null;
+            }
+        }
+    }
+
+    private void onNotification(String payload) {
+        String[] parts = payload.split(":", 4);
+        if (parts.length < 4) {
+            log.warn("Malformed content change notification: {}", payload);
+            return;
+        }
+        String nodeId = parts[0];
+        if (nodeId.equals(clusterNode.getId())) {
+            // Своё событие уже доставлено после коммита
+            return;
+        }
+        received.increment();
+        try {
+            long seq = Long.parseLong(parts[1]);
+            Long previous = lastSequences.put(nodeId, seq);
+            if (previous != null && seq != previous + 1) {
+                fullFlush("sequence gap from node " + nodeId + ": " + previous + " -> " + seq);
+                return;
+            }
+            ContentChangeEvent.Scope scope = ContentChangeEvent.Scope.valueOf(parts[2]);
+            Long courseId = parts[3].isEmpty() ? null : Long.parseLong(parts[3]);
+            deliver(new ContentChangeEvent(scope, courseId));
+        } catch (IllegalArgumentException e) {
+            fullFlush("unreadable notification " + payload);
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+            // соединение уже закрыто
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.lbt.telegram_learning_bot.service;
+
+/**
+ * Изменение учебного контента. courseId == null — курс неизвестен (затронут любой курс).
+ */
+public record ContentChangeEvent(Scope scope, Long courseId) {
+
+    public enum Scope {
+        // Курс создан, переименован или удалён: меняются списки курсов
+        COURSE,
+        // Разделы и темы курса
+        STRUCTURE,
+        // Блоки, вопросы и варианты ответов
+        CONTENT,
+        // Изображения блоков и вопросов
+        IMAGES,
+        // События могли потеряться: сбросить всё
+        ALL
+    }
+
+    public static ContentChangeEvent all() {
+        return new ContentChangeEvent(Scope.ALL, null);
+    }
+}
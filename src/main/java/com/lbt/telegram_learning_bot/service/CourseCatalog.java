@@ -0,0 +1,441 @@
+package com.lbt.telegram_learning_bot.service;
+
+import com.lbt.telegram_learning_bot.entity.*;
+
+import java.util.*;
+
+/**
+ * Неизменяемый снимок всего контента: курсы → разделы → темы → блоки → вопросы → варианты ответов,
+ * плюс изображения блоков и вопросов. Каждый уровень хранится по столбцам в плоских массивах.
+ * Строки уровня отсортированы по (родитель, order_index, id), поэтому дети любого узла лежат подряд
+ * и находятся по offsets без поиска; id → строка — двоичный поиск по отсортированным id.
+ * <p>
+ * Наружу отдаются отсоединённые сущности, собранные из массивов на каждый вызов: вызывающий код
+ * может их менять, снимок от этого не меняется.
+ */
+public final class CourseCatalog {
+
+    // Номера текстовых столбцов уровней
+    static final int TITLE = 0;
+    static final int DESCRIPTION = 1;
+    static final int TEXT = 0;
+    static final int EXPLANATION = 1;
+    static final int FILE_PATH = 0;
+    static final int IMAGE_DESCRIPTION = 1;
+
+    // Оценка памяти: id, родитель, порядок, индекс по id и смещение детей на строку
+    private static final long ROW_BYTES = 32;
+    // Ссылка на строку в столбце плюс заголовки String и его массива
+    private static final long STRING_BYTES = 48;
+
+    private final Level courses;
+    private final Level sections;
+    private final Level topics;
+    private final Level blocks;
+    private final Level blockImages;
+    private final Level questions;
+    private final Level options;
+    private final Level questionImages;
+    // Число вопросов по строкам курсов, разделов и тем — считается по самому снимку
+    private final int[] courseQuestions;
+    private final int[] sectionQuestions;
+    private final int[] topicQuestions;
+    private final Map<Long, Long> courseBytes;
+    private final long totalBytes;
+
+    CourseCatalog(List<Row> courseRows, List<Row> sectionRows, List<Row> topicRows, List<Row> blockRows,
+                  List<Row> blockImageRows, List<Row> questionRows, List<Row> optionRows,
+                  List<Row> questionImageRows) {
+        courses = new Level(courseRows, null, 2);
+        sections = new Level(sectionRows, courses, 2);
+        topics = new Level(topicRows, sections, 2);
+        blocks = new Level(blockRows, topics, 1);
+        blockImages = new Level(blockImageRows, blocks, 3);
+        questions = new Level(questionRows, blocks, 2);
+        options = new Level(optionRows, questions, 1);
+        questionImages = new Level(questionImageRows, questions, 3);
+
+        courseQuestions = new int[courses.size()];
+        sectionQuestions = new int[sections.size()];
+        topicQuestions = new int[topics.size()];
+        for (int row = 0; row < questions.size(); row++) {
+            int topic = blocks.parents[questions.parents[row]];
+            int section = topics.parents[topic];
+            topicQuestions[topic]++;
+            sectionQuestions[section]++;
+            courseQuestions[sections.parents[section]]++;
+        }
+
+        long[] bytes = new long[courses.size()];
+        int[] courseOfCourse = accumulate(courses, null, bytes);
+        int[] courseOfSection = accumulate(sections, courseOfCourse, bytes);
+        int[] courseOfTopic = accumulate(topics, courseOfSection, bytes);
+        int[] courseOfBlock = accumulate(blocks, courseOfTopic, bytes);
+        accumulate(blockImages, courseOfBlock, bytes);
+        int[] courseOfQuestion = accumulate(questions, courseOfBlock, bytes);
+        accumulate(options, courseOfQuestion, bytes);
+        accumulate(questionImages, courseOfQuestion, bytes);
+
+        Map<Long, Long> byCourse = new LinkedHashMap<>();
+        long total = 0;
+        for (int c = 0; c < bytes.length; c++) {
+            byCourse.put(courses.ids[c], bytes[c]);
+            total += bytes[c];
+        }
+        this.courseBytes = Collections.unmodifiableMap(byCourse);
+        this.totalBytes = total;
+    }
+
+    // Курс каждой строки уровня; заодно добавляет размер строки к размеру её курса
+    private static int[] accumulate(Level level, int[] courseOfParent, long[] bytes) {
+        int[] courseOf = new int[level.size()];
+        for (int row = 0; row < level.size(); row++) {
+            courseOf[row] = courseOfParent == null ? row : courseOfParent[level.parents[row]];
+            bytes[courseOf[row]] += level.bytes(row);
+        }
+        return courseOf;
+    }
+
+    // ---------- Отдельные сущности ----------
+
+    public Optional<Course> course(long courseId) {
+        int row = courses.rowOf(courseId);
+        return row < 0 ? Optional.empty() : Optional.of(course(row));
+    }
+
+    public Optional<Section> section(long sectionId) {
+        int row = sections.rowOf(sectionId);
+        return row < 0 ? Optional.empty() : Optional.of(section(row, course(sections.parents[row])));
+    }
+
+    public Optional<Topic> topic(long topicId) {
+        int row = topics.rowOf(topicId);
+        return row < 0 ? Optional.empty() : Optional.of(topic(row));
+    }
+
+    // Блок сразу с изображениями
+    public Optional<Block> block(long blockId) {
+        int row = blocks.rowOf(blockId);
+        return row < 0 ? Optional.empty() : Optional.of(block(row));
+    }
+
+    // Вопрос сразу с изображениями и вариантами ответов
+    public Optional<Question> question(long questionId) {
+        int row = questions.rowOf(questionId);
+        return row < 0 ? Optional.empty() : Optional.of(question(row, block(questions.parents[row])));
+    }
+
+    // id темы и курса вопроса без сборки сущностей: {topicId, courseId} или null, если вопроса нет
+    public long[] questionTopicAndCourse(long questionId) {
+        int row = questions.rowOf(questionId);
+        if (row < 0) return null;
+        int topicRow = blocks.parents[questions.parents[row]];
+        int courseRow = sections.parents[topics.parents[topicRow]];
+        return new long[]{topics.ids[topicRow], courses.ids[courseRow]};
+    }
+
+    // ---------- Дети узла в порядке order_index ----------
+
+    public List<Section> sections(long courseId) {
+        int parent = courses.rowOf(courseId);
+        if (parent < 0) return new ArrayList<>();
+        Course course = course(parent);
+        List<Section> result = new ArrayList<>(sections.count(parent));
+        for (int row = sections.from(parent); row < sections.to(parent); row++) {
+            result.add(section(row, course));
+        }
+        return result;
+    }
+
+    public List<Topic> topics(long sectionId) {
+        int parent = sections.rowOf(sectionId);
+        if (parent < 0) return new ArrayList<>();
+        Section section = section(parent, course(sections.parents[parent]));
+        List<Topic> result = new ArrayList<>(topics.count(parent));
+        for (int row = topics.from(parent); row < topics.to(parent); row++) {
+            result.add(topic(row, section));
+        }
+        return result;
+    }
+
+    public List<Block> blocks(long topicId) {
+        int parent = topics.rowOf(topicId);
+        if (parent < 0) return new ArrayList<>();
+        Topic topic = topic(parent);
+        List<Block> result = new ArrayList<>(blocks.count(parent));
+        for (int row = blocks.from(parent); row < blocks.to(parent); row++) {
+            result.add(block(row, topic));
+        }
+        return result;
+    }
+
+    public List<Question> questions(long blockId) {
+        int parent = blocks.rowOf(blockId);
+        if (parent < 0) return new ArrayList<>();
+        Block block = block(parent);
+        List<Question> result = new ArrayList<>(questions.count(parent));
+        for (int row = questions.from(parent); row < questions.to(parent); row++) {
+            result.add(question(row, block));
+        }
+        return result;
+    }
+
+    public List<AnswerOption> answerOptions(long questionId) {
+        int parent = questions.rowOf(questionId);
+        if (parent < 0) return new ArrayList<>();
+        return question(parent, block(questions.parents[parent])).getAnswerOptions();
+    }
+
+    // Все вопросы темы: блоки по порядку, внутри блока — вопросы по порядку
+    public List<Question> topicQuestions(long topicId) {
+        int parent = topics.rowOf(topicId);
+        if (parent < 0) return new ArrayList<>();
+        Topic topic = topic(parent);
+        List<Question> result = new ArrayList<>();
+        for (int blockRow = blocks.from(parent); blockRow < blocks.to(parent); blockRow++) {
+            Block block = block(blockRow, topic);
+            for (int row = questions.from(blockRow); row < questions.to(blockRow); row++) {
+                result.add(question(row, block));
+            }
+        }
+        return result;
+    }
+
+    // Соседний блок той же темы: step = 1 — следующий, -1 — предыдущий
+    public Optional<Block> adjacentBlock(long blockId, long topicId, int step) {
+        int row = blocks.rowOf(blockId);
+        int topic = topics.rowOf(topicId);
+        if (row < 0 || topic < 0 || blocks.parents[row] != topic) return Optional.empty();
+        int next = row + step;
+        if (next < blocks.from(topic) || next >= blocks.to(topic)) return Optional.empty();
+        return Optional.of(block(next));
+    }
+
+    public List<Long> courseTopicIds(long courseId) {
+        int course = courses.rowOf(courseId);
+        if (course < 0) return new ArrayList<>();
+        List<Long> result = new ArrayList<>();
+        for (int section = sections.from(course); section < sections.to(course); section++) {
+            for (int row = topics.from(section); row < topics.to(section); row++) {
+                result.add(topics.ids[row]);
+            }
+        }
+        return result;
+    }
+
+    // ---------- Размер ----------
+
+    // Оценка памяти снимка по курсам, байт
+    public Map<Long, Long> courseBytes() {
+        return courseBytes;
+    }
+
+    public long totalBytes() {
+        return totalBytes;
+    }
+
+    public String courseTitle(long courseId) {
+        int row = courses.rowOf(courseId);
+        return row < 0 ? null : courses.text(TITLE, row);
+    }
+
+    @Override
+    public String toString() {
+        return courses.size() + " courses, " + sections.size() + " sections, " + topics.size() + " topics, "
+                + blocks.size() + " blocks, " + questions.size() + " questions, " + options.size() + " options, "
+                + (blockImages.size() + questionImages.size()) + " images";
+    }
+
+    // ---------- Сборка сущностей ----------
+
+    private Course course(int row) {
+        Course course = new Course();
+        course.setId(courses.ids[row]);
+        course.setTitle(courses.text(TITLE, row));
+        course.setDescription(courses.text(DESCRIPTION, row));
+        course.setQuestionCount(courseQuestions[row]);
+        return course;
+    }
+
+    private Section section(int row, Course course) {
+        Section section = new Section();
+        section.setId(sections.ids[row]);
+        section.setCourse(course);
+        section.setTitle(sections.text(TITLE, row));
+        section.setDescription(sections.text(DESCRIPTION, row));
+        section.setOrderIndex(sections.orders[row]);
+        section.setQuestionCount(sectionQuestions[row]);
+        return section;
+    }
+
+    private Topic topic(int row) {
+        int sectionRow = topics.parents[row];
+        return topic(row, section(sectionRow, course(sections.parents[sectionRow])));
+    }
+
+    private Topic topic(int row, Section section) {
+        Topic topic = new Topic();
+        topic.setId(topics.ids[row]);
+        topic.setSection(section);
+        topic.setTitle(topics.text(TITLE, row));
+        topic.setDescription(topics.text(DESCRIPTION, row));
+        topic.setOrderIndex(topics.orders[row]);
+        topic.setQuestionCount(topicQuestions[row]);
+        return topic;
+    }
+
+    private Block block(int row) {
+        return block(row, topic(blocks.parents[row]));
+    }
+
+    private Block block(int row, Topic topic) {
+        Block block = new Block();
+        block.setId(blocks.ids[row]);
+        block.setTopic(topic);
+        block.setTextContent(blocks.text(TEXT, row));
+        block.setOrderIndex(blocks.orders[row]);
+        for (int i = blockImages.from(row); i < blockImages.to(row); i++) {
+            BlockImage image = new BlockImage();
+            image.setId(blockImages.ids[i]);
+            image.setBlock(block);
+            image.setFilePath(blockImages.text(FILE_PATH, i));
+            image.setDescription(blockImages.text(IMAGE_DESCRIPTION, i));
+            image.setOrderIndex(blockImages.orders[i]);
+            block.getImages().add(image);
+        }
+        return block;
+    }
+
+    private Question question(int row, Block block) {
+        Question question = new Question();
+        question.setId(questions.ids[row]);
+        question.setBlock(block);
+        question.setText(questions.text(TEXT, row));
+        question.setExplanation(questions.text(EXPLANATION, row));
+        question.setOrderIndex(questions.orders[row]);
+        for (int i = questionImages.from(row); i < questionImages.to(row); i++) {
+            QuestionImage image = new QuestionImage();
+            image.setId(questionImages.ids[i]);
+            image.setQuestion(question);
+            image.setFilePath(questionImages.text(FILE_PATH, i));
+            image.setDescription(questionImages.text(IMAGE_DESCRIPTION, i));
+            image.setOrderIndex(questionImages.orders[i]);
+            question.getImages().add(image);
+        }
+        for (int i = options.from(row); i < options.to(row); i++) {
+            AnswerOption option = new AnswerOption();
+            option.setId(options.ids[i]);
+            option.setQuestion(question);
+            option.setText(options.text(TEXT, i));
+            option.setIsCorrect(options.flags[i]);
+            option.setOrderIndex(options.orders[i]);
+            question.getAnswerOptions().add(option);
+        }
+        return question;
+    }
+
+    /**
+     * Строка выборки: parentId — id родителя (у курсов не используется),
+     * text — текстовые столбцы уровня, flag — is_correct у вариантов ответа.
+     */
+    record Row(long id, long parentId, int order, String[] text, boolean flag) {
+    }
+
+    // Один уровень дерева по столбцам
+    private static final class Level {
+        private final long[] ids;
+        private final int[] parents;
+        private final int[] orders;
+        private final boolean[] flags;
+        // columns[столбец][строка]
+        private final String[][] columns;
+        // Дети родителя p — строки offsets[p] .. offsets[p + 1] - 1
+        private final int[] offsets;
+        private final long[] sortedIds;
+        private final int[] rowsBySortedId;
+
+        private Level(List<Row> rows, Level parent, int columnCount) {
+            // Строки без родителя в снимке (удалённого между выборками) отбрасываются
+            List<int[]> placed = new ArrayList<>(rows.size());
+            for (int i = 0; i < rows.size(); i++) {
+                int parentRow = parent == null ? 0 : parent.rowOf(rows.get(i).parentId());
+                if (parentRow >= 0) {
+                    placed.add(new int[]{i, parentRow});
+                }
+            }
+            placed.sort(Comparator.<int[]>comparingInt(p -> p[1])
+                    .thenComparingInt(p -> rows.get(p[0]).order())
+                    .thenComparingLong(p -> rows.get(p[0]).id()));
+
+            int size = placed.size();
+            int parentCount = parent == null ? 1 : parent.size();
+            ids = new long[size];
+            parents = new int[size];
+            orders = new int[size];
+            flags = new boolean[size];
+            columns = new String[columnCount][size];
+            offsets = new int[parentCount + 1];
+            for (int row = 0; row < size; row++) {
+                Row source = rows.get(placed.get(row)[0]);
+                ids[row] = source.id();
+                parents[row] = placed.get(row)[1];
+                orders[row] = source.order();
+                flags[row] = source.flag();
+                for (int c = 0; c < columnCount; c++) {
+                    columns[c][row] = source.text()[c];
+                }
+                offsets[parents[row] + 1]++;
+            }
+            for (int p = 0; p < parentCount; p++) {
+                offsets[p + 1] += offsets[p];
+            }
+
+            Integer[] byId = new Integer[size];
+            for (int row = 0; row < size; row++) {
+                byId[row] = row;
+            }
+            Arrays.sort(byId, Comparator.comparingLong(row -> ids[row]));
+            sortedIds = new long[size];
+            rowsBySortedId = new int[size];
+            for (int i = 0; i < size; i++) {
+                sortedIds[i] = ids[byId[i]];
+                rowsBySortedId[i] = byId[i];
+            }
+        }
+
+        private int size() {
+            return ids.length;
+        }
+
+        private int rowOf(long id) {
+            int i = Arrays.binarySearch(sortedIds, id);
+            return i < 0 ? -1 : rowsBySortedId[i];
+        }
+
+        private int from(int parent) {
+            return offsets[parent];
+        }
+
+        private int to(int parent) {
+            return offsets[parent + 1];
+        }
+
+        private int count(int parent) {
+            return to(parent) - from(parent);
+        }
+
+        private String text(int column, int row) {
+            return columns[column][row];
+        }
+
+        private long bytes(int row) {
+            long bytes = ROW_BYTES + 1;
+            for (String[] column : columns) {
+                String value = column[row];
+                // Кириллица хранится в UTF-16: два байта на символ
+                bytes += value == null ? 8 : STRING_BYTES + 2L * value.length();
+            }
+            return bytes;
+        }
+    }
+}
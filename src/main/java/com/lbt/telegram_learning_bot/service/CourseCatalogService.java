@@ -0,0 +1,177 @@
+package com.lbt.telegram_learning_bot.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Держит текущий снимок контента (CourseCatalog) и пересобирает его в фоне.
+ * Снимок строится целиком в одной транзакции REPEATABLE READ (согласованное состояние на момент начала)
+ * и подменяется одной записью volatile-ссылки.
+ * <p>
+ * Событие об изменении контента сразу снимает текущий снимок: пока новый строится, NavigationService
+ * читает из БД. Так админ, только что импортировавший тему, не увидит старого содержимого.
+ * События, пришедшие во время сборки, ставят ещё одну сборку; результат устаревшей не публикуется.
+ */
+@Slf4j
+@Service
+public class CourseCatalogService implements ContentCacheListener {
+
+    private static final String COURSES_SQL = "SELECT id, title, description FROM course";
+    private static final String SECTIONS_SQL =
+            "SELECT id, course_id, order_index, title, description FROM section";
+    private static final String TOPICS_SQL =
+            "SELECT id, section_id, order_index, title, description FROM topic";
+    private static final String BLOCKS_SQL = "SELECT id, topic_id, order_index, text_content FROM block";
+    private static final String BLOCK_IMAGES_SQL =
+            "SELECT id, block_id, order_index, file_path, description FROM block_image";
+    private static final String QUESTIONS_SQL =
+            "SELECT id, block_id, order_index, text, explanation FROM question";
+    private static final String OPTIONS_SQL =
+            "SELECT id, question_id, order_index, text, is_correct FROM answer_option";
+    private static final String QUESTION_IMAGES_SQL =
+            "SELECT id, question_id, order_index, file_path, description FROM question_image";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate snapshotTransaction;
+    private final boolean enabled;
+    private final ExecutorService rebuilder;
+    private final AtomicBoolean rebuildQueued = new AtomicBoolean();
+    private final MultiGauge courseBytes;
+    // Номер последнего изменения контента; сборка публикуется, только если он не сменился
+    private long generation;
+    private volatile CourseCatalog catalog;
+
+    public CourseCatalogService(JdbcTemplate jdbcTemplate,
+                                PlatformTransactionManager transactionManager,
+                                MeterRegistry meterRegistry,
+                                @Value("${content.catalog.enabled:true}") boolean enabled) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.snapshotTransaction = new TransactionTemplate(transactionManager);
+        this.snapshotTransaction.setReadOnly(true);
+        this.snapshotTransaction.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+        this.enabled = enabled;
+        this.rebuilder = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "course-catalog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.courseBytes = MultiGauge.builder("content.catalog.course.bytes").register(meterRegistry);
+        Gauge.builder("content.catalog.bytes", this, service -> {
+            CourseCatalog current = service.catalog;
+            return current != null ? current.totalBytes() : 0;
+        }).register(meterRegistry);
+    }
+
+    /**
+     * Текущий снимок или null, если он выключен, ещё не построен или устарел — тогда читать из БД.
+     */
+    public CourseCatalog current() {
+        return catalog;
+    }
+
+    @Override
+    public void onContentChanged(ContentChangeEvent event) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            generation++;
+            catalog = null;
+        }
+        scheduleRebuild();
+    }
+
+    // Первая сборка после старта и повтор после неудачной
+    @Scheduled(fixedDelayString = "${content.catalog.retry-ms:30000}")
+    public void ensureBuilt() {
+        if (enabled && catalog == null) {
+            scheduleRebuild();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        rebuilder.shutdownNow();
+    }
+
+    private void scheduleRebuild() {
+        if (rebuildQueued.compareAndSet(false, true)) {
+            rebuilder.execute(this::rebuild);
+        }
+    }
+
+    private void rebuild() {
+        // Флаг снимается до чтения: изменение во время сборки поставит следующую
+        rebuildQueued.set(false);
+        long startedGeneration;
+        synchronized (this) {
+            startedGeneration = generation;
+        }
+        long started = System.currentTimeMillis();
+        CourseCatalog built;
+        try {
+            built = snapshotTransaction.execute(status -> load());
+        } catch (RuntimeException e) {
+            log.error("Failed to build course catalog, serving content from the database", e);
+            return;
+        }
+        synchronized (this) {
+            if (generation != startedGeneration) {
+                return;
+            }
+            catalog = built;
+        }
+        report(built, System.currentTimeMillis() - started);
+    }
+
+    private CourseCatalog load() {
+        return new CourseCatalog(
+                jdbcTemplate.query(COURSES_SQL, (rs, i) -> new CourseCatalog.Row(rs.getLong("id"), 0, 0,
+                        new String[]{rs.getString("title"), rs.getString("description")}, false)),
+                jdbcTemplate.query(SECTIONS_SQL, (rs, i) -> new CourseCatalog.Row(rs.getLong("id"),
+                        rs.getLong("course_id"), rs.getInt("order_index"),
+                        new String[]{rs.getString("title"), rs.getString("description")}, false)),
+                jdbcTemplate.query(TOPICS_SQL, (rs, i) -> new CourseCatalog.Row(rs.getLong("id"),
+                        rs.getLong("section_id"), rs.getInt("order_index"),
+                        new String[]{rs.getString("title"), rs.getString("description")}, false)),
+                jdbcTemplate.query(BLOCKS_SQL, (rs, i) -> new CourseCatalog.Row(rs.getLong("id"),
+                        rs.getLong("topic_id"), rs.getInt("order_index"),
+                        new String[]{rs.getString("text_content")}, false)),
+                jdbcTemplate.query(BLOCK_IMAGES_SQL, (rs, i) -> new CourseCatalog.Row(rs.getLong("id"),
+                        rs.getLong("block_id"), rs.getInt("order_index"),
+                        new String[]{rs.getString("file_path"), rs.getString("description")}, false)),
+                jdbcTemplate.query(QUESTIONS_SQL, (rs, i) -> new CourseCatalog.Row(rs.getLong("id"),
+                        rs.getLong("block_id"), rs.getInt("order_index"),
+                        new String[]{rs.getString("text"), rs.getString("explanation")}, false)),
+                jdbcTemplate.query(OPTIONS_SQL, (rs, i) -> new CourseCatalog.Row(rs.getLong("id"),
+                        rs.getLong("question_id"), rs.getInt("order_index"),
+                        new String[]{rs.getString("text")}, rs.getBoolean("is_correct"))),
+                jdbcTemplate.query(QUESTION_IMAGES_SQL, (rs, i) -> new CourseCatalog.Row(rs.getLong("id"),
+                        rs.getLong("question_id"), rs.getInt("order_index"),
+                        new String[]{rs.getString("file_path"), rs.getString("description")}, false)));
+    }
+
+    private void report(CourseCatalog built, long elapsedMs) {
+        log.info("Course catalog rebuilt in {} ms: {}, ~{} KB", elapsedMs, built, built.totalBytes() / 1024);
+        built.courseBytes().forEach((courseId, bytes) ->
+                log.debug("Course {} \"{}\": ~{} KB", courseId, built.courseTitle(courseId), bytes / 1024));
+        courseBytes.register(built.courseBytes().entrySet().stream()
+                .map(entry -> MultiGauge.Row.of(Tags.of("course", String.valueOf(entry.getKey())), entry.getValue()))
+                .toList(), true);
+    }
+}
@@ -34,6 +34,9 @@ public class CourseImportService {
     private final QuestionImageRepository questionImageRepository;
     private final ObjectMapper objectMapper;
     private final UserProgressRepository userProgressRepository;
+    private final UserTopicProgressRepository userTopicProgressRepository;
+    private final UserAnswerStatsRepository userAnswerStatsRepository;
+    private final ContentChangeBus contentChangeBus;
 
     /**
      * Парсит JSON из InputStream и создаёт курс с полной структурой (без изображений).
@@ -55,7 +58,9 @@ public class CourseImportService {
         if (description != null) {
             course.setDescription(description);
         }
-        return courseRepository.save(course);
+        Course saved = courseRepository.save(course);
+        contentChangeBus.publish(ContentChangeEvent.Scope.COURSE, courseId);
+        return saved;
     }
     private void validateCourseImportDto(CourseImportDto dto) {
         List<String> errors = new ArrayList<>();
@@ -162,7 +167,9 @@ public class CourseImportService {
         if (description != null) {
             section.setDescription(description);
         }
-        return sectionRepository.save(section);
+        Section saved = sectionRepository.save(section);
+        contentChangeBus.publish(ContentChangeEvent.Scope.STRUCTURE, section.getCourse().getId());
+        return saved;
     }
     private void validateTopicImportDto(TopicImportDto dto) {
         List<String> errors = new ArrayList<>();
@@ -216,6 +223,7 @@ public class CourseImportService {
         Course course = new Course();
         course.setTitle(dto.getTitle());
         course.setDescription(dto.getDescription());
+        course.setQuestionCount(dto.getSections().stream().mapToInt(CourseImportService::questionCount).sum());
         course = courseRepository.save(course);
 
         int sectionOrder = 0;
@@ -226,6 +234,7 @@ public class CourseImportService {
                 section.setTitle(secDto.getTitle());
                 section.setDescription(secDto.getDescription());
                 section.setOrderIndex(sectionOrder++);
+                section.setQuestionCount(questionCount(secDto));
                 section = sectionRepository.save(section);
 
                 int topicOrder = 0;
@@ -236,6 +245,7 @@ public class CourseImportService {
                         topic.setTitle(topicDto.getTitle());
                         topic.setDescription(topicDto.getDescription());
                         topic.setOrderIndex(topicOrder++);
+                        topic.setQuestionCount(questionCount(topicDto));
                         topic = topicRepository.save(topic);
 
                         int blockOrder = 0;
@@ -301,23 +311,38 @@ public class CourseImportService {
                 }
             }
         }
+        contentChangeBus.publish(ContentChangeEvent.Scope.COURSE, course.getId());
         return course;
     }
 
+    private static int questionCount(SectionImportDto dto) {
+        return dto.getTopics() == null ? 0 : dto.getTopics().stream().mapToInt(CourseImportService::questionCount).sum();
+    }
+
+    private static int questionCount(TopicImportDto dto) {
+        if (dto.getBlocks() == null) return 0;
+        return dto.getBlocks().stream().mapToInt(b -> b.getQuestions() == null ? 0 : b.getQuestions().size()).sum();
+    }
+
     // Метод для обновления темы (для редактирования темы)
     @Transactional
     public Topic importTopic(TopicImportDto dto, Topic existingTopic) {
         validateTopicImportDto(dto);
 
         // Удаляем все записи прогресса, связанные с вопросами темы
+        int removedQuestions = 0;
         List<Block> blocks = blockRepository.findByTopicIdOrderByOrderIndexAsc(existingTopic.getId());
         for (Block block : blocks) {
             List<Question> questions = questionRepository.findByBlockIdOrderByOrderIndexAsc(block.getId());
+            removedQuestions += questions.size();
             for (Question question : questions) {
                 userProgressRepository.deleteByQuestionId(question.getId());
+                userAnswerStatsRepository.deleteByQuestionId(question.getId());
             }
         }
 
+        userTopicProgressRepository.deleteByTopicId(existingTopic.getId());
+
         // Теперь можно безопасно удалить тему (каскадно удалятся блоки, вопросы, изображения)
         topicRepository.delete(existingTopic);
 
@@ -327,8 +352,16 @@ public class CourseImportService {
         newTopic.setTitle(dto.getTitle());
         newTopic.setDescription(dto.getDescription());
         newTopic.setOrderIndex(existingTopic.getOrderIndex());
+        newTopic.setQuestionCount(questionCount(dto));
         newTopic = topicRepository.save(newTopic);
 
+        // Счётчики раздела и курса правим на разницу — атомарным UPDATE, без чтения
+        int delta = newTopic.getQuestionCount() - removedQuestions;
+        if (delta != 0) {
+            sectionRepository.addQuestionCount(newTopic.getSection().getId(), delta);
+            courseRepository.addQuestionCount(newTopic.getSection().getCourse().getId(), delta);
+        }
+
         // Создание блоков и вопросов (без изменений)
         int blockOrder = 0;
         if (dto.getBlocks() != null) {
@@ -389,6 +422,8 @@ public class CourseImportService {
                 }
             }
         }
+        // Тема пересоздаётся целиком: меняются и список тем, и её содержимое
+        contentChangeBus.publish(ContentChangeEvent.Scope.STRUCTURE, newTopic.getSection().getCourse().getId());
         return newTopic;
     }
 }
\ No newline at end of file
@@ -0,0 +1,144 @@
+package com.lbt.telegram_learning_bot.service;
+
+import com.lbt.telegram_learning_bot.bot.BotContext;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Отдельные ограниченные пулы для тяжёлых операций (PDF, импорт курса, загрузка изображений),
+ * чтобы они не занимали путь обработки обычных кликов.
+ */
+@Slf4j
+@Service
+public class HeavyJobExecutor {
+
+    public enum JobType {
+        PDF_EXPORT,
+        COURSE_IMPORT,
+        IMAGE_UPLOAD
+    }
+
+    public enum Status {
+        ACCEPTED,
+        USER_LIMIT,
+        QUEUE_FULL
+    }
+
+    /**
+     * Результат постановки задачи. queuePosition = 0 — задача стартовала сразу.
+     * completion завершается после выполнения задачи (исключением, если задача упала или не принята).
+     */
+    public record Submission(Status status, int queuePosition, CompletableFuture<Void> completion) {
+        public boolean isAccepted() {
+            return status == Status.ACCEPTED;
+        }
+    }
+
+    private final Map<JobType, ThreadPoolExecutor> pools = new EnumMap<>(JobType.class);
+    // Количество незавершённых задач пользователя по каждому классу
+    private final Map<String, Integer> userJobs = new ConcurrentHashMap<>();
+    private final int perUserLimit;
+
+    public HeavyJobExecutor(MeterRegistry meterRegistry,
+                            @Value("${bot.jobs.pdf-export.threads:2}") int pdfThreads,
+                            @Value("${bot.jobs.course-import.threads:1}") int importThreads,
+                            @Value("${bot.jobs.image-upload.threads:2}") int imageThreads,
+                            @Value("${bot.jobs.queue-capacity:50}") int queueCapacity,
+                            @Value("${bot.jobs.per-user-limit:1}") int perUserLimit) {
+        this.perUserLimit = perUserLimit;
+        pools.put(JobType.PDF_EXPORT, createPool("pdf-export", pdfThreads, queueCapacity));
+        pools.put(JobType.COURSE_IMPORT, createPool("course-import", importThreads, queueCapacity));
+        pools.put(JobType.IMAGE_UPLOAD, createPool("image-upload", imageThreads, queueCapacity));
+
+        pools.forEach((type, pool) -> {
+            Gauge.builder("bot.jobs.queued", pool, p -> p.getQueue().size())
+                    .tag("type", type.name())
+                    .register(meterRegistry);
+            Gauge.builder("bot.jobs.active", pool, ThreadPoolExecutor::getActiveCount)
+                    .tag("type", type.name())
+                    .register(meterRegistry);
+        });
+    }
+
+    public Submission submit(JobType type, Long userId, Runnable job) {
+        String userKey = type + ":" + BotContext.currentBotId() + ":" + userId;
+        int active = userJobs.merge(userKey, 1, Integer::sum);
+        if (active > perUserLimit) {
+            releaseUserSlot(userKey);
+            return rejected(Status.USER_LIMIT, "User " + userId + " already has a running " + type + " job");
+        }
+
+        CompletableFuture<Void> completion = new CompletableFuture<>();
+        ThreadPoolExecutor pool = pools.get(type);
+        try {
+            // Задача выполняется от имени того же бота, что и поставивший её обработчик
+            pool.execute(BotContext.wrap(() -> {
+                long start = System.nanoTime();
+                try {
+                    job.run();
+                    completion.complete(null);
+                } catch (Throwable e) {
+                    log.error("Heavy job {} for user {} failed", type, userId, e);
+                    completion.completeExceptionally(e);
+                } finally {
+                    releaseUserSlot(userKey);
+                    log.debug("Heavy job {} for user {} took {} ms", type, userId,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            releaseUserSlot(userKey);
+            log.warn("Heavy job queue {} is full, job of user {} rejected", type, userId);
+            return rejected(Status.QUEUE_FULL, "Queue " + type + " is full");
+        }
+        return new Submission(Status.ACCEPTED, pool.getQueue().size(), completion);
+    }
+
+    private void releaseUserSlot(String userKey) {
+        userJobs.computeIfPresent(userKey, (key, count) -> count <= 1 ? null : count - 1);
+    }
+
+    private Submission rejected(Status status, String reason) {
+        return new Submission(status, 0, CompletableFuture.failedFuture(new RejectedExecutionException(reason)));
+    }
+
+    private ThreadPoolExecutor createPool(String name, int threads, int queueCapacity) {
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "job-" + name + "-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pools.values().forEach(ThreadPoolExecutor::shutdown);
+        for (ThreadPoolExecutor pool : pools.values()) {
+            try {
+                if (!pool.awaitTermination(30, TimeUnit.SECONDS)) {
+                    pool.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pool.shutdownNow();
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.lbt.telegram_learning_bot.service;
+
+import com.lbt.telegram_learning_bot.entity.BlockImage;
+import com.lbt.telegram_learning_bot.entity.QuestionImage;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.lbt.telegram_learning_bot.util.Constants.*;
+
+/**
+ * file_id картинок по ботам (image_file_id): file_id, выданный одному боту, другой бот отправить не может.
+ * Строки бота загружаются в память целиком при первом обращении; изменение картинок (Scope.IMAGES)
+ * на любом узле сбрасывает память, и она перечитывается.
+ */
+@Service
+@RequiredArgsConstructor
+public class ImageFileIdService implements ContentCacheListener {
+
+    private static final String LOAD_SQL = "SELECT image_type, image_id, file_id FROM image_file_id WHERE bot_id = ?";
+    private static final String UPSERT_SQL =
+            "INSERT INTO image_file_id (bot_id, image_type, image_id, file_id) VALUES (?, ?, ?, ?) " +
+            "ON CONFLICT (bot_id, image_type, image_id) DO UPDATE SET file_id = EXCLUDED.file_id";
+    private static final String DELETE_SQL = "DELETE FROM image_file_id WHERE bot_id = ? AND image_type = ? AND image_id = ?";
+    // Картинка заменена: старые file_id всех ботов указывают на прежний файл
+    private static final String DELETE_IMAGE_SQL = "DELETE FROM image_file_id WHERE image_type = ? AND image_id = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Map<String, Map<ImageRef, String>> byBot = new ConcurrentHashMap<>();
+
+    /**
+     * file_id картинки для бота botId или null, если картинку этому боту ещё не отправляли.
+     */
+    public String fileId(String botId, Object image) {
+        ImageRef ref = ImageRef.of(image);
+        return ref == null ? null : fileIds(botId).get(ref);
+    }
+
+    /**
+     * Запоминает file_id, которые Telegram вернул боту botId в ответ на отправку images (по порядку).
+     * Пишутся только изменившиеся.
+     */
+    public void remember(String botId, List<?> images, List<String> fileIds) {
+        Map<ImageRef, String> known = fileIds(botId);
+        List<Object[]> changed = new ArrayList<>();
+        for (int i = 0; i < images.size() && i < fileIds.size(); i++) {
+            ImageRef ref = ImageRef.of(images.get(i));
+            String fileId = fileIds.get(i);
+            if (ref == null || fileId == null || fileId.equals(known.get(ref))) continue;
+            known.put(ref, fileId);
+            changed.add(new Object[]{botId, ref.type(), ref.id(), fileId});
+        }
+        if (!changed.isEmpty()) {
+            jdbcTemplate.batchUpdate(UPSERT_SQL, changed);
+        }
+    }
+
+    /**
+     * Забывает file_id картинок, которые Telegram отверг для бота botId.
+     */
+    public void forget(String botId, List<?> images) {
+        Map<ImageRef, String> known = fileIds(botId);
+        List<Object[]> args = new ArrayList<>();
+        for (Object image : images) {
+            ImageRef ref = ImageRef.of(image);
+            if (ref == null || known.remove(ref) == null) continue;
+            args.add(new Object[]{botId, ref.type(), ref.id()});
+        }
+        if (!args.isEmpty()) {
+            jdbcTemplate.batchUpdate(DELETE_SQL, args);
+        }
+    }
+
+    /**
+     * Администратор загрузил новый файл картинки через бота botId: file_id остальных ботов устарели.
+     */
+    public void replace(String botId, String imageType, Long imageId, String fileId) {
+        jdbcTemplate.update(DELETE_IMAGE_SQL, imageType, imageId);
+        jdbcTemplate.update(UPSERT_SQL, botId, imageType, imageId, fileId);
+        byBot.clear();
+    }
+
+    @Override
+    public void onContentChanged(ContentChangeEvent event) {
+        if (event.scope() == ContentChangeEvent.Scope.IMAGES || event.scope() == ContentChangeEvent.Scope.ALL) {
+            byBot.clear();
+        }
+    }
+
+    private Map<ImageRef, String> fileIds(String botId) {
+        return byBot.computeIfAbsent(botId, id -> {
+            Map<ImageRef, String> loaded = new ConcurrentHashMap<>();
+            jdbcTemplate.query(LOAD_SQL, rs -> {
+                loaded.put(new ImageRef(rs.getString("image_type"), rs.getLong("image_id")), rs.getString("file_id"));
+            }, id);
+            return loaded;
+        });
+    }
+
+    private record ImageRef(String type, long id) {
+
+        static ImageRef of(Object image) {
+            if (image instanceof BlockImage block && block.getId() != null) return new ImageRef(ENTITY_BLOCK, block.getId());
+            if (image instanceof QuestionImage question && question.getId() != null) return new ImageRef(ENTITY_QUESTION, question.getId());
+            return null;
+        }
+    }
+}
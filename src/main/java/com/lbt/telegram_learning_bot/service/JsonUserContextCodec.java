@@ -0,0 +1,52 @@
+package com.lbt.telegram_learning_bot.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lbt.telegram_learning_bot.bot.UserContext;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+
+/**
+ * Прежний формат: JSON через Jackson. Остаётся для отладки (читается прямо в psql)
+ * и для миграции между форматами.
+ */
+@Component
+@RequiredArgsConstructor
+public class JsonUserContextCodec implements UserContextCodec {
+
+    public static final String NAME = "json";
+
+    private final ObjectMapper objectMapper;
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(UserContext context) {
+        try {
+            return objectMapper.writeValueAsBytes(context);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public UserContext decode(byte[] data) {
+        try {
+            UserContext ctx = objectMapper.readValue(data, UserContext.class);
+            // Инициализация списков для предотвращения NPE
+            if (ctx.getPendingImages() == null) ctx.setPendingImages(new ArrayList<>());
+            if (ctx.getTestQuestionIds() == null) ctx.setTestQuestionIds(new ArrayList<>());
+            if (ctx.getCurrentTopicBlockIds() == null) ctx.setCurrentTopicBlockIds(new ArrayList<>());
+            if (ctx.getCurrentBlockQuestionIds() == null) ctx.setCurrentBlockQuestionIds(new ArrayList<>());
+            return ctx;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.lbt.telegram_learning_bot.service;
 
+import com.lbt.telegram_learning_bot.bot.BotContext;
 import com.lbt.telegram_learning_bot.entity.*;
 import com.lbt.telegram_learning_bot.repository.*;
 import lombok.RequiredArgsConstructor;
@@ -10,6 +11,7 @@ import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.time.Duration;
 import java.time.Instant;
@@ -34,89 +36,131 @@ public class NavigationService {
     private final UserProgressRepository userProgressRepository;
     private final UserMistakeRepository userMistakeRepository;
     private final UserTestResultRepository userTestResultRepository;
-    private static final int SESSION_TIMEOUT_SECONDS = 300; // 5 минут
     private final UserStudyTimeRepository userStudyTimeRepository;
+    // Снимок контента: чтения курсов, разделов, тем, блоков и вопросов обходятся без БД,
+    // пока снимок актуален (current() != null)
+    private final CourseCatalogService courseCatalog;
+    private final TransactionTemplate transactionTemplate;
+    private final PageStatusService pageStatusService;
+    private final UserAnswerStatsRepository userAnswerStatsRepository;
+    private final AnswerEventWriter answerEventWriter;
+    private final StudyTimeTracker studyTimeTracker;
+    private final ImageFileIdService imageFileIdService;
 
     public String getCourseDescription(Long courseId) {
-        return courseRepository.findById(courseId).map(Course::getDescription).orElse("");
+        return getCourse(courseId).map(Course::getDescription).orElse("");
     }
     /**
      * Фиксирует активное действие пользователя в теме.
-     * Если с последнего действия прошло меньше SESSION_TIMEOUT_SECONDS,
-     * то разница добавляется к общему времени.
+     * Если с последнего действия прошло меньше тайм-аута сессии, то разница добавляется к общему времени.
+     * Время копится в памяти StudyTimeTracker и сбрасывается в БД пачками.
      */
-    @Transactional
     public void recordStudyAction(Long userId, Long topicId) {
-        Instant now = Instant.now();
-        UserStudyTime studyTime = userStudyTimeRepository.findByUserIdAndTopicId(userId, topicId)
-                .orElseGet(() -> {
-                    UserStudyTime newTime = new UserStudyTime();
-                    newTime.setUserId(userId);
-                    newTime.setTopic(topicRepository.getReferenceById(topicId));
-                    newTime.setTotalSeconds(0);
-                    newTime.setLastActionAt(now);
-                    return newTime;
-                });
-
-        if (studyTime.getLastActionAt() != null) {
-            long secondsSinceLast = Duration.between(studyTime.getLastActionAt(), now).getSeconds();
-            if (secondsSinceLast > 0 && secondsSinceLast < SESSION_TIMEOUT_SECONDS) {
-                studyTime.setTotalSeconds(studyTime.getTotalSeconds() + (int) secondsSinceLast);
-            }
-        }
-        studyTime.setLastActionAt(now);
-        userStudyTimeRepository.save(studyTime);
+        studyTimeTracker.record(userId, topicId, Instant.now());
     }
 
     /**
      * Суммарное время изучения пользователем всех тем.
      */
     public long getTotalStudySecondsForUser(Long userId) {
-        Long sum = userStudyTimeRepository.sumTotalSecondsByUserId(userId);
-        return sum == null ? 0 : sum;
+        return studyTimeTracker.totalSeconds(userId, userStudyTimeRepository.findByUserId(userId), null);
     }
     /**
      * Суммарное время изучения по курсу.
      */
     public long getStudySecondsForCourse(Long userId, Long courseId) {
         List<Long> topicIds = getAllTopicIdsForCourse(courseId);
-        return userStudyTimeRepository.findByUserIdAndTopicIdIn(userId, topicIds)
-                .stream().mapToLong(UserStudyTime::getTotalSeconds).sum();
+        return studyTimeTracker.totalSeconds(userId, userStudyTimeRepository.findByUserIdAndTopicIdIn(userId, topicIds), topicIds);
     }
     /**
      * Суммарное время изучения по разделу.
      */
     public long getStudySecondsForSection(Long userId, Long sectionId) {
-        List<Long> topicIds = topicRepository.findBySectionIdOrderByOrderIndexAsc(sectionId)
-                .stream().map(Topic::getId).toList();
-        return userStudyTimeRepository.findByUserIdAndTopicIdIn(userId, topicIds)
-                .stream().mapToLong(UserStudyTime::getTotalSeconds).sum();
+        List<Long> topicIds = getTopicsOfSection(sectionId).stream().map(Topic::getId).toList();
+        return studyTimeTracker.totalSeconds(userId, userStudyTimeRepository.findByUserIdAndTopicIdIn(userId, topicIds), topicIds);
     }
 
     // Вспомогательные методы
     private List<Long> getAllTopicIdsForCourse(Long courseId) {
+        CourseCatalog catalog = courseCatalog.current();
+        if (catalog != null) {
+            return catalog.courseTopicIds(courseId);
+        }
         return sectionRepository.findByCourseIdOrderByOrderIndexAsc(courseId).stream()
                 .flatMap(s -> topicRepository.findBySectionIdOrderByOrderIndexAsc(s.getId()).stream())
                 .map(Topic::getId).toList();
     }
 
+    private Optional<Course> getCourse(Long courseId) {
+        CourseCatalog catalog = courseCatalog.current();
+        return catalog != null ? catalog.course(courseId) : courseRepository.findById(courseId);
+    }
+
+    private List<Section> getSectionsOfCourse(Long courseId) {
+        CourseCatalog catalog = courseCatalog.current();
+        return catalog != null ? catalog.sections(courseId) : sectionRepository.findByCourseIdOrderByOrderIndexAsc(courseId);
+    }
+
+    private List<Topic> getTopicsOfSection(Long sectionId) {
+        CourseCatalog catalog = courseCatalog.current();
+        return catalog != null ? catalog.topics(sectionId) : topicRepository.findBySectionIdOrderByOrderIndexAsc(sectionId);
+    }
+
+    private List<Block> getBlocksOfTopic(Long topicId) {
+        CourseCatalog catalog = courseCatalog.current();
+        return catalog != null ? catalog.blocks(topicId) : blockRepository.findByTopicIdOrderByOrderIndexAsc(topicId);
+    }
+
     public String getSectionDescription(Long sectionId) {
-        return sectionRepository.findById(sectionId).map(Section::getDescription).orElse("");
+        return getSection(sectionId).map(Section::getDescription).orElse("");
     }
     public Optional<Block> getBlockWithImages(Long blockId) {
+        CourseCatalog catalog = courseCatalog.current();
+        if (catalog != null) {
+            return catalog.block(blockId);
+        }
         return blockRepository.findByIdWithImages(blockId);
     }
 
-    @Transactional(readOnly = true)
     public Optional<Question> getQuestionWithImagesAndOptions(Long questionId) {
-        Optional<Question> opt = questionRepository.findById(questionId);
-        opt.ifPresent(q -> {
-            // Инициализируем коллекции в рамках транзакции
-            q.getImages().size();
-            q.getAnswerOptions().size();
+        CourseCatalog catalog = courseCatalog.current();
+        if (catalog != null) {
+            return catalog.question(questionId);
+        }
+        return transactionTemplate.execute(status -> {
+            Optional<Question> opt = questionRepository.findById(questionId);
+            opt.ifPresent(q -> {
+                // Инициализируем коллекции в рамках транзакции
+                q.getImages().size();
+                q.getAnswerOptions().size();
+            });
+            return opt;
         });
-        return opt;
     }
+
+    // ---------- file_id изображений бота, обрабатывающего текущий апдейт ----------
+
+    public String imageFileId(Object image) {
+        return imageFileIdService.fileId(BotContext.currentBotId(), image);
+    }
+
+    /**
+     * Запоминает file_id, которые Telegram присвоил отправленным изображениям.
+     * fileIds идут в том же порядке, что и images; пишем только изменившиеся.
+     */
+    public void rememberImageFileIds(List<?> images, List<String> fileIds) {
+        imageFileIdService.remember(BotContext.currentBotId(), images, fileIds);
+    }
+
+    public void forgetImageFileIds(List<?> images) {
+        imageFileIdService.forget(BotContext.currentBotId(), images);
+    }
+
+    // Новый файл картинки загружен администратором: file_id других ботов устарели
+    public void replaceImageFileId(String imageType, Long imageId, String fileId) {
+        imageFileIdService.replace(BotContext.currentBotId(), imageType, imageId, fileId);
+    }
+
     private static final int PAGE_SIZE = 5;
     /**
      * Количество курсов, которые пользователь начал (есть прогресс)
@@ -155,14 +199,18 @@ public class NavigationService {
         if (stats.isEmpty()) {
             return MSG_NO_DATA;
         }
+        // Свёрнутые старые ответы: курс у них всегда есть и в журнале — последний ответ остаётся там
+        Map<Long, Object[]> folded = userAnswerStatsRepository.sumAnswersByUser(userId).stream()
+                .collect(Collectors.toMap(arr -> (Long) arr[0], arr -> arr));
 
         Object[] hardest = null;
         double maxErrorRate = -1.0;
         for (Object[] row : stats) {
-            Long courseId = (Long) row[0]; // не используется, но можно
+            Long courseId = (Long) row[0];
             String title = (String) row[1];
-            long totalAnswers = (Long) row[2];
-            long wrongAnswers = (Long) row[3];
+            Object[] foldedRow = folded.get(courseId);
+            long totalAnswers = (Long) row[2] + (foldedRow != null ? ((Number) foldedRow[1]).longValue() : 0);
+            long wrongAnswers = (Long) row[3] + (foldedRow != null ? ((Number) foldedRow[2]).longValue() : 0);
             double errorRate = (double) wrongAnswers / totalAnswers;
             if (errorRate > maxErrorRate) {
                 maxErrorRate = errorRate;
@@ -180,72 +228,32 @@ public class NavigationService {
     }
 
     public String getTopicStatusEmoji(Long userId, Long topicId) {
-        List<Question> questions = getAllQuestionsForTopic(topicId);
-        if (questions.isEmpty()) return EMOJI_NOT_STARTED;
-
-        int total = questions.size();
-        int answered = 0;
-        int correct = 0;
-
-        for (Question q : questions) {
-            Optional<UserProgress> lastProgress = userProgressRepository
-                    .findTopByUserIdAndQuestionIdAndModeOrderByCompletedAtDesc(userId, q.getId(), MODE_LEARNING);
-            if (lastProgress.isPresent()) {
-                answered++;
-                if (lastProgress.get().getAnswerResult()) {
-                    correct++;
-                }
-            }
-        }
-
-        if (answered == 0) return EMOJI_NOT_STARTED;
-        if (answered < total) return EMOJI_IN_PROGRESS;
-        if (correct == total) return EMOJI_COMPLETED;
-        return EMOJI_IN_PROGRESS;
+        return getTopic(topicId)
+                .map(topic -> pageStatusService.topicStatuses(userId, List.of(topic), false).learningStatus(topicId))
+                .orElse(EMOJI_NOT_STARTED);
     }
 
     public String getSectionStatusEmoji(Long userId, Long sectionId) {
-        List<Topic> topics = topicRepository.findBySectionIdOrderByOrderIndexAsc(sectionId);
-        if (topics.isEmpty()) return EMOJI_NOT_STARTED;
-
-        boolean anyLearning = false; // есть ли хоть один учебный ответ в разделе
-        boolean anyNotGreen = false; // есть ли что-то не зелёное (учебное или тест)
-        boolean allTopicsGreen = true; // все темы, имеющие вопросы, зелёные по учебному статусу
-
-        for (Topic topic : topics) {
-            long totalQuestions = questionRepository.countByTopicId(topic.getId());
-            if (totalQuestions == 0) continue; // тема без вопросов игнорируется
-
-            String learningStatus = getTopicLearningStatus(userId, topic.getId());
-            if (!learningStatus.equals(EMOJI_NOT_STARTED)) anyLearning = true;
-            if (!learningStatus.equals(EMOJI_COMPLETED)) allTopicsGreen = false;
-            if (!learningStatus.equals(EMOJI_COMPLETED) && !learningStatus.equals(EMOJI_NOT_STARTED)) anyNotGreen = true;
-        }
-
-        // Получаем статус итогового теста раздела
-        String testStatus = getSectionTestStatus(userId, sectionId);
-
-        if (!anyLearning && testStatus.equals(EMOJI_NOT_STARTED)) return EMOJI_NOT_STARTED;
-        if (allTopicsGreen && testStatus.equals(EMOJI_COMPLETED)) return EMOJI_COMPLETED;
-        return EMOJI_IN_PROGRESS;
+        return pageStatusService.sectionStatuses(userId, List.of(sectionId)).learningStatus(sectionId);
     }
 
     public String getCourseStatusEmoji(Long userId, Long courseId) {
-        List<Section> sections = sectionRepository.findByCourseIdOrderByOrderIndexAsc(courseId);
+        List<Section> sections = getSectionsOfCourse(courseId);
         if (sections.isEmpty()) return EMOJI_NOT_STARTED;
 
+        // Статусы всех разделов курса — постоянным числом запросов
+        PageStatusService.Statuses sectionStatuses = pageStatusService.sectionStatuses(userId,
+                sections.stream().map(Section::getId).toList());
+
         boolean anyLearning = false;
         boolean anyNotGreen = false;
         boolean allSectionsGreen = true;
 
         for (Section section : sections) {
-            // Проверяем, есть ли в секции хоть одна тема с вопросами
-            List<Topic> topics = topicRepository.findBySectionIdOrderByOrderIndexAsc(section.getId());
-            boolean sectionHasQuestions = topics.stream()
-                    .anyMatch(t -> questionRepository.countByTopicId(t.getId()) > 0);
-            if (!sectionHasQuestions) continue;
+            // Раздел без вопросов не влияет на статус курса
+            if (section.getQuestionCount() == 0) continue;
 
-            String sectionStatus = getSectionStatusEmoji(userId, section.getId());
+            String sectionStatus = sectionStatuses.learningStatus(section.getId());
             if (!sectionStatus.equals(EMOJI_NOT_STARTED)) anyLearning = true;
             if (!sectionStatus.equals(EMOJI_COMPLETED)) allSectionsGreen = false;
             if (!sectionStatus.equals(EMOJI_COMPLETED) && !sectionStatus.equals(EMOJI_NOT_STARTED)) anyNotGreen = true;
@@ -307,29 +315,6 @@ public class NavigationService {
     public String getCourseTestStatus(Long userId, Long courseId) {
         return getCourseTestStatusInternal(userId, courseId);
     }
-    private String getTopicLearningStatus(Long userId, Long topicId) {
-        List<Question> questions = getAllQuestionsForTopic(topicId);
-        if (questions.isEmpty()) return EMOJI_NOT_STARTED;
-
-        int total = questions.size();
-        int answered = 0;
-        int correct = 0;
-
-        for (Question q : questions) {
-            Optional<UserProgress> lastProgress = userProgressRepository
-                    .findTopByUserIdAndQuestionIdAndModeOrderByCompletedAtDesc(userId, q.getId(), MODE_LEARNING);
-            if (lastProgress.isPresent()) {
-                answered++;
-                if (lastProgress.get().getAnswerResult()) {
-                    correct++;
-                }
-            }
-        }
-
-        if (answered == 0) return EMOJI_NOT_STARTED;
-        if (correct == total) return EMOJI_COMPLETED;
-        return EMOJI_IN_PROGRESS;
-    }
     // добавьте методы:
     @Transactional
     public void saveTestResult(Long userId, String testType, Long testId, int correct, int wrong) {
@@ -365,47 +350,50 @@ public class NavigationService {
         else return EMOJI_IN_PROGRESS;
     }
 
-    @Transactional(readOnly = true)
     public Optional<Block> getNextBlock(Long currentBlockId, Long topicId) {
-        // Находим текущий блок
-        Block current = blockRepository.findById(currentBlockId).orElse(null);
-        if (current == null) return Optional.empty();
-
-        // Получаем все блоки темы, отсортированные по orderIndex
+        CourseCatalog catalog = courseCatalog.current();
+        if (catalog != null) {
+            return catalog.adjacentBlock(currentBlockId, topicId, 1);
+        }
+        // Получаем все блоки темы, отсортированные по orderIndex, и ищем среди них текущий
         List<Block> blocks = blockRepository.findByTopicIdOrderByOrderIndexAsc(topicId);
-        int currentIndex = blocks.indexOf(current);
+        int currentIndex = indexOfBlock(blocks, currentBlockId);
         if (currentIndex >= 0 && currentIndex < blocks.size() - 1) {
             return Optional.of(blocks.get(currentIndex + 1));
         }
         return Optional.empty();
     }
 
-    @Transactional(readOnly = true)
     public Optional<Block> getPrevBlock(Long currentBlockId, Long topicId) {
-        Block current = blockRepository.findById(currentBlockId).orElse(null);
-        if (current == null) return Optional.empty();
-
+        CourseCatalog catalog = courseCatalog.current();
+        if (catalog != null) {
+            return catalog.adjacentBlock(currentBlockId, topicId, -1);
+        }
         List<Block> blocks = blockRepository.findByTopicIdOrderByOrderIndexAsc(topicId);
-        int currentIndex = blocks.indexOf(current);
+        int currentIndex = indexOfBlock(blocks, currentBlockId);
         if (currentIndex > 0) {
             return Optional.of(blocks.get(currentIndex - 1));
         }
         return Optional.empty();
     }
-    @Transactional
-    public void saveAnswerProgress(Long userId, Long questionId, boolean correct, boolean isLearning) {
-        Question question = questionRepository.findById(questionId)
-                .orElseThrow(() -> new RuntimeException("Question not found"));
-        UserProgress progress = new UserProgress();
-        progress.setUserId(userId);
-        progress.setCourse(question.getBlock().getTopic().getSection().getCourse());
-        progress.setQuestion(question);
-        progress.setIsPassed(true);
-        progress.setAnswerResult(correct);
-        progress.setCompletedAt(Instant.now());
-        progress.setMode(isLearning ? MODE_LEARNING : MODE_TEST);
-        userProgressRepository.save(progress);
-        updateCourseLastAccessed(userId, progress.getCourse().getId());
+
+    private static int indexOfBlock(List<Block> blocks, Long blockId) {
+        for (int i = 0; i < blocks.size(); i++) {
+            if (blocks.get(i).getId().equals(blockId)) return i;
+        }
+        return -1;
+    }
+    /**
+     * Записывает ответ: журнал, сводку темы, ошибку и отметку захода в курс пачками в AnswerEventWriter;
+     * studyTopicId != null — ещё и действие для учёта времени изучения.
+     */
+    public void submitAnswer(Long userId, Long questionId, boolean correct, boolean isLearning, Long studyTopicId) {
+        Instant now = Instant.now();
+        answerEventWriter.submit(new AnswerEventWriter.AnswerEvent(userId, questionId,
+                isLearning ? MODE_LEARNING : MODE_TEST, correct, now));
+        if (studyTopicId != null) {
+            studyTimeTracker.record(userId, studyTopicId, now);
+        }
     }
 
     @Transactional
@@ -445,9 +433,8 @@ public class NavigationService {
         );
     }
 
-    @Transactional(readOnly = true)
     public List<Block> getTopicBlocksWithQuestions(Long topicId) {
-        return blockRepository.findByTopicIdOrderByOrderIndexAsc(topicId);
+        return getBlocksOfTopic(topicId);
     }
 
     // Для меню "Выбрать курс" (все курсы, алфавитная сортировка)
@@ -591,18 +578,22 @@ public class NavigationService {
 
 
     public String getCourseTitle(Long courseId) {
-        return courseRepository.findById(courseId).map(Course::getTitle).orElse("");
+        return getCourse(courseId).map(Course::getTitle).orElse("");
     }
 
     public String getSectionTitle(Long sectionId) {
-        return sectionRepository.findById(sectionId).map(Section::getTitle).orElse("");
+        return getSection(sectionId).map(Section::getTitle).orElse("");
     }
 
     public String getTopicTitle(Long topicId) {
-        return topicRepository.findById(topicId).map(Topic::getTitle).orElse("");
+        return getTopic(topicId).map(Topic::getTitle).orElse("");
     }
 
     public PaginationResult<Section> getSectionsPage(Long courseId, int page) {
+        CourseCatalog catalog = courseCatalog.current();
+        if (catalog != null) {
+            return paginate(catalog.sections(courseId), page);
+        }
         Pageable pageable = PageRequest.of(page, PAGE_SIZE, Sort.by("orderIndex").ascending());
         Page<Section> sectionPage = sectionRepository.findByCourseId(courseId, pageable);
         return new PaginationResult<>(
@@ -616,6 +607,10 @@ public class NavigationService {
     }
 
     public PaginationResult<Topic> getTopicsPage(Long sectionId, int page) {
+        CourseCatalog catalog = courseCatalog.current();
+        if (catalog != null) {
+            return paginate(catalog.topics(sectionId), page);
+        }
         Pageable pageable = PageRequest.of(page, PAGE_SIZE, Sort.by("orderIndex").ascending());
         Page<Topic> topicPage = topicRepository.findBySectionId(sectionId, pageable);
         return new PaginationResult<>(
@@ -629,6 +624,10 @@ public class NavigationService {
     }
 
     public PaginationResult<Block> getBlocksPage(Long topicId, int page) {
+        CourseCatalog catalog = courseCatalog.current();
+        if (catalog != null) {
+            return paginate(catalog.blocks(topicId), page);
+        }
         Pageable pageable = PageRequest.of(page, PAGE_SIZE, Sort.by("orderIndex").ascending());
         Page<Block> blockPage = blockRepository.findByTopicId(topicId, pageable);
         return new PaginationResult<>(
@@ -641,29 +640,32 @@ public class NavigationService {
         );
     }
 
-    @Transactional(readOnly = true)
     public Optional<Block> getBlock(Long blockId) {
-        return blockRepository.findById(blockId);
+        CourseCatalog catalog = courseCatalog.current();
+        return catalog != null ? catalog.block(blockId) : blockRepository.findById(blockId);
     }
 
-    @Transactional(readOnly = true)
     public List<Question> getQuestionsForBlock(Long blockId) {
-        return questionRepository.findByBlockIdOrderByOrderIndexAsc(blockId);
+        CourseCatalog catalog = courseCatalog.current();
+        return catalog != null ? catalog.questions(blockId) : questionRepository.findByBlockIdOrderByOrderIndexAsc(blockId);
     }
 
-    @Transactional(readOnly = true)
     public Optional<Question> getQuestion(Long questionId) {
-        return questionRepository.findById(questionId);
+        CourseCatalog catalog = courseCatalog.current();
+        return catalog != null ? catalog.question(questionId) : questionRepository.findById(questionId);
     }
 
-    @Transactional(readOnly = true)
     public List<AnswerOption> getAnswerOptionsForQuestion(Long questionId) {
-        return answerOptionRepository.findByQuestionIdOrderByOrderIndexAsc(questionId);
+        CourseCatalog catalog = courseCatalog.current();
+        return catalog != null ? catalog.answerOptions(questionId) : answerOptionRepository.findByQuestionIdOrderByOrderIndexAsc(questionId);
     }
 
     // Для тестов: получить все вопросы темы
-    @Transactional(readOnly = true)
     public List<Question> getAllQuestionsForTopic(Long topicId) {
+        CourseCatalog catalog = courseCatalog.current();
+        if (catalog != null) {
+            return catalog.topicQuestions(topicId);
+        }
         // Находим все блоки темы, затем собираем вопросы
         List<Block> blocks = blockRepository.findByTopicIdOrderByOrderIndexAsc(topicId);
         return blocks.stream()
@@ -675,15 +677,14 @@ public class NavigationService {
     /**
      * Получить случайные вопросы для раздела (по 2 из каждого блока всех тем раздела)
      */
-    @Transactional(readOnly = true)
     public List<Question> getRandomQuestionsForSection(Long sectionId, int questionsPerBlock) {
         List<Question> result = new ArrayList<>();
-        List<Topic> topics = topicRepository.findBySectionIdOrderByOrderIndexAsc(sectionId);
+        List<Topic> topics = getTopicsOfSection(sectionId);
         for (Topic topic : topics) {
-            List<Block> blocks = blockRepository.findByTopicIdOrderByOrderIndexAsc(topic.getId());
+            List<Block> blocks = getBlocksOfTopic(topic.getId());
             for (Block block : blocks) {
                 // Создаём изменяемую копию списка вопросов блока
-                List<Question> blockQuestions = new ArrayList<>(questionRepository.findByBlockIdOrderByOrderIndexAsc(block.getId()));
+                List<Question> blockQuestions = new ArrayList<>(getQuestionsForBlock(block.getId()));
                 if (!blockQuestions.isEmpty()) {
                     Collections.shuffle(blockQuestions);
                     // Берём до questionsPerBlock вопросов из блока
@@ -697,12 +698,11 @@ public class NavigationService {
     /**
      * Получить случайные вопросы для курса (по 2 из каждой темы всех разделов)
      */
-    @Transactional(readOnly = true)
     public List<Question> getRandomQuestionsForCourse(Long courseId, int questionsPerTopic) {
         List<Question> result = new ArrayList<>();
-        List<Section> sections = sectionRepository.findByCourseIdOrderByOrderIndexAsc(courseId);
+        List<Section> sections = getSectionsOfCourse(courseId);
         for (Section section : sections) {
-            List<Topic> topics = topicRepository.findBySectionIdOrderByOrderIndexAsc(section.getId());
+            List<Topic> topics = getTopicsOfSection(section.getId());
             for (Topic topic : topics) {
                 // getAllQuestionsForTopic возвращает неизменяемый список, поэтому создаём копию
                 List<Question> topicQuestions = new ArrayList<>(getAllQuestionsForTopic(topic.getId()));
@@ -748,11 +748,13 @@ public class NavigationService {
     }
     // Получение сущностей по ID
     public Optional<Section> getSection(Long sectionId) {
-        return sectionRepository.findById(sectionId);
+        CourseCatalog catalog = courseCatalog.current();
+        return catalog != null ? catalog.section(sectionId) : sectionRepository.findById(sectionId);
     }
 
     public Optional<Topic> getTopic(Long topicId) {
-        return topicRepository.findById(topicId);
+        CourseCatalog catalog = courseCatalog.current();
+        return catalog != null ? catalog.topic(topicId) : topicRepository.findById(topicId);
     }
     @Transactional
     public void updateCourseLastAccessedOnExit(Long userId, Long courseId) {
@@ -779,6 +781,9 @@ public class NavigationService {
                 .stream().collect(Collectors.toMap(arr -> (Long) arr[0], arr -> (Long) arr[1]));
         Map<Long, Long> correctMap = userProgressRepository.countCorrectLearningAnswersByUserAndCourses(userId, courseIds)
                 .stream().collect(Collectors.toMap(arr -> (Long) arr[0], arr -> (Long) arr[1]));
+        // Правильные ответы, свёрнутые из журнала компактором
+        userAnswerStatsRepository.sumCorrectLearningAnswersByUserAndCourses(userId, courseIds)
+                .forEach(arr -> correctMap.merge((Long) arr[0], ((Number) arr[1]).longValue(), Long::sum));
         Map<Long, String> testStatusMap = getCourseTestStatusesForUser(userId, courseIds);
 
         Map<Long, String> result = new HashMap<>();
@@ -804,21 +809,7 @@ public class NavigationService {
     }
 
     public Map<Long, String> getCourseTestStatusesForUser(Long userId, List<Long> courseIds) {
-        if (courseIds.isEmpty()) return Collections.emptyMap();
-        List<Object[]> results = userTestResultRepository.findTestResultsByUserAndTestIds(userId, TEST_TYPE_COURSE, courseIds);
-        Map<Long, String> map = new HashMap<>();
-        for (Object[] row : results) {
-            Long courseId = (Long) row[0];
-            int correct = ((Number) row[1]).intValue();
-            int wrong = ((Number) row[2]).intValue();
-            int total = correct + wrong;
-            if (total == 0) continue;
-            double percent = (double) correct / total;
-            if (percent >= 1.0) map.put(courseId, EMOJI_COMPLETED);
-            else if (percent >= 0.5) map.put(courseId, EMOJI_IN_PROGRESS);
-            else map.put(courseId, EMOJI_FAILED);
-        }
-        return map;
+        return pageStatusService.testStatuses(userId, TEST_TYPE_COURSE, courseIds);
     }
 
 }
\ No newline at end of file
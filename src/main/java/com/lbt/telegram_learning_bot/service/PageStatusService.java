@@ -0,0 +1,151 @@
+package com.lbt.telegram_learning_bot.service;
+
+import com.lbt.telegram_learning_bot.entity.Topic;
+import com.lbt.telegram_learning_bot.entity.UserTopicProgress;
+import com.lbt.telegram_learning_bot.repository.TopicRepository;
+import com.lbt.telegram_learning_bot.repository.UserTestResultRepository;
+import com.lbt.telegram_learning_bot.repository.UserTopicProgressRepository;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.lbt.telegram_learning_bot.util.Constants.*;
+
+/**
+ * Статусы (эмодзи) целой страницы разделов или тем за постоянное число запросов, независимо от её размера:
+ * <ul>
+ *   <li>темы — сводки user_topic_progress одним запросом и результаты тестов тем одним запросом;</li>
+ *   <li>разделы — темы всех разделов (из снимка контента, без него — одним запросом), сводки этих тем
+ *   одним запросом и результаты тестов разделов одним запросом.</li>
+ * </ul>
+ * Одиночные статусы NavigationService считаются здесь же, поэтому семантика у страницы и у одного элемента общая.
+ */
+@Service
+@RequiredArgsConstructor
+public class PageStatusService {
+
+    private final TopicRepository topicRepository;
+    private final UserTopicProgressRepository userTopicProgressRepository;
+    private final UserTestResultRepository userTestResultRepository;
+    private final CourseCatalogService courseCatalog;
+
+    /**
+     * Статусы страницы: учебный и тестовый по id элемента. Отсутствующий id — «не начато».
+     */
+    public record Statuses(Map<Long, String> learning, Map<Long, String> tests) {
+
+        static final Statuses EMPTY = new Statuses(Map.of(), Map.of());
+
+        public String learningStatus(Long id) {
+            return learning.getOrDefault(id, EMOJI_NOT_STARTED);
+        }
+
+        public String testStatus(Long id) {
+            return tests.getOrDefault(id, EMOJI_NOT_STARTED);
+        }
+    }
+
+    /**
+     * Статусы тем страницы. Темы берутся готовыми: число вопросов уже лежит в самой теме.
+     * withTests = false — результаты тестов не запрашиваются.
+     */
+    public Statuses topicStatuses(Long userId, List<Topic> topics, boolean withTests) {
+        if (topics.isEmpty()) return Statuses.EMPTY;
+        List<Long> topicIds = topics.stream().map(Topic::getId).toList();
+        Map<Long, UserTopicProgress> progressByTopic = learningProgress(userId, topicIds);
+
+        Map<Long, String> learning = new HashMap<>();
+        for (Topic topic : topics) {
+            learning.put(topic.getId(), learningStatus(topic.getQuestionCount(), progressByTopic.get(topic.getId())));
+        }
+        return new Statuses(learning, withTests ? testStatuses(userId, TEST_TYPE_TOPIC, topicIds) : Map.of());
+    }
+
+    /**
+     * Статусы разделов страницы. Тестовый статус раздела нужен и для учебного, поэтому запрашивается всегда.
+     */
+    public Statuses sectionStatuses(Long userId, List<Long> sectionIds) {
+        if (sectionIds.isEmpty()) return Statuses.EMPTY;
+        Map<Long, List<Topic>> topicsBySection = topicsOfSections(sectionIds);
+
+        // Темы без вопросов на статус не влияют — их сводки не нужны
+        List<Long> topicIds = topicsBySection.values().stream().flatMap(List::stream)
+                .filter(topic -> topic.getQuestionCount() > 0).map(Topic::getId).toList();
+        Map<Long, UserTopicProgress> progressByTopic = topicIds.isEmpty() ? Map.of() : learningProgress(userId, topicIds);
+        Map<Long, String> tests = testStatuses(userId, TEST_TYPE_SECTION, sectionIds);
+
+        Map<Long, String> learning = new HashMap<>();
+        for (Long sectionId : sectionIds) {
+            List<Topic> topics = topicsBySection.getOrDefault(sectionId, List.of());
+            if (topics.isEmpty()) {
+                learning.put(sectionId, EMOJI_NOT_STARTED);
+                continue;
+            }
+
+            boolean anyLearning = false; // есть ли хоть один учебный ответ в разделе
+            boolean allTopicsGreen = true; // все темы, имеющие вопросы, зелёные по учебному статусу
+            for (Topic topic : topics) {
+                if (topic.getQuestionCount() == 0) continue;
+                String status = learningStatus(topic.getQuestionCount(), progressByTopic.get(topic.getId()));
+                if (!status.equals(EMOJI_NOT_STARTED)) anyLearning = true;
+                if (!status.equals(EMOJI_COMPLETED)) allTopicsGreen = false;
+            }
+
+            String testStatus = tests.getOrDefault(sectionId, EMOJI_NOT_STARTED);
+            if (!anyLearning && testStatus.equals(EMOJI_NOT_STARTED)) learning.put(sectionId, EMOJI_NOT_STARTED);
+            else if (allTopicsGreen && testStatus.equals(EMOJI_COMPLETED)) learning.put(sectionId, EMOJI_COMPLETED);
+            else learning.put(sectionId, EMOJI_IN_PROGRESS);
+        }
+        return new Statuses(learning, tests);
+    }
+
+    /**
+     * Статусы итоговых тестов одним запросом. Нет результата или он пустой — id в ответе нет («не начато»).
+     */
+    public Map<Long, String> testStatuses(Long userId, String testType, List<Long> testIds) {
+        if (testIds.isEmpty()) return Collections.emptyMap();
+        Map<Long, String> map = new HashMap<>();
+        for (Object[] row : userTestResultRepository.findTestResultsByUserAndTestIds(userId, testType, testIds)) {
+            int correct = ((Number) row[1]).intValue();
+            int wrong = ((Number) row[2]).intValue();
+            int total = correct + wrong;
+            if (total == 0) continue;
+            double percent = (double) correct / total;
+            if (percent >= 1.0) map.put((Long) row[0], EMOJI_COMPLETED);
+            else if (percent >= 0.5) map.put((Long) row[0], EMOJI_IN_PROGRESS);
+            else map.put((Long) row[0], EMOJI_FAILED);
+        }
+        return map;
+    }
+
+    /**
+     * Учебный статус темы по сводке user_topic_progress: total — число вопросов темы.
+     * Зелёный — последний ответ на каждый вопрос верный.
+     */
+    static String learningStatus(int total, UserTopicProgress progress) {
+        if (total == 0 || progress == null || progress.getAnswered() == 0) return EMOJI_NOT_STARTED;
+        if (progress.getCorrect() >= total) return EMOJI_COMPLETED;
+        return EMOJI_IN_PROGRESS;
+    }
+
+    private Map<Long, UserTopicProgress> learningProgress(Long userId, List<Long> topicIds) {
+        return userTopicProgressRepository.findByUserIdAndModeAndTopicIdIn(userId, MODE_LEARNING, topicIds)
+                .stream().collect(Collectors.toMap(UserTopicProgress::getTopicId, p -> p));
+    }
+
+    private Map<Long, List<Topic>> topicsOfSections(List<Long> sectionIds) {
+        CourseCatalog catalog = courseCatalog.current();
+        if (catalog != null) {
+            Map<Long, List<Topic>> result = new HashMap<>();
+            for (Long sectionId : sectionIds) {
+                result.put(sectionId, catalog.topics(sectionId));
+            }
+            return result;
+        }
+        // getSection().getId() не загружает раздел: id берётся из прокси
+        return topicRepository.findBySectionIdIn(sectionIds).stream()
+                .collect(Collectors.groupingBy(topic -> topic.getSection().getId()));
+    }
+}
@@ -0,0 +1,77 @@
+package com.lbt.telegram_learning_bot.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Сверяет денормализованные question_count курсов, разделов и тем с фактическим числом вопросов
+ * и чинит расхождения. Первый прогон после старта заполняет счётчики строк, созданных до появления столбца.
+ * Счётчики ведёт CourseImportService в тех же транзакциях, что и изменения, так что в норме чинить нечего;
+ * ненулевой repaired — повод искать путь записи, который их не обновляет.
+ * После починки кэши контента на всех узлах сбрасываются: в них лежат старые счётчики.
+ */
+@Slf4j
+@Service
+public class QuestionCountVerifier {
+
+    private static final String REPAIR_TOPICS_SQL =
+            "UPDATE topic t SET question_count = c.cnt FROM (" +
+            "SELECT tp.id, COUNT(q.id)::int AS cnt FROM topic tp " +
+            "LEFT JOIN block b ON b.topic_id = tp.id LEFT JOIN question q ON q.block_id = b.id GROUP BY tp.id) c " +
+            "WHERE t.id = c.id AND t.question_count IS DISTINCT FROM c.cnt";
+
+    private static final String REPAIR_SECTIONS_SQL =
+            "UPDATE section s SET question_count = c.cnt FROM (" +
+            "SELECT sc.id, COUNT(q.id)::int AS cnt FROM section sc " +
+            "LEFT JOIN topic t ON t.section_id = sc.id LEFT JOIN block b ON b.topic_id = t.id " +
+            "LEFT JOIN question q ON q.block_id = b.id GROUP BY sc.id) c " +
+            "WHERE s.id = c.id AND s.question_count IS DISTINCT FROM c.cnt";
+
+    private static final String REPAIR_COURSES_SQL =
+            "UPDATE course co SET question_count = c.cnt FROM (" +
+            "SELECT cr.id, COUNT(q.id)::int AS cnt FROM course cr " +
+            "LEFT JOIN section s ON s.course_id = cr.id LEFT JOIN topic t ON t.section_id = s.id " +
+            "LEFT JOIN block b ON b.topic_id = t.id LEFT JOIN question q ON q.block_id = b.id GROUP BY cr.id) c " +
+            "WHERE co.id = c.id AND co.question_count IS DISTINCT FROM c.cnt";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final MeterRegistry meterRegistry;
+    private final ContentChangeBus contentChangeBus;
+
+    public QuestionCountVerifier(JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry,
+                                 ContentChangeBus contentChangeBus) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.meterRegistry = meterRegistry;
+        this.contentChangeBus = contentChangeBus;
+    }
+
+    // Импорт, закоммиченный во время прогона, может дать временное расхождение — его исправит следующий прогон
+    @Scheduled(fixedDelayString = "${content.question-count.verify-interval-ms:3600000}")
+    public void verify() {
+        int repaired = 0;
+        try {
+            repaired += repair("topic", REPAIR_TOPICS_SQL);
+            repaired += repair("section", REPAIR_SECTIONS_SQL);
+            repaired += repair("course", REPAIR_COURSES_SQL);
+        } catch (RuntimeException e) {
+            log.error("Question count verification failed", e);
+        } finally {
+            // Каждый UPDATE уже закоммичен — уровни, починенные до ошибки, тоже должны дойти до кэшей
+            if (repaired > 0) {
+                contentChangeBus.publish(ContentChangeEvent.Scope.ALL, null);
+            }
+        }
+    }
+
+    private int repair(String level, String sql) {
+        int repaired = jdbcTemplate.update(sql);
+        if (repaired > 0) {
+            meterRegistry.counter("content.question_count.repaired", "level", level).increment(repaired);
+            log.warn("Repaired question_count of {} {} rows", repaired, level);
+        }
+        return repaired;
+    }
+}
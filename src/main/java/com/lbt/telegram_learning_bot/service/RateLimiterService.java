@@ -1,54 +1,288 @@
 package com.lbt.telegram_learning_bot.service;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.util.EnumMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Ограничение частоты запросов пользователя: token bucket.
+ * Корзина вмещает rate.limit.burst токенов и пополняется со скоростью rate.limit.max-requests-per-minute
+ * в минуту; обычный запрос стоит 1 токен, тяжёлые операции (PDF, импорт, загрузка изображений) — дороже.
+ * <p>
+ * Состояние хранится без объектов на пользователя: открытая адресация (линейное пробирование) по userId
+ * в двух AtomicLongArray — ключи и упакованное состояние [микротокены: 32 бита][время, мс: 32 бита].
+ * Поиск и обновление — CAS без блокировок. Простаивающие записи (корзина снова полная) удаляются
+ * по частям фоновым обходом, а не полным сканированием. Вставка нового ключа и превращение надгробий
+ * в пустые слоты исключают друг друга (insertLock): иначе вставка, прошедшая по надгробию, пока его
+ * очищают, и следующая вставка того же ключа заняли бы два слота.
+ * <p>
+ * Фото альбома приходят отдельными сообщениями с общим media_group_id: стоимость загрузки списывается
+ * один раз за альбом, остальные фото стоят как обычное сообщение.
+ * <p>
+ * При rate.limit.cluster.enabled=true лимит общий для всех узлов, см. ClusterRateLimiter.
+ */
 @Slf4j
 @Service
 public class RateLimiterService {
 
-    @Value("${rate.limit.max-requests-per-minute:30}")
-    private int maxRequestsPerMinute;
+    private static final long EMPTY = 0L;
+    private static final long TOMBSTONE = Long.MIN_VALUE;
+    // Состояние записи, которую сейчас удаляют: такое количество токенов недостижимо
+    private static final long EVICTING = -1L;
+    // Состояние только что вставленной записи: полная корзина
+    private static final long FRESH = 0L;
 
-    // Храним для каждого userId: количество запросов за текущую минуту и timestamp начала минуты
-    private final Map<Long, UserRequestInfo> requestCounts = new ConcurrentHashMap<>();
+    private static final long MICRO = 1_000_000L;
+    private static final long TICK_MASK = 0xFFFF_FFFFL;
+
+    private final AtomicLongArray keys;
+    private final AtomicLongArray states;
+    private final int mask;
+    private final long capacity;
+    private final long microPerMinute;
+    private final long fullRefillMs;
+    private final Map<HeavyJobExecutor.JobType, Long> costs = new EnumMap<>(HeavyJobExecutor.JobType.class);
+    private final int evictionStep;
+    private final long startNanos = System.nanoTime();
+    private final ClusterRateLimiter clusterLimiter;
+    private final Counter rejected;
+    private final Counter tableFull;
+    // Вставки — под чтением (параллельно друг другу), очистка надгробий — под записью
+    private final ReadWriteLock insertLock = new ReentrantReadWriteLock();
+    // Альбомы, за которые стоимость загрузки уже списана: ключ «userId:media_group_id» → время, мс
+    private final Map<String, Long> chargedAlbums = new ConcurrentHashMap<>();
+    private int evictionCursor;
+
+    public RateLimiterService(ClusterRateLimiter clusterLimiter,
+                              MeterRegistry meterRegistry,
+                              @Value("${rate.limit.max-requests-per-minute:30}") int maxRequestsPerMinute,
+                              @Value("${rate.limit.burst:${rate.limit.max-requests-per-minute:30}}") int burst,
+                              @Value("${rate.limit.cost.pdf-export:10}") int pdfExportCost,
+                              @Value("${rate.limit.cost.course-import:10}") int courseImportCost,
+                              @Value("${rate.limit.cost.image-upload:3}") int imageUploadCost,
+                              @Value("${rate.limit.table-size:65536}") int tableSize) {
+        if (burst <= 0 || maxRequestsPerMinute <= 0 || (long) burst * MICRO >= TICK_MASK) {
+            throw new IllegalArgumentException("rate.limit.burst must be in 1..4294 and the rate positive");
+        }
+        this.clusterLimiter = clusterLimiter;
+        int size = Integer.highestOneBit(Math.max(tableSize, 64) - 1) << 1;
+        this.keys = new AtomicLongArray(size);
+        this.states = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.capacity = burst * MICRO;
+        this.microPerMinute = maxRequestsPerMinute * MICRO;
+        this.fullRefillMs = (capacity * 60_000 + microPerMinute - 1) / microPerMinute;
+        // Стоимость больше ёмкости корзины не прошла бы никогда: ни локально, ни через аренду кластера
+        costs.put(HeavyJobExecutor.JobType.PDF_EXPORT, cost("pdf-export", pdfExportCost, burst));
+        costs.put(HeavyJobExecutor.JobType.COURSE_IMPORT, cost("course-import", courseImportCost, burst));
+        costs.put(HeavyJobExecutor.JobType.IMAGE_UPLOAD, cost("image-upload", imageUploadCost, burst));
+        // Полный обход таблицы примерно за минуту
+        this.evictionStep = Math.max(64, size / 60);
+        this.rejected = Counter.builder("rate.limit.rejected").register(meterRegistry);
+        this.tableFull = Counter.builder("rate.limit.table.full").register(meterRegistry);
+    }
+
+    private static long cost(String name, int cost, int burst) {
+        if (cost <= 0 || cost > burst) {
+            throw new IllegalArgumentException("rate.limit.cost." + name + "=" + cost
+                    + " must be in 1..rate.limit.burst (" + burst + "), otherwise the request could never pass");
+        }
+        return cost * MICRO;
+    }
 
     public boolean isAllowed(Long userId) {
-        long currentMinute = System.currentTimeMillis() / 60_000; // минуты с эпохи
-        UserRequestInfo info = requestCounts.compute(userId, (key, existing) -> {
-            if (existing == null || existing.getMinute() != currentMinute) {
-                return new UserRequestInfo(currentMinute, new AtomicInteger(1));
-            } else {
-                existing.getCount().incrementAndGet();
-                return existing;
+        return tryAcquire(userId, MICRO);
+    }
+
+    // Запрос, запускающий тяжёлую операцию, списывает её стоимость
+    public boolean isAllowed(Long userId, HeavyJobExecutor.JobType jobType) {
+        return tryAcquire(userId, costs.get(jobType));
+    }
+
+    /**
+     * Сообщение с фото: полная стоимость загрузки — за одиночное фото или первое фото альбома.
+     */
+    public boolean isAllowedPhoto(Long userId, String mediaGroupId) {
+        if (mediaGroupId != null
+                && chargedAlbums.putIfAbsent(userId + ":" + mediaGroupId, System.currentTimeMillis()) != null) {
+            return isAllowed(userId);
+        }
+        return isAllowed(userId, HeavyJobExecutor.JobType.IMAGE_UPLOAD);
+    }
+
+    private boolean tryAcquire(long userId, long cost) {
+        if (clusterLimiter.isActive()) {
+            if (clusterLimiter.tryAcquire(userId, cost)) {
+                return true;
+            }
+            rejected.increment();
+            return false;
+        }
+        if (userId == EMPTY || userId == TOMBSTONE) {
+            return true;
+        }
+        int slot = findOrInsert(userId);
+        while (true) {
+            if (slot < 0) {
+                // Таблица переполнена — не блокируем пользователя из-за нехватки места
+                tableFull.increment();
+                return true;
+            }
+            long state = states.get(slot);
+            if (state == EVICTING || keys.get(slot) != userId) {
+                // Запись удаляется или слот уже занят другим — ищем заново
+                Thread.onSpinWait();
+                slot = findOrInsert(userId);
+                continue;
             }
-        });
-        return info.getCount().get() <= maxRequestsPerMinute;
+            long now = tick();
+            long tokens = available(state, now);
+            if (tokens < cost) {
+                rejected.increment();
+                return false;
+            }
+            if (states.compareAndSet(slot, state, pack(tokens - cost, now))) {
+                return true;
+            }
+        }
     }
 
-    // Очистка старых записей раз в минуту (не обязательно, так как мы обновляем по минутам)
-    @Scheduled(fixedDelay = 60_000)
-    public void cleanOldEntries() {
-        long currentMinute = System.currentTimeMillis() / 60_000;
-        requestCounts.entrySet().removeIf(entry -> entry.getValue().getMinute() != currentMinute);
+    /**
+     * Инкрементальное удаление простаивающих записей: за один вызов проверяется evictionStep слотов.
+     * Удалённая запись помечается TOMBSTONE; цепочка надгробий, за которой идёт пустой слот,
+     * снова становится пустой.
+     */
+    @Scheduled(fixedDelay = 1_000)
+    public void evictIdle() {
+        long now = tick();
+        int evicted = 0;
+        for (int n = 0; n < evictionStep; n++) {
+            int i = evictionCursor;
+            evictionCursor = (evictionCursor + 1) & mask;
+            long key = keys.get(i);
+            if (key == EMPTY) {
+                continue;
+            }
+            if (key != TOMBSTONE) {
+                long state = states.get(i);
+                if (state == EVICTING || available(state, now) < capacity
+                        || !states.compareAndSet(i, state, EVICTING)) {
+                    continue;
+                }
+                keys.set(i, TOMBSTONE);
+                evicted++;
+            }
+            clearTombstones(i);
+        }
+        if (evicted > 0) {
+            log.debug("Rate limiter evicted {} idle entries", evicted);
+        }
+        // Все фото альбома приходят за секунды; минуты хватает с запасом
+        long albumsBefore = System.currentTimeMillis() - 60_000;
+        chargedAlbums.values().removeIf(chargedAt -> chargedAt < albumsBefore);
+    }
+
+    private int findOrInsert(long key) {
+        // Существующий ключ находится без блокировки; пустой слот на пути — ключа нет, вставляем под замком
+        int start = hash(key) & mask;
+        for (int n = 0; n <= mask; n++) {
+            int i = (start + n) & mask;
+            long current = keys.get(i);
+            if (current == key) {
+                return i;
+            }
+            if (current == EMPTY) {
+                break;
+            }
+        }
+        insertLock.readLock().lock();
+        try {
+            for (int n = 0; n <= mask; n++) {
+                int i = (start + n) & mask;
+                long current = keys.get(i);
+                if (current == key) {
+                    return i;
+                }
+                if (current == EMPTY) {
+                    // Вставляем только в пустой слот: при одновременной вставке одного ключа побеждает один
+                    if (keys.compareAndSet(i, EMPTY, key) || keys.get(i) == key) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        } finally {
+            insertLock.readLock().unlock();
+        }
+    }
+
+    // Надгробие можно превратить в пустой слот, только если цепочка пробирования на нём и заканчивается;
+    // под замком записи ни одна вставка не займёт следующий слот между проверкой и очисткой
+    private void clearTombstones(int i) {
+        if (keys.get((i + 1) & mask) != EMPTY) {
+            return;
+        }
+        insertLock.writeLock().lock();
+        try {
+            if (keys.get((i + 1) & mask) != EMPTY) {
+                return;
+            }
+            int j = i;
+            while (keys.get(j) == TOMBSTONE) {
+                states.set(j, FRESH);
+                if (!keys.compareAndSet(j, TOMBSTONE, EMPTY)) {
+                    return;
+                }
+                j = (j - 1) & mask;
+            }
+        } finally {
+            insertLock.writeLock().unlock();
+        }
     }
 
-    private static class UserRequestInfo {
-        private final long minute;
-        private final AtomicInteger count;
+    // Для тестов: сколько слотов занимает ключ (больше одного — нарушена целостность таблицы)
+    int slotsOf(long key) {
+        int count = 0;
+        for (int i = 0; i <= mask; i++) {
+            if (keys.get(i) == key) count++;
+        }
+        return count;
+    }
 
-        public UserRequestInfo(long minute, AtomicInteger count) {
-            this.minute = minute;
-            this.count = count;
+    private long available(long state, long now) {
+        if (state == FRESH) {
+            return capacity;
         }
+        long tokens = state >>> 32;
+        // Разница по модулю 2^32: корректна, пока запись простаивает меньше ~49 дней
+        long elapsed = Math.min((now - state) & TICK_MASK, fullRefillMs);
+        return Math.min(capacity, tokens + elapsed * microPerMinute / 60_000);
+    }
+
+    private static long pack(long tokens, long tick) {
+        return (tokens << 32) | tick;
+    }
+
+    // Монотонное время в мс (младшие 32 бита); 0 не используется, чтобы состояние не совпало с FRESH
+    private long tick() {
+        long tick = ((System.nanoTime() - startNanos) / 1_000_000) & TICK_MASK;
+        return tick == 0 ? 1 : tick;
+    }
 
-        public long getMinute() { return minute; }
-        public AtomicInteger getCount() { return count; }
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,256 @@
+package com.lbt.telegram_learning_bot.service;
+
+import com.lbt.telegram_learning_bot.bot.BotContext;
+import com.lbt.telegram_learning_bot.bot.BotRegistry;
+import com.lbt.telegram_learning_bot.bot.BotState;
+import com.lbt.telegram_learning_bot.bot.MessageFingerprintCache;
+import com.lbt.telegram_learning_bot.bot.OutboundScheduler;
+import com.lbt.telegram_learning_bot.bot.UserContext;
+import com.lbt.telegram_learning_bot.entity.UserSessionId;
+import com.pengrad.telegrambot.request.EditMessageReplyMarkup;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Обслуживание таблицы user_session:
+ * <ul>
+ *     <li>сбрасывает пачкой updated_at сессий, которые только читались;</li>
+ *     <li>проставляет updated_at строкам, записанным до его появления;</li>
+ *     <li>сжимает контексты простаивающих сессий до формы «продолжить с того же места»
+ *     и снимает клавиатуру с их последнего интерактивного сообщения;</li>
+ *     <li>удаляет сессии старше TTL.</li>
+ * </ul>
+ * Строки обходятся пачками по первичному ключу (keyset), каждая пачка — отдельные короткие запросы,
+ * поэтому таблица не блокируется надолго.
+ */
+@Slf4j
+@Service
+public class SessionSweeper {
+
+    private static final String TOUCH_SQL =
+            "UPDATE user_session SET updated_at = ? WHERE bot_id = ? AND user_id = ? AND updated_at < ?";
+
+    private static final String BACKFILL_SQL =
+            "UPDATE user_session SET updated_at = ? WHERE ctid IN " +
+            "(SELECT ctid FROM user_session WHERE updated_at IS NULL LIMIT ?)";
+
+    private static final String SIZE_COLUMN =
+            "COALESCE(octet_length(context::text), 0) + COALESCE(octet_length(context_bin), 0) AS size";
+
+    private static final String IDLE_BATCH_SQL =
+            "SELECT bot_id, user_id, context::text AS context, context_bin, updated_at, " + SIZE_COLUMN +
+            " FROM user_session WHERE NOT compacted AND updated_at < ? AND (bot_id, user_id) > (?, ?)" +
+            " ORDER BY bot_id, user_id LIMIT ?";
+
+    private static final String EXPIRED_BATCH_SQL =
+            "SELECT bot_id, user_id, " + SIZE_COLUMN +
+            " FROM user_session WHERE updated_at < ? AND (bot_id, user_id) > (?, ?)" +
+            " ORDER BY bot_id, user_id LIMIT ?";
+
+    // Повторная проверка updated_at: сессия могла ожить между выборкой и удалением
+    private static final String DELETE_SQL =
+            "DELETE FROM user_session WHERE bot_id = ? AND user_id = ? AND updated_at < ?";
+
+    private final UserSessionService sessionService;
+    private final JdbcTemplate jdbcTemplate;
+    private final BotRegistry botRegistry;
+    private final OutboundScheduler outboundScheduler;
+    private final MessageFingerprintCache fingerprintCache;
+    private final Duration idleAfter;
+    private final Duration ttl;
+    private final int batchSize;
+    private final Counter compactedSessions;
+    private final Counter compactedBytes;
+    private final Counter deletedSessions;
+    private final Counter deletedBytes;
+
+    public SessionSweeper(UserSessionService sessionService,
+                          JdbcTemplate jdbcTemplate,
+                          BotRegistry botRegistry,
+                          OutboundScheduler outboundScheduler,
+                          MessageFingerprintCache fingerprintCache,
+                          MeterRegistry meterRegistry,
+                          @Value("${session.sweeper.idle-after-hours:24}") long idleAfterHours,
+                          @Value("${session.sweeper.ttl-days:90}") long ttlDays,
+                          @Value("${session.sweeper.batch-size:500}") int batchSize) {
+        this.sessionService = sessionService;
+        this.jdbcTemplate = jdbcTemplate;
+        this.botRegistry = botRegistry;
+        this.outboundScheduler = outboundScheduler;
+        this.fingerprintCache = fingerprintCache;
+        this.idleAfter = Duration.ofHours(idleAfterHours);
+        this.ttl = Duration.ofDays(ttlDays);
+        this.batchSize = batchSize;
+        this.compactedSessions = Counter.builder("session.sweeper.sessions").tag("action", "compact").register(meterRegistry);
+        this.compactedBytes = Counter.builder("session.sweeper.reclaimed.bytes").tag("action", "compact").register(meterRegistry);
+        this.deletedSessions = Counter.builder("session.sweeper.sessions").tag("action", "delete").register(meterRegistry);
+        this.deletedBytes = Counter.builder("session.sweeper.reclaimed.bytes").tag("action", "delete").register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${session.touch.flush-interval-ms:30000}")
+    public void flushTouches() {
+        List<UserSessionId> ids = sessionService.drainTouched();
+        if (ids.isEmpty()) {
+            return;
+        }
+        Timestamp now = Timestamp.from(Instant.now());
+        for (int from = 0; from < ids.size(); from += batchSize) {
+            List<Object[]> args = new ArrayList<>();
+            for (UserSessionId id : ids.subList(from, Math.min(from + batchSize, ids.size()))) {
+                args.add(new Object[]{now, id.getBotId(), id.getUserId(), now});
+            }
+            jdbcTemplate.batchUpdate(TOUCH_SQL, args);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${session.sweeper.interval-ms:600000}", initialDelay = 60_000)
+    public void sweep() {
+        // Сначала касания — иначе активную, но только читающую сессию примем за простаивающую
+        flushTouches();
+        backfillUpdatedAt();
+        Instant now = Instant.now();
+        Result compacted = compactIdle(Timestamp.from(now.minus(idleAfter)));
+        Result deleted = deleteExpired(Timestamp.from(now.minus(ttl)));
+        if (compacted.sessions > 0 || deleted.sessions > 0) {
+            log.info("Session sweep: compacted {} sessions ({} bytes reclaimed), deleted {} sessions ({} bytes reclaimed)",
+                    compacted.sessions, compacted.bytes, deleted.sessions, deleted.bytes);
+        }
+    }
+
+    // Строки, записанные до появления updated_at, считаем активными с момента первого обхода
+    private void backfillUpdatedAt() {
+        Timestamp now = Timestamp.from(Instant.now());
+        int updated;
+        do {
+            updated = jdbcTemplate.update(BACKFILL_SQL, now, batchSize);
+        } while (updated == batchSize);
+    }
+
+    private Result compactIdle(Timestamp cutoff) {
+        Result result = new Result();
+        String lastBotId = "";
+        long lastUserId = Long.MIN_VALUE;
+        while (true) {
+            List<IdleRow> rows = jdbcTemplate.query(IDLE_BATCH_SQL, (rs, i) -> new IdleRow(
+                    new UserSessionId(rs.getString("bot_id"), rs.getLong("user_id")),
+                    rs.getString("context"),
+                    rs.getBytes("context_bin"),
+                    rs.getTimestamp("updated_at"),
+                    rs.getLong("size")), cutoff, lastBotId, lastUserId, batchSize);
+            for (IdleRow row : rows) {
+                UserContext context = sessionService.decodeStored(row.id(), row.json(), row.binary());
+                int newSize = sessionService.writeCompacted(row.id(), row.updatedAt(), BotState.MAIN_MENU, compact(context));
+                if (newSize >= 0) {
+                    result.add(Math.max(0, row.size() - newSize));
+                    stripKeyboard(row.id(), context.getLastInteractiveMessageId());
+                }
+            }
+            if (rows.size() < batchSize) {
+                break;
+            }
+            UserSessionId last = rows.get(rows.size() - 1).id();
+            lastBotId = last.getBotId();
+            lastUserId = last.getUserId();
+        }
+        compactedSessions.increment(result.sessions);
+        compactedBytes.increment(result.bytes);
+        return result;
+    }
+
+    private Result deleteExpired(Timestamp cutoff) {
+        Result result = new Result();
+        String lastBotId = "";
+        long lastUserId = Long.MIN_VALUE;
+        while (true) {
+            List<ExpiredRow> rows = jdbcTemplate.query(EXPIRED_BATCH_SQL, (rs, i) -> new ExpiredRow(
+                    new UserSessionId(rs.getString("bot_id"), rs.getLong("user_id")),
+                    rs.getLong("size")), cutoff, lastBotId, lastUserId, batchSize);
+            if (!rows.isEmpty()) {
+                List<Object[]> args = new ArrayList<>(rows.size());
+                for (ExpiredRow row : rows) {
+                    args.add(new Object[]{row.id().getBotId(), row.id().getUserId(), cutoff});
+                }
+                int[] deleted = jdbcTemplate.batchUpdate(DELETE_SQL, args);
+                for (int i = 0; i < rows.size(); i++) {
+                    // SUCCESS_NO_INFO (-2) — драйвер не сообщил количество, считаем удалённой
+                    if (deleted[i] != 0) {
+                        result.add(rows.get(i).size());
+                    }
+                }
+                sessionService.evict(rows.stream().map(ExpiredRow::id).toList());
+            }
+            if (rows.size() < batchSize) {
+                break;
+            }
+            UserSessionId last = rows.get(rows.size() - 1).id();
+            lastBotId = last.getBotId();
+            lastUserId = last.getUserId();
+        }
+        deletedSessions.increment(result.sessions);
+        deletedBytes.increment(result.bytes);
+        return result;
+    }
+
+    // Кнопки последнего сообщения ведут в тему или тест, позиции в которых сжатый контекст не хранит
+    private void stripKeyboard(UserSessionId id, Integer messageId) {
+        if (messageId == null || botRegistry.find(id.getBotId()).isEmpty()) {
+            return;
+        }
+        BotContext.runAs(id.getBotId(), () -> {
+            fingerprintCache.evict(id.getBotId(), id.getUserId(), messageId);
+            outboundScheduler.submit(id.getUserId(), new EditMessageReplyMarkup(id.getUserId(), messageId))
+                    .whenComplete((response, error) -> {
+                        if (error != null || !response.isOk()) {
+                            log.debug("Failed to strip keyboard of message {} for user {}: {}", messageId,
+                                    id.getUserId(), error != null ? error.getMessage() : response.description());
+                        }
+                    });
+        });
+    }
+
+    /**
+     * Минимальная форма контекста: позиция в курсе, страницы списков и имя пользователя.
+     * Незавершённые тесты, загрузка изображений и ссылки на старые медиа-сообщения отбрасываются —
+     * после долгого простоя пользователь начинает с главного меню. Кнопки уцелевших старых сообщений
+     * обработчики встречают сообщением об устаревшей сессии.
+     */
+    private UserContext compact(UserContext full) {
+        UserContext resume = new UserContext();
+        resume.setCurrentCourseId(full.getCurrentCourseId());
+        resume.setCurrentSectionId(full.getCurrentSectionId());
+        resume.setCurrentTopicId(full.getCurrentTopicId());
+        resume.setCoursesListSource(full.getCoursesListSource());
+        resume.setPreviousCoursesPage(full.getPreviousCoursesPage());
+        resume.setPreviousSectionPage(full.getPreviousSectionPage());
+        resume.setPreviousTopicPage(full.getPreviousTopicPage());
+        resume.setUserName(full.getUserName());
+        return resume;
+    }
+
+    private record IdleRow(UserSessionId id, String json, byte[] binary, Timestamp updatedAt, long size) {
+    }
+
+    private record ExpiredRow(UserSessionId id, long size) {
+    }
+
+    private static final class Result {
+        private long sessions;
+        private long bytes;
+
+        private void add(long reclaimed) {
+            sessions++;
+            bytes += reclaimed;
+        }
+    }
+}
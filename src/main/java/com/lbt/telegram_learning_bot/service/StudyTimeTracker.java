@@ -0,0 +1,280 @@
+package com.lbt.telegram_learning_bot.service;
+
+import com.lbt.telegram_learning_bot.entity.UserStudyTime;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Время изучения тем. Действия пользователя копятся в памяти: секунды сессии считаются по паузе
+ * с прошлого действия (если она короче SESSION_TIMEOUT_SECONDS) и раз в flush-interval-ms
+ * сбрасываются в user_study_time одним пакетным upsert'ом, а также при остановке.
+ * <p>
+ * Таблица разбита на полосы по userId: все темы пользователя в одной полосе под её замком,
+ * поэтому параллельные действия не теряют время, а полосы друг другу не мешают.
+ * <p>
+ * Первое действие по теме, о которой в памяти ничего нет (после старта или вытеснения), знает только своё время:
+ * пауза с last_action_at из БД досчитывается при сбросе и при чтении. Чтения складывают строки БД
+ * и ещё не сброшенные секунды, в том числе снятые текущим сбросом, пока он не зафиксирован.
+ * <p>
+ * В кластере секунды пользователя сбрасываются и перед отдачей его аренды (flushUsers), а при взятии аренды
+ * заново сброшенные записи забываются (forgetFlushed): паузу считает last_action_at из БД, куда писал
+ * и другой узел.
+ */
+@Slf4j
+@Service
+public class StudyTimeTracker {
+
+    static final int SESSION_TIMEOUT_SECONDS = 300; // 5 минут
+
+    // Параметры: пользователь, тема, накопленные секунды, последнее действие, тема (проверка),
+    // затем три раза первое действие и тайм-аут сессии — пауза с last_action_at строки
+    private static final String FLUSH_SQL = """
+            INSERT INTO user_study_time (user_id, topic_id, total_seconds, last_action_at)
+            SELECT ?, ?, ?, ? WHERE EXISTS (SELECT 1 FROM topic WHERE id = ?)
+            ON CONFLICT (user_id, topic_id) DO UPDATE SET
+                total_seconds = user_study_time.total_seconds + EXCLUDED.total_seconds + CASE
+                    WHEN ?::timestamptz - user_study_time.last_action_at >= interval '1 second'
+                     AND ?::timestamptz - user_study_time.last_action_at < make_interval(secs => ?)
+                    THEN FLOOR(EXTRACT(EPOCH FROM ?::timestamptz - user_study_time.last_action_at))::int
+                    ELSE 0 END,
+                last_action_at = GREATEST(user_study_time.last_action_at, EXCLUDED.last_action_at)
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Stripe[] stripes;
+    private final Counter flushedRows;
+
+    public StudyTimeTracker(JdbcTemplate jdbcTemplate,
+                            MeterRegistry meterRegistry,
+                            @Value("${study.time.stripes:16}") int stripeCount) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.flushedRows = Counter.builder("study.time.flushed").register(meterRegistry);
+        Gauge.builder("study.time.tracked", this, StudyTimeTracker::trackedEntries).register(meterRegistry);
+    }
+
+    /**
+     * Фиксирует действие пользователя в теме в момент at.
+     */
+    public void record(Long userId, Long topicId, Instant at) {
+        Stripe stripe = stripeOf(userId);
+        synchronized (stripe) {
+            Entry entry = stripe.users.computeIfAbsent(userId, id -> new HashMap<>()).get(topicId);
+            if (entry == null) {
+                entry = new Entry();
+                entry.firstAt = at;
+                entry.lastAt = at;
+                stripe.users.get(userId).put(topicId, entry);
+                return;
+            }
+            long seconds = sessionGap(entry.lastAt, at);
+            entry.pendingSeconds += seconds;
+            if (at.isAfter(entry.lastAt)) entry.lastAt = at;
+            entry.dirty = true;
+        }
+    }
+
+    /**
+     * Сумма по строкам БД пользователя плюс несброшенное время. topicIds = null — все темы.
+     */
+    public long totalSeconds(Long userId, List<UserStudyTime> rows, Collection<Long> topicIds) {
+        Map<Long, Instant> stored = new HashMap<>();
+        long total = 0;
+        for (UserStudyTime row : rows) {
+            total += row.getTotalSeconds();
+            stored.put(row.getTopic().getId(), row.getLastActionAt());
+        }
+        Set<Long> filter = topicIds != null ? new HashSet<>(topicIds) : null;
+        Stripe stripe = stripeOf(userId);
+        synchronized (stripe) {
+            Map<Long, Entry> topics = stripe.users.get(userId);
+            if (topics == null) return total;
+            for (Map.Entry<Long, Entry> topic : topics.entrySet()) {
+                if (filter != null && !filter.contains(topic.getKey())) continue;
+                Entry entry = topic.getValue();
+                total += entry.pendingSeconds + entry.flushingSeconds;
+                Instant firstAt = entry.flushingFirstAt != null ? entry.flushingFirstAt : entry.firstAt;
+                if (firstAt != null && stored.get(topic.getKey()) != null) {
+                    total += sessionGap(stored.get(topic.getKey()), firstAt);
+                }
+            }
+        }
+        return total;
+    }
+
+    @Scheduled(fixedDelayString = "${study.time.flush-interval-ms:30000}")
+    public void scheduledFlush() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("Study time flush failed, will retry", e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    /**
+     * Сбрасывает накопленное одним пакетным upsert'ом. При ошибке снятое возвращается в память.
+     */
+    public synchronized void flush() {
+        List<Pending> pending = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.users.forEach((userId, topics) -> take(userId, topics, pending));
+            }
+        }
+        write(pending);
+        evictIdle();
+    }
+
+    /**
+     * Сбрасывает накопленное только у этих пользователей — перед отдачей их аренды другому узлу.
+     */
+    public synchronized void flushUsers(Collection<Long> userIds) {
+        List<Pending> pending = new ArrayList<>();
+        for (Long userId : userIds) {
+            Stripe stripe = stripeOf(userId);
+            synchronized (stripe) {
+                Map<Long, Entry> topics = stripe.users.get(userId);
+                if (topics != null) take(userId, topics, pending);
+            }
+        }
+        write(pending);
+    }
+
+    /**
+     * Забывает уже сброшенные записи пользователя: аренда взята заново, и пока она была у другого узла,
+     * last_action_at в БД мог уйти вперёд. Следующее действие досчитает паузу от него.
+     */
+    public void forgetFlushed(Long userId) {
+        Stripe stripe = stripeOf(userId);
+        synchronized (stripe) {
+            Map<Long, Entry> topics = stripe.users.get(userId);
+            if (topics == null) return;
+            topics.values().removeIf(Entry::isFlushed);
+            if (topics.isEmpty()) stripe.users.remove(userId);
+        }
+    }
+
+    // Вызывается под замком полосы: снятое остаётся видно чтениям как flushing* до фиксации
+    private static void take(Long userId, Map<Long, Entry> topics, List<Pending> pending) {
+        topics.forEach((topicId, entry) -> {
+            if (!entry.dirty && entry.firstAt == null) return;
+            pending.add(new Pending(userId, topicId, entry, entry.pendingSeconds, entry.lastAt, entry.firstAt));
+            entry.flushingSeconds = entry.pendingSeconds;
+            entry.flushingFirstAt = entry.firstAt;
+            entry.pendingSeconds = 0;
+            entry.firstAt = null;
+            entry.dirty = false;
+        });
+    }
+
+    private void write(List<Pending> pending) {
+        if (pending.isEmpty()) return;
+        List<Object[]> args = new ArrayList<>(pending.size());
+        for (Pending p : pending) {
+            Timestamp first = p.firstAt() != null ? Timestamp.from(p.firstAt()) : null;
+            args.add(new Object[]{p.userId(), p.topicId(), p.seconds(), Timestamp.from(p.lastAt()), p.topicId(),
+                    first, first, SESSION_TIMEOUT_SECONDS, first});
+        }
+        try {
+            jdbcTemplate.batchUpdate(FLUSH_SQL, args);
+        } catch (RuntimeException e) {
+            settle(pending, false);
+            throw e;
+        }
+        settle(pending, true);
+        flushedRows.increment(pending.size());
+    }
+
+    // Зафиксированное уже в БД — снимок убирается; при ошибке он возвращается в несброшенное
+    private void settle(List<Pending> pending, boolean committed) {
+        for (Pending p : pending) {
+            Stripe stripe = stripeOf(p.userId());
+            synchronized (stripe) {
+                Entry entry = p.entry();
+                if (!committed) {
+                    entry.pendingSeconds += entry.flushingSeconds;
+                    if (entry.flushingFirstAt != null) entry.firstAt = entry.flushingFirstAt;
+                    entry.dirty = true;
+                }
+                entry.flushingSeconds = 0;
+                entry.flushingFirstAt = null;
+            }
+        }
+    }
+
+    // Сброшенные записи, простоявшие дольше тайм-аута сессии, уже ничего не добавят — их держит БД
+    private void evictIdle() {
+        Instant idleBefore = Instant.now().minusSeconds(SESSION_TIMEOUT_SECONDS);
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.users.values().forEach(topics -> topics.values().removeIf(entry ->
+                        entry.isFlushed() && entry.lastAt.isBefore(idleBefore)));
+                stripe.users.values().removeIf(Map::isEmpty);
+            }
+        }
+    }
+
+    private int trackedEntries() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Map<Long, Entry> topics : stripe.users.values()) count += topics.size();
+            }
+        }
+        return count;
+    }
+
+    private Stripe stripeOf(Long userId) {
+        return stripes[Math.floorMod(userId.hashCode(), stripes.length)];
+    }
+
+    // Секунды паузы между действиями, если она укладывается в сессию
+    private static long sessionGap(Instant from, Instant to) {
+        long seconds = Duration.between(from, to).getSeconds();
+        return seconds > 0 && seconds < SESSION_TIMEOUT_SECONDS ? seconds : 0;
+    }
+
+    private static class Stripe {
+        private final Map<Long, Map<Long, Entry>> users = new HashMap<>();
+    }
+
+    /**
+     * firstAt != null — первое действие ещё не сопоставлено с last_action_at из БД.
+     * flushing* — снятое идущим сбросом, пока тот не зафиксирован.
+     */
+    private static class Entry {
+        private long pendingSeconds;
+        private Instant lastAt;
+        private Instant firstAt;
+        private boolean dirty;
+        private long flushingSeconds;
+        private Instant flushingFirstAt;
+
+        private boolean isFlushed() {
+            return !dirty && firstAt == null && flushingSeconds == 0 && flushingFirstAt == null;
+        }
+    }
+
+    private record Pending(Long userId, Long topicId, Entry entry, long seconds, Instant lastAt, Instant firstAt) {
+    }
+}
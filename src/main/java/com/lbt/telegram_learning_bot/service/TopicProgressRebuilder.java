@@ -0,0 +1,74 @@
+package com.lbt.telegram_learning_bot.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Пересобирает сводки user_topic_progress из журнала ответов user_progress.
+ * Первый прогон после старта заполняет сводки по ответам, данным до их появления; дальше прогоны
+ * сверяют сводки с журналом и переписывают только разошедшиеся строки.
+ * <p>
+ * Строку, в которую после начала прогона успел попасть новый ответ (last_answer_at новее пересчитанного),
+ * прогон не трогает: её актуальное значение уже учитывает ответ, которого пересчёт не видел.
+ */
+@Slf4j
+@Service
+public class TopicProgressRebuilder {
+
+    // Последний ответ на каждый вопрос в каждом режиме, сгруппированный по темам.
+    // Строки с answer_result = null ответом не считаются — так же, как в AnswerEventWriter
+    private static final String REBUILD_SQL = """
+            INSERT INTO user_topic_progress (user_id, topic_id, mode, answered, correct, last_answer_at)
+            SELECT l.user_id, b.topic_id, l.mode, COUNT(*), COUNT(*) FILTER (WHERE l.answer_result), MAX(l.completed_at)
+            FROM (SELECT DISTINCT ON (user_id, question_id, mode) user_id, question_id, mode, answer_result, completed_at
+                  FROM user_progress WHERE question_id IS NOT NULL AND answer_result IS NOT NULL
+                  ORDER BY user_id, question_id, mode, completed_at DESC NULLS LAST) l
+            JOIN question q ON q.id = l.question_id
+            JOIN block b ON b.id = q.block_id
+            GROUP BY l.user_id, b.topic_id, l.mode
+            ON CONFLICT (user_id, topic_id, mode) DO UPDATE SET
+                answered = EXCLUDED.answered, correct = EXCLUDED.correct, last_answer_at = EXCLUDED.last_answer_at
+            WHERE (user_topic_progress.answered, user_topic_progress.correct)
+                      IS DISTINCT FROM (EXCLUDED.answered, EXCLUDED.correct)
+              AND (user_topic_progress.last_answer_at IS NULL
+                   OR user_topic_progress.last_answer_at <= EXCLUDED.last_answer_at)
+            """;
+
+    // Сводки, для которых в журнале не осталось ответов
+    private static final String DELETE_ORPHANS_SQL = """
+            DELETE FROM user_topic_progress p
+            WHERE NOT EXISTS (SELECT 1 FROM user_progress up
+                              JOIN question q ON q.id = up.question_id
+                              JOIN block b ON b.id = q.block_id
+                              WHERE up.user_id = p.user_id AND up.mode = p.mode AND b.topic_id = p.topic_id
+                                AND up.answer_result IS NOT NULL)
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final MeterRegistry meterRegistry;
+
+    public TopicProgressRebuilder(JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Scheduled(fixedDelayString = "${progress.rollup.rebuild-interval-ms:86400000}")
+    public void rebuild() {
+        try {
+            long started = System.currentTimeMillis();
+            int upserted = jdbcTemplate.update(REBUILD_SQL);
+            int deleted = jdbcTemplate.update(DELETE_ORPHANS_SQL);
+            meterRegistry.counter("progress.rollup.repaired", "action", "upsert").increment(upserted);
+            meterRegistry.counter("progress.rollup.repaired", "action", "delete").increment(deleted);
+            if (upserted > 0 || deleted > 0) {
+                log.info("Topic progress rollups rebuilt in {} ms: {} rows written, {} removed",
+                        System.currentTimeMillis() - started, upserted, deleted);
+            }
+        } catch (RuntimeException e) {
+            log.error("Topic progress rollup rebuild failed", e);
+        }
+    }
+}
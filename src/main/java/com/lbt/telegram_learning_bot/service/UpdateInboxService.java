@@ -0,0 +1,215 @@
+package com.lbt.telegram_learning_bot.service;
+
+import com.lbt.telegram_learning_bot.entity.UpdateInboxId;
+import com.lbt.telegram_learning_bot.repository.UpdateInboxRepository;
+import com.pengrad.telegrambot.BotUtils;
+import com.pengrad.telegrambot.model.Update;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+
+/**
+ * Долговременный журнал апдейтов. Апдейты пишутся пачкой до обработки, и каждая строка перед обработкой
+ * захватывается узлом (claimed_by/claimed_at) одним UPDATE ... RETURNING. Обрабатывается только захваченное:
+ * повторная доставка того же update_id, пока он в работе у кого-то (в том числе у добора после падения)
+ * или уже обработан, отбрасывается.
+ * <p>
+ * Отметки об обработке копятся в памяти и пишутся flush() одним UPDATE на бота: поллер вызывает его
+ * до подтверждения offset, в остальное время — расписание. Пока отметка не записана, строку держит захват
+ * этого узла, так что повторная доставка её не обработает. Неудача обработки пишется сразу (захват
+ * снимается для повтора); не записанная отметка любого вида возвращается в очередь и повторяется flush().
+ * Захват, которому больше claim-timeout-seconds, считается брошенным и может быть перехвачен.
+ */
+@Slf4j
+@Service
+// Составной ключ таблицы должен быть проверен до первой записи
+@DependsOn("schemaKeyMigration")
+@RequiredArgsConstructor
+public class UpdateInboxService {
+
+    private static final String INSERT_SQL =
+            "INSERT INTO update_inbox (bot_id, update_id, payload, received_at, attempts) " +
+            "VALUES (?, ?, CAST(? AS jsonb), ?, 0) ON CONFLICT (bot_id, update_id) DO NOTHING";
+    private static final String CLAIM_SQL =
+            "UPDATE update_inbox SET claimed_by = ?, claimed_at = now() " +
+            "WHERE bot_id = ? AND update_id = ANY(?) AND processed_at IS NULL AND attempts < ? " +
+            "AND (claimed_by IS NULL OR claimed_at < now() - make_interval(secs => ?)) RETURNING update_id";
+    // Добор после запуска; в одиночном режиме захваты прошлого процесса мертвы и перехватываются сразу
+    private static final String CLAIM_PENDING_SQL =
+            "UPDATE update_inbox SET claimed_by = ?, claimed_at = now() WHERE (bot_id, update_id) IN (" +
+            "SELECT bot_id, update_id FROM update_inbox WHERE bot_id = ? AND processed_at IS NULL AND attempts < ? " +
+            "AND (claimed_by IS NULL OR claimed_at < now() - make_interval(secs => ?) OR ?) " +
+            "ORDER BY update_id LIMIT ? FOR UPDATE SKIP LOCKED) RETURNING update_id, payload::text AS payload";
+    // Неудачный апдейт отпускается: его доберёт следующий запуск
+    private static final String MARK_FAILED_SQL =
+            "UPDATE update_inbox SET attempts = attempts + 1, claimed_by = NULL, claimed_at = NULL " +
+            "WHERE bot_id = ? AND update_id = ?";
+    private static final int REPLAY_LIMIT = 1000;
+
+    private final UpdateInboxRepository inboxRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final ClusterNode clusterNode;
+
+    @Value("${bot.inbox.max-attempts:3}")
+    private int maxAttempts;
+
+    @Value("${bot.inbox.retention-hours:24}")
+    private int retentionHours;
+
+    @Value("${bot.inbox.claim-timeout-seconds:300}")
+    private int claimTimeoutSeconds;
+
+    private final Queue<UpdateInboxId> processedIds = new ConcurrentLinkedQueue<>();
+    private final Queue<UpdateInboxId> failedIds = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Записывает пачку бота botId в журнал и возвращает только те апдейты, которые этот узел захватил:
+     * не обработанные и не находящиеся в работе у другого обработчика.
+     */
+    public List<Update> append(String botId, List<Update> updates) {
+        if (updates.isEmpty()) {
+            return updates;
+        }
+        Timestamp now = Timestamp.from(Instant.now());
+        jdbcTemplate.batchUpdate(INSERT_SQL, updates, updates.size(), (ps, update) -> {
+            ps.setString(1, botId);
+            ps.setLong(2, update.updateId());
+            ps.setString(3, BotUtils.toJson(update));
+            ps.setTimestamp(4, now);
+        });
+
+        Long[] ids = updates.stream().map(u -> u.updateId().longValue()).toArray(Long[]::new);
+        Set<Long> claimed = new HashSet<>(jdbcTemplate.query(CLAIM_SQL, ps -> {
+            ps.setString(1, clusterNode.getId());
+            ps.setString(2, botId);
+            ps.setArray(3, ps.getConnection().createArrayOf("bigint", ids));
+            ps.setInt(4, maxAttempts);
+            ps.setInt(5, claimTimeoutSeconds);
+        }, (rs, i) -> rs.getLong(1)));
+        if (claimed.size() < updates.size()) {
+            log.info("Skipping {} updates already processed or in progress", updates.size() - claimed.size());
+        }
+        return updates.stream()
+                .filter(u -> claimed.contains(u.updateId().longValue()))
+                .toList();
+    }
+
+    /**
+     * Вызывается диспетчером после обработки апдейта. Успешная отметка только ставится в очередь —
+     * её запишет пачкой ближайший flush(); захват не даёт обработать апдейт повторно до этого.
+     */
+    public void markHandled(String botId, Update update, boolean success) {
+        if (update.updateId() == null) return;
+        long updateId = update.updateId().longValue();
+        if (success) {
+            processedIds.add(new UpdateInboxId(botId, updateId));
+            return;
+        }
+        try {
+            jdbcTemplate.update(MARK_FAILED_SQL, botId, updateId);
+            log.warn("Update {} of bot {} failed and stays in inbox for replay", updateId, botId);
+        } catch (Exception e) {
+            log.warn("Failed to mark update {} of bot {}, will retry", updateId, botId, e);
+            failedIds.add(new UpdateInboxId(botId, updateId));
+        }
+    }
+
+    /**
+     * Отпускает захват апдейта, который не удалось поставить в обработку (очередь полна, остановка):
+     * повторная доставка Telegram должна его обработать.
+     */
+    public void release(String botId, Update update) {
+        if (update.updateId() == null) return;
+        jdbcTemplate.update("UPDATE update_inbox SET claimed_by = NULL, claimed_at = NULL " +
+                "WHERE bot_id = ? AND update_id = ? AND claimed_by = ?", botId, update.updateId().longValue(), clusterNode.getId());
+    }
+
+    // Пачка накопленных отметок об обработке и повтор неудач, которые не удалось записать сразу
+    @Scheduled(fixedDelayString = "${bot.inbox.flush-interval-ms:1000}")
+    public void flush() {
+        List<UpdateInboxId> processed = drain(processedIds);
+        List<UpdateInboxId> failed = drain(failedIds);
+        try {
+            Instant now = Instant.now();
+            // Один UPDATE на бота
+            byBot(processed).forEach((botId, ids) -> inboxRepository.markProcessed(botId, ids, now));
+            byBot(failed).forEach((botId, ids) -> {
+                inboxRepository.incrementAttempts(botId, ids);
+                log.warn("Updates {} of bot {} failed and stay in inbox for replay", ids, botId);
+            });
+        } catch (Exception e) {
+            // Вернём отметки обратно, чтобы не потерять их до следующей попытки
+            processedIds.addAll(processed);
+            failedIds.addAll(failed);
+            throw e;
+        }
+    }
+
+    /**
+     * Апдейты, записанные в журнал, но не обработанные (падение процесса или ошибка обработчика).
+     * Возвращаются только захваченные этим узлом: строки, которые сейчас обрабатывает другой живой узел, не трогаются.
+     */
+    public List<Update> loadPending(String botId) {
+        List<Object[]> rows = jdbcTemplate.query(CLAIM_PENDING_SQL,
+                (rs, i) -> new Object[]{rs.getLong("update_id"), rs.getString("payload")},
+                clusterNode.getId(), botId, maxAttempts, claimTimeoutSeconds, !clusterNode.isEnabled(), REPLAY_LIMIT);
+        rows.sort(Comparator.comparingLong(row -> (Long) row[0]));
+        List<Update> result = new ArrayList<>();
+        for (Object[] row : rows) {
+            try {
+                result.add(BotUtils.parseUpdate((String) row[1]));
+            } catch (Exception e) {
+                log.error("Cannot parse inbox update {}", row[0], e);
+            }
+        }
+        if (!result.isEmpty()) {
+            log.info("Replaying {} pending updates of bot {} from inbox", result.size(), botId);
+        }
+        return result;
+    }
+
+    @Scheduled(fixedDelay = 3_600_000)
+    public void purgeProcessed() {
+        int deleted = inboxRepository.deleteProcessedBefore(Instant.now().minus(retentionHours, ChronoUnit.HOURS));
+        if (deleted > 0) {
+            log.info("Purged {} processed updates from inbox", deleted);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    private List<UpdateInboxId> drain(Queue<UpdateInboxId> queue) {
+        List<UpdateInboxId> ids = new ArrayList<>();
+        UpdateInboxId id;
+        while ((id = queue.poll()) != null) {
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    private Map<String, List<Long>> byBot(List<UpdateInboxId> ids) {
+        return ids.stream().collect(Collectors.groupingBy(UpdateInboxId::getBotId,
+                Collectors.mapping(UpdateInboxId::getUpdateId, Collectors.toList())));
+    }
+}
@@ -0,0 +1,17 @@
+package com.lbt.telegram_learning_bot.service;
+
+import com.lbt.telegram_learning_bot.bot.UserContext;
+
+/**
+ * Формат хранения UserContext в user_session. Активный кодек выбирается свойством
+ * session.context.codec; прочитать сессию можно в любом из форматов.
+ */
+public interface UserContextCodec {
+
+    // Имя для настройки session.context.codec
+    String name();
+
+    byte[] encode(UserContext context);
+
+    UserContext decode(byte[] data);
+}
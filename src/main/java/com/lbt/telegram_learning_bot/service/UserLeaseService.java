@@ -0,0 +1,266 @@
+package com.lbt.telegram_learning_bot.service;
+
+import com.lbt.telegram_learning_bot.bot.MessageFingerprintCache;
+import com.lbt.telegram_learning_bot.entity.UserSessionId;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Привязка пользователя к узлу при работе нескольких экземпляров (cluster.enabled=true).
+ * Перед обработкой апдейта узел берёт аренду пользователя в user_lease; пока аренда у другого узла,
+ * обработка ждёт. Так апдейты одного пользователя не обрабатываются на двух узлах одновременно
+ * и чтение-изменение-запись сессии и прогресса не теряет изменений.
+ * <p>
+ * Взятая аренда держится локально: повторные апдейты пользователя в БД не ходят. Фоновый heartbeat
+ * одним запросом продлевает все аренды узла и пачкой отпускает простаивающие дольше linger.
+ * Если узел упал, его аренды истекают через ttl и переходят к другим узлам.
+ * Аренда, взятая заново, сбрасывает кэш сессии и отпечатки сообщений чата: их мог изменить предыдущий владелец.
+ * Перед отдачей аренды сбрасывается накопленное время изучения пользователя, иначе новый владелец
+ * отсчитает первую паузу от устаревшего last_action_at и один промежуток добавят оба узла.
+ */
+@Slf4j
+@Service
+public class UserLeaseService {
+
+    private static final String ACQUIRE_SQL =
+            "INSERT INTO user_lease (bot_id, user_id, owner, token, expires_at) " +
+            "VALUES (?, ?, ?, ?, now() + make_interval(secs => ?)) " +
+            "ON CONFLICT (bot_id, user_id) DO UPDATE SET owner = EXCLUDED.owner, token = EXCLUDED.token, " +
+            "expires_at = EXCLUDED.expires_at " +
+            "WHERE user_lease.owner = EXCLUDED.owner OR user_lease.expires_at < now()";
+
+    private static final String RENEW_SQL =
+            "UPDATE user_lease SET expires_at = now() + make_interval(secs => ?) " +
+            "WHERE owner = ? AND expires_at > now() RETURNING bot_id, user_id, token";
+
+    private static final String RELEASE_SQL =
+            "DELETE FROM user_lease WHERE bot_id = ? AND user_id = ? AND owner = ? AND token = ?";
+
+    private static final String RELEASE_ALL_SQL = "DELETE FROM user_lease WHERE owner = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final UserSessionService sessionService;
+    private final StudyTimeTracker studyTimeTracker;
+    private final MessageFingerprintCache fingerprintCache;
+    private final boolean enabled;
+    private final String nodeId;
+    private final long ttlMs;
+    private final long lingerMs;
+    private final long retryMs;
+    private final Map<UserSessionId, Lease> leases = new ConcurrentHashMap<>();
+    private final Counter acquired;
+    private final Counter waits;
+
+    public UserLeaseService(JdbcTemplate jdbcTemplate,
+                            UserSessionService sessionService,
+                            StudyTimeTracker studyTimeTracker,
+                            MessageFingerprintCache fingerprintCache,
+                            ClusterNode clusterNode,
+                            MeterRegistry meterRegistry,
+                            @Value("${cluster.lease.ttl-seconds:15}") int ttlSeconds,
+                            @Value("${cluster.lease.linger-ms:2000}") long lingerMs,
+                            @Value("${cluster.lease.retry-ms:50}") long retryMs) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.sessionService = sessionService;
+        this.studyTimeTracker = studyTimeTracker;
+        this.fingerprintCache = fingerprintCache;
+        this.enabled = clusterNode.isEnabled();
+        this.nodeId = clusterNode.getId();
+        this.ttlMs = ttlSeconds * 1000L;
+        this.lingerMs = lingerMs;
+        this.retryMs = retryMs;
+        this.acquired = Counter.builder("cluster.lease.acquired").register(meterRegistry);
+        this.waits = Counter.builder("cluster.lease.waits").register(meterRegistry);
+        Gauge.builder("cluster.lease.held", leases, Map::size).register(meterRegistry);
+        if (enabled) {
+            log.info("Cluster mode enabled, node id {}", this.nodeId);
+        }
+    }
+
+    /**
+     * Выполняет action, удерживая аренду пользователя. Если аренда у другого узла и не освободилась
+     * за два ttl, бросает IllegalStateException — апдейт останется в журнале и будет повторён.
+     */
+    public void runWithLease(String botId, Long userId, Runnable action) {
+        if (!enabled) {
+            action.run();
+            return;
+        }
+        Lease lease = acquire(new UserSessionId(botId, userId));
+        try {
+            action.run();
+        } finally {
+            lease.lock.lock();
+            try {
+                lease.active--;
+                lease.lastUsed = System.currentTimeMillis();
+            } finally {
+                lease.lock.unlock();
+            }
+        }
+    }
+
+    private Lease acquire(UserSessionId id) {
+        long deadline = System.currentTimeMillis() + 2 * ttlMs;
+        boolean waited = false;
+        while (true) {
+            Lease lease = leases.computeIfAbsent(id, key -> new Lease());
+            // ReentrantLock, а не synchronized: под блокировкой идёт запрос в БД из виртуального потока
+            lease.lock.lock();
+            try {
+                if (!lease.released) {
+                    long now = System.currentTimeMillis();
+                    if (lease.expiresAt <= now && !tryAcquire(id, lease, now)) {
+                        leases.remove(id, lease);
+                        lease.released = true;
+                    } else {
+                        lease.active++;
+                        return lease;
+                    }
+                }
+            } finally {
+                lease.lock.unlock();
+            }
+            if (!waited) {
+                waits.increment();
+                waited = true;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("User " + id.getUserId() + " of bot " + id.getBotId()
+                        + " is leased by another node");
+            }
+            try {
+                Thread.sleep(retryMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for user lease", e);
+            }
+        }
+    }
+
+    // Вызывается под блокировкой lease
+    private boolean tryAcquire(UserSessionId id, Lease lease, long now) {
+        long token = ThreadLocalRandom.current().nextLong();
+        int updated = jdbcTemplate.update(ACQUIRE_SQL, id.getBotId(), id.getUserId(), nodeId, token, ttlMs / 1000.0);
+        if (updated == 0) {
+            return false;
+        }
+        lease.token = token;
+        lease.expiresAt = now + ttlMs;
+        // Сессию мог менять прежний владелец — кэшированный снимок больше не годится
+        sessionService.evict(List.of(id));
+        studyTimeTracker.forgetFlushed(id.getUserId());
+        // Личный чат с пользователем: его id совпадает с id пользователя
+        fingerprintCache.evictChat(id.getBotId(), id.getUserId());
+        acquired.increment();
+        return true;
+    }
+
+    @Scheduled(fixedDelayString = "${cluster.lease.heartbeat-ms:1000}")
+    public void heartbeat() {
+        if (!enabled || leases.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Set<Long> idleUsers = new HashSet<>();
+        leases.forEach((id, lease) -> {
+            lease.lock.lock();
+            try {
+                if (isIdle(lease, now)) idleUsers.add(id.getUserId());
+            } finally {
+                lease.lock.unlock();
+            }
+        });
+        boolean timeFlushed = true;
+        if (!idleUsers.isEmpty()) {
+            try {
+                studyTimeTracker.flushUsers(idleUsers);
+            } catch (RuntimeException e) {
+                // Аренды держим до следующего heartbeat: время сбросится вместе с ними
+                log.warn("Study time of {} idle users was not flushed, their leases are kept", idleUsers.size(), e);
+                timeFlushed = false;
+            }
+        }
+        List<Object[]> released = new ArrayList<>();
+        if (timeFlushed) {
+            leases.forEach((id, lease) -> {
+                lease.lock.lock();
+                try {
+                    // Обработка между проходами сдвинула бы lastUsed — такая аренда уже не простаивает
+                    if (isIdle(lease, now)) {
+                        lease.released = true;
+                        leases.remove(id, lease);
+                        released.add(new Object[]{id.getBotId(), id.getUserId(), nodeId, lease.token});
+                    }
+                } finally {
+                    lease.lock.unlock();
+                }
+            });
+        }
+        if (!released.isEmpty()) {
+            jdbcTemplate.batchUpdate(RELEASE_SQL, released);
+        }
+        // Продлеваем всё, что осталось; аренды, которых нет в ответе, узел уже потерял
+        Set<Long> renewed = new HashSet<>(jdbcTemplate.query(RENEW_SQL,
+                (rs, i) -> rs.getLong("token"), ttlMs / 1000.0, nodeId));
+        leases.forEach((id, lease) -> {
+            lease.lock.lock();
+            try {
+                if (renewed.contains(lease.token)) {
+                    lease.expiresAt = now + ttlMs;
+                } else if (lease.expiresAt > 0) {
+                    // Аренда истекла и, возможно, перешла к другому узлу — перед следующим апдейтом берём заново
+                    log.warn("Lease of user {} of bot {} was lost", id.getUserId(), id.getBotId());
+                    lease.expiresAt = 0;
+                }
+            } finally {
+                lease.lock.unlock();
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (enabled) {
+            // Трекер останавливается позже (от него зависим) — время сбрасываем сами, пока аренды ещё наши
+            try {
+                studyTimeTracker.flush();
+            } catch (RuntimeException e) {
+                log.error("Study time flush before releasing leases failed", e);
+            }
+            leases.clear();
+            jdbcTemplate.update(RELEASE_ALL_SQL, nodeId);
+        }
+    }
+
+    // Вызывается под блокировкой lease
+    private boolean isIdle(Lease lease, long now) {
+        return lease.active == 0 && (lease.lastUsed < now - lingerMs || lease.expiresAt <= now);
+    }
+
+    private static final class Lease {
+        private final ReentrantLock lock = new ReentrantLock();
+        private long token;
+        // Локальный срок: истёкшая аренда перед обработкой берётся заново
+        private long expiresAt;
+        private long lastUsed = System.currentTimeMillis();
+        private int active;
+        private boolean released;
+    }
+}
@@ -1,103 +1,363 @@
 package com.lbt.telegram_learning_bot.service;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lbt.telegram_learning_bot.bot.BotContext;
 import com.lbt.telegram_learning_bot.bot.BotState;
 import com.lbt.telegram_learning_bot.bot.UserContext;
 import com.lbt.telegram_learning_bot.entity.UserSession;
+import com.lbt.telegram_learning_bot.entity.UserSessionId;
 import com.lbt.telegram_learning_bot.repository.UserSessionRepository;
-import lombok.RequiredArgsConstructor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.SqlParameterValue;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
+/**
+ * Состояние и контекст пользователя.
+ * Обработка апдейта идёт внутри единицы работы (runInUnitOfWork): сессия читается один раз,
+ * все обработчики получают один и тот же экземпляр UserContext, а в конце выполняется
+ * не более одной записи — и только если состояние или контекст действительно изменились.
+ * Вне единицы работы каждый вызов открывает собственную короткую единицу.
+ * Последние сериализованные снимки держатся в ограниченном LRU-кэше, поэтому повторные клики
+ * пользователя обходятся без чтения из БД.
+ * Контекст хранится в формате активного кодека (session.context.codec): JSON в context
+ * или двоичный в context_bin. Читаются оба, так что старые строки переписываются
+ * в новом формате при следующей записи.
+ * updated_at ставится при каждой записи; чтения без изменений копятся в памяти
+ * и сбрасываются в БД пачкой (см. SessionSweeper).
+ */
 @Slf4j
 @Service
-@RequiredArgsConstructor
+// Составной ключ таблицы должен быть проверен до первой записи
+@DependsOn("schemaKeyMigration")
 public class UserSessionService {
 
+    private static final String UPSERT_SQL =
+            "INSERT INTO user_session (bot_id, user_id, state, context, context_bin, updated_at, compacted) " +
+            "VALUES (?, ?, ?, CAST(? AS jsonb), ?, ?, false) " +
+            "ON CONFLICT (bot_id, user_id) DO UPDATE SET state = EXCLUDED.state, " +
+            "context = EXCLUDED.context, context_bin = EXCLUDED.context_bin, updated_at = EXCLUDED.updated_at, " +
+            "compacted = false";
+
+    // Условие на updated_at: если пользователь успел что-то записать, сжатие пропускается
+    private static final String COMPACT_SQL =
+            "UPDATE user_session SET state = ?, context = CAST(? AS jsonb), context_bin = ?, compacted = true " +
+            "WHERE bot_id = ? AND user_id = ? AND updated_at = ?";
+
     private final UserSessionRepository sessionRepository;
-    private final ObjectMapper objectMapper;
+    private final JdbcTemplate jdbcTemplate;
+    private final UserContextCodec codec;
+    private final JsonUserContextCodec jsonCodec;
+    private final BinaryUserContextCodec binaryCodec;
+    private final ThreadLocal<UnitOfWork> currentUnit = new ThreadLocal<>();
+    private final Map<UserSessionId, Snapshot> hotSessions;
+    // Сессии, прочитанные без записи: updated_at для них обновляет SessionSweeper пачкой
+    private final Set<UserSessionId> touched = ConcurrentHashMap.newKeySet();
+    private final Counter cacheHits;
+    private final Counter cacheMisses;
+    private final Counter writes;
 
-    @Transactional
-    public UserSession getOrCreateSession(Long userId) {
-        return sessionRepository.findById(userId)
-                .orElseGet(() -> {
-                    UserSession newSession = new UserSession();
-                    newSession.setUserId(userId);
-                    newSession.setState(BotState.MAIN_MENU.name());
-                    newSession.setContext("{}");
-                    return sessionRepository.save(newSession);
-                });
+    public UserSessionService(UserSessionRepository sessionRepository,
+                              JdbcTemplate jdbcTemplate,
+                              List<UserContextCodec> codecs,
+                              JsonUserContextCodec jsonCodec,
+                              BinaryUserContextCodec binaryCodec,
+                              MeterRegistry meterRegistry,
+                              @Value("${session.context.codec:binary}") String codecName,
+                              @Value("${session.cache.max-size:10000}") int cacheSize) {
+        this.sessionRepository = sessionRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.codec = codecs.stream()
+                .filter(c -> c.name().equals(codecName))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("Unknown session.context.codec: " + codecName));
+        this.jsonCodec = jsonCodec;
+        this.binaryCodec = binaryCodec;
+        this.hotSessions = new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UserSessionId, Snapshot> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        this.cacheHits = Counter.builder("session.cache").tag("result", "hit").register(meterRegistry);
+        this.cacheMisses = Counter.builder("session.cache").tag("result", "miss").register(meterRegistry);
+        this.writes = Counter.builder("session.writes").register(meterRegistry);
+        Gauge.builder("session.cache.size", this, UserSessionService::cacheSize).register(meterRegistry);
+    }
+
+    /**
+     * Выполняет action в единице работы пользователя. Изменения сбрасываются в конце,
+     * в том числе если action завершился исключением (как и при прежней записи «по месту»).
+     * Вложенный вызов для того же пользователя использует уже открытую единицу.
+     */
+    public void runInUnitOfWork(Long userId, Runnable action) {
+        UserSessionId id = sessionId(userId);
+        UnitOfWork active = currentUnit.get();
+        if (active != null && active.id.equals(id)) {
+            action.run();
+            return;
+        }
+        UnitOfWork unit = new UnitOfWork(id);
+        currentUnit.set(unit);
+        try {
+            action.run();
+        } finally {
+            if (active != null) {
+                currentUnit.set(active);
+            } else {
+                currentUnit.remove();
+            }
+            flush(unit);
+        }
     }
 
-    @Transactional
     public void updateSessionState(Long userId, BotState state) {
-        UserSession session = getOrCreateSession(userId);
-        session.setState(state.name());
-        sessionRepository.save(session);
+        withSession(userId, unit -> unit.state = state.name());
     }
 
-    @Transactional
     public void updateSessionContext(Long userId, UserContext context) {
-        try {
-            String json = objectMapper.writeValueAsString(context);
-            UserSession session = getOrCreateSession(userId);
-            session.setContext(json);
-            sessionRepository.save(session);
-        } catch (JsonProcessingException e) {
-            log.error("Failed to serialize user context for user {}", userId, e);
-        }
+        withSession(userId, unit -> unit.context = context);
     }
 
-    @Transactional
     public void updateSession(Long userId, BotState state, UserContext context) {
-        try {
-            String json = objectMapper.writeValueAsString(context);
-            UserSession session = getOrCreateSession(userId);
-            session.setState(state.name());
-            session.setContext(json);
-            sessionRepository.save(session);
-        } catch (JsonProcessingException e) {
-            log.error("Failed to serialize user context for user {}", userId, e);
-        }
+        withSession(userId, unit -> {
+            unit.state = state.name();
+            unit.context = context;
+            return null;
+        });
     }
 
     public BotState getCurrentState(Long userId) {
-        return sessionRepository.findById(userId)
-                .map(session -> {
-                    try {
-                        return BotState.valueOf(session.getState());
-                    } catch (IllegalArgumentException e) {
-                        return BotState.MAIN_MENU;
-                    }
-                })
-                .orElse(BotState.MAIN_MENU);
+        return withSession(userId, unit -> {
+            try {
+                return BotState.valueOf(unit.state);
+            } catch (IllegalArgumentException e) {
+                return BotState.MAIN_MENU;
+            }
+        });
     }
 
+    // Внутри единицы работы возвращает общий экземпляр: изменения в нём будут сохранены в конце
     public UserContext getCurrentContext(Long userId) {
-        return sessionRepository.findById(userId)
-                .map(session -> {
-                    try {
-                        UserContext ctx = objectMapper.readValue(session.getContext(), UserContext.class);
-                        // Инициализация списков для предотвращения NPE
-                        if (ctx.getPendingImages() == null) ctx.setPendingImages(new ArrayList<>());
-                        if (ctx.getTestQuestionIds() == null) ctx.setTestQuestionIds(new ArrayList<>());
-                        if (ctx.getCurrentTopicBlockIds() == null) ctx.setCurrentTopicBlockIds(new ArrayList<>());
-                        if (ctx.getCurrentBlockQuestionIds() == null) ctx.setCurrentBlockQuestionIds(new ArrayList<>());
-                        return ctx;
-                    } catch (JsonProcessingException e) {
-                        log.error("Failed to deserialize user context for user {}", userId, e);
-                        return new UserContext();
-                    }
-                })
-                .orElse(new UserContext());
+        return withSession(userId, unit -> unit.context);
     }
 
     @Transactional
     public void clearSession(Long userId) {
-        sessionRepository.deleteById(userId);
+        UserSessionId id = sessionId(userId);
+        sessionRepository.deleteById(id);
+        synchronized (hotSessions) {
+            hotSessions.remove(id);
+        }
+        UnitOfWork unit = currentUnit.get();
+        if (unit != null && unit.id.equals(id)) {
+            unit.reset(BotState.MAIN_MENU.name(), new UserContext(), null);
+        }
+    }
+
+    private <T> T withSession(Long userId, Function<UnitOfWork, T> action) {
+        UserSessionId id = sessionId(userId);
+        UnitOfWork active = currentUnit.get();
+        if (active != null && active.id.equals(id)) {
+            load(active);
+            return action.apply(active);
+        }
+        // Вызов вне обработки апдейта (или для другого пользователя) — короткая единица работы
+        UnitOfWork unit = new UnitOfWork(id);
+        load(unit);
+        T result = action.apply(unit);
+        flush(unit);
+        return result;
+    }
+
+    private void load(UnitOfWork unit) {
+        if (unit.loaded) {
+            return;
+        }
+        Snapshot cached;
+        synchronized (hotSessions) {
+            cached = hotSessions.get(unit.id);
+        }
+        if (cached != null) {
+            cacheHits.increment();
+            unit.reset(cached.state(), decode(unit.id, codec, cached.context()), cached);
+            touched.add(unit.id);
+            return;
+        }
+        cacheMisses.increment();
+        UserSession session = sessionRepository.findById(unit.id).orElse(null);
+        if (session == null) {
+            unit.reset(BotState.MAIN_MENU.name(), new UserContext(), null);
+            return;
+        }
+        UserContext context = decodeStored(unit.id, session.getContext(), session.getContextBin());
+        // Снимок — в формате активного кодека: строка старого формата перепишется при первом изменении,
+        // а порядок полей в jsonb не даёт ложных записей
+        byte[] normalized = encode(unit.id, context);
+        Snapshot original = normalized != null ? new Snapshot(session.getState(), normalized) : null;
+        unit.reset(session.getState(), context, original);
+        if (original != null) {
+            remember(unit.id, original);
+        }
+        touched.add(unit.id);
+    }
+
+    private void flush(UnitOfWork unit) {
+        if (!unit.loaded) {
+            return;
+        }
+        byte[] data = encode(unit.id, unit.context);
+        if (data == null) {
+            return;
+        }
+        Snapshot current = new Snapshot(unit.state, data);
+        if (current.sameAs(unit.original)) {
+            return;
+        }
+        try {
+            jdbcTemplate.update(UPSERT_SQL, unit.id.getBotId(), unit.id.getUserId(), unit.state,
+                    jsonColumn(data), binaryColumn(data), Timestamp.from(Instant.now()));
+            writes.increment();
+            // updated_at уже свежий
+            touched.remove(unit.id);
+            remember(unit.id, current);
+            unit.original = current;
+        } catch (RuntimeException e) {
+            // Кэш мог разойтись с БД — следующее чтение пойдёт в базу
+            synchronized (hotSessions) {
+                hotSessions.remove(unit.id);
+            }
+            throw e;
+        }
+    }
+
+    // ================== Для SessionSweeper ==================
+
+    // Забирает накопленные «касания» сессий
+    List<UserSessionId> drainTouched() {
+        List<UserSessionId> ids = new ArrayList<>(touched);
+        touched.removeAll(ids);
+        return ids;
+    }
+
+    // Разбирает контекст строки user_session в любом из форматов
+    UserContext decodeStored(UserSessionId id, String json, byte[] binary) {
+        if (binary != null) {
+            return decode(id, binaryCodec, binary);
+        }
+        if (json != null) {
+            return decode(id, jsonCodec, json.getBytes(StandardCharsets.UTF_8));
+        }
+        return new UserContext();
+    }
+
+    /**
+     * Записывает сжатый контекст, если строка не менялась с момента чтения (updated_at совпадает).
+     * Возвращает размер нового контекста в байтах или -1, если запись пропущена.
+     */
+    int writeCompacted(UserSessionId id, Timestamp expectedUpdatedAt, BotState state, UserContext context) {
+        byte[] data = encode(id, context);
+        if (data == null) {
+            return -1;
+        }
+        int updated = jdbcTemplate.update(COMPACT_SQL, state.name(), jsonColumn(data), binaryColumn(data),
+                id.getBotId(), id.getUserId(), expectedUpdatedAt);
+        evict(List.of(id));
+        return updated > 0 ? data.length : -1;
+    }
+
+    void evict(List<UserSessionId> ids) {
+        synchronized (hotSessions) {
+            ids.forEach(hotSessions::remove);
+        }
+    }
+
+    private SqlParameterValue jsonColumn(byte[] data) {
+        return new SqlParameterValue(Types.VARCHAR, codec == jsonCodec ? new String(data, StandardCharsets.UTF_8) : null);
+    }
+
+    private SqlParameterValue binaryColumn(byte[] data) {
+        return new SqlParameterValue(Types.BINARY, codec == jsonCodec ? null : data);
+    }
+
+    private void remember(UserSessionId id, Snapshot snapshot) {
+        synchronized (hotSessions) {
+            hotSessions.put(id, snapshot);
+        }
+    }
+
+    private UserContext decode(UserSessionId id, UserContextCodec codec, byte[] data) {
+        try {
+            return codec.decode(data);
+        } catch (RuntimeException e) {
+            log.error("Failed to deserialize user context for user {} ({})", id.getUserId(), codec.name(), e);
+            return new UserContext();
+        }
+    }
+
+    private byte[] encode(UserSessionId id, UserContext context) {
+        try {
+            return codec.encode(context);
+        } catch (RuntimeException e) {
+            log.error("Failed to serialize user context for user {} ({})", id.getUserId(), codec.name(), e);
+            return null;
+        }
+    }
+
+    private int cacheSize() {
+        synchronized (hotSessions) {
+            return hotSessions.size();
+        }
+    }
+
+    // Сессии разделены по ботам: бот берётся из контекста обрабатываемого апдейта
+    private UserSessionId sessionId(Long userId) {
+        return new UserSessionId(BotContext.currentBotId(), userId);
+    }
+
+    // Сериализованное состояние сессии в формате активного кодека — то, что лежит в БД
+    private record Snapshot(String state, byte[] context) {
+
+        private boolean sameAs(Snapshot other) {
+            return other != null && state.equals(other.state) && Arrays.equals(context, other.context);
+        }
+    }
+
+    private static final class UnitOfWork {
+        private final UserSessionId id;
+        private boolean loaded;
+        private String state;
+        private UserContext context;
+        // Снимок на момент загрузки или последней записи; null — строки в БД нет
+        private Snapshot original;
+
+        private UnitOfWork(UserSessionId id) {
+            this.id = id;
+        }
+
+        private void reset(String state, UserContext context, Snapshot original) {
+            this.state = state;
+            this.context = context;
+            this.original = original;
+            this.loaded = true;
+        }
     }
-}
\ No newline at end of file
+}
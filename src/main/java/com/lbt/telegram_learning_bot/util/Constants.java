@@ -3,6 +3,9 @@ package com.lbt.telegram_learning_bot.util;
 public final class Constants {
     private Constants() {}
 
+    // ========== Боты ==========
+    public static final String DEFAULT_BOT_ID = "main";
+
     // ========== Типы тестов ==========
     public static final String TEST_TYPE_TOPIC = "TOPIC";
     public static final String TEST_TYPE_SECTION = "SECTION";
@@ -183,11 +186,16 @@ public final class Constants {
     public static final String MSG_TOPIC_UPDATED_NO_IMAGES = "Тема обновлена. Изображения не требуются.";
     public static final String DEFAULT_USER_NAME = "Пользователь";
     public static final String MSG_MAIN_MENU = "Главное меню:";
+    public static final String MSG_SESSION_EXPIRED = "⌛ Вы давно здесь не были, и место в теме или тесте не сохранилось.\n\nГлавное меню:";
 
 
 
     public static final String MSG_SEARCH_RESULTS_HEADER = "Результаты поиска (страница 1):";
     public static final String MSG_PROGRESS = "⏳ Обрабатываю файл...";
+    public static final String FORMAT_PROGRESS_QUEUED = "⏳ Задача в очереди, перед вами: %d";
+    public static final String MSG_JOB_ALREADY_RUNNING = "⏳ Предыдущая операция ещё выполняется. Дождитесь её завершения.";
+    public static final String MSG_JOB_QUEUE_FULL = "⏳ Сервер сейчас загружен. Попробуйте через пару минут.";
+    public static final String MSG_JOB_FAILED = "❌ Не удалось выполнить операцию. Попробуйте ещё раз.";
     public static final String PDF_TITLE = "Статистика обучения";
     public static final String PDF_USER_LABEL = "Пользователь: ";
     public static final String PDF_DATE_LABEL = "Дата: ";
@@ -0,0 +1,60 @@
+package com.lbt.telegram_learning_bot.bot;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Отпечатки по чатам: откат только своей правки, забывание чата при смене владельца аренды, вытеснение.
+ */
+class MessageFingerprintCacheTest {
+
+    private static final String BOT = "main";
+    private static final Long CHAT = 1L;
+    private static final Long OTHER_CHAT = 2L;
+
+    @Test
+    void rollbackKeepsNewerFingerprint() {
+        MessageFingerprintCache cache = new MessageFingerprintCache(new SimpleMeterRegistry(), 1000);
+        cache.remember(BOT, CHAT, 10, 1L);
+        cache.remember(BOT, CHAT, 10, 2L);
+
+        cache.rollback(BOT, CHAT, 10, 1L);
+        assertThat(cache.isUnchanged(BOT, CHAT, 10, 2L)).isTrue();
+
+        cache.rollback(BOT, CHAT, 10, 2L);
+        assertThat(cache.isUnchanged(BOT, CHAT, 10, 2L)).isFalse();
+    }
+
+    @Test
+    void evictChatForgetsOnlyThatChatOfThatBot() {
+        MessageFingerprintCache cache = new MessageFingerprintCache(new SimpleMeterRegistry(), 1000);
+        cache.remember(BOT, CHAT, 10, 1L);
+        cache.remember(BOT, CHAT, 11, 1L);
+        cache.remember(BOT, OTHER_CHAT, 10, 1L);
+        cache.remember("second", CHAT, 10, 1L);
+
+        cache.evictChat(BOT, CHAT);
+
+        assertThat(cache.isUnchanged(BOT, CHAT, 10, 1L)).isFalse();
+        assertThat(cache.isUnchanged(BOT, CHAT, 11, 1L)).isFalse();
+        assertThat(cache.isUnchanged(BOT, OTHER_CHAT, 10, 1L)).isTrue();
+        assertThat(cache.isUnchanged("second", CHAT, 10, 1L)).isTrue();
+    }
+
+    @Test
+    void leastRecentlyUsedChatsAreEvictedBeyondMaxSize() {
+        MessageFingerprintCache cache = new MessageFingerprintCache(new SimpleMeterRegistry(), 3);
+        for (long chat = 1; chat <= 3; chat++) {
+            cache.remember(BOT, chat, 10, 1L);
+        }
+        // Чат 1 тронут последним — вытеснен будет чат 2
+        assertThat(cache.isUnchanged(BOT, 1L, 10, 1L)).isTrue();
+        cache.remember(BOT, 4L, 10, 1L);
+
+        assertThat(cache.isUnchanged(BOT, 1L, 10, 1L)).isTrue();
+        assertThat(cache.isUnchanged(BOT, 2L, 10, 1L)).isFalse();
+        assertThat(cache.isUnchanged(BOT, 4L, 10, 1L)).isTrue();
+    }
+}
@@ -0,0 +1,60 @@
+package com.lbt.telegram_learning_bot.bot;
+
+import com.pengrad.telegrambot.TelegramBot;
+import com.pengrad.telegrambot.request.SendMessage;
+import com.pengrad.telegrambot.response.SendResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Ограничение очереди и остановка: лишние и недоставленные запросы завершаются ошибкой, а не висят.
+ * Клиент Telegram не отвечает — первый запрос чата остаётся в полёте, следующие ждут в очереди.
+ */
+class OutboundSchedulerTest {
+
+    private static final Long CHAT = 1L;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final OutboundScheduler scheduler = new OutboundScheduler(registry(), meterRegistry, 30, 30, 30, 3, 1);
+
+    @Test
+    void requestsBeyondMaxQueuedAreRejectedAndPendingOnesFailOnShutdown() throws InterruptedException {
+        CompletableFuture<SendResponse> sent = scheduler.submit(CHAT, new SendMessage(CHAT, "1"));
+        awaitInFlight();
+        CompletableFuture<SendResponse> queued = scheduler.submit(CHAT, new SendMessage(CHAT, "2"));
+        CompletableFuture<SendResponse> rejected = scheduler.submit(CHAT, new SendMessage(CHAT, "3"));
+
+        assertThat(rejected).failsWithin(Duration.ZERO)
+                .withThrowableOfType(Exception.class).withRootCauseInstanceOf(RejectedExecutionException.class);
+        assertThat(meterRegistry.get("bot.outbound.rejected").counter().count()).isEqualTo(1);
+        assertThat(queued).isNotDone();
+
+        scheduler.shutdown();
+
+        assertThat(sent).isCompletedExceptionally();
+        assertThat(queued).isCompletedExceptionally();
+        assertThat(scheduler.submit(CHAT, new SendMessage(CHAT, "4"))).isCompletedExceptionally();
+    }
+
+    private void awaitInFlight() throws InterruptedException {
+        for (int i = 0; i < 100 && meterRegistry.get("bot.outbound.in_flight").gauge().value() < 1; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(meterRegistry.get("bot.outbound.in_flight").gauge().value()).isEqualTo(1);
+    }
+
+    private static BotRegistry registry() {
+        BotRegistry registry = mock(BotRegistry.class);
+        when(registry.current()).thenReturn(new BotInstance("main", mock(TelegramBot.class), Set.of()));
+        return registry;
+    }
+}
@@ -0,0 +1,95 @@
+package com.lbt.telegram_learning_bot.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Аренда токенов кластерного лимита: запрос дороже chunk + credit должен проходить после продления.
+ */
+class ClusterRateLimiterTest {
+
+    private static final long MICRO = 1_000_000L;
+
+    // Продления, запрошенные у «БД» (в микротокенах); общая корзина выдаёт всё запрошенное
+    private final List<Long> wantedByUser = new ArrayList<>();
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+
+    @Test
+    void costAboveChunkPlusCreditPassesAfterRefill() throws Exception {
+        grantEverything();
+        ClusterRateLimiter limiter = new ClusterRateLimiter(jdbcTemplate, new SimpleMeterRegistry(),
+                true, 30, 30, 5, 2, 120);
+
+        assertThat(limiter.tryAcquire(1L, 10 * MICRO)).isFalse();
+        limiter.sync();
+
+        // Продление запросило стоимость отклонённого запроса, а не chunk
+        assertThat(wantedByUser).containsExactly(10 * MICRO);
+        assertThat(limiter.tryAcquire(1L, 10 * MICRO)).isTrue();
+    }
+
+    @Test
+    void ordinaryRequestsStillLeaseChunks() throws Exception {
+        grantEverything();
+        ClusterRateLimiter limiter = new ClusterRateLimiter(jdbcTemplate, new SimpleMeterRegistry(),
+                true, 30, 30, 5, 2, 120);
+
+        // Первый запрос уходит в долг и ставит продление в очередь
+        assertThat(limiter.tryAcquire(1L, MICRO)).isTrue();
+        limiter.sync();
+
+        assertThat(wantedByUser).containsExactly(6 * MICRO);
+    }
+
+    @Test
+    void jobCostAboveBurstIsRejectedAtStartup() {
+        assertThatThrownBy(() -> new RateLimiterService(mock(ClusterRateLimiter.class), new SimpleMeterRegistry(),
+                30, 8, 10, 5, 3, 1024))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("rate.limit.cost.pdf-export");
+    }
+
+    // LEASE_SQL «выдаёт» ровно запрошенное: разбираем массивы, переданные в запрос
+    private void grantEverything() throws Exception {
+        doAnswer(invocation -> {
+            List<Long[]> arrays = new ArrayList<>();
+            Connection connection = mock(Connection.class);
+            when(connection.prepareStatement(anyString())).thenReturn(mock(PreparedStatement.class));
+            when(connection.createArrayOf(anyString(), any())).thenAnswer(call -> {
+                arrays.add((Long[]) call.getArgument(1));
+                return mock(Array.class);
+            });
+            invocation.<PreparedStatementCreator>getArgument(0).createPreparedStatement(connection);
+
+            Long[] ids = arrays.get(0);
+            Long[] wanted = arrays.get(2);
+            RowCallbackHandler handler = invocation.getArgument(1);
+            for (int i = 0; i < ids.length; i++) {
+                wantedByUser.add(wanted[i]);
+                ResultSet rs = mock(ResultSet.class);
+                when(rs.getLong("user_id")).thenReturn(ids[i]);
+                when(rs.getLong("granted")).thenReturn(wanted[i]);
+                handler.processRow(rs);
+            }
+            return null;
+        }).when(jdbcTemplate).query(any(PreparedStatementCreator.class), any(RowCallbackHandler.class));
+    }
+}
@@ -0,0 +1,187 @@
+package com.lbt.telegram_learning_bot.service;
+
+import com.lbt.telegram_learning_bot.entity.Course;
+import com.lbt.telegram_learning_bot.entity.Section;
+import com.lbt.telegram_learning_bot.entity.Topic;
+import com.lbt.telegram_learning_bot.entity.UserTestResult;
+import com.lbt.telegram_learning_bot.entity.UserTopicProgress;
+import com.lbt.telegram_learning_bot.repository.TopicRepository;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.data.jpa.autoconfigure.DataJpaRepositoriesAutoConfiguration;
+import org.springframework.boot.hibernate.autoconfigure.HibernateJpaAutoConfiguration;
+import org.springframework.boot.jdbc.autoconfigure.DataSourceAutoConfiguration;
+import org.springframework.boot.persistence.autoconfigure.EntityScan;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.lbt.telegram_learning_bot.util.Constants.*;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Число SQL-запросов страниц разделов и тем не зависит от размера страницы (H2, статистика Hibernate).
+ * Снимка контента нет (CourseCatalogService.current() = null) — темы разделов тоже читаются из БД.
+ */
+@SpringBootTest(classes = PageStatusQueryCountTest.Config.class, webEnvironment = SpringBootTest.WebEnvironment.NONE,
+        properties = {
+                "spring.datasource.url=jdbc:h2:mem:page-status;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1",
+                "spring.datasource.driver-class-name=org.h2.Driver",
+                "spring.datasource.username=sa",
+                "spring.datasource.password=",
+                "spring.jpa.hibernate.ddl-auto=create-drop",
+                "spring.jpa.show-sql=false",
+                "spring.jpa.properties.hibernate.generate_statistics=true"
+        })
+class PageStatusQueryCountTest {
+
+    private static final long USER_ID = 7L;
+
+    @Configuration
+    @ImportAutoConfiguration({DataSourceAutoConfiguration.class, HibernateJpaAutoConfiguration.class,
+            DataJpaRepositoriesAutoConfiguration.class})
+    @EntityScan(basePackageClasses = Topic.class)
+    @EnableJpaRepositories(basePackageClasses = TopicRepository.class)
+    @Import(PageStatusService.class)
+    static class Config {
+    }
+
+    @MockitoBean
+    private CourseCatalogService courseCatalog;
+
+    @Autowired
+    private PageStatusService pageStatusService;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private Statistics statistics;
+
+    @BeforeEach
+    void setUp() {
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    @Test
+    void sectionPageCostsThreeStatementsWhateverItsSize() {
+        List<Section> small = createSections(2, 2);
+        List<Section> large = createSections(12, 3);
+
+        long smallCount = statementsOf(() -> pageStatusService.sectionStatuses(USER_ID, idsOf(small)));
+        long largeCount = statementsOf(() -> pageStatusService.sectionStatuses(USER_ID, idsOf(large)));
+
+        // темы разделов, сводки тем, результаты тестов разделов
+        assertThat(smallCount).isEqualTo(3);
+        assertThat(largeCount).isEqualTo(smallCount);
+    }
+
+    @Test
+    void topicPageCostsTwoStatementsWhateverItsSize() {
+        List<Topic> small = topicsOf(createSections(1, 2));
+        List<Topic> large = topicsOf(createSections(1, 20));
+
+        long smallCount = statementsOf(() -> pageStatusService.topicStatuses(USER_ID, small, true));
+        long largeCount = statementsOf(() -> pageStatusService.topicStatuses(USER_ID, large, true));
+        long withoutTests = statementsOf(() -> pageStatusService.topicStatuses(USER_ID, large, false));
+
+        // сводки тем и результаты тестов тем
+        assertThat(smallCount).isEqualTo(2);
+        assertThat(largeCount).isEqualTo(smallCount);
+        assertThat(withoutTests).isEqualTo(1);
+    }
+
+    @Test
+    void sectionStatusesFollowProgressAndTests() {
+        List<Section> sections = createSections(3, 2);
+        Section done = sections.get(0);
+        Section started = sections.get(1);
+        EntityManager em = entityManagerFactory.createEntityManager();
+        em.getTransaction().begin();
+        for (Topic topic : done.getTopics()) em.persist(progress(topic, 3, 3));
+        em.persist(testResult(TEST_TYPE_SECTION, done.getId(), 10, 0));
+        em.persist(progress(started.getTopics().get(0), 1, 0));
+        em.getTransaction().commit();
+        em.close();
+
+        PageStatusService.Statuses statuses = pageStatusService.sectionStatuses(USER_ID, idsOf(sections));
+
+        assertThat(statuses.learningStatus(done.getId())).isEqualTo(EMOJI_COMPLETED);
+        assertThat(statuses.testStatus(done.getId())).isEqualTo(EMOJI_COMPLETED);
+        assertThat(statuses.learningStatus(started.getId())).isEqualTo(EMOJI_IN_PROGRESS);
+        assertThat(statuses.testStatus(started.getId())).isEqualTo(EMOJI_NOT_STARTED);
+        assertThat(statuses.learningStatus(sections.get(2).getId())).isEqualTo(EMOJI_NOT_STARTED);
+    }
+
+    private long statementsOf(Runnable page) {
+        statistics.clear();
+        page.run();
+        return statistics.getPrepareStatementCount();
+    }
+
+    // Курс с sectionCount разделами по topicsPerSection тем, в каждой теме три вопроса
+    private List<Section> createSections(int sectionCount, int topicsPerSection) {
+        EntityManager em = entityManagerFactory.createEntityManager();
+        em.getTransaction().begin();
+        Course course = new Course();
+        course.setTitle("Курс");
+        List<Section> sections = new ArrayList<>();
+        for (int s = 0; s < sectionCount; s++) {
+            Section section = new Section();
+            section.setTitle("Раздел " + s);
+            section.setOrderIndex(s);
+            course.addSection(section);
+            for (int t = 0; t < topicsPerSection; t++) {
+                Topic topic = new Topic();
+                topic.setTitle("Тема " + s + "." + t);
+                topic.setOrderIndex(t);
+                topic.setQuestionCount(3);
+                topic.setSection(section);
+                section.getTopics().add(topic);
+            }
+            sections.add(section);
+        }
+        em.persist(course);
+        em.getTransaction().commit();
+        em.close();
+        return sections;
+    }
+
+    private static UserTopicProgress progress(Topic topic, int answered, int correct) {
+        UserTopicProgress progress = new UserTopicProgress();
+        progress.setUserId(USER_ID);
+        progress.setTopicId(topic.getId());
+        progress.setMode(MODE_LEARNING);
+        progress.setAnswered(answered);
+        progress.setCorrect(correct);
+        return progress;
+    }
+
+    private static UserTestResult testResult(String testType, Long testId, int correct, int wrong) {
+        UserTestResult result = new UserTestResult();
+        result.setUserId(USER_ID);
+        result.setTestType(testType);
+        result.setTestId(testId);
+        result.setCorrectCount(correct);
+        result.setWrongCount(wrong);
+        return result;
+    }
+
+    private static List<Long> idsOf(List<Section> sections) {
+        return sections.stream().map(Section::getId).toList();
+    }
+
+    private static List<Topic> topicsOf(List<Section> sections) {
+        return sections.stream().flatMap(section -> section.getTopics().stream()).toList();
+    }
+}
@@ -0,0 +1,135 @@
+package com.lbt.telegram_learning_bot.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Конкурентное поведение локального token bucket: списания под нагрузкой и гонка вставки с очисткой надгробий.
+ */
+class RateLimiterServiceTest {
+
+    private static final int THREADS = 8;
+
+    private static RateLimiterService limiter(int perMinute, int burst, int tableSize) {
+        // ClusterRateLimiter-заглушка неактивна: работает локальная таблица
+        return new RateLimiterService(mock(ClusterRateLimiter.class), new SimpleMeterRegistry(),
+                perMinute, burst, Math.min(10, burst), Math.min(10, burst), Math.min(3, burst), tableSize);
+    }
+
+    @Test
+    void concurrentRequestsOfOneUserNeverExceedBurst() throws Exception {
+        RateLimiterService limiter = limiter(1, 20, 1024);
+        AtomicInteger allowed = new AtomicInteger();
+
+        runConcurrently(THREADS, () -> {
+            for (int i = 0; i < 1_000; i++) {
+                if (limiter.isAllowed(42L)) allowed.incrementAndGet();
+            }
+        });
+
+        // Пополнение — один токен в минуту, за время теста целый токен не набирается
+        assertThat(allowed.get()).isEqualTo(20);
+        assertThat(limiter.slotsOf(42L)).isEqualTo(1);
+    }
+
+    @Test
+    void concurrentRequestsOfDifferentUsersAreIndependent() throws Exception {
+        RateLimiterService limiter = limiter(1, 5, 1024);
+        AtomicInteger[] allowed = new AtomicInteger[100];
+        for (int i = 0; i < allowed.length; i++) allowed[i] = new AtomicInteger();
+
+        runConcurrently(THREADS, () -> {
+            for (int round = 0; round < 20; round++) {
+                for (int user = 0; user < allowed.length; user++) {
+                    if (limiter.isAllowed((long) user + 1)) allowed[user].incrementAndGet();
+                }
+            }
+        });
+
+        for (int user = 0; user < allowed.length; user++) {
+            assertThat(allowed[user].get()).as("user " + (user + 1)).isEqualTo(5);
+        }
+    }
+
+    @Test
+    void insertsRacingWithTombstoneCleanupNeverDuplicateKeys() throws Exception {
+        // Корзина пополняется за миллисекунды — записи постоянно простаивают, удаляются и вставляются снова
+        RateLimiterService limiter = limiter(600_000, 1, 64);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread evictor = new Thread(() -> {
+            while (running.get()) limiter.evictIdle();
+        });
+        evictor.start();
+        try {
+            runConcurrently(THREADS, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 20_000; i++) {
+                    limiter.isAllowed(random.nextLong(1, 41));
+                }
+            });
+        } finally {
+            running.set(false);
+            evictor.join();
+        }
+
+        for (long key = 1; key <= 40; key++) {
+            assertThat(limiter.slotsOf(key)).as("slots of key " + key).isLessThanOrEqualTo(1);
+        }
+    }
+
+    @Test
+    void albumIsChargedOnce() {
+        RateLimiterService limiter = limiter(1, 30, 1024);
+
+        // 10 фото альбома: 3 токена за первое и по одному за остальные
+        for (int i = 0; i < 10; i++) {
+            assertThat(limiter.isAllowedPhoto(7L, "album-1")).isTrue();
+        }
+
+        int left = 0;
+        while (limiter.isAllowed(7L)) left++;
+        assertThat(left).isEqualTo(30 - 3 - 9);
+    }
+
+    @Test
+    void singlePhotosArePricedAsUploads() {
+        RateLimiterService limiter = limiter(1, 30, 1024);
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(limiter.isAllowedPhoto(8L, null)).isTrue();
+        }
+        assertThat(limiter.isAllowedPhoto(8L, null)).isFalse();
+    }
+
+    private static void runConcurrently(int threads, Runnable task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                task.run();
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+    }
+}
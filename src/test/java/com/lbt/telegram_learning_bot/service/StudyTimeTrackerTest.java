@@ -0,0 +1,178 @@
+package com.lbt.telegram_learning_bot.service;
+
+import com.lbt.telegram_learning_bot.entity.Topic;
+import com.lbt.telegram_learning_bot.entity.UserStudyTime;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Склейка пауз в сессии, сброс пачкой, возврат снятого при ошибке и видимость идущего сброса для чтений.
+ */
+class StudyTimeTrackerTest {
+
+    private static final Long USER = 1L;
+    private static final Long OTHER_USER = 2L;
+    private static final Long TOPIC = 10L;
+    // От текущего времени: сброс вытесняет записи, простоявшие дольше тайм-аута сессии
+    private static final Instant T0 = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final StudyTimeTracker tracker = new StudyTimeTracker(jdbcTemplate, new SimpleMeterRegistry(), 4);
+
+    @Test
+    void pausesWithinSessionAreMergedAndLongerOnesDropped() {
+        tracker.record(USER, TOPIC, T0);
+        tracker.record(USER, TOPIC, T0.plusSeconds(60));
+        tracker.record(USER, TOPIC, T0.plusSeconds(120));
+        // Пауза длиннее тайм-аута — новая сессия, секунды не добавляются
+        tracker.record(USER, TOPIC, T0.plusSeconds(120 + StudyTimeTracker.SESSION_TIMEOUT_SECONDS));
+        tracker.record(USER, TOPIC, T0.plusSeconds(130 + StudyTimeTracker.SESSION_TIMEOUT_SECONDS));
+
+        assertThat(tracker.totalSeconds(USER, List.of(), null)).isEqualTo(130);
+    }
+
+    @Test
+    void firstActionIsMeasuredFromStoredLastAction() {
+        tracker.record(USER, TOPIC, T0);
+        tracker.record(USER, TOPIC, T0.plusSeconds(20));
+
+        UserStudyTime row = row(TOPIC, 500, T0.minusSeconds(30));
+        assertThat(tracker.totalSeconds(USER, List.of(row), null)).isEqualTo(500 + 30 + 20);
+        assertThat(tracker.totalSeconds(USER, List.of(row), List.of(TOPIC + 1))).isEqualTo(500);
+    }
+
+    @Test
+    void flushWritesAccumulatedSecondsWithFirstAction() {
+        tracker.record(USER, TOPIC, T0);
+        tracker.record(USER, TOPIC, T0.plusSeconds(45));
+
+        tracker.flush();
+
+        Object[] args = flushedArgs().get(0);
+        assertThat(args[0]).isEqualTo(USER);
+        assertThat(args[1]).isEqualTo(TOPIC);
+        assertThat(args[2]).isEqualTo(45L);
+        assertThat(args[3]).isEqualTo(Timestamp.from(T0.plusSeconds(45)));
+        assertThat(args[5]).isEqualTo(Timestamp.from(T0));
+        assertThat(tracker.totalSeconds(USER, List.of(), null)).isZero();
+
+        // Следующий сброс — только новое, первое действие уже сопоставлено с БД
+        reset(jdbcTemplate);
+        tracker.record(USER, TOPIC, T0.plusSeconds(55));
+        tracker.flush();
+        args = flushedArgs().get(0);
+        assertThat(args[2]).isEqualTo(10L);
+        assertThat(args[5]).isNull();
+    }
+
+    @Test
+    void failedFlushRestoresSecondsForNextFlush() {
+        tracker.record(USER, TOPIC, T0);
+        tracker.record(USER, TOPIC, T0.plusSeconds(30));
+        doThrow(new DataAccessResourceFailureException("down")).when(jdbcTemplate).batchUpdate(anyString(), anyList());
+
+        assertThatThrownBy(tracker::flush).isInstanceOf(DataAccessResourceFailureException.class);
+        assertThat(tracker.totalSeconds(USER, List.of(), null)).isEqualTo(30);
+
+        // Действие во время сбоя добавляется к возвращённому
+        tracker.record(USER, TOPIC, T0.plusSeconds(40));
+        reset(jdbcTemplate);
+        tracker.flush();
+
+        Object[] args = flushedArgs().get(0);
+        assertThat(args[2]).isEqualTo(40L);
+        assertThat(args[5]).isEqualTo(Timestamp.from(T0));
+    }
+
+    @Test
+    void secondsOfRunningFlushStayVisibleUntilCommit() {
+        tracker.record(USER, TOPIC, T0);
+        tracker.record(USER, TOPIC, T0.plusSeconds(50));
+        UserStudyTime row = row(TOPIC, 100, T0.minusSeconds(10));
+        AtomicLong seenDuringFlush = new AtomicLong();
+        doAnswer(invocation -> {
+            seenDuringFlush.set(tracker.totalSeconds(USER, List.of(row), null));
+            return new int[]{1};
+        }).when(jdbcTemplate).batchUpdate(anyString(), anyList());
+
+        tracker.flush();
+
+        assertThat(seenDuringFlush.get()).isEqualTo(100 + 10 + 50);
+    }
+
+    @Test
+    void flushUsersWritesOnlyGivenUsers() {
+        tracker.record(USER, TOPIC, T0);
+        tracker.record(USER, TOPIC, T0.plusSeconds(5));
+        tracker.record(OTHER_USER, TOPIC, T0);
+        tracker.record(OTHER_USER, TOPIC, T0.plusSeconds(7));
+
+        tracker.flushUsers(List.of(USER));
+
+        List<Object[]> rows = flushedArgs();
+        assertThat(rows).hasSize(1);
+        assertThat(rows.get(0)[0]).isEqualTo(USER);
+        assertThat(tracker.totalSeconds(OTHER_USER, List.of(), null)).isEqualTo(7);
+    }
+
+    @Test
+    void forgetFlushedKeepsUnflushedEntries() {
+        tracker.record(USER, TOPIC, T0);
+        tracker.flush();
+        tracker.record(USER, TOPIC + 1, T0);
+        tracker.record(USER, TOPIC + 1, T0.plusSeconds(15));
+
+        tracker.forgetFlushed(USER);
+
+        // Сброшенная тема забыта: следующее действие снова меряется от last_action_at из БД
+        tracker.record(USER, TOPIC, T0.plusSeconds(20));
+        UserStudyTime stored = row(TOPIC, 0, T0.plusSeconds(12));
+        assertThat(tracker.totalSeconds(USER, List.of(stored), List.of(TOPIC))).isEqualTo(8);
+        assertThat(tracker.totalSeconds(USER, List.of(), List.of(TOPIC + 1))).isEqualTo(15);
+    }
+
+    @Test
+    void nothingToFlushMeansNoQuery() {
+        tracker.flush();
+        tracker.flushUsers(List.of(USER));
+
+        verify(jdbcTemplate, never()).batchUpdate(anyString(), anyList());
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object[]> flushedArgs() {
+        ArgumentCaptor<List<Object[]>> captor = ArgumentCaptor.forClass(List.class);
+        verify(jdbcTemplate).batchUpdate(anyString(), captor.capture());
+        return captor.getValue();
+    }
+
+    private static UserStudyTime row(Long topicId, int totalSeconds, Instant lastActionAt) {
+        Topic topic = new Topic();
+        topic.setId(topicId);
+        UserStudyTime row = new UserStudyTime();
+        row.setTopic(topic);
+        row.setTotalSeconds(totalSeconds);
+        row.setLastActionAt(lastActionAt);
+        return row;
+    }
+}
@@ -0,0 +1,70 @@
+package com.lbt.telegram_learning_bot.service;
+
+import com.lbt.telegram_learning_bot.repository.UpdateInboxRepository;
+import com.pengrad.telegrambot.BotUtils;
+import com.pengrad.telegrambot.model.Update;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Отметки об обработке: успешные копятся и пишутся пачкой во flush(), неудачные — сразу.
+ */
+class UpdateInboxServiceTest {
+
+    private final UpdateInboxRepository repository = mock(UpdateInboxRepository.class);
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final UpdateInboxService inbox = new UpdateInboxService(repository, jdbcTemplate, mock(ClusterNode.class));
+
+    @Test
+    void successfulMarksAreWrittenAsOneBatchPerBot() {
+        inbox.markHandled("main", update(1), true);
+        inbox.markHandled("main", update(2), true);
+        inbox.markHandled("second", update(1), true);
+        verifyNoInteractions(jdbcTemplate, repository);
+
+        inbox.flush();
+
+        verify(repository).markProcessed(eq("main"), eq(List.of(1L, 2L)), any());
+        verify(repository).markProcessed(eq("second"), eq(List.of(1L)), any());
+    }
+
+    @Test
+    void failedMarkIsWrittenImmediately() {
+        inbox.markHandled("main", update(5), false);
+
+        verify(jdbcTemplate).update(anyString(), eq("main"), eq(5L));
+        inbox.flush();
+        verify(repository, never()).incrementAttempts(anyString(), any());
+    }
+
+    @Test
+    void marksOfFailedFlushAreRetried() {
+        inbox.markHandled("main", update(7), true);
+        when(repository.markProcessed(eq("main"), any(), any()))
+                .thenThrow(new DataAccessResourceFailureException("down"))
+                .thenReturn(1);
+
+        assertThatThrownBy(inbox::flush).isInstanceOf(DataAccessResourceFailureException.class);
+        inbox.flush();
+
+        verify(repository, times(2)).markProcessed(eq("main"), eq(List.of(7L)), any());
+    }
+
+    private static Update update(int id) {
+        return BotUtils.parseUpdate("{\"update_id\":" + id + "}");
+    }
+}
@@ -0,0 +1,144 @@
+package com.lbt.telegram_learning_bot.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lbt.telegram_learning_bot.bot.PendingImage;
+import com.lbt.telegram_learning_bot.bot.UserContext;
+import org.junit.jupiter.api.Test;
+
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Двоичный кодек должен восстанавливать контекст так же, как JSON: каждое поле UserContext
+ * проходит через оба кодека и сравнивается с исходным значением.
+ */
+class UserContextCodecRoundTripTest {
+
+    private final BinaryUserContextCodec binary = new BinaryUserContextCodec();
+    private final JsonUserContextCodec json = new JsonUserContextCodec(new ObjectMapper());
+
+    @Test
+    void everyFieldSurvivesBothCodecs() throws Exception {
+        UserContext context = filledContext();
+        assertEveryFieldDiffersFromDefault(context);
+
+        UserContext viaBinary = binary.decode(binary.encode(context));
+        UserContext viaJson = json.decode(json.encode(context));
+
+        for (PropertyDescriptor property : properties()) {
+            Object expected = property.getReadMethod().invoke(context);
+            assertThat(property.getReadMethod().invoke(viaBinary)).as("binary: " + property.getName()).isEqualTo(expected);
+            assertThat(property.getReadMethod().invoke(viaJson)).as("json: " + property.getName()).isEqualTo(expected);
+        }
+        assertThat(viaBinary).isEqualTo(viaJson).isEqualTo(context);
+    }
+
+    @Test
+    void defaultContextSurvivesBothCodecs() {
+        UserContext context = new UserContext();
+
+        assertThat(binary.decode(binary.encode(context))).isEqualTo(context);
+        assertThat(json.decode(json.encode(context))).isEqualTo(context);
+    }
+
+    @Test
+    void nullsAndEmptyListsMatchJson() {
+        UserContext context = new UserContext();
+        context.setCurrentPage(null);
+        context.setPreviousSectionPage(null);
+        context.setPreviousTopicPage(null);
+        context.setAdminSectionsPage(null);
+        context.setAdminTopicsPage(null);
+        context.setPreviousCoursesPage(null);
+        context.setSearchQuery("");
+        context.setUserName("");
+
+        UserContext viaBinary = binary.decode(binary.encode(context));
+
+        assertThat(viaBinary).isEqualTo(json.decode(json.encode(context))).isEqualTo(context);
+    }
+
+    @Test
+    void negativeAndLargeNumbersSurvive() {
+        UserContext context = new UserContext();
+        context.setCurrentCourseId(Long.MAX_VALUE);
+        context.setCurrentSectionId(Long.MIN_VALUE);
+        context.setCurrentTestQuestionIndex(-1);
+        context.setCorrectAnswers(Integer.MAX_VALUE);
+        context.setWrongAnswers(Integer.MIN_VALUE);
+        // Дельты списка идут в обе стороны
+        context.setTestQuestionIds(new ArrayList<>(List.of(1_000_000L, 3L, Long.MAX_VALUE, -5L)));
+        context.setLastMediaMessageIds(new ArrayList<>(List.of(Integer.MAX_VALUE, 0, -7)));
+
+        assertThat(binary.decode(binary.encode(context))).isEqualTo(context);
+    }
+
+    private static UserContext filledContext() {
+        UserContext context = new UserContext();
+        context.setCurrentCourseId(11L);
+        context.setCurrentSectionId(12L);
+        context.setCurrentTopicId(13L);
+        context.setCurrentBlockId(14L);
+        context.setCurrentPage(3);
+        context.setPreviousMenuState("VIEW_TOPIC");
+        context.setSearchQuery("Основы Java");
+        context.setTestMode(true);
+        context.setTestQuestionIds(new ArrayList<>(List.of(101L, 99L, 250L)));
+        context.setCurrentTestQuestionIndex(2);
+        context.setEditingCourseId(21L);
+        context.setEditingSectionId(22L);
+        context.setEditingTopicId(23L);
+        context.setPendingImages(new ArrayList<>(List.of(
+                new PendingImage("block", 31L, "Схема"),
+                new PendingImage("question", 32L, null))));
+        context.setTestType("section");
+        context.setPendingImageDescriptions(new ArrayList<>(List.of("первая", "вторая")));
+        context.setCurrentImageIndex(1);
+        context.setTargetEntityId(33L);
+        context.setTargetEntityType("question");
+        context.setCurrentTopicBlockIds(new ArrayList<>(List.of(41L, 42L)));
+        context.setCurrentBlockIndex(1);
+        context.setCurrentBlockQuestionIndex(4);
+        context.setCorrectAnswers(7);
+        context.setWrongAnswers(5);
+        context.setCurrentBlockQuestionIds(new ArrayList<>(List.of(51L, 50L, 52L)));
+        context.setCoursesListSource("my_courses");
+        context.setLastInteractiveMessageId(777);
+        context.setUserName("Анна 👋");
+        context.setLastMediaMessageIds(new ArrayList<>(List.of(801, 802)));
+        context.setPreviousSectionPage(2);
+        context.setPreviousTopicPage(4);
+        context.setAdminSectionsPage(5);
+        context.setAdminTopicsPage(6);
+        context.setPreviousCoursesPage(7);
+        return context;
+    }
+
+    // Новое поле UserContext без значения в filledContext() проверялось бы вхолостую
+    private static void assertEveryFieldDiffersFromDefault(UserContext filled) throws Exception {
+        UserContext empty = new UserContext();
+        for (Field field : UserContext.class.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers())) continue;
+            field.setAccessible(true);
+            assertThat(field.get(filled)).as("filledContext() must set " + field.getName())
+                    .isNotEqualTo(field.get(empty));
+        }
+    }
+
+    private static List<PropertyDescriptor> properties() throws Exception {
+        List<PropertyDescriptor> result = new ArrayList<>();
+        for (PropertyDescriptor property : Introspector.getBeanInfo(UserContext.class, Object.class).getPropertyDescriptors()) {
+            if (property.getReadMethod() != null && property.getWriteMethod() != null) {
+                result.add(property);
+            }
+        }
+        assertThat(result).hasSizeGreaterThanOrEqualTo(UserContext.class.getDeclaredFields().length);
+        return result;
+    }
+}
@@ -0,0 +1,85 @@
+package com.lbt.telegram_learning_bot.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lbt.telegram_learning_bot.bot.UserContext;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Сравнение кодеков на контексте теста из 100 вопросов: двоичная форма должна быть меньше JSON.
+ * Время кодирования и декодирования обоих кодеков выводится для сравнения, но не проверяется:
+ * на общих сборочных машинах оно слишком шумное.
+ */
+class UserContextCodecSizeTest {
+
+    private static final int QUESTIONS = 100;
+    private static final int WARMUP_ROUNDS = 2_000;
+    private static final int MEASURED_ROUNDS = 10_000;
+
+    private final BinaryUserContextCodec binary = new BinaryUserContextCodec();
+    private final JsonUserContextCodec json = new JsonUserContextCodec(new ObjectMapper());
+
+    @Test
+    void binaryFormOfLargeTestIsSmallerThanJson() {
+        UserContext context = largeTestContext();
+
+        byte[] binaryForm = binary.encode(context);
+        byte[] jsonForm = json.encode(context);
+
+        assertThat(binary.decode(binaryForm)).isEqualTo(context);
+        assertThat(json.decode(jsonForm)).isEqualTo(context);
+        assertThat(binaryForm.length).isLessThan(jsonForm.length);
+
+        System.out.printf("UserContext with %d questions: binary %d bytes, json %d bytes (%.0f%%)%n",
+                QUESTIONS, binaryForm.length, jsonForm.length, 100.0 * binaryForm.length / jsonForm.length);
+        report(binary, context, binaryForm);
+        report(json, context, jsonForm);
+    }
+
+    private static void report(UserContextCodec codec, UserContext context, byte[] encoded) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            codec.decode(codec.encode(context));
+        }
+        long encodeStart = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            codec.encode(context);
+        }
+        long encodeNanos = System.nanoTime() - encodeStart;
+        long decodeStart = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            codec.decode(encoded);
+        }
+        long decodeNanos = System.nanoTime() - decodeStart;
+        System.out.printf("%s codec: encode %.2f us, decode %.2f us%n", codec.name(),
+                encodeNanos / (double) MEASURED_ROUNDS / TimeUnit.MICROSECONDS.toNanos(1),
+                decodeNanos / (double) MEASURED_ROUNDS / TimeUnit.MICROSECONDS.toNanos(1));
+    }
+
+    // Тест темы на 100 вопросов с перемешанными id, середина прохождения
+    private static UserContext largeTestContext() {
+        List<Long> questionIds = new ArrayList<>();
+        for (int i = 0; i < QUESTIONS; i++) {
+            questionIds.add(10_000L + (i * 37L) % QUESTIONS);
+        }
+        UserContext context = new UserContext();
+        context.setCurrentCourseId(11L);
+        context.setCurrentSectionId(12L);
+        context.setCurrentTopicId(13L);
+        context.setTestMode(true);
+        context.setTestType("topic");
+        context.setTestQuestionIds(questionIds);
+        context.setCurrentTestQuestionIndex(QUESTIONS / 2);
+        context.setCorrectAnswers(30);
+        context.setWrongAnswers(20);
+        context.setLastInteractiveMessageId(123_456);
+        context.setLastMediaMessageIds(new ArrayList<>(List.of(123_450, 123_451)));
+        context.setUserName("Анна");
+        context.setCurrentPage(1);
+        return context;
+    }
+}